@@ -0,0 +1,29 @@
+-- Sequences: "IBIS".bedrijvenkavels_ibis_id_seq, "IBIS".bedrijventerrein_ibis_id_seq
+
+-- new ibis_id values for split and new kavels and terreinen, the viewer fetches
+-- blocks of ids (see the ibis.id.blockSize context parameter).
+-- bedrijventerrein.ibis_id is an integer column, so the terrein sequence stops
+-- at the maximum integer value; bedrijvenkavels.ibis_id is a bigint column.
+
+-- DROP SEQUENCE "IBIS".bedrijvenkavels_ibis_id_seq;
+
+CREATE SEQUENCE "IBIS".bedrijvenkavels_ibis_id_seq
+  INCREMENT 1
+  MINVALUE 1
+  START 1
+  CACHE 1;
+ALTER TABLE "IBIS".bedrijvenkavels_ibis_id_seq
+  OWNER TO ibis;
+SELECT setval('"IBIS".bedrijvenkavels_ibis_id_seq', COALESCE((SELECT max(ibis_id) FROM "IBIS".bedrijvenkavels), 0) + 1, false);
+
+-- DROP SEQUENCE "IBIS".bedrijventerrein_ibis_id_seq;
+
+CREATE SEQUENCE "IBIS".bedrijventerrein_ibis_id_seq
+  INCREMENT 1
+  MINVALUE 1
+  MAXVALUE 2147483647
+  START 1
+  CACHE 1;
+ALTER TABLE "IBIS".bedrijventerrein_ibis_id_seq
+  OWNER TO ibis;
+SELECT setval('"IBIS".bedrijventerrein_ibis_id_seq', COALESCE((SELECT max(ibis_id) FROM "IBIS".bedrijventerrein), 0) + 1, false);
@@ -18,4 +18,6 @@ INSERT INTO gt_pk_metadata VALUES ('IBIS', 'v_component_ibis_report_uitgifte', '
 INSERT INTO gt_pk_metadata VALUES ('IBIS', 'v_gemeente_en_regio_envelopes', 'gem_id', NULL, 'assigned', NULL);
 INSERT INTO gt_pk_metadata VALUES ('IBIS', 'v_factsheet_terrein_info', 'terreinid', NULL, 'assigned', NULL);
 INSERT INTO gt_pk_metadata VALUES ('IBIS', 'v_kavel_oppervlakte', 'gt_key', NULL, 'assigned', NULL);
+INSERT INTO gt_pk_metadata VALUES ('IBIS', 'v_workflow_bedrijvenkavels', 'gt_key', NULL, 'assigned', NULL);
+INSERT INTO gt_pk_metadata VALUES ('IBIS', 'v_workflow_bedrijventerrein', 'gt_pkey', NULL, 'assigned', NULL);
 
@@ -0,0 +1,220 @@
+-- Table: "IBIS".uitgifte_per_maand
+
+-- issued area ("uitgegeven" kavels) per terrein per month, used by the ISSUE
+-- report of the IbisReport component instead of the kavels of
+-- v_component_ibis_report_uitgifte. The rows of a terrein are recalculated by
+-- the triggers below when one of its kavels, the terrein itself or the name of
+-- its gemeente or regio changes. The triggers use transition tables and need
+-- PostgreSQL 10 or newer.
+-- The columns have the same names as in v_component_ibis_report_uitgifte,
+-- datumuitgifte is the first day of the month. Like the report this depends on
+-- the datumuitgifte column of v_component_ibis_report_uitgifte.
+
+-- DROP TABLE "IBIS".uitgifte_per_maand;
+
+CREATE TABLE "IBIS".uitgifte_per_maand
+(
+  terreinid integer NOT NULL,
+  datumuitgifte date NOT NULL,
+  terreinnaam character varying(255),
+  gemeentenaam character varying(255),
+  regionaam character varying(255),
+  opp_geometrie numeric NOT NULL DEFAULT 0,
+  aantal integer NOT NULL DEFAULT 0,
+  CONSTRAINT uitgifte_per_maand_pkey PRIMARY KEY (terreinid, datumuitgifte)
+);
+ALTER TABLE "IBIS".uitgifte_per_maand
+  OWNER TO ibis;
+COMMENT ON TABLE "IBIS".uitgifte_per_maand
+  IS 'Uitgegeven oppervlakte per terrein per maand voor het uitgifte rapport, wordt bijgewerkt door triggers.';
+
+-- DROP FUNCTION "IBIS".ververs_uitgifte_per_maand(integer);
+
+CREATE OR REPLACE FUNCTION "IBIS".ververs_uitgifte_per_maand(p_terreinid integer)
+  RETURNS void AS
+$BODY$
+BEGIN
+    DELETE FROM "IBIS".uitgifte_per_maand WHERE terreinid = p_terreinid;
+    INSERT INTO "IBIS".uitgifte_per_maand
+        (terreinid, datumuitgifte, terreinnaam, gemeentenaam, regionaam, opp_geometrie, aantal)
+    SELECT u.terreinid,
+           date_trunc('month', u.datumuitgifte)::date,
+           min(u.terreinnaam),
+           min(u.gemeentenaam),
+           min(u.regionaam),
+           coalesce(sum(u.opp_geometrie), 0),
+           count(*)
+      FROM "IBIS".v_component_ibis_report_uitgifte u
+     WHERE u.terreinid = p_terreinid
+       AND u.status = 'uitgegeven'
+       AND u.datumuitgifte IS NOT NULL
+     GROUP BY u.terreinid, date_trunc('month', u.datumuitgifte);
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+ALTER FUNCTION "IBIS".ververs_uitgifte_per_maand(integer)
+  OWNER TO ibis;
+
+-- DROP FUNCTION "IBIS".uitgifte_per_maand_kavel_trg();
+
+-- statement level, so a set based update of many kavels refreshes each affected
+-- terrein once. A kavel can move to another terrein, so both the old and the
+-- new terrein are refreshed.
+CREATE OR REPLACE FUNCTION "IBIS".uitgifte_per_maand_kavel_trg()
+  RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        PERFORM "IBIS".ververs_uitgifte_per_maand(t.terreinid)
+           FROM (SELECT DISTINCT terreinid FROM new_kavels) t
+          WHERE t.terreinid IS NOT NULL;
+    ELSIF TG_OP = 'UPDATE' THEN
+        PERFORM "IBIS".ververs_uitgifte_per_maand(t.terreinid)
+           FROM (SELECT terreinid FROM old_kavels UNION SELECT terreinid FROM new_kavels) t
+          WHERE t.terreinid IS NOT NULL;
+    ELSE
+        PERFORM "IBIS".ververs_uitgifte_per_maand(t.terreinid)
+           FROM (SELECT DISTINCT terreinid FROM old_kavels) t
+          WHERE t.terreinid IS NOT NULL;
+    END IF;
+    RETURN NULL;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+ALTER FUNCTION "IBIS".uitgifte_per_maand_kavel_trg()
+  OWNER TO ibis;
+
+-- a trigger with transition tables can only have one event
+
+-- DROP TRIGGER uitgifte_per_maand_kavel_insert ON "IBIS".bedrijvenkavels;
+
+CREATE TRIGGER uitgifte_per_maand_kavel_insert
+  AFTER INSERT
+  ON "IBIS".bedrijvenkavels
+  REFERENCING NEW TABLE AS new_kavels
+  FOR EACH STATEMENT
+  EXECUTE PROCEDURE "IBIS".uitgifte_per_maand_kavel_trg();
+
+-- DROP TRIGGER uitgifte_per_maand_kavel_update ON "IBIS".bedrijvenkavels;
+
+CREATE TRIGGER uitgifte_per_maand_kavel_update
+  AFTER UPDATE
+  ON "IBIS".bedrijvenkavels
+  REFERENCING OLD TABLE AS old_kavels NEW TABLE AS new_kavels
+  FOR EACH STATEMENT
+  EXECUTE PROCEDURE "IBIS".uitgifte_per_maand_kavel_trg();
+
+-- DROP TRIGGER uitgifte_per_maand_kavel_delete ON "IBIS".bedrijvenkavels;
+
+CREATE TRIGGER uitgifte_per_maand_kavel_delete
+  AFTER DELETE
+  ON "IBIS".bedrijvenkavels
+  REFERENCING OLD TABLE AS old_kavels
+  FOR EACH STATEMENT
+  EXECUTE PROCEDURE "IBIS".uitgifte_per_maand_kavel_trg();
+
+-- DROP FUNCTION "IBIS".uitgifte_per_maand_terrein_trg();
+
+-- the names of the terrein, gemeente and regio are copied into the rollup,
+-- refresh the terreinen with a changed name or gemeente; a trigger with
+-- transition tables cannot have a column list, so the changed columns are
+-- compared here
+CREATE OR REPLACE FUNCTION "IBIS".uitgifte_per_maand_terrein_trg()
+  RETURNS trigger AS
+$BODY$
+BEGIN
+    PERFORM "IBIS".ververs_uitgifte_per_maand(t.ibis_id)
+       FROM (SELECT DISTINCT n.ibis_id
+               FROM new_terreinen n
+               JOIN old_terreinen o ON o.gt_pkey = n.gt_pkey
+              WHERE n.a_plannaam IS DISTINCT FROM o.a_plannaam
+                 OR n.gemeente_naam IS DISTINCT FROM o.gemeente_naam) t
+      WHERE t.ibis_id IS NOT NULL;
+    RETURN NULL;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+ALTER FUNCTION "IBIS".uitgifte_per_maand_terrein_trg()
+  OWNER TO ibis;
+
+-- DROP TRIGGER uitgifte_per_maand_terrein ON "IBIS".bedrijventerrein;
+
+CREATE TRIGGER uitgifte_per_maand_terrein
+  AFTER UPDATE
+  ON "IBIS".bedrijventerrein
+  REFERENCING OLD TABLE AS old_terreinen NEW TABLE AS new_terreinen
+  FOR EACH STATEMENT
+  EXECUTE PROCEDURE "IBIS".uitgifte_per_maand_terrein_trg();
+
+-- DROP FUNCTION "IBIS".uitgifte_per_maand_gemeente_trg();
+
+-- the gemeente and regio names come from the gemeente (naam, vvr_id) and the
+-- regio (vvr_naam) of the terrein, refresh the terreinen of a renamed gemeente
+-- or of a gemeente that moved to another regio
+CREATE OR REPLACE FUNCTION "IBIS".uitgifte_per_maand_gemeente_trg()
+  RETURNS trigger AS
+$BODY$
+BEGIN
+    PERFORM "IBIS".ververs_uitgifte_per_maand(t.ibis_id)
+       FROM (SELECT DISTINCT b.ibis_id
+               FROM "IBIS".bedrijventerrein b
+               JOIN (SELECT o.naam AS oud, n.naam AS nieuw
+                       FROM old_gemeenten o
+                       JOIN new_gemeenten n ON n.id = o.id
+                      WHERE n.naam IS DISTINCT FROM o.naam
+                         OR n.vvr_id IS DISTINCT FROM o.vvr_id) g
+                 ON b.gemeente_naam IN (g.oud, g.nieuw)) t
+      WHERE t.ibis_id IS NOT NULL;
+    RETURN NULL;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+ALTER FUNCTION "IBIS".uitgifte_per_maand_gemeente_trg()
+  OWNER TO ibis;
+
+-- DROP TRIGGER uitgifte_per_maand_gemeente ON "IBIS".gemeente;
+
+CREATE TRIGGER uitgifte_per_maand_gemeente
+  AFTER UPDATE
+  ON "IBIS".gemeente
+  REFERENCING OLD TABLE AS old_gemeenten NEW TABLE AS new_gemeenten
+  FOR EACH STATEMENT
+  EXECUTE PROCEDURE "IBIS".uitgifte_per_maand_gemeente_trg();
+
+-- DROP FUNCTION "IBIS".uitgifte_per_maand_regio_trg();
+
+-- refresh the terreinen in the gemeenten of a renamed regio
+CREATE OR REPLACE FUNCTION "IBIS".uitgifte_per_maand_regio_trg()
+  RETURNS trigger AS
+$BODY$
+BEGIN
+    PERFORM "IBIS".ververs_uitgifte_per_maand(t.ibis_id)
+       FROM (SELECT DISTINCT b.ibis_id
+               FROM "IBIS".bedrijventerrein b
+               JOIN "IBIS".gemeente g ON b.gemeente_naam = g.naam
+               JOIN (SELECT o.vvr_id AS oud, n.vvr_id AS nieuw
+                       FROM old_regios o
+                       JOIN new_regios n ON n.id = o.id
+                      WHERE n.vvr_naam IS DISTINCT FROM o.vvr_naam
+                         OR n.vvr_id IS DISTINCT FROM o.vvr_id) r
+                 ON g.vvr_id IN (r.oud, r.nieuw)) t
+      WHERE t.ibis_id IS NOT NULL;
+    RETURN NULL;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+ALTER FUNCTION "IBIS".uitgifte_per_maand_regio_trg()
+  OWNER TO ibis;
+
+-- DROP TRIGGER uitgifte_per_maand_regio ON "IBIS".regio;
+
+CREATE TRIGGER uitgifte_per_maand_regio
+  AFTER UPDATE
+  ON "IBIS".regio
+  REFERENCING OLD TABLE AS old_regios NEW TABLE AS new_regios
+  FOR EACH STATEMENT
+  EXECUTE PROCEDURE "IBIS".uitgifte_per_maand_regio_trg();
+
+-- initial fill
+SELECT "IBIS".ververs_uitgifte_per_maand(t.terreinid)
+  FROM (SELECT DISTINCT terreinid FROM "IBIS".bedrijvenkavels WHERE terreinid IS NOT NULL) t;
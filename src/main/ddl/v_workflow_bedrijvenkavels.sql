@@ -0,0 +1,29 @@
+-- View: "IBIS".v_workflow_bedrijvenkavels
+
+-- DROP VIEW "IBIS".v_workflow_bedrijvenkavels;
+
+-- the current version of each kavel: bewerkt before definitief, then the youngest datummutatie (none is oldest),
+-- then the lowest primary key, the same order as WorkflowVersionResolver
+CREATE OR REPLACE VIEW "IBIS".v_workflow_bedrijvenkavels AS
+ SELECT k.*
+   FROM bedrijvenkavels k
+  WHERE (k.workflow_status::text = ANY (ARRAY['bewerkt'::text, 'definitief'::text]))
+    AND NOT EXISTS (
+        SELECT 1
+          FROM bedrijvenkavels n
+         WHERE n.ibis_id = k.ibis_id
+           AND (n.workflow_status::text = ANY (ARRAY['bewerkt'::text, 'definitief'::text]))
+           AND (n.workflow_status::text < k.workflow_status::text
+                OR (n.workflow_status::text = k.workflow_status::text
+                    AND (COALESCE(n.datummutatie, '-infinity') > COALESCE(k.datummutatie, '-infinity')
+                         OR (COALESCE(n.datummutatie, '-infinity') = COALESCE(k.datummutatie, '-infinity')
+                             AND n.gt_key < k.gt_key)))));
+
+ALTER TABLE "IBIS".v_workflow_bedrijvenkavels
+  OWNER TO ibis;
+COMMENT ON VIEW "IBIS".v_workflow_bedrijvenkavels
+  IS 'Actuele workflow versie van de kavels voor featureinfo en edit.';
+
+-- DROP INDEX "IBIS".kavels_workflow_idx;
+
+CREATE INDEX kavels_workflow_idx ON "IBIS".bedrijvenkavels USING btree (ibis_id, workflow_status, datummutatie);
@@ -0,0 +1,29 @@
+-- View: "IBIS".v_workflow_bedrijventerrein
+
+-- DROP VIEW "IBIS".v_workflow_bedrijventerrein;
+
+-- the current version of each terrein: bewerkt before definitief, then the youngest datummutatie (none is oldest),
+-- then the lowest primary key, the same order as WorkflowVersionResolver
+CREATE OR REPLACE VIEW "IBIS".v_workflow_bedrijventerrein AS
+ SELECT t.*
+   FROM bedrijventerrein t
+  WHERE (t.workflow_status::text = ANY (ARRAY['bewerkt'::text, 'definitief'::text]))
+    AND NOT EXISTS (
+        SELECT 1
+          FROM bedrijventerrein n
+         WHERE n.ibis_id = t.ibis_id
+           AND (n.workflow_status::text = ANY (ARRAY['bewerkt'::text, 'definitief'::text]))
+           AND (n.workflow_status::text < t.workflow_status::text
+                OR (n.workflow_status::text = t.workflow_status::text
+                    AND (COALESCE(n.datummutatie, '-infinity') > COALESCE(t.datummutatie, '-infinity')
+                         OR (COALESCE(n.datummutatie, '-infinity') = COALESCE(t.datummutatie, '-infinity')
+                             AND n.gt_pkey < t.gt_pkey)))));
+
+ALTER TABLE "IBIS".v_workflow_bedrijventerrein
+  OWNER TO ibis;
+COMMENT ON VIEW "IBIS".v_workflow_bedrijventerrein
+  IS 'Actuele workflow versie van de terreinen voor featureinfo en edit.';
+
+-- DROP INDEX "IBIS".terreinen_workflow_idx;
+
+CREATE INDEX terreinen_workflow_idx ON "IBIS".bedrijventerrein USING btree (ibis_id, workflow_status, datummutatie);
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import nl.b3p.viewer.ibis.util.WorkflowUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+/**
+ * Iterates the features of a source that have one of the given key values,
+ * using one query per {@link WorkflowUtil#IN_FILTER_SIZE} keys. The queries
+ * are run one after the other while iterating, so only the current feature is
+ * held in memory and there is no limit on the number of keys.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class ChunkedFeatureIterator implements SimpleFeatureIterator {
+
+    private static final Log log = LogFactory.getLog(ChunkedFeatureIterator.class);
+
+    private final FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+    private final SimpleFeatureSource source;
+    private final Query query;
+    private final Iterator<List<Filter>> chunks;
+    private SimpleFeatureIterator current;
+    private int queries;
+
+    /**
+     * @param source source to read
+     * @param query query for the features, its filter is combined with the
+     * key filter of each chunk
+     * @param keyAttribute attribute holding the key
+     * @param keys key values
+     */
+    public ChunkedFeatureIterator(SimpleFeatureSource source, Query query, String keyAttribute, Collection<?> keys) {
+        this.source = source;
+        this.query = query;
+        this.chunks = WorkflowUtil.inFilters(keyAttribute, keys).iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (current == null || !current.hasNext()) {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            if (!chunks.hasNext()) {
+                return false;
+            }
+            List<Filter> chunk = chunks.next();
+            Filter keys = chunk.size() == 1 ? chunk.get(0) : ff.or(chunk);
+            Query q = new Query(query);
+            q.setFilter(query.getFilter() == null || query.getFilter() == Filter.INCLUDE
+                    ? keys : ff.and(query.getFilter(), keys));
+            try {
+                current = source.getFeatures(q).features();
+            } catch (IOException e) {
+                throw new IllegalStateException("Ophalen van features is mislukt voor " + query.getHandle(), e);
+            }
+            queries++;
+            log.debug(String.format("%s: query %d met %d sleutels", query.getHandle(), queries, chunk.size()));
+        }
+        return true;
+    }
+
+    @Override
+    public SimpleFeature next() throws NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void close() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * @return the number of queries run so far
+     */
+    public int getQueries() {
+        return queries;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes a report as CSV (RFC 4180, comma separated, {@code "} quoted),
+ * starting with a byte order mark so spreadsheets read the file as UTF-8.
+ * Text that a spreadsheet would read as a formula is prefixed with {@code '}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class CsvReportWriter extends SpreadsheetReportWriter {
+
+    /**
+     * mimetype of the output. {@value}
+     */
+    public static final String MIMETYPE = "text/csv";
+
+    private static final String NEWLINE = "\r\n";
+
+    private final Writer out;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+    /**
+     * @param out UTF-8 writer of the response
+     */
+    public CsvReportWriter(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    protected void writeHeader(List<String> titles) throws IOException {
+        out.write('\uFEFF');
+        writeLine(titles);
+    }
+
+    @Override
+    protected void writeCells(List<Object> cells) throws IOException {
+        writeLine(cells);
+    }
+
+    @Override
+    protected void close() throws IOException {
+        out.flush();
+    }
+
+    private void writeLine(List<?> cells) throws IOException {
+        boolean first = true;
+        for (Object cell : cells) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            if (cell instanceof Date) {
+                out.write(dateFormat.format((Date) cell));
+            } else if (cell instanceof Number) {
+                // may be negative, never a formula
+                out.write(cell.toString());
+            } else if (cell != null) {
+                out.write(quote(cell.toString()));
+            }
+        }
+        out.write(NEWLINE);
+    }
+
+    /**
+     * Quote a value if it has a separator, quote or line break. A value that
+     * starts with {@code = + - @}, a tab or a carriage return is prefixed with
+     * {@code '} so a spreadsheet does not run it as a formula (CSV
+     * injection).
+     *
+     * @param value value of a cell
+     * @return the value as a CSV field
+     */
+    static String quote(String value) {
+        if (!value.isEmpty() && "=+-@\t\r".indexOf(value.charAt(0)) >= 0) {
+            value = "'" + value;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Joins child (kavel) features to their parent (terrein) while iterating the
+ * children: each child is retyped to the report type and gets the values of
+ * its parent. The parents are held in memory, the children are not.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class JoinedFeatureIterator implements SimpleFeatureIterator {
+
+    private static final Log log = LogFactory.getLog(JoinedFeatureIterator.class);
+
+    private final SimpleFeatureIterator children;
+    private final SimpleFeatureBuilder builder;
+    private final Map<Object, SimpleFeature> parents;
+    private final String childKey;
+    private final Collection<String> payload;
+    private final boolean payloadOnce;
+    private final Set<Object> joined = new HashSet<>();
+    private SimpleFeature next;
+    private int skipped;
+
+    /**
+     * @param children child features, closed with this iterator
+     * @param type report feature type
+     * @param parents parents by key, see {@link #readParents}
+     * @param childKey attribute of the child that holds the key of the parent
+     * @param payload parent attributes that are reported
+     * @param payloadOnce {@code true} to copy the payload of a parent only to
+     * its first child, so it is counted once when the rows are aggregated
+     */
+    public JoinedFeatureIterator(SimpleFeatureIterator children, SimpleFeatureType type, Map<Object, SimpleFeature> parents,
+            String childKey, Collection<String> payload, boolean payloadOnce) {
+        this.children = children;
+        this.builder = new SimpleFeatureBuilder(type);
+        this.parents = parents;
+        this.childKey = childKey;
+        this.payload = payload;
+        this.payloadOnce = payloadOnce;
+    }
+
+    /**
+     * Read the parent features.
+     *
+     * @param source parent source
+     * @param query parent query, should include the key attribute
+     * @param key key attribute
+     * @return parents by key, in the order of the source
+     * @throws IOException if reading fails
+     */
+    public static Map<Object, SimpleFeature> readParents(SimpleFeatureSource source, Query query, String key) throws IOException {
+        Map<Object, SimpleFeature> parents = new LinkedHashMap<>();
+        try (SimpleFeatureIterator it = source.getFeatures(query).features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                parents.put(f.getAttribute(key), f);
+            }
+        }
+        log.debug(String.format("%s: %d ouder features", query.getHandle(), parents.size()));
+        return parents;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && children.hasNext()) {
+            SimpleFeature child = children.next();
+            Object key = child.getAttribute(childKey);
+            SimpleFeature parent = parents.get(key);
+            if (parent == null) {
+                skipped++;
+                log.debug("Geen ouder feature voor " + childKey + "=" + key);
+                continue;
+            }
+            next = join(child, parent, joined.add(key));
+        }
+        return next != null;
+    }
+
+    private SimpleFeature join(SimpleFeature child, SimpleFeature parent, boolean first) {
+        SimpleFeature n = SimpleFeatureBuilder.retype(child, builder);
+        for (Property a : parent.getProperties()) {
+            String name = a.getName().getLocalPart();
+            if (n.getFeatureType().getDescriptor(name) == null
+                    || (payloadOnce && !first && payload.contains(name))) {
+                continue;
+            }
+            n.setAttribute(name, a.getValue());
+        }
+        return n;
+    }
+
+    @Override
+    public SimpleFeature next() throws NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SimpleFeature n = next;
+        next = null;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        children.close();
+        if (skipped > 0) {
+            log.warn(skipped + " features zonder ouder feature overgeslagen");
+        }
+    }
+}
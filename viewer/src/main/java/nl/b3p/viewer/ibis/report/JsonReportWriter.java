@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes a report response while the rows are produced: first the
+ * {@code data} array, one row at a time, then {@code total} and the other
+ * properties of the response (metadata, success, message). As these come last
+ * an error while writing the rows can still be reported.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class JsonReportWriter implements ReportWriter {
+
+    private final Writer out;
+    private boolean started;
+    private boolean finished;
+    private int total;
+
+    /**
+     * @param out writer of the response
+     */
+    public JsonReportWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * The columns are part of the metadata in the properties of the response.
+     *
+     * @param columns ignored
+     */
+    @Override
+    public void writeColumns(JSONArray columns) {
+    }
+
+    /**
+     * Write a row of the {@code data} array.
+     *
+     * @param row row
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void writeRow(JSONObject row) throws IOException {
+        if (!started) {
+            out.write("{\"data\":[");
+            started = true;
+        } else {
+            out.write(',');
+        }
+        out.write(row.toString());
+        total++;
+    }
+
+    /**
+     * Close the {@code data} array and write the properties of the response.
+     *
+     * @param properties other properties of the response
+     * @throws IOException if writing fails
+     * @throws JSONException if a property cannot be written
+     */
+    @Override
+    public void finish(JSONObject properties) throws IOException, JSONException {
+        if (finished) {
+            throw new IllegalStateException("Rapport is al afgesloten.");
+        }
+        if (!started) {
+            out.write("{\"data\":[");
+            started = true;
+        }
+        out.write("],\"total\":");
+        out.write(Integer.toString(total));
+        Iterator<?> keys = properties.keys();
+        while (keys.hasNext()) {
+            String key = keys.next().toString();
+            out.write(',');
+            out.write(JSONObject.quote(key));
+            out.write(':');
+            out.write(JSONObject.valueToString(properties.get(key)));
+        }
+        out.write('}');
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * @return the number of rows written
+     */
+    @Override
+    public int getTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Application wide cache of report responses, keyed by the normalised report
+ * parameters. Each entry knows the terreinen it was computed from and is
+ * removed when a kavel of one of these terreinen, or the terrein itself, is
+ * edited; edits of terreinen that may move them to another area remove all
+ * entries. Entries are also evicted by size (least recently used first) and
+ * after a time to live.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class ReportCache {
+
+    private static final Log log = LogFactory.getLog(ReportCache.class);
+
+    /**
+     * maximum length of a cached response in characters, larger responses are
+     * not cached. {@value}
+     */
+    public static final int MAX_ENTRY_LENGTH = 1024 * 1024;
+
+    private static volatile int maxEntries = 64;
+    private static volatile long timeToLive = TimeUnit.MINUTES.toMillis(15);
+
+    private static final Map<String, CachedReport> cache = new LinkedHashMap<String, CachedReport>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedReport> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+    /**
+     * incremented on every invalidation, a report that was computed while an
+     * invalidation happened is not cached.
+     */
+    private static final AtomicLong generation = new AtomicLong();
+
+    /**
+     * private constructor for utility class.
+     */
+    private ReportCache() {
+    }
+
+    private static final class CachedReport {
+
+        private final String response;
+        private final Set<String> terreinIDs;
+        private final long created = System.currentTimeMillis();
+
+        CachedReport(String response, Set<String> terreinIDs) {
+            this.response = response;
+            this.terreinIDs = terreinIDs;
+        }
+    }
+
+    /**
+     * Create a cache key from report parameters; {@code null} parameters,
+     * dates and the order of collections (eg. attribute names) are
+     * normalised.
+     *
+     * @param parts report parameters
+     * @return the cache key
+     */
+    public static String key(Object... parts) {
+        StringBuilder key = new StringBuilder();
+        for (Object part : parts) {
+            if (part instanceof Date) {
+                key.append(((Date) part).getTime());
+            } else if (part instanceof Collection) {
+                Set<String> sorted = new TreeSet<>();
+                for (Object o : (Collection<?>) part) {
+                    sorted.add(String.valueOf(o));
+                }
+                key.append(sorted);
+            } else if (part != null) {
+                key.append(part);
+            }
+            key.append('|');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the current generation, to pass to
+     * {@link #put(java.lang.String, java.lang.String, java.util.Collection, long)}
+     */
+    public static long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Get a cached response.
+     *
+     * @param key see {@link #key(java.lang.Object...)}
+     * @return the response or {@code null} if not cached or expired
+     */
+    public static String get(String key) {
+        synchronized (cache) {
+            CachedReport e = cache.get(key);
+            if (e == null || System.currentTimeMillis() - e.created > timeToLive) {
+                cache.remove(key);
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return e.response;
+        }
+    }
+
+    /**
+     * Cache a response, unless the cache was invalidated since the report was
+     * started or the response is too large.
+     *
+     * @param key see {@link #key(java.lang.Object...)}
+     * @param response the response
+     * @param terreinIDs the terreinen the report was computed from
+     * @param started the {@link #generation()} when the report was started
+     * @return {@code true} if the response was cached
+     */
+    public static boolean put(String key, String response, Collection<?> terreinIDs, long started) {
+        if (response.length() > MAX_ENTRY_LENGTH) {
+            log.debug("Rapport te groot voor cache: " + response.length());
+            return false;
+        }
+        Set<String> ids = new HashSet<>();
+        for (Object id : terreinIDs) {
+            ids.add(String.valueOf(id));
+        }
+        synchronized (cache) {
+            if (generation.get() != started) {
+                log.debug("Rapport niet in cache, gegevens zijn gewijzigd tijdens het maken");
+                return false;
+            }
+            cache.put(key, new CachedReport(response, ids));
+        }
+        return true;
+    }
+
+    /**
+     * Remove the entries that were computed from a terrein.
+     *
+     * @param terreinID id of the terrein, {@code null} after an edit of a
+     * terrein (or a kavel without terrein) removes all entries as the edit may
+     * have moved the terrein to another area
+     */
+    public static void invalidate(Object terreinID) {
+        if (terreinID == null) {
+            clear();
+        } else {
+            invalidate(Collections.singleton(terreinID));
+        }
+    }
+
+    /**
+     * Remove the entries that were computed from any of the terreinen.
+     *
+     * @param terreinIDs ids of the terreinen
+     */
+    public static void invalidate(Collection<?> terreinIDs) {
+        Set<String> ids = new HashSet<>();
+        for (Object id : terreinIDs) {
+            ids.add(String.valueOf(id));
+        }
+        int removed = 0;
+        synchronized (cache) {
+            generation.incrementAndGet();
+            Iterator<CachedReport> entries = cache.values().iterator();
+            while (entries.hasNext()) {
+                if (!Collections.disjoint(entries.next().terreinIDs, ids)) {
+                    entries.remove();
+                    removed++;
+                }
+            }
+        }
+        invalidations.addAndGet(removed);
+        if (removed > 0) {
+            log.debug(String.format("%d rapporten verwijderd uit cache voor terreinen %s", removed, ids));
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public static void clear() {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            invalidations.addAndGet(cache.size());
+            cache.clear();
+        }
+    }
+
+    /**
+     * A writer that passes everything to the response and keeps a copy while
+     * it is not longer than {@link #MAX_ENTRY_LENGTH}.
+     */
+    public static class Recorder extends Writer {
+
+        private final Writer out;
+        private StringBuilder copy = new StringBuilder();
+
+        /**
+         * @param out the writer of the response
+         */
+        public Recorder(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            if (copy != null) {
+                if (copy.length() + len > MAX_ENTRY_LENGTH) {
+                    copy = null;
+                } else {
+                    copy.append(cbuf, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        /**
+         * @return the written text or {@code null} if it was too long
+         */
+        public String getCopy() {
+            return copy == null ? null : copy.toString();
+        }
+    }
+
+    /**
+     * Set the maximum number of entries.
+     *
+     * @param max maximum number of entries
+     */
+    public static void setMaxEntries(int max) {
+        maxEntries = max;
+    }
+
+    /**
+     * Set the time entries stay valid.
+     *
+     * @param millis time to live in milliseconds
+     */
+    public static void setTimeToLive(long millis) {
+        timeToLive = millis;
+    }
+
+    /**
+     * @return the metrics of the cache: size, total length of the cached
+     * responses, hits, misses, hit ratio, evictions and invalidations
+     */
+    public static Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        int size;
+        long length = 0;
+        synchronized (cache) {
+            size = cache.size();
+            for (CachedReport e : cache.values()) {
+                length += e.response.length();
+            }
+        }
+        long h = hits.get();
+        long m = misses.get();
+        metrics.put("size", size);
+        metrics.put("maxEntries", maxEntries);
+        metrics.put("length", length);
+        metrics.put("averageLength", size == 0 ? 0 : length / size);
+        metrics.put("hits", h);
+        metrics.put("misses", m);
+        metrics.put("hitRatio", h + m == 0 ? 0d : (double) h / (h + m));
+        metrics.put("evictions", evictions.get());
+        metrics.put("invalidations", invalidations.get());
+        metrics.put("timeToLive", timeToLive);
+        return metrics;
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs reports in the background for reports that take longer than a http
+ * request may take. A job gets an id that the client uses to poll the
+ * progress, cancel the job and fetch the result. The result is written to a
+ * temporary file and kept for {@link #setTimeToLive(long) some time} after the
+ * job finished; a background reaper removes expired jobs and their results.
+ * <p>
+ * At most {@link #setMaxRunning(int) maxRunning} reports run at the same time
+ * and at most {@link #setMaxQueued(int) maxQueued} wait, more jobs are
+ * refused so reports can not take all database connections from editing.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class ReportJobManager {
+
+    private static final Log log = LogFactory.getLog(ReportJobManager.class);
+
+    /**
+     * A report that runs as a job.
+     */
+    public interface Report {
+
+        /**
+         * Write the report.
+         *
+         * @param job the job, use {@link Job#track(ReportWriter)} for the
+         * progress and to stop when the job is cancelled
+         * @param out writer for the result
+         * @throws Exception if the report fails
+         */
+        void run(Job job, Writer out) throws Exception;
+    }
+
+    /**
+     * state of a job.
+     */
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * A submitted report.
+     */
+    public static final class Job {
+
+        private final String id = UUID.randomUUID().toString();
+        private final String owner;
+        private final long created = System.currentTimeMillis();
+        private final AtomicInteger rows = new AtomicInteger();
+        private Status status = Status.QUEUED;
+        private volatile String stage = "wachtrij";
+        private volatile long started;
+        private volatile long finished;
+        private volatile String message;
+        private volatile File result;
+        private volatile Future<?> future;
+
+        private Job(String owner) {
+            this.owner = owner;
+        }
+
+        private synchronized boolean transition(Status from, Status to) {
+            if (status != from) {
+                return false;
+            }
+            status = to;
+            return true;
+        }
+
+        /**
+         * Count the rows that are written and stop writing when the job is
+         * cancelled.
+         *
+         * @param out output of the report
+         * @return output that tracks the progress
+         */
+        public ReportWriter track(final ReportWriter out) {
+            return new ReportWriter() {
+                @Override
+                public void writeColumns(JSONArray columns) throws IOException, JSONException {
+                    checkCancelled();
+                    stage = "schrijven";
+                    out.writeColumns(columns);
+                }
+
+                @Override
+                public void writeRow(JSONObject row) throws IOException, JSONException {
+                    checkCancelled();
+                    out.writeRow(row);
+                    rows.incrementAndGet();
+                }
+
+                @Override
+                public void finish(JSONObject properties) throws IOException, JSONException {
+                    out.finish(properties);
+                }
+
+                @Override
+                public int getTotal() {
+                    return out.getTotal();
+                }
+            };
+        }
+
+        private void checkCancelled() {
+            if (isCancelled()) {
+                throw new CancellationException("Rapport is geannuleerd.");
+            }
+        }
+
+        /**
+         * @return the metrics as a map, eg. for polling the progress
+         */
+        public Map<String, Object> getMetrics() {
+            Map<String, Object> m = new HashMap<>();
+            m.put("jobId", id);
+            m.put("status", getStatus().name());
+            String current = stage;
+            if (current != null) {
+                m.put("stage", current);
+            }
+            m.put("rows", rows.get());
+            m.put("created", created);
+            if (started > 0) {
+                m.put("runningMillis", (finished > 0 ? finished : System.currentTimeMillis()) - started);
+            }
+            if (message != null) {
+                m.put("message", message);
+            }
+            return m;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public synchronized Status getStatus() {
+            return status;
+        }
+
+        public boolean isCancelled() {
+            return getStatus() == Status.CANCELLED;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public int getRows() {
+            return rows.get();
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the result, {@code null} unless the job is
+         * {@link Status#DONE}
+         */
+        public File getResult() {
+            return result;
+        }
+    }
+
+    private static volatile int maxRunning = 2;
+    private static volatile int maxQueued = 10;
+    private static volatile long timeToLive = 15 * 60 * 1000;
+
+    /**
+     * interval of the reaper in milliseconds. {@value}
+     */
+    private static final long REAPER_PERIOD = 5000;
+
+    private static final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<>();
+    private static ThreadPoolExecutor executor;
+    private static ScheduledExecutorService reaper;
+
+    private static final AtomicLong submitted = new AtomicLong();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong cancelled = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * private constructor for utility class.
+     */
+    private ReportJobManager() {
+    }
+
+    /**
+     * Submit a report.
+     *
+     * @param owner user that submits the report, only this user can see the
+     * job; {@code null} for anyone with the id
+     * @param report the report
+     * @return the job
+     * @throws IllegalStateException if too many reports are running or
+     * waiting
+     */
+    public static Job submit(String owner, final Report report) {
+        expire();
+        ensureReaper();
+        final Job job = new Job(owner);
+        jobs.put(job.id, job);
+        try {
+            job.future = executor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    execute(job, report);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            rejected.incrementAndGet();
+            throw new IllegalStateException("Te veel rapporten in behandeling, probeer het later opnieuw.");
+        }
+        submitted.incrementAndGet();
+        log.debug("rapport " + job.id + " ingediend");
+        return job;
+    }
+
+    private static void execute(Job job, Report report) {
+        if (!job.transition(Status.QUEUED, Status.RUNNING)) {
+            return;
+        }
+        job.started = System.currentTimeMillis();
+        job.stage = "lezen";
+        File f = null;
+        try {
+            f = File.createTempFile("ibis-rapport-", ".json");
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))) {
+                report.run(job, out);
+            }
+            job.result = f;
+            if (job.transition(Status.RUNNING, Status.DONE)) {
+                f = null;
+                completed.incrementAndGet();
+            } else {
+                job.result = null;
+            }
+        } catch (Exception e) {
+            if (job.transition(Status.RUNNING, Status.FAILED)) {
+                log.error("Rapport " + job.id + " is mislukt", e);
+                job.message = e.getLocalizedMessage();
+                failed.incrementAndGet();
+            }
+        } finally {
+            if (f != null && !f.delete()) {
+                f.deleteOnExit();
+            }
+            job.stage = null;
+            job.finished = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Look up a job.
+     *
+     * @param id job id
+     * @return the job or {@code null} if unknown or expired
+     */
+    public static Job get(String id) {
+        expire();
+        return id == null ? null : jobs.get(id);
+    }
+
+    /**
+     * Cancel a job that is waiting or running, a running report stops at the
+     * next row.
+     *
+     * @param id job id
+     * @return {@code true} if the job was cancelled
+     */
+    public static boolean cancel(String id) {
+        Job job = get(id);
+        if (job == null) {
+            return false;
+        }
+        boolean queued = job.transition(Status.QUEUED, Status.CANCELLED);
+        if (!queued && !job.transition(Status.RUNNING, Status.CANCELLED)) {
+            return false;
+        }
+        cancelled.incrementAndGet();
+        if (job.future != null) {
+            job.future.cancel(true);
+            synchronized (ReportJobManager.class) {
+                if (executor != null) {
+                    executor.purge();
+                }
+            }
+        }
+        if (queued) {
+            // a running job finishes itself
+            job.stage = null;
+            job.finished = System.currentTimeMillis();
+        }
+        log.debug("rapport " + id + " geannuleerd");
+        return true;
+    }
+
+    /**
+     * Remove the jobs that finished longer than the time to live ago, and
+     * their results.
+     */
+    public static void expire() {
+        long now = System.currentTimeMillis();
+        for (Job job : jobs.values()) {
+            if (job.finished > 0 && now - job.finished > timeToLive) {
+                remove(job);
+            }
+        }
+    }
+
+    private static void remove(Job job) {
+        if (jobs.remove(job.id, job)) {
+            File f = job.result;
+            job.result = null;
+            if (f != null && !f.delete()) {
+                log.warn("Rapport bestand " + f + " kan niet verwijderd worden");
+            }
+        }
+    }
+
+    /**
+     * Cancel all jobs, stop the workers and remove the results.
+     */
+    public static void shutdown() {
+        for (String id : new ArrayList<>(jobs.keySet())) {
+            cancel(id);
+        }
+        synchronized (ReportJobManager.class) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+            if (reaper != null) {
+                reaper.shutdownNow();
+                reaper = null;
+            }
+        }
+        List<Job> all = new ArrayList<>(jobs.values());
+        for (Job job : all) {
+            remove(job);
+        }
+    }
+
+    /**
+     * start the reaper that removes expired jobs, so results are also removed
+     * when nobody polls.
+     */
+    private static synchronized void ensureReaper() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ibis-report-reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expire();
+                } catch (RuntimeException e) {
+                    log.error("Opruimen van rapporten is mislukt", e);
+                }
+            }
+        }, REAPER_PERIOD, REAPER_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(maxRunning, maxRunning, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ibis-report-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    // editing goes first
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Set the maximum number of reports that run at the same time.
+     *
+     * @param max number of worker threads
+     */
+    public static synchronized void setMaxRunning(int max) {
+        maxRunning = Math.max(1, max);
+        if (executor != null) {
+            if (maxRunning > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(maxRunning);
+                executor.setCorePoolSize(maxRunning);
+            } else {
+                executor.setCorePoolSize(maxRunning);
+                executor.setMaximumPoolSize(maxRunning);
+            }
+        }
+    }
+
+    public static int getMaxRunning() {
+        return maxRunning;
+    }
+
+    /**
+     * Set the maximum number of reports that wait for a worker, applies to
+     * a new pool.
+     *
+     * @param max number of waiting reports
+     */
+    public static void setMaxQueued(int max) {
+        maxQueued = max;
+    }
+
+    public static int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Set the time a finished job and its result are kept.
+     *
+     * @param millis time to live in milliseconds
+     */
+    public static void setTimeToLive(long millis) {
+        timeToLive = millis;
+    }
+
+    public static long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @return the metrics as a map, eg. for status pages
+     */
+    public static Map<String, Object> getMetrics() {
+        expire();
+        Map<String, Object> m = new HashMap<>();
+        int running = 0;
+        int queued = 0;
+        for (Job job : jobs.values()) {
+            Status s = job.getStatus();
+            if (s == Status.RUNNING) {
+                running++;
+            } else if (s == Status.QUEUED) {
+                queued++;
+            }
+        }
+        m.put("jobs", jobs.size());
+        m.put("running", running);
+        m.put("queued", queued);
+        m.put("submitted", submitted.get());
+        m.put("completed", completed.get());
+        m.put("failed", failed.get());
+        m.put("cancelled", cancelled.get());
+        m.put("rejected", rejected.get());
+        m.put("maxRunning", maxRunning);
+        m.put("maxQueued", maxQueued);
+        m.put("timeToLive", timeToLive);
+        return m;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.IOException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Output of a report, written while the rows are produced so the memory use
+ * does not depend on the number of rows.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ *
+ * @see JsonReportWriter
+ * @see CsvReportWriter
+ * @see XlsxReportWriter
+ */
+public interface ReportWriter {
+
+    /**
+     * Set the columns of the report, called before the first row.
+     *
+     * @param columns grid columns, objects with a {@code text} and a
+     * {@code dataIndex}
+     * @throws IOException if writing fails
+     * @throws JSONException if a column cannot be read
+     */
+    void writeColumns(JSONArray columns) throws IOException, JSONException;
+
+    /**
+     * Write a row.
+     *
+     * @param row values by {@code dataIndex}
+     * @throws IOException if writing fails
+     * @throws JSONException if a value cannot be read
+     */
+    void writeRow(JSONObject row) throws IOException, JSONException;
+
+    /**
+     * Complete the report.
+     *
+     * @param properties other properties of the response (metadata, success,
+     * message)
+     * @throws IOException if writing fails
+     * @throws JSONException if a property cannot be written
+     */
+    void finish(JSONObject properties) throws IOException, JSONException;
+
+    /**
+     * @return the number of rows written
+     */
+    int getTotal();
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Common part of the file exports of a report: the columns and the rows as
+ * cells in column order. An error of the report is written as the last row.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+abstract class SpreadsheetReportWriter implements ReportWriter {
+
+    private final List<String> names = new ArrayList<>();
+    private boolean finished;
+    private int total;
+
+    @Override
+    public void writeColumns(JSONArray columns) throws IOException, JSONException {
+        List<String> titles = new ArrayList<>();
+        for (int i = 0; i < columns.length(); i++) {
+            JSONObject column = columns.getJSONObject(i);
+            names.add(column.getString("dataIndex"));
+            titles.add(column.optString("text", column.getString("dataIndex")));
+        }
+        writeHeader(titles);
+    }
+
+    @Override
+    public void writeRow(JSONObject row) throws IOException, JSONException {
+        List<Object> cells = new ArrayList<>(names.size());
+        for (String name : names) {
+            Object value = row.opt(name);
+            cells.add(JSONObject.NULL.equals(value) ? null : value);
+        }
+        writeCells(cells);
+        total++;
+    }
+
+    @Override
+    public void finish(JSONObject properties) throws IOException, JSONException {
+        if (finished) {
+            throw new IllegalStateException("Rapport is al afgesloten.");
+        }
+        if (!properties.optBoolean("success", true)) {
+            List<Object> error = new ArrayList<>();
+            error.add("Fout bij maken rapport: " + properties.optString("message"));
+            writeCells(error);
+        }
+        close();
+        finished = true;
+    }
+
+    @Override
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Write the column titles.
+     *
+     * @param titles column titles
+     * @throws IOException if writing fails
+     */
+    protected abstract void writeHeader(List<String> titles) throws IOException;
+
+    /**
+     * Write a row of cells.
+     *
+     * @param cells values in column order, {@code null} for an empty cell
+     * @throws IOException if writing fails
+     */
+    protected abstract void writeCells(List<Object> cells) throws IOException;
+
+    /**
+     * Complete the file, does not close the underlying stream.
+     *
+     * @throws IOException if writing fails
+     */
+    protected abstract void close() throws IOException;
+}
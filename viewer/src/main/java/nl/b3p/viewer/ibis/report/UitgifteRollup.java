@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import nl.b3p.viewer.config.services.SimpleFeatureType;
+import nl.b3p.viewer.ibis.util.DateUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.jdbc.JDBCDataStore;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+/**
+ * Lookup of the {@value #ROLLUP_TABLE} table (see
+ * {@code src/main/ddl/uitgifte_per_maand.sql}), the issued area per terrein
+ * per month that is maintained by triggers on the kavels and terreinen. The
+ * table has the same column names as the uitgifte view, with
+ * {@code datumuitgifte} the first day of the month, so the rows can be
+ * aggregated in the same way as the kavels of the view.
+ * <p>
+ * The rollup is only used for the months that lie completely within the
+ * period; the kavels of the partial months at the start and end of the period
+ * are read from the view, so the result is the same as reading all kavels
+ * {@code DURING from/to}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class UitgifteRollup {
+
+    private static final Log log = LogFactory.getLog(UitgifteRollup.class);
+
+    /**
+     * name of the rollup table. {@value}
+     */
+    public static final String ROLLUP_TABLE = "uitgifte_per_maand";
+
+    /**
+     * month of issue, the first day of the month. {@value}
+     */
+    public static final String MONTH_FIELDNAME = "datumuitgifte";
+
+    /**
+     * cache of the feature type id's of the uitgifte view that have the
+     * rollup table in their datastore.
+     */
+    private static final ConcurrentMap<Long, Boolean> rollupCache = new ConcurrentHashMap<>();
+
+    /**
+     * private constructor for utility class.
+     */
+    private UitgifteRollup() {
+    }
+
+    /**
+     * Look up the rollup table in the (JDBC) datastore of the uitgifte view.
+     * The presence of the table is checked once.
+     *
+     * @param relFt flamingo feature type of the uitgifte view
+     * @param foreignFs feature source of the uitgifte view
+     * @return the rollup feature source or {@code null} if the datastore does
+     * not have the table
+     */
+    public static SimpleFeatureSource getFeatureSource(SimpleFeatureType relFt, SimpleFeatureSource foreignFs) {
+        if (!(foreignFs.getDataStore() instanceof JDBCDataStore)) {
+            return null;
+        }
+        Boolean hasTable = rollupCache.get(relFt.getId());
+        if (hasTable != null && !hasTable) {
+            return null;
+        }
+        SimpleFeatureSource rollupFs = null;
+        try {
+            rollupFs = ((JDBCDataStore) foreignFs.getDataStore()).getFeatureSource(ROLLUP_TABLE);
+        } catch (IOException e) {
+            log.info(String.format("Tabel %s is niet beschikbaar, uitgifte wordt uit de kavels berekend.", ROLLUP_TABLE));
+            log.debug(e);
+        }
+        rollupCache.put(relFt.getId(), rollupFs != null);
+        return rollupFs;
+    }
+
+    /**
+     * Iterate the issued kavels of a period for the given terreinen, using the
+     * rollup for the whole months and the kavels for the partial months at the
+     * start and end of the period.
+     *
+     * @param rollupFs rollup feature source, see {@link #getFeatureSource}
+     * @param kavelFs feature source of the uitgifte view
+     * @param kavelQuery query of the view for the issued kavels
+     * {@code DURING from/to}
+     * @param keyAttribute terrein id attribute
+     * @param keys terrein id's
+     * @param from start of the period (exclusive, like {@code DURING})
+     * @param to end of the period (exclusive, like {@code DURING})
+     * @param propertyNames columns to read from the rollup
+     * @return the rollup rows and kavels, closes the underlying iterators
+     */
+    public static SimpleFeatureIterator features(SimpleFeatureSource rollupFs, SimpleFeatureSource kavelFs,
+            Query kavelQuery, String keyAttribute, Collection<?> keys, Date from, Date to, String... propertyNames) {
+        Date start = firstWholeMonth(from);
+        Date end = endOfWholeMonths(to);
+        if (!start.before(end)) {
+            // no whole months in the period
+            return new ChunkedFeatureIterator(kavelFs, kavelQuery, keyAttribute, keys);
+        }
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Query boundaryQ = new Query(kavelQuery);
+        boundaryQ.setFilter(ff.and(kavelQuery.getFilter(), ff.or(
+                ff.less(ff.property(MONTH_FIELDNAME), ff.literal(start)),
+                ff.greaterOrEqual(ff.property(MONTH_FIELDNAME), ff.literal(end)))));
+        return new ConcatenatedFeatureIterator(
+                new ChunkedFeatureIterator(rollupFs, query(start, end, propertyNames), keyAttribute, keys),
+                new ChunkedFeatureIterator(kavelFs, boundaryQ, keyAttribute, keys));
+    }
+
+    /**
+     * Query for whole months of the rollup.
+     *
+     * @param start first month
+     * @param end first month after the period
+     * @param propertyNames columns to read
+     * @return the query
+     */
+    static Query query(Date start, Date end, String... propertyNames) {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Query q = new Query(ROLLUP_TABLE);
+        q.setHandle("uitgifte-rapport-rollup");
+        q.setPropertyNames(Arrays.asList(propertyNames));
+        q.setFilter(ff.and(
+                ff.greaterOrEqual(ff.property(MONTH_FIELDNAME), ff.literal(start)),
+                ff.less(ff.property(MONTH_FIELDNAME), ff.literal(end))));
+        return q;
+    }
+
+    /**
+     * The first month that starts after {@code from}; the month of
+     * {@code from} is never whole because {@code DURING} excludes
+     * {@code from} itself.
+     *
+     * @param from start of the period
+     * @return first day of the first whole month
+     */
+    static Date firstWholeMonth(Date from) {
+        return DateUtils.addMonth(DateUtils.firstDayOfMonth(from));
+    }
+
+    /**
+     * The end of the last month that ends on or before {@code to}.
+     *
+     * @param to end of the period
+     * @return first day of the month after the last whole month
+     */
+    static Date endOfWholeMonths(Date to) {
+        return DateUtils.firstDayOfMonth(to);
+    }
+
+    /**
+     * forget which datastores have the rollup table, eg. after creating it.
+     */
+    public static void clear() {
+        rollupCache.clear();
+    }
+
+    /**
+     * iterates the features of the first iterator and then of the second.
+     */
+    private static class ConcatenatedFeatureIterator implements SimpleFeatureIterator {
+
+        private final SimpleFeatureIterator first;
+        private final SimpleFeatureIterator second;
+
+        ConcatenatedFeatureIterator(SimpleFeatureIterator first, SimpleFeatureIterator second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return first.hasNext() || second.hasNext();
+        }
+
+        @Override
+        public SimpleFeature next() throws NoSuchElementException {
+            return first.hasNext() ? first.next() : second.next();
+        }
+
+        @Override
+        public void close() {
+            first.close();
+            second.close();
+        }
+    }
+}
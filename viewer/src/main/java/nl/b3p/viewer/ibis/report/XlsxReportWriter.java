@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a report as an Office Open XML spreadsheet (xlsx) with one sheet.
+ * The fixed parts of the package are written first, the rows of the sheet
+ * are then written to the zip stream as they come, so no rows are kept in
+ * memory. Text is written as inline strings, dates as date formatted numbers.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class XlsxReportWriter extends SpreadsheetReportWriter {
+
+    /**
+     * mimetype of the output. {@value}
+     */
+    public static final String MIMETYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    private static final String NS_MAIN = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String NS_RELS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String NS_DOC_RELS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    private static final String CONTENT_TYPES = XML_HEADER
+            + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+            + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+            + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+            + "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>"
+            + "<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>"
+            + "<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>"
+            + "</Types>";
+    private static final String RELS = XML_HEADER
+            + "<Relationships xmlns=\"" + NS_RELS + "\">"
+            + "<Relationship Id=\"rId1\" Type=\"" + NS_DOC_RELS + "/officeDocument\" Target=\"xl/workbook.xml\"/>"
+            + "</Relationships>";
+    private static final String WORKBOOK = XML_HEADER
+            + "<workbook xmlns=\"" + NS_MAIN + "\" xmlns:r=\"" + NS_DOC_RELS + "\">"
+            + "<sheets><sheet name=\"rapport\" sheetId=\"1\" r:id=\"rId1\"/></sheets>"
+            + "</workbook>";
+    private static final String WORKBOOK_RELS = XML_HEADER
+            + "<Relationships xmlns=\"" + NS_RELS + "\">"
+            + "<Relationship Id=\"rId1\" Type=\"" + NS_DOC_RELS + "/worksheet\" Target=\"worksheets/sheet1.xml\"/>"
+            + "<Relationship Id=\"rId2\" Type=\"" + NS_DOC_RELS + "/styles\" Target=\"styles.xml\"/>"
+            + "</Relationships>";
+    /**
+     * styles: 0 default, 1 date, 2 bold (header).
+     */
+    private static final String STYLES = XML_HEADER
+            + "<styleSheet xmlns=\"" + NS_MAIN + "\">"
+            + "<fonts count=\"2\"><font><sz val=\"11\"/><name val=\"Calibri\"/></font>"
+            + "<font><b/><sz val=\"11\"/><name val=\"Calibri\"/></font></fonts>"
+            + "<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill>"
+            + "<fill><patternFill patternType=\"gray125\"/></fill></fills>"
+            + "<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>"
+            + "<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>"
+            + "<cellXfs count=\"3\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>"
+            + "<xf numFmtId=\"14\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\" applyNumberFormat=\"1\"/>"
+            + "<xf numFmtId=\"0\" fontId=\"1\" fillId=\"0\" borderId=\"0\" xfId=\"0\" applyFont=\"1\"/></cellXfs>"
+            + "</styleSheet>";
+
+    private static final int STYLE_DATE = 1;
+    private static final int STYLE_HEADER = 2;
+
+    /**
+     * days between the spreadsheet epoch (1899-12-30) and 1970-01-01.
+     */
+    private static final long EPOCH_OFFSET_DAYS = 25569L;
+    private static final double MILLIS_PER_DAY = 24 * 60 * 60 * 1000d;
+
+    private final ZipOutputStream zip;
+    private final Writer out;
+    private boolean sheetStarted;
+
+    /**
+     * @param out stream of the response
+     */
+    public XlsxReportWriter(OutputStream out) {
+        this.zip = new ZipOutputStream(out);
+        this.out = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void writeHeader(List<String> titles) throws IOException {
+        startSheet();
+        out.write("<row>");
+        for (String title : titles) {
+            writeCell(title, STYLE_HEADER);
+        }
+        out.write("</row>");
+    }
+
+    @Override
+    protected void writeCells(List<Object> cells) throws IOException {
+        startSheet();
+        out.write("<row>");
+        for (Object cell : cells) {
+            writeCell(cell, 0);
+        }
+        out.write("</row>");
+    }
+
+    @Override
+    protected void close() throws IOException {
+        startSheet();
+        out.write("</sheetData></worksheet>");
+        out.flush();
+        zip.closeEntry();
+        zip.finish();
+        zip.flush();
+    }
+
+    /**
+     * write the fixed parts and open the sheet, once.
+     */
+    private void startSheet() throws IOException {
+        if (sheetStarted) {
+            return;
+        }
+        writeEntry("[Content_Types].xml", CONTENT_TYPES);
+        writeEntry("_rels/.rels", RELS);
+        writeEntry("xl/workbook.xml", WORKBOOK);
+        writeEntry("xl/_rels/workbook.xml.rels", WORKBOOK_RELS);
+        writeEntry("xl/styles.xml", STYLES);
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+        out.write(XML_HEADER);
+        out.write("<worksheet xmlns=\"" + NS_MAIN + "\"><sheetData>");
+        sheetStarted = true;
+    }
+
+    private void writeEntry(String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        out.write(content);
+        out.flush();
+        zip.closeEntry();
+    }
+
+    private void writeCell(Object value, int style) throws IOException {
+        String s = style > 0 ? " s=\"" + style + "\"" : "";
+        if (value == null) {
+            out.write("<c/>");
+        } else if (value instanceof Number && isFinite((Number) value)) {
+            out.write("<c" + s + "><v>" + value + "</v></c>");
+        } else if (value instanceof Boolean) {
+            out.write("<c" + s + " t=\"b\"><v>" + (((Boolean) value) ? 1 : 0) + "</v></c>");
+        } else if (value instanceof Date) {
+            out.write("<c s=\"" + STYLE_DATE + "\"><v>" + toSerial((Date) value) + "</v></c>");
+        } else {
+            out.write("<c" + s + " t=\"inlineStr\"><is><t xml:space=\"preserve\">");
+            out.write(escape(value.toString()));
+            out.write("</t></is></c>");
+        }
+    }
+
+    private static boolean isFinite(Number n) {
+        double d = n.doubleValue();
+        return !Double.isNaN(d) && !Double.isInfinite(d);
+    }
+
+    /**
+     * Convert a date to a spreadsheet date, days since 1899-12-30 in local
+     * time.
+     *
+     * @param date date
+     * @return the date as a (fractional) number of days
+     */
+    static double toSerial(Date date) {
+        long local = date.getTime() + TimeZone.getDefault().getOffset(date.getTime());
+        return local / MILLIS_PER_DAY + EPOCH_OFFSET_DAYS;
+    }
+
+    /**
+     * Escape text for xml, characters that are not allowed in xml are left
+     * out.
+     *
+     * @param text text
+     * @return escaped text
+     */
+    static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.Transaction;
+import org.geotools.jdbc.JDBCDataStore;
+
+/**
+ * Sums attributes of parent (terrein) rows and their child (kavel) rows per
+ * gebied in the database, in a single {@code group by} query. The values of a
+ * parent are counted once and only for parents that have children, the same
+ * as the in-memory aggregation of the report.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class AggregateQuery {
+
+    private static final Log log = LogFactory.getLog(AggregateQuery.class);
+
+    private final String schema;
+    private final String parentTable;
+    private final String parentKey;
+    private final String childTable;
+    private final String childKey;
+    private final List<String> parentAttributes = new ArrayList<>();
+    private final List<String> childAttributes = new ArrayList<>();
+    private String gebiedColumn;
+    private String areaColumn;
+    private String areaValue;
+
+    /**
+     * @param schema database schema of the tables, may be {@code null}
+     * @param parentTable parent table or view
+     * @param parentKey key column of the parent
+     * @param childTable child table or view
+     * @param childKey column of the child that references the parent key
+     */
+    public AggregateQuery(String schema, String parentTable, String parentKey, String childTable, String childKey) {
+        this.schema = schema;
+        this.parentTable = parentTable;
+        this.parentKey = parentKey;
+        this.childTable = childTable;
+        this.childKey = childKey;
+    }
+
+    /**
+     * Add a parent column to sum.
+     *
+     * @param column column name
+     * @return this query
+     */
+    public AggregateQuery sumParent(String column) {
+        parentAttributes.add(column);
+        return this;
+    }
+
+    /**
+     * Add a child column to sum.
+     *
+     * @param column column name
+     * @return this query
+     */
+    public AggregateQuery sumChild(String column) {
+        childAttributes.add(column);
+        return this;
+    }
+
+    /**
+     * Group by a parent column.
+     *
+     * @param column parent column with the name of the gebied
+     * @return this query
+     */
+    public AggregateQuery groupBy(String column) {
+        this.gebiedColumn = column;
+        return this;
+    }
+
+    /**
+     * Only use the parents where {@code column = value}.
+     *
+     * @param column parent column
+     * @param value value
+     * @return this query
+     */
+    public AggregateQuery where(String column, String value) {
+        this.areaColumn = column;
+        this.areaValue = value;
+        return this;
+    }
+
+    /**
+     * @return the sql of this query, with a parameter for each area value
+     */
+    public String toSql() {
+        if (gebiedColumn == null) {
+            throw new IllegalStateException("Geen groepering opgegeven voor aggregatie.");
+        }
+        String p = table(parentTable);
+        String c = table(childTable);
+        String join = "c." + quote(childKey) + " = p." + quote(parentKey);
+        String where = areaColumn == null ? "" : " and p." + quote(areaColumn) + " = ?";
+
+        StringBuilder parents = new StringBuilder("select p.").append(quote(gebiedColumn)).append(" as gebied");
+        StringBuilder children = new StringBuilder("select p.").append(quote(gebiedColumn));
+        StringBuilder sums = new StringBuilder("select g.gebied");
+        for (int i = 0; i < parentAttributes.size(); i++) {
+            parents.append(", p.").append(quote(parentAttributes.get(i))).append(" as p").append(i);
+            children.append(", null");
+            sums.append(", sum(g.p").append(i).append(")");
+        }
+        for (int i = 0; i < childAttributes.size(); i++) {
+            parents.append(", null as c").append(i);
+            children.append(", c.").append(quote(childAttributes.get(i)));
+            sums.append(", sum(g.c").append(i).append(")");
+        }
+        parents.append(" from ").append(p).append(" p where exists (select 1 from ").append(c)
+                .append(" c where ").append(join).append(")").append(where);
+        children.append(" from ").append(c).append(" c join ").append(p).append(" p on ").append(join)
+                .append(areaColumn == null ? "" : " where p." + quote(areaColumn) + " = ?");
+
+        return sums.append(" from (").append(parents).append(" union all ").append(children)
+                .append(") g group by g.gebied").toString();
+    }
+
+    /**
+     * Run the query.
+     *
+     * @param jdbc store of the parent and child tables
+     * @return sums by attribute name by gebied, sorted by gebied; a sum is
+     * {@code null} when all values are {@code null}
+     * @throws IOException if the query fails
+     */
+    public Map<String, Map<String, Number>> execute(JDBCDataStore jdbc) throws IOException {
+        Connection conn = jdbc.getConnection(Transaction.AUTO_COMMIT);
+        try {
+            return execute(conn);
+        } finally {
+            jdbc.closeSafe(conn);
+        }
+    }
+
+    /**
+     * Run the query on a connection.
+     *
+     * @param conn connection to the database of the parent and child tables,
+     * not closed
+     * @return sums by attribute name by gebied, sorted by gebied; a sum is
+     * {@code null} when all values are {@code null}
+     * @throws IOException if the query fails
+     */
+    public Map<String, Map<String, Number>> execute(Connection conn) throws IOException {
+        String sql = toSql();
+        log.debug("aggregatie sql: " + sql);
+        Map<String, Map<String, Number>> result = new TreeMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            if (areaColumn != null) {
+                ps.setString(1, areaValue);
+                ps.setString(2, areaValue);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String gebied = rs.getString(1);
+                    if (gebied == null) {
+                        log.debug("aggregatie: rij zonder gebiedsnaam overgeslagen");
+                        continue;
+                    }
+                    Map<String, Number> sums = new TreeMap<>();
+                    int col = 2;
+                    for (String a : parentAttributes) {
+                        sums.put(a, (Number) rs.getObject(col++));
+                    }
+                    for (String a : childAttributes) {
+                        sums.put(a, (Number) rs.getObject(col++));
+                    }
+                    result.put(gebied, sums);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Aggregatie query is mislukt: " + sql, e);
+        }
+        log.debug(String.format("aggregatie: %d gebieden", result.size()));
+        return Collections.unmodifiableMap(result);
+    }
+
+    private String table(String table) {
+        return schema == null ? quote(table) : quote(schema) + "." + quote(table);
+    }
+
+    static String quote(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -75,6 +75,23 @@ public class DateUtils {
         return cal.getTime();
     }
 
+    /**
+     * the start of the month of the date.
+     *
+     * @param date
+     * @return the first day of the month at 00:00
+     */
+    public static Date firstDayOfMonth(Date date) {
+        Calendar cal = new GregorianCalendar();
+        cal.setTime(date);
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTime();
+    }
+
     /**
      * private constructor.
      */
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.operation.polygonize.Polygonizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Computes the result of a split or merge of kavels without writing it, so
+ * the user can check the parts while drawing. The source geometry is
+ * {@link PreparedGeometry prepared} so repeated previews on the same kavel
+ * only pay for the new line.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class GeometryPreview {
+
+    /**
+     * relative difference between the area of the source and the parts that
+     * is still accepted. {@value}
+     */
+    public static final double AREA_TOLERANCE = 1e-6;
+
+    /**
+     * private constructor for utility class.
+     */
+    private GeometryPreview() {
+    }
+
+    /**
+     * Split a (multi)polygon by a line.
+     *
+     * @param source the prepared kavel geometry
+     * @param line the split line
+     * @return the parts, or only the source if the line does not cross it
+     */
+    public static List<Geometry> split(PreparedGeometry source, Geometry line) {
+        Geometry geom = source.getGeometry();
+        if (line == null || !source.intersects(line)) {
+            return Collections.singletonList(geom);
+        }
+        // node the boundary and the line, and polygonize the result
+        Polygonizer polygonizer = new Polygonizer();
+        polygonizer.add(geom.getBoundary().union(line));
+        List<Geometry> parts = new ArrayList<>();
+        for (Object o : polygonizer.getPolygons()) {
+            Polygon p = (Polygon) o;
+            // skip holes and the parts of the line outside the kavel
+            if (source.contains(p.getInteriorPoint())) {
+                parts.add(p);
+            }
+        }
+        return parts.isEmpty() ? Collections.singletonList(geom) : parts;
+    }
+
+    /**
+     * Merge (multi)polygons.
+     *
+     * @param sources the kavel geometries
+     * @return the union
+     */
+    public static Geometry merge(Collection<Geometry> sources) {
+        return ParallelUnion.union(sources);
+    }
+
+    /**
+     * Describe the resulting geometries for the client.
+     *
+     * @param parts the resulting geometries
+     * @return json array of objects with the {@code wkt}, {@code area} and
+     * {@code valid} flag of each part
+     * @throws JSONException if any
+     */
+    public static JSONArray toJson(Collection<Geometry> parts) throws JSONException {
+        JSONArray json = new JSONArray();
+        for (Geometry part : parts) {
+            json.put(new JSONObject()
+                    .put("wkt", part.toText())
+                    .put("area", part.getArea())
+                    .put("valid", part.isValid()));
+        }
+        return json;
+    }
+
+    /**
+     * Check that the parts are valid and cover the same area as the source.
+     *
+     * @param sourceArea area of the source geometries
+     * @param parts the resulting geometries
+     * @return {@code true} if all parts are valid and their area matches
+     */
+    public static boolean isValid(double sourceArea, Collection<Geometry> parts) {
+        double area = 0d;
+        for (Geometry part : parts) {
+            if (part.isEmpty() || !part.isValid()) {
+                return false;
+            }
+            area += part.getArea();
+        }
+        return Math.abs(area - sourceArea) <= Math.max(sourceArea, 1d) * AREA_TOLERANCE;
+    }
+}
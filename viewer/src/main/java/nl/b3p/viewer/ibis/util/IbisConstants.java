@@ -47,4 +47,10 @@ public interface IbisConstants {
      * name of the mutatiedatum field in the datamodel ({@value}).
      */
     public static final String MUTATIEDATUM_FIELDNAME = "datummutatie";
+    /**
+     * prefix of the database view that only has the current workflow version
+     * of each feature in a layer ({@value}), eg.
+     * {@code v_workflow_bedrijvenkavels}.
+     */
+    public static final String WORKFLOW_VIEW_PREFIX = "v_workflow_";
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.jdbc.JDBCDataStore;
+
+/**
+ * Hands out {@link IbisConstants#ID_FIELDNAME} values for new kavels and
+ * terreinen. Ids are fetched in blocks of {@link #getBlockSize() block size}
+ * per JVM, so concurrent splits never get the same id and only need a round
+ * trip to the database when a block is used up. Taking an id from a block is
+ * lock-free, only fetching a new block is serialised.
+ * <p>
+ * Use {@link #forStore(org.geotools.data.simple.SimpleFeatureStore)} to get
+ * the allocator of a table: a {@link SequenceIdAllocator} when the table has
+ * a {@code <table>_ibis_id_seq} sequence. A database table without the
+ * sequence is refused unless {@link #setMemoryFallback(boolean) memory
+ * fallback} is on, then (and for stores that are not a database) a
+ * {@link MemoryIdAllocator} continues from the highest id in the table; that is
+ * only safe with a single viewer.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public abstract class IdAllocator {
+
+    private static final Log log = LogFactory.getLog(IdAllocator.class);
+
+    /**
+     * default number of ids fetched at once. {@value}
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 50;
+
+    private static final ConcurrentMap<String, IdAllocator> allocators = new ConcurrentHashMap<>();
+
+    private static volatile int defaultBlockSize = DEFAULT_BLOCK_SIZE;
+
+    private static volatile boolean memoryFallback;
+
+    private final int blockSize;
+    private final Object refill = new Object();
+    private volatile Block block = new Block(new long[0]);
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * A block of ids, handed out in order.
+     */
+    private static final class Block {
+
+        private final long[] ids;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Block(long[] ids) {
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * @param blockSize number of ids to fetch at once
+     */
+    protected IdAllocator(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Blokgrootte moet minstens 1 zijn: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Fetch a block of new ids.
+     *
+     * @param store store of the table
+     * @param size number of ids
+     * @return the new ids, at least one
+     * @throws IOException if fetching fails
+     */
+    protected abstract long[] fetch(SimpleFeatureStore store, int size) throws IOException;
+
+    /**
+     * Get a new id.
+     *
+     * @param store store of the table, used when a new block is needed
+     * @return a new unique id
+     * @throws IOException if a new block could not be fetched
+     */
+    public long next(SimpleFeatureStore store) throws IOException {
+        while (true) {
+            Block b = block;
+            int i = b.next.getAndIncrement();
+            if (i < b.ids.length) {
+                allocated.incrementAndGet();
+                return b.ids[i];
+            }
+            synchronized (refill) {
+                // another thread may have replaced the block in the mean time
+                if (block == b) {
+                    long[] ids = fetch(store, blockSize);
+                    if (ids.length == 0) {
+                        throw new IOException("Geen nieuwe ids ontvangen");
+                    }
+                    block = new Block(ids);
+                    blocks.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a number of new ids, eg. for a batch split. Large requests are
+     * fetched in one round trip, bypassing the current block.
+     *
+     * @param store store of the table, used when a new block is needed
+     * @param count number of ids
+     * @return new unique ids
+     * @throws IOException if new ids could not be fetched
+     */
+    public long[] next(SimpleFeatureStore store, int count) throws IOException {
+        if (count >= blockSize) {
+            long[] ids = fetch(store, count);
+            if (ids.length != count) {
+                throw new IOException(String.format("%d nieuwe ids ontvangen in plaats van %d", ids.length, count));
+            }
+            blocks.incrementAndGet();
+            allocated.addAndGet(count);
+            return ids;
+        }
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = next(store);
+        }
+        return ids;
+    }
+
+    /**
+     * Get the allocator of the table of a store, creating it on first use.
+     *
+     * @param store store of the kavels or terreinen
+     * @return the allocator
+     * @throws IOException if the allocator could not be created or the table
+     * has no sequence and memory fallback is off
+     */
+    public static IdAllocator forStore(SimpleFeatureStore store) throws IOException {
+        String key = store.getSchema().getTypeName();
+        IdAllocator allocator = allocators.get(key);
+        if (allocator == null) {
+            IdAllocator created = null;
+            if (store.getDataStore() instanceof JDBCDataStore) {
+                JDBCDataStore jdbc = (JDBCDataStore) store.getDataStore();
+                String sequence = SequenceIdAllocator.sequenceName(key);
+                if (SequenceIdAllocator.exists(jdbc, sequence)) {
+                    created = new SequenceIdAllocator(jdbc.getDatabaseSchema(), sequence, defaultBlockSize);
+                } else if (!memoryFallback) {
+                    throw new IOException(String.format("Sequentie %s bestaat niet, er kunnen geen ids voor %s worden uitgegeven.", sequence, key));
+                } else {
+                    log.warn(String.format("Sequentie %s bestaat niet, ids voor %s worden in het geheugen uitgegeven.", sequence, key));
+                }
+            }
+            if (created == null) {
+                created = new MemoryIdAllocator(MemoryIdAllocator.maxId(store) + 1, defaultBlockSize);
+            }
+            allocator = allocators.putIfAbsent(key, created);
+            if (allocator == null) {
+                allocator = created;
+            }
+        }
+        return allocator;
+    }
+
+    /**
+     * Remove all allocators, unused ids of the current blocks are lost.
+     */
+    public static void clear() {
+        allocators.clear();
+    }
+
+    /**
+     * Set the block size of allocators created after this call.
+     *
+     * @param size number of ids to fetch at once
+     */
+    public static void setDefaultBlockSize(int size) {
+        defaultBlockSize = size;
+    }
+
+    public static int getDefaultBlockSize() {
+        return defaultBlockSize;
+    }
+
+    /**
+     * Allow ids from memory for database tables without a sequence, this is
+     * only safe with a single viewer.
+     *
+     * @param fallback {@code true} to allow ids from memory
+     */
+    public static void setMemoryFallback(boolean fallback) {
+        memoryFallback = fallback;
+    }
+
+    public static boolean isMemoryFallback() {
+        return memoryFallback;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the number of blocks fetched
+     */
+    public long getBlocks() {
+        return blocks.get();
+    }
+
+    /**
+     * @return the number of ids handed out
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+}
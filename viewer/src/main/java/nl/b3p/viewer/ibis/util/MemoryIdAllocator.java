@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.visitor.MaxVisitor;
+
+/**
+ * Hands out consecutive ids from memory. Only unique within one JVM; used for
+ * tests and when the table has no id sequence.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class MemoryIdAllocator extends IdAllocator {
+
+    private final AtomicLong next;
+
+    /**
+     * @param first the first id to hand out
+     * @param blockSize number of ids to reserve at once
+     */
+    public MemoryIdAllocator(long first, int blockSize) {
+        super(blockSize);
+        this.next = new AtomicLong(first);
+    }
+
+    @Override
+    protected long[] fetch(SimpleFeatureStore store, int size) {
+        long first = next.getAndAdd(size);
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = first + i;
+        }
+        return ids;
+    }
+
+    /**
+     * the highest id in a store.
+     *
+     * @param store store of the kavels or terreinen
+     * @return the highest id, 0 if the store is empty
+     * @throws IOException if reading fails
+     */
+    static long maxId(SimpleFeatureStore store) throws IOException {
+        MaxVisitor max = new MaxVisitor(IbisConstants.ID_FIELDNAME, store.getSchema());
+        store.getFeatures().accepts(max, null);
+        Object value = max.getResult() == null ? null : max.getResult().getValue();
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+
+/**
+ * Union of (kavel) polygons on a fork/join pool. The polygons are partitioned
+ * spatially using the nodes of an {@link STRtree}, the partitions are unioned
+ * in parallel with {@link CascadedPolygonUnion} and the partial results are
+ * unioned again up the tree. Small sets are unioned on the calling thread the
+ * same way as before, using {@code GeometryCollection.union()}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class ParallelUnion {
+
+    /**
+     * minimum number of geometries for a parallel union. {@value}
+     */
+    public static final int PARALLEL_THRESHOLD = 500;
+    /**
+     * maximum number of geometries in a partition that is unioned as a whole.
+     * {@value}
+     */
+    public static final int PARTITION_SIZE = 128;
+    /**
+     * node capacity of the STRtree. {@value}
+     */
+    private static final int NODE_CAPACITY = 8;
+
+    private static ForkJoinPool pool;
+
+    /**
+     * private constructor for utility class.
+     */
+    private ParallelUnion() {
+    }
+
+    /**
+     * Union the geometries.
+     *
+     * @param geoms geometries to union, may be empty
+     * @return the union of the geometries
+     */
+    public static Geometry union(Collection<Geometry> geoms) {
+        if (geoms.size() < PARALLEL_THRESHOLD || !allPolygonal(geoms)) {
+            return serialUnion(geoms);
+        }
+        STRtree tree = new STRtree(NODE_CAPACITY);
+        for (Geometry g : geoms) {
+            tree.insert(g.getEnvelopeInternal(), g);
+        }
+        tree.build();
+        return pool().invoke(new UnionTask(tree.itemsTree()));
+    }
+
+    /**
+     * Union the geometries on the calling thread, the way
+     * {@link WorkflowUtil} did before.
+     *
+     * @param geoms geometries to union, may be empty
+     * @return the union of the geometries
+     */
+    public static Geometry serialUnion(Collection<Geometry> geoms) {
+        GeometryFactory factory = JTSFactoryFinder.getGeometryFactory(null);
+        return factory.buildGeometry(geoms).union();
+    }
+
+    private static boolean allPolygonal(Collection<Geometry> geoms) {
+        for (Geometry g : geoms) {
+            if (!(g instanceof Polygonal)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop the pool, eg. when the webapp stops.
+     */
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /**
+     * Unions a node of the STRtree; a node is a list of geometries and child
+     * nodes.
+     */
+    private static class UnionTask extends RecursiveTask<Geometry> {
+
+        private final List node;
+
+        UnionTask(List node) {
+            this.node = node;
+        }
+
+        @Override
+        protected Geometry compute() {
+            if (count(node) <= PARTITION_SIZE) {
+                List<Geometry> geoms = new ArrayList<>();
+                collect(node, geoms);
+                return CascadedPolygonUnion.union(geoms);
+            }
+            List<Geometry> partial = new ArrayList<>();
+            List<UnionTask> tasks = new ArrayList<>();
+            for (Object child : node) {
+                if (child instanceof List) {
+                    tasks.add(new UnionTask((List) child));
+                } else {
+                    partial.add((Geometry) child);
+                }
+            }
+            invokeAll(tasks);
+            for (UnionTask t : tasks) {
+                Geometry g = t.join();
+                if (g != null) {
+                    partial.add(g);
+                }
+            }
+            return CascadedPolygonUnion.union(partial);
+        }
+
+        private static int count(List node) {
+            int n = 0;
+            for (Object child : node) {
+                n += child instanceof List ? count((List) child) : 1;
+                if (n > PARTITION_SIZE) {
+                    break;
+                }
+            }
+            return n;
+        }
+
+        private static void collect(List node, List<Geometry> geoms) {
+            for (Object child : node) {
+                if (child instanceof List) {
+                    collect((List) child, geoms);
+                } else {
+                    geoms.add((Geometry) child);
+                }
+            }
+        }
+    }
+}
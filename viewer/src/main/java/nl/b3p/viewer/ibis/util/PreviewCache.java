@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpSession;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.identity.FeatureIdImpl;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.FeatureId;
+
+/**
+ * Per-session cache of the prepared geometries of the kavels that are
+ * previewed, see {@link GeometryPreview}. Holds the
+ * {@link #MAX_SIZE most recently} used kavels for {@link #TIME_TO_LIVE}
+ * milliseconds, so a kavel that is edited in the mean time is read again
+ * soon.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class PreviewCache {
+
+    /**
+     * maximum number of geometries per session. {@value}
+     */
+    public static final int MAX_SIZE = 16;
+    /**
+     * time an entry stays valid in milliseconds. {@value}
+     */
+    public static final long TIME_TO_LIVE = 2 * 60 * 1000;
+
+    private static final String SESSION_ATTRIBUTE = PreviewCache.class.getName();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private final Map<String, CachedGeometry> entries = new LinkedHashMap<String, CachedGeometry>(MAX_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedGeometry> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private static final class CachedGeometry {
+
+        private final PreparedGeometry geometry;
+        private final long created = System.nanoTime();
+
+        CachedGeometry(PreparedGeometry geometry) {
+            this.geometry = geometry;
+        }
+    }
+
+    /**
+     * Get the cache of a session, creating it when needed.
+     *
+     * @param session the http session
+     * @return the cache
+     */
+    public static PreviewCache get(HttpSession session) {
+        synchronized (session) {
+            PreviewCache cache = (PreviewCache) session.getAttribute(SESSION_ATTRIBUTE);
+            if (cache == null) {
+                cache = new PreviewCache();
+                session.setAttribute(SESSION_ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * the cache key of a feature.
+     *
+     * @param appLayerId application layer of the feature
+     * @param fid feature id
+     * @return cache key
+     */
+    public static String key(Long appLayerId, String fid) {
+        return appLayerId + "|" + fid;
+    }
+
+    /**
+     * Get a cached geometry.
+     *
+     * @param key see {@link #key(java.lang.Long, java.lang.String)}
+     * @return the prepared geometry or {@code null} if not cached or expired
+     */
+    public synchronized PreparedGeometry get(String key) {
+        CachedGeometry e = entries.get(key);
+        if (e == null || System.nanoTime() - e.created > TimeUnit.MILLISECONDS.toNanos(TIME_TO_LIVE)) {
+            entries.remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.geometry;
+    }
+
+    /**
+     * Prepare and cache a geometry.
+     *
+     * @param key see {@link #key(java.lang.Long, java.lang.String)}
+     * @param geom the geometry of the feature
+     * @return the prepared geometry
+     */
+    public synchronized PreparedGeometry put(String key, Geometry geom) {
+        PreparedGeometry prepared = PreparedGeometryFactory.prepare(geom);
+        entries.put(key, new CachedGeometry(prepared));
+        return prepared;
+    }
+
+    /**
+     * Get the prepared geometries of features, reading the ones that are not
+     * cached in one query.
+     *
+     * @param source feature source of the features
+     * @param appLayerId application layer of the features
+     * @param fids feature ids
+     * @return the prepared geometries in the order of the fids
+     * @throws IOException if reading fails
+     * @throws NoSuchElementException if a feature does not exist
+     */
+    public List<PreparedGeometry> get(SimpleFeatureSource source, Long appLayerId, List<String> fids) throws IOException {
+        Map<String, PreparedGeometry> found = new HashMap<>();
+        Set<FeatureId> missing = new LinkedHashSet<>();
+        for (String fid : fids) {
+            PreparedGeometry prepared = this.get(key(appLayerId, fid));
+            if (prepared == null) {
+                missing.add(new FeatureIdImpl(fid));
+            } else {
+                found.put(fid, prepared);
+            }
+        }
+        if (!missing.isEmpty()) {
+            FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+            try (SimpleFeatureIterator it = source.getFeatures(ff.id(missing)).features()) {
+                while (it.hasNext()) {
+                    SimpleFeature f = it.next();
+                    found.put(f.getID(), this.put(key(appLayerId, f.getID()), (Geometry) f.getDefaultGeometry()));
+                }
+            }
+        }
+        List<PreparedGeometry> geoms = new ArrayList<>();
+        for (String fid : fids) {
+            PreparedGeometry prepared = found.get(fid);
+            if (prepared == null) {
+                throw new NoSuchElementException("Feature niet gevonden: " + fid);
+            }
+            geoms.add(prepared);
+        }
+        return geoms;
+    }
+
+    /**
+     * @return the number of cached geometries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+}
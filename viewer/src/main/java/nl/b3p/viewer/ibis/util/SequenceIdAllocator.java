@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.jdbc.JDBCDataStore;
+
+/**
+ * Fetches blocks of ids from a PostgreSQL sequence (see
+ * {@code src/main/ddl/ibis_id_seq.sql}) in one query per block. Sequence
+ * values are never rolled back, so ids are unique across JVMs and
+ * transactions; ids of a block that is not used up are lost.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class SequenceIdAllocator extends IdAllocator {
+
+    private static final Log log = LogFactory.getLog(SequenceIdAllocator.class);
+
+    private static final String SQL = "select nextval(?::regclass) from generate_series(1, ?)";
+
+    private final String sequence;
+
+    /**
+     * @param schema database schema of the sequence, may be {@code null}
+     * @param sequence name of the sequence
+     * @param blockSize number of ids to fetch at once
+     */
+    public SequenceIdAllocator(String schema, String sequence, int blockSize) {
+        super(blockSize);
+        this.sequence = schema == null ? sequence : "\"" + schema + "\"." + sequence;
+    }
+
+    /**
+     * the name of the sequence of a table.
+     *
+     * @param table table name
+     * @return sequence name
+     */
+    public static String sequenceName(String table) {
+        return table + "_" + IbisConstants.ID_FIELDNAME + "_seq";
+    }
+
+    /**
+     * check if a sequence exists in the schema of the store.
+     *
+     * @param jdbc store
+     * @param sequence sequence name
+     * @return {@code true} if the sequence exists
+     * @throws IOException if the check fails
+     */
+    static boolean exists(JDBCDataStore jdbc, String sequence) throws IOException {
+        Connection conn = jdbc.getConnection(Transaction.AUTO_COMMIT);
+        try (ResultSet rs = conn.getMetaData().getTables(null, jdbc.getDatabaseSchema(), sequence, new String[]{"SEQUENCE"})) {
+            return rs.next();
+        } catch (SQLException e) {
+            throw new IOException("Controle van sequentie " + sequence + " is mislukt", e);
+        } finally {
+            jdbc.closeSafe(conn);
+        }
+    }
+
+    @Override
+    protected long[] fetch(SimpleFeatureStore store, int size) throws IOException {
+        JDBCDataStore jdbc = (JDBCDataStore) store.getDataStore();
+        // not in the transaction of the store, sequences are not transactional
+        Connection conn = jdbc.getConnection(Transaction.AUTO_COMMIT);
+        try (PreparedStatement ps = conn.prepareStatement(SQL)) {
+            ps.setString(1, sequence);
+            ps.setInt(2, size);
+            long[] ids = new long[size];
+            int count = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next() && count < size) {
+                    ids[count++] = rs.getLong(1);
+                }
+            }
+            log.debug(String.format("%d ids opgehaald uit %s", count, sequence));
+            return count == size ? ids : Arrays.copyOf(ids, count);
+        } catch (SQLException e) {
+            throw new IOException("Ophalen van ids uit " + sequence + " is mislukt", e);
+        } finally {
+            jdbc.closeSafe(conn);
+        }
+    }
+}
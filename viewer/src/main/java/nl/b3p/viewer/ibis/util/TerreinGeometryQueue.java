@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.b3p.viewer.config.services.SimpleFeatureType;
+import nl.b3p.viewer.ibis.report.ReportCache;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Background queue for terrein geometry updates. Requests are keyed by terrein
+ * and workflow status; a request is executed after a quiet period of
+ * {@link #setDelay(long) delay} milliseconds (but at most
+ * {@link #MAX_DELAY_FACTOR} times the delay after the first request), so a
+ * series of edits on a terrein results in a single update of the combined
+ * changed area. Updates run on a single thread, so updates of the same terrein
+ * never overlap. A failed update is retried with exponential backoff.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class TerreinGeometryQueue implements IbisConstants {
+
+    private static final Log log = LogFactory.getLog(TerreinGeometryQueue.class);
+
+    /**
+     * maximum wait for a request, as a multiple of the delay. {@value}
+     */
+    public static final int MAX_DELAY_FACTOR = 5;
+    /**
+     * number of attempts for an update. {@value}
+     */
+    public static final int MAX_ATTEMPTS = 4;
+
+    private static volatile long delay = 2000;
+
+    /**
+     * Performs the update of a terrein geometry.
+     */
+    interface Updater {
+
+        void update(Integer terreinID, SimpleFeatureType kavelFt, SimpleFeatureType terreinFt, WorkflowStatus status,
+                Collection<Geometry> changed) throws Exception;
+    }
+
+    /**
+     * the default updater, see
+     * {@link WorkflowUtil#updateTerreinGeometry(java.lang.Integer, nl.b3p.viewer.config.services.SimpleFeatureType, nl.b3p.viewer.config.services.SimpleFeatureType, nl.b3p.viewer.ibis.util.WorkflowStatus, java.util.Collection)}.
+     */
+    static final Updater WORKFLOW_UPDATER = new Updater() {
+        @Override
+        public void update(Integer terreinID, SimpleFeatureType kavelFt, SimpleFeatureType terreinFt, WorkflowStatus status,
+                Collection<Geometry> changed) throws Exception {
+            WorkflowUtil.updateTerreinGeometry(terreinID, kavelFt, terreinFt, status, changed);
+        }
+    };
+
+    private static volatile Updater updater = WORKFLOW_UPDATER;
+
+    /**
+     * pending requests, guarded by itself.
+     */
+    private static final Map<Key, Pending> pending = new LinkedHashMap<>();
+    private static ScheduledExecutorService executor;
+
+    private static final AtomicLong submitted = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong lastLag = new AtomicLong();
+    private static final AtomicLong maxLag = new AtomicLong();
+
+    /**
+     * private constructor for utility class.
+     */
+    private TerreinGeometryQueue() {
+    }
+
+    private static final class Key {
+
+        private final Integer terreinID;
+        private final WorkflowStatus status;
+
+        /**
+         * archief, afgevoerd and definitief kavels all update the definitief
+         * terrein.
+         */
+        Key(Integer terreinID, WorkflowStatus status) {
+            this.terreinID = terreinID;
+            this.status = status == WorkflowStatus.bewerkt ? WorkflowStatus.bewerkt : WorkflowStatus.definitief;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * terreinID.hashCode() + status.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return terreinID.equals(other.terreinID) && status == other.status;
+        }
+
+        @Override
+        public String toString() {
+            return terreinID + " (" + status + ")";
+        }
+    }
+
+    private static final class Pending implements Runnable {
+
+        private final Key key;
+        private final SimpleFeatureType kavelFt;
+        private final SimpleFeatureType terreinFt;
+        /**
+         * the changed geometries, {@code null} for a full update.
+         */
+        private List<Geometry> changed;
+        private final long firstQueued;
+        private int attempts;
+        private ScheduledFuture<?> future;
+
+        Pending(Key key, SimpleFeatureType kavelFt, SimpleFeatureType terreinFt, Collection<Geometry> changed, long firstQueued) {
+            this.key = key;
+            this.kavelFt = kavelFt;
+            this.terreinFt = terreinFt;
+            this.changed = changed == null ? null : new ArrayList<>(changed);
+            this.firstQueued = firstQueued;
+        }
+
+        /**
+         * add the changes of another request.
+         */
+        void merge(Collection<Geometry> other) {
+            if (changed == null || other == null) {
+                changed = null;
+            } else {
+                changed.addAll(other);
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (pending) {
+                if (pending.get(key) != this) {
+                    // replaced or flushed
+                    return;
+                }
+                pending.remove(key);
+            }
+            execute(this);
+        }
+    }
+
+    /**
+     * Queue an update of the geometry of a terrein.
+     *
+     * @param terreinID terrein to update
+     * @param kavelStatus workflow status of the changed kavels
+     * @param kavelFt kavels featuretype
+     * @param terreinFt terrein featuretype
+     * @param changed the old and new geometries of the changed kavels,
+     * {@code null} for a full rebuild
+     */
+    public static void submit(Integer terreinID, WorkflowStatus kavelStatus, SimpleFeatureType kavelFt, SimpleFeatureType terreinFt,
+            Collection<Geometry> changed) {
+        submitted.incrementAndGet();
+        Key key = new Key(terreinID, kavelStatus);
+        long now = System.currentTimeMillis();
+        synchronized (pending) {
+            Pending p = pending.get(key);
+            if (p != null) {
+                p.merge(changed);
+                coalesced.incrementAndGet();
+                log.debug("Terrein update samengevoegd voor " + key);
+                if (p.future == null || !p.future.cancel(false)) {
+                    // already running or waiting for a retry, the merged changes are kept
+                    return;
+                }
+                schedule(p, Math.min(delay, p.firstQueued + MAX_DELAY_FACTOR * delay - now));
+            } else {
+                p = new Pending(key, kavelFt, terreinFt, changed, now);
+                pending.put(key, p);
+                schedule(p, delay);
+            }
+        }
+    }
+
+    /**
+     * schedule the request, caller must hold the lock.
+     */
+    private static void schedule(Pending p, long wait) {
+        p.future = executor().schedule(p, Math.max(0, wait), TimeUnit.MILLISECONDS);
+    }
+
+    private static void execute(Pending p) {
+        long lag = System.currentTimeMillis() - p.firstQueued;
+        lastLag.set(lag);
+        long max = maxLag.get();
+        while (lag > max && !maxLag.compareAndSet(max, lag)) {
+            max = maxLag.get();
+        }
+        try {
+            updater.update(p.key.terreinID, p.kavelFt, p.terreinFt, p.key.status, p.changed);
+            // the area of the terrein may have changed
+            ReportCache.invalidate(p.key.terreinID);
+            completed.incrementAndGet();
+        } catch (Exception e) {
+            p.attempts++;
+            if (p.attempts >= MAX_ATTEMPTS) {
+                failures.incrementAndGet();
+                log.error(String.format("Update van terrein geometrie %s is na %d pogingen mislukt", p.key, p.attempts), e);
+                return;
+            }
+            retries.incrementAndGet();
+            long backoff = delay << p.attempts;
+            log.warn(String.format("Update van terrein geometrie %s is mislukt, nieuwe poging over %d ms", p.key, backoff), e);
+            synchronized (pending) {
+                Pending newer = pending.get(p.key);
+                if (newer != null) {
+                    // a new request is waiting, it also covers the failed changes
+                    newer.merge(p.changed);
+                } else {
+                    pending.put(p.key, p);
+                    schedule(p, backoff);
+                }
+            }
+        }
+    }
+
+    /**
+     * Execute all pending requests now and wait for them to finish, eg. in
+     * tests or on shutdown. Requests that fail are rescheduled as usual.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @throws InterruptedException if interrupted while waiting
+     * @throws TimeoutException if the requests did not finish in time
+     */
+    public static void flush(long timeout) throws InterruptedException, TimeoutException {
+        ScheduledExecutorService ex;
+        synchronized (TerreinGeometryQueue.class) {
+            ex = executor;
+        }
+        if (ex == null) {
+            return;
+        }
+        try {
+            ex.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    List<Pending> todo;
+                    synchronized (pending) {
+                        todo = new ArrayList<>(pending.values());
+                        pending.clear();
+                    }
+                    for (Pending p : todo) {
+                        if (p.future != null) {
+                            p.future.cancel(false);
+                        }
+                        execute(p);
+                    }
+                    return null;
+                }
+            }).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            log.error("Verwerken van terrein updates is mislukt", e.getCause());
+        }
+    }
+
+    /**
+     * Execute the pending requests and stop the executor.
+     *
+     * @param timeout maximum time to wait for the pending requests in
+     * milliseconds
+     */
+    public static void shutdown(long timeout) {
+        try {
+            flush(timeout);
+        } catch (InterruptedException | TimeoutException e) {
+            log.warn("Niet alle terrein updates zijn uitgevoerd bij afsluiten: " + e);
+        }
+        synchronized (TerreinGeometryQueue.class) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+        synchronized (pending) {
+            if (!pending.isEmpty()) {
+                log.warn(String.format("%d terrein updates niet uitgevoerd bij afsluiten", pending.size()));
+                pending.clear();
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ibis-terrein-geometry");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Set the quiet period before a request is executed.
+     *
+     * @param millis delay in milliseconds
+     */
+    public static void setDelay(long millis) {
+        delay = millis;
+    }
+
+    public static long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Replace the updater, eg. in tests.
+     *
+     * @param u the updater to use
+     */
+    static void setUpdater(Updater u) {
+        updater = u;
+    }
+
+    /**
+     * @return the number of pending requests
+     */
+    public static int getQueueDepth() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return the metrics as a map, eg. for status pages
+     */
+    public static Map<String, Object> getMetrics() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("queueDepth", getQueueDepth());
+        m.put("submitted", submitted.get());
+        m.put("coalesced", coalesced.get());
+        m.put("completed", completed.get());
+        m.put("retries", retries.get());
+        m.put("failures", failures.get());
+        m.put("lastLagMillis", lastLag.get());
+        m.put("maxLagMillis", maxLag.get());
+        m.put("delay", delay);
+        return m;
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import nl.b3p.viewer.config.services.SimpleFeatureType;
+import nl.b3p.viewer.util.DataStoreRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+/**
+ * Rebuilds the "definitief" and "bewerkt" geometry of every terrein from its
+ * kavels, eg. after a migration. All kavels are read in a single pass, the
+ * geometries are dissolved on a bounded pool of threads using the same rules
+ * as
+ * {@link WorkflowUtil#updateTerreinGeometry(java.lang.Integer, nl.b3p.viewer.config.services.SimpleFeatureType, nl.b3p.viewer.config.services.SimpleFeatureType, nl.b3p.viewer.ibis.util.WorkflowStatus, java.util.Collection)}
+ * and the terreinen are written in batches, one transaction per batch. A
+ * terrein without kavels is skipped.
+ * <p>
+ * Start it in the webapp with {@link #start(SimpleFeatureType, SimpleFeatureType)}
+ * or from the command line with {@link #main(java.lang.String[])}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class TerreinGeometryRebuildJob implements Runnable, IbisConstants {
+
+    private static final Log log = LogFactory.getLog(TerreinGeometryRebuildJob.class);
+
+    /**
+     * default number of terreinen written in one transaction. {@value}
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * the running or last job in the webapp, guarded by the class.
+     */
+    private static TerreinGeometryRebuildJob current;
+
+    private final SimpleFeatureSource kavelSource;
+    private final SimpleFeatureStore terreinStore;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger updated = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile long started;
+    private volatile long finished;
+    private volatile String error;
+
+    /**
+     * Create a job.
+     *
+     * @param kavelSource kavels
+     * @param terreinStore terreinen to update
+     */
+    public TerreinGeometryRebuildJob(SimpleFeatureSource kavelSource, SimpleFeatureStore terreinStore) {
+        this.kavelSource = kavelSource;
+        this.terreinStore = terreinStore;
+    }
+
+    /**
+     * A terrein to rebuild, identified by id and the workflow status of the
+     * kavels that determine its geometry.
+     */
+    private static final class Target {
+
+        private final Integer terreinID;
+        private final WorkflowStatus kavelStatus;
+        private Geometry geom;
+
+        Target(Integer terreinID, WorkflowStatus kavelStatus) {
+            this.terreinID = terreinID;
+            this.kavelStatus = kavelStatus;
+        }
+
+        @Override
+        public String toString() {
+            return terreinID + " (" + kavelStatus + ")";
+        }
+    }
+
+    @Override
+    public void run() {
+        started = System.currentTimeMillis();
+        log.info("Herberekenen van alle terrein geometrieen gestart");
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ibis-terrein-rebuild-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Target> targets = readTargets();
+            total.set(targets.size());
+            final Map<Integer, List<SimpleFeature>> kavels = readKavels();
+
+            CompletionService<Target> completion = new ExecutorCompletionService<>(executor);
+            // bound the number of dissolved geometries waiting to be written
+            int maxInFlight = threads * 2;
+            int inFlight = 0;
+            List<Target> batch = new ArrayList<>(batchSize);
+            for (final Target target : targets) {
+                if (inFlight >= maxInFlight) {
+                    collect(completion.take(), batch);
+                    inFlight--;
+                }
+                completion.submit(new Callable<Target>() {
+                    @Override
+                    public Target call() {
+                        target.geom = dissolve(target, kavels.get(target.terreinID));
+                        return target;
+                    }
+                });
+                inFlight++;
+            }
+            while (inFlight > 0) {
+                collect(completion.take(), batch);
+                inFlight--;
+            }
+            write(batch);
+        } catch (IOException | InterruptedException e) {
+            error = e.getLocalizedMessage();
+            log.error("Herberekenen van terrein geometrieen is mislukt", e);
+        } finally {
+            executor.shutdownNow();
+            finished = System.currentTimeMillis();
+            log.info(String.format("Herberekenen van terrein geometrieen klaar in %d ms: %s", finished - started, getMetrics()));
+        }
+    }
+
+    /**
+     * all "definitief" and "bewerkt" terreinen.
+     */
+    private List<Target> readTargets() throws IOException {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Query q = new Query(terreinStore.getSchema().getTypeName(), ff.or(
+                ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false),
+                ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false)),
+                new String[]{ID_FIELDNAME, WORKFLOW_FIELDNAME});
+        List<Target> targets = new ArrayList<>();
+        try (SimpleFeatureIterator it = terreinStore.getFeatures(q).features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                Object id = f.getAttribute(ID_FIELDNAME);
+                if (id instanceof Number) {
+                    targets.add(new Target(((Number) id).intValue(), WorkflowStatus.valueOf(f.getAttribute(WORKFLOW_FIELDNAME).toString())));
+                }
+            }
+        }
+        log.debug("Terreinen gevonden: " + targets.size());
+        return targets;
+    }
+
+    /**
+     * all "definitief" and "bewerkt" kavels, by terrein id.
+     */
+    private Map<Integer, List<SimpleFeature>> readKavels() throws IOException {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        String geomAttrName = kavelSource.getSchema().getGeometryDescriptor().getLocalName();
+        Query q = new Query(kavelSource.getSchema().getTypeName(), ff.and(
+                ff.not(ff.isNull(ff.property(KAVEL_TERREIN_ID_FIELDNAME))),
+                ff.or(
+                        ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false),
+                        ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false))),
+                new String[]{KAVEL_TERREIN_ID_FIELDNAME, WORKFLOW_FIELDNAME, geomAttrName});
+        Map<Integer, List<SimpleFeature>> kavels = new HashMap<>();
+        int count = 0;
+        try (SimpleFeatureIterator it = kavelSource.getFeatures(q).features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                Object id = f.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+                if (!(id instanceof Number)) {
+                    continue;
+                }
+                Integer terreinID = ((Number) id).intValue();
+                List<SimpleFeature> list = kavels.get(terreinID);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    kavels.put(terreinID, list);
+                }
+                list.add(f);
+                count++;
+            }
+        }
+        log.debug("Kavels gevonden: " + count);
+        return kavels;
+    }
+
+    /**
+     * dissolve the kavels of the terrein that match the workflow rules.
+     *
+     * @return the geometry or {@code null} if the terrein has no kavels
+     */
+    private static Geometry dissolve(Target target, List<SimpleFeature> kavels) {
+        if (kavels == null) {
+            return null;
+        }
+        Filter kavelFilter = WorkflowUtil.kavelFilter(target.terreinID, target.kavelStatus);
+        List<Geometry> geoms = new ArrayList<>();
+        for (SimpleFeature f : kavels) {
+            Geometry g = (Geometry) f.getDefaultGeometry();
+            if (g != null && kavelFilter.evaluate(f)) {
+                geoms.add(g);
+            }
+        }
+        if (geoms.isEmpty()) {
+            return null;
+        }
+        return WorkflowUtil.toMultiPolygon(ParallelUnion.union(geoms));
+    }
+
+    private void collect(Future<Target> result, List<Target> batch) throws InterruptedException {
+        processed.incrementAndGet();
+        Target target;
+        try {
+            target = result.get();
+        } catch (ExecutionException e) {
+            failed.incrementAndGet();
+            log.error("Berekenen van terrein geometrie is mislukt", e.getCause());
+            return;
+        }
+        if (target.geom == null) {
+            skipped.incrementAndGet();
+            log.debug("Geen kavels voor terrein " + target);
+            return;
+        }
+        batch.add(target);
+        if (batch.size() >= batchSize) {
+            write(batch);
+        }
+    }
+
+    /**
+     * write the batch in one transaction and clear it.
+     */
+    private void write(List<Target> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        String geomAttrName = terreinStore.getSchema().getGeometryDescriptor().getLocalName();
+        Transaction transaction = new DefaultTransaction("rebuild-terrein-geom");
+        terreinStore.setTransaction(transaction);
+        try {
+            for (Target target : batch) {
+                terreinStore.modifyFeatures(geomAttrName, target.geom,
+                        WorkflowUtil.terreinFilter(target.terreinID, target.kavelStatus));
+            }
+            transaction.commit();
+            updated.addAndGet(batch.size());
+        } catch (IOException | RuntimeException e) {
+            failed.addAndGet(batch.size());
+            log.error(String.format("Bijwerken van %d terreinen is mislukt", batch.size()), e);
+            try {
+                transaction.rollback();
+            } catch (IOException io) {
+                // rollback failed
+            }
+        } finally {
+            try {
+                transaction.close();
+            } catch (IOException io) {
+                // closing transaction failed
+            }
+            terreinStore.setTransaction(Transaction.AUTO_COMMIT);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Start a job on a background thread, unless a job is still running.
+     *
+     * @param kavelFt kavels featuretype
+     * @param terreinFt terrein featuretype
+     * @return the started job, or {@code null} if a job is running
+     * @throws Exception if opening the datastores fails
+     */
+    public static synchronized TerreinGeometryRebuildJob start(SimpleFeatureType kavelFt, SimpleFeatureType terreinFt) throws Exception {
+        if (current != null && current.isRunning()) {
+            return null;
+        }
+        final DataStoreRegistry.Lease kavelLease = DataStoreRegistry.lease(kavelFt);
+        final DataStoreRegistry.Lease terreinLease;
+        final TerreinGeometryRebuildJob job;
+        try {
+            terreinLease = DataStoreRegistry.lease(terreinFt);
+            job = new TerreinGeometryRebuildJob(kavelLease.getFeatureSource(kavelFt),
+                    (SimpleFeatureStore) terreinLease.getFeatureSource(terreinFt));
+        } catch (Exception e) {
+            kavelLease.close();
+            throw e;
+        }
+        // running from now on, also before the thread starts
+        job.started = System.currentTimeMillis();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } finally {
+                    terreinLease.close();
+                    kavelLease.close();
+                }
+            }
+        }, "ibis-terrein-rebuild");
+        t.setDaemon(true);
+        current = job;
+        t.start();
+        return job;
+    }
+
+    /**
+     * @return the running or last started job, or {@code null}
+     */
+    public static synchronized TerreinGeometryRebuildJob getCurrent() {
+        return current;
+    }
+
+    /**
+     * Rebuild all terreinen from the command line. The first argument is a
+     * properties file with the GeoTools datastore parameters, eg.
+     * {@code dbtype=postgis}, {@code host}, {@code database}, {@code schema},
+     * {@code user} and {@code passwd}, optionally the {@code ibis.kavels} and
+     * {@code ibis.terreinen} typenames. The optional second argument is the
+     * number of threads.
+     *
+     * @param args properties file [threads]
+     * @throws Exception if any
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Gebruik: TerreinGeometryRebuildJob <datastore.properties> [threads]");
+            System.exit(1);
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(args[0])) {
+            props.load(in);
+        }
+        String kavels = (String) props.remove("ibis.kavels");
+        String terreinen = (String) props.remove("ibis.terreinen");
+        Map<String, Object> params = new HashMap<>();
+        for (String name : props.stringPropertyNames()) {
+            params.put(name, props.getProperty(name));
+        }
+        DataStore store = DataStoreFinder.getDataStore(params);
+        if (store == null) {
+            System.err.println("Geen datastore gevonden voor " + args[0]);
+            System.exit(1);
+        }
+        try {
+            TerreinGeometryRebuildJob job = new TerreinGeometryRebuildJob(
+                    store.getFeatureSource(kavels == null ? KAVEL_LAYER_NAME : kavels),
+                    (SimpleFeatureStore) store.getFeatureSource(terreinen == null ? TERREIN_LAYER_NAME : terreinen));
+            if (args.length > 1) {
+                job.setThreads(Integer.parseInt(args[1]));
+            }
+            job.run();
+            System.out.println(job.getMetrics());
+        } finally {
+            store.dispose();
+            ParallelUnion.shutdown();
+        }
+    }
+
+    public boolean isRunning() {
+        return started > 0 && finished == 0;
+    }
+
+    /**
+     * @return the progress and result as a map, eg. for status pages
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("running", isRunning());
+        m.put("total", total.get());
+        m.put("processed", processed.get());
+        m.put("updated", updated.get());
+        m.put("skipped", skipped.get());
+        m.put("failed", failed.get());
+        m.put("threads", threads);
+        m.put("batchSize", batchSize);
+        m.put("durationMillis", started == 0 ? 0 : (finished == 0 ? System.currentTimeMillis() : finished) - started);
+        if (error != null) {
+            m.put("error", error);
+        }
+        return m;
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="getters en setters">
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public int getTotal() {
+        return total.get();
+    }
+
+    public int getUpdated() {
+        return updated.get();
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.FeatureId;
+
+/**
+ * Collects the writes of one or more workflow edits, splits or merges so they
+ * can be executed with as few store calls as possible: one remove, one
+ * archive, one modify per distinct set of edited values and one add. The
+ * writes are executed in that order, so an archived version can still be
+ * edited afterwards.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class WorkflowBatch implements IbisConstants {
+
+    private static final Log log = LogFactory.getLog(WorkflowBatch.class);
+
+    private final Set<FeatureId> remove = new LinkedHashSet<>();
+    private final Set<FeatureId> archive = new LinkedHashSet<>();
+    private final Map<Values, Set<FeatureId>> modify = new LinkedHashMap<>();
+    private final List<SimpleFeature> add = new ArrayList<>();
+
+    /**
+     * edited attributes and their values, features with the same values are
+     * modified in one call.
+     */
+    private static final class Values {
+
+        private final String[] attributes;
+        private final Object[] values;
+
+        Values(String[] attributes, Object[] values) {
+            this.attributes = attributes;
+            this.values = values;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(attributes) + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Values)) {
+                return false;
+            }
+            Values other = (Values) obj;
+            return Arrays.equals(attributes, other.attributes) && Arrays.equals(values, other.values);
+        }
+    }
+
+    /**
+     * Remove features.
+     *
+     * @param features features to remove
+     */
+    public void remove(Collection<SimpleFeature> features) {
+        for (SimpleFeature f : features) {
+            remove.add(f.getIdentifier());
+        }
+    }
+
+    /**
+     * Set the workflow status of features to "archief".
+     *
+     * @param features features to archive
+     */
+    public void archive(Collection<SimpleFeature> features) {
+        for (SimpleFeature f : features) {
+            archive.add(f.getIdentifier());
+        }
+    }
+
+    /**
+     * Modify a feature.
+     *
+     * @param fid feature to modify
+     * @param attributes edited attributes
+     * @param values edited values
+     */
+    public void modify(FeatureId fid, String[] attributes, Object[] values) {
+        Values key = new Values(attributes, values);
+        Set<FeatureId> fids = modify.get(key);
+        if (fids == null) {
+            fids = new LinkedHashSet<>();
+            modify.put(key, fids);
+        }
+        fids.add(fid);
+    }
+
+    /**
+     * Add a new feature.
+     *
+     * @param feature feature to add
+     */
+    public void add(SimpleFeature feature) {
+        add.add(feature);
+    }
+
+    /**
+     * Write the collected changes using the transaction of the store, does
+     * not commit.
+     *
+     * @param store store to write to
+     * @return the ids of the added features
+     * @throws IOException if writing fails
+     */
+    public List<FeatureId> execute(SimpleFeatureStore store) throws IOException {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        log.debug(String.format("Workflow batch: %d verwijderd, %d archief, %d gewijzigd in %d groepen, %d nieuw",
+                remove.size(), archive.size(), getModifiedCount(), modify.size(), add.size()));
+        if (!remove.isEmpty()) {
+            store.removeFeatures(ff.id(remove));
+        }
+        if (!archive.isEmpty()) {
+            store.modifyFeatures(WORKFLOW_FIELDNAME, WorkflowStatus.archief, ff.id(archive));
+        }
+        for (Map.Entry<Values, Set<FeatureId>> e : modify.entrySet()) {
+            store.modifyFeatures(e.getKey().attributes, e.getKey().values, ff.id(e.getValue()));
+        }
+        if (!add.isEmpty()) {
+            return store.addFeatures(DataUtilities.collection(add));
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the number of features that are modified
+     */
+    public int getModifiedCount() {
+        int count = 0;
+        for (Set<FeatureId> fids : modify.values()) {
+            count += fids.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of store calls {@link #execute execute} makes
+     */
+    public int getOperationCount() {
+        return (remove.isEmpty() ? 0 : 1) + (archive.isEmpty() ? 0 : 1) + modify.size() + (add.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * @return {@code true} if there is nothing to write
+     */
+    public boolean isEmpty() {
+        return remove.isEmpty() && archive.isEmpty() && modify.isEmpty() && add.isEmpty();
+    }
+}
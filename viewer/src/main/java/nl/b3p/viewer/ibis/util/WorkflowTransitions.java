@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * The workflow of an edit of a kavel or terrein as a state machine. Every
+ * supported (from, to) pair of {@link WorkflowStatus} has a plan of
+ * {@link Step steps}; the steps add set-based writes to a
+ * {@link WorkflowBatch}, so a single edit and a batch of edits are written the
+ * same way. Pairs that are not in the table are not supported.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class WorkflowTransitions implements IbisConstants {
+
+    private static final Log log = LogFactory.getLog(WorkflowTransitions.class);
+
+    /**
+     * The steps of a plan, executed in this order.
+     */
+    public enum Step {
+        /**
+         * remove the "bewerkt" versions, if any.
+         */
+        REMOVE_BEWERKT,
+        /**
+         * archive the "bewerkt" versions if there is more than one, only one
+         * "bewerkt" is allowed.
+         */
+        ARCHIVE_DUPLICATE_BEWERKT,
+        /**
+         * archive the "definitief" versions, if any.
+         */
+        ARCHIVE_DEFINITIEF,
+        /**
+         * insert the edited copy as a new version.
+         */
+        INSERT_EDITED,
+        /**
+         * modify the original with the edited values.
+         */
+        MODIFY_ORIGINAL,
+        /**
+         * the kavels of an "afgevoerd" terrein must be "afgevoerd" as well.
+         */
+        AFVOEREN_KAVELS
+    }
+
+    /**
+     * plans by from and to status.
+     */
+    private static final Map<WorkflowStatus, Map<WorkflowStatus, List<Step>>> PLANS = new EnumMap<>(WorkflowStatus.class);
+
+    static {
+        transition(WorkflowStatus.definitief, WorkflowStatus.bewerkt, Step.REMOVE_BEWERKT, Step.INSERT_EDITED);
+        transition(WorkflowStatus.bewerkt, WorkflowStatus.bewerkt, Step.ARCHIVE_DUPLICATE_BEWERKT, Step.MODIFY_ORIGINAL);
+        transition(WorkflowStatus.definitief, WorkflowStatus.definitief, Step.ARCHIVE_DEFINITIEF, Step.INSERT_EDITED);
+        transition(WorkflowStatus.bewerkt, WorkflowStatus.definitief, Step.ARCHIVE_DEFINITIEF, Step.MODIFY_ORIGINAL);
+        // archief -> bewerkt/definitief and afgevoerd -> bewerkt/definitief are not documented
+        //  and not possible to occur in the application as only definitief and bewerkt can be edited
+        for (WorkflowStatus from : WorkflowStatus.values()) {
+            transition(from, WorkflowStatus.afgevoerd, Step.ARCHIVE_DEFINITIEF, Step.MODIFY_ORIGINAL, Step.AFVOEREN_KAVELS);
+            // not described, for now just edit the feature
+            transition(from, WorkflowStatus.archief, Step.MODIFY_ORIGINAL);
+        }
+    }
+
+    /**
+     * private constructor for utility class.
+     */
+    private WorkflowTransitions() {
+    }
+
+    private static void transition(WorkflowStatus from, WorkflowStatus to, Step... steps) {
+        Map<WorkflowStatus, List<Step>> plans = PLANS.get(from);
+        if (plans == null) {
+            plans = new EnumMap<>(WorkflowStatus.class);
+            PLANS.put(from, plans);
+        }
+        plans.put(to, Collections.unmodifiableList(Arrays.asList(steps)));
+    }
+
+    /**
+     * Get the plan of a transition.
+     *
+     * @param from status of the edited feature
+     * @param to new status
+     * @return the steps of the transition
+     * @throws IllegalArgumentException if the transition is not supported
+     */
+    public static List<Step> getPlan(WorkflowStatus from, WorkflowStatus to) {
+        if (to == null) {
+            throw new IllegalArgumentException("Workflow status van edit feature is null, dit wordt niet ondersteund.");
+        }
+        Map<WorkflowStatus, List<Step>> plans = PLANS.get(from);
+        List<Step> plan = plans == null ? null : plans.get(to);
+        if (plan == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Niet ondersteunde workflow stap van %s naar %s", from.label(), to.label()));
+        }
+        return plan;
+    }
+
+    /**
+     * Check if a transition is supported.
+     *
+     * @param from status of the edited feature
+     * @param to new status
+     * @return {@code true} if the transition has a plan
+     */
+    public static boolean isSupported(WorkflowStatus from, WorkflowStatus to) {
+        Map<WorkflowStatus, List<Step>> plans = PLANS.get(from);
+        return to != null && plans != null && plans.containsKey(to);
+    }
+
+    /**
+     * Write an edit to the store according to the workflow. Does not commit.
+     *
+     * @param store store to write to, with the transaction of the edit
+     * @param versions the edited feature and its live versions
+     * @param incoming the new workflow status
+     * @param edited a copy of the original with a new fid and the edited
+     * values, used when a new version is inserted
+     * @param attributes edited attributes
+     * @param values edited values
+     * @return {@code true} if the edited feature is a terrein that is
+     * "afgevoerd" and its kavels must be "afgevoerd" as well
+     * @throws IOException if writing fails
+     * @throws IllegalArgumentException if the step is not supported
+     */
+    public static boolean apply(SimpleFeatureStore store, WorkflowVersions versions, WorkflowStatus incoming, SimpleFeature edited,
+            String[] attributes, Object[] values) throws IOException {
+        WorkflowBatch batch = new WorkflowBatch();
+        boolean afvoerenKavels = plan(batch, versions, incoming, edited, attributes, values);
+        batch.execute(store);
+        return afvoerenKavels;
+    }
+
+    /**
+     * Add the writes of an edit according to the workflow to a batch. The
+     * batch must not contain other edits of the same
+     * {@link IbisConstants#ID_FIELDNAME}.
+     *
+     * @param batch batch to add the writes to
+     * @param versions the edited feature and its live versions
+     * @param incoming the new workflow status
+     * @param edited a copy of the original with a new fid and the edited
+     * values, used when a new version is inserted
+     * @param attributes edited attributes
+     * @param values edited values
+     * @return {@code true} if the edited feature is a terrein that is
+     * "afgevoerd" and its kavels must be "afgevoerd" as well
+     * @throws IllegalArgumentException if the step is not supported
+     */
+    public static boolean plan(WorkflowBatch batch, WorkflowVersions versions, WorkflowStatus incoming, SimpleFeature edited,
+            String[] attributes, Object[] values) {
+        SimpleFeature original = versions.getOriginal();
+        boolean afvoerenKavels = false;
+        for (Step step : getPlan(versions.getOriginalStatus(), incoming)) {
+            switch (step) {
+                case REMOVE_BEWERKT:
+                    batch.remove(versions.getBewerkt());
+                    break;
+                case ARCHIVE_DUPLICATE_BEWERKT:
+                    if (versions.getBewerkt().size() > 1) {
+                        log.error("Er is meer dan 1 bewerkt kavel/terrein voor " + ID_FIELDNAME + "=" + original.getAttribute(ID_FIELDNAME));
+                        batch.archive(versions.getBewerkt());
+                    }
+                    break;
+                case ARCHIVE_DEFINITIEF:
+                    batch.archive(versions.getDefinitief());
+                    break;
+                case INSERT_EDITED:
+                    batch.add(edited);
+                    break;
+                case MODIFY_ORIGINAL:
+                    batch.modify(original.getIdentifier(), attributes, values);
+                    break;
+                case AFVOEREN_KAVELS:
+                    // a terrein has no terreinid
+                    afvoerenKavels = original.getAttribute(KAVEL_TERREIN_ID_FIELDNAME) == null;
+                    break;
+                default:
+                    throw new IllegalStateException("Onbekende stap " + step);
+            }
+        }
+        return afvoerenKavels;
+    }
+}
@@ -17,23 +17,34 @@
 package nl.b3p.viewer.ibis.util;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.Polygonal;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.persistence.EntityManager;
 import nl.b3p.viewer.config.app.Application;
 import nl.b3p.viewer.config.app.ApplicationLayer;
 import nl.b3p.viewer.config.services.Layer;
+import nl.b3p.viewer.config.services.SimpleFeatureType;
+import nl.b3p.viewer.util.DataStoreRegistry;
+import nl.b3p.viewer.util.PropertyNamesCache;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geotools.data.DataStore;
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.Transaction;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.collection.AbstractFeatureVisitor;
@@ -51,6 +62,43 @@ public class WorkflowUtil implements IbisConstants {
 
     private static final Log log = LogFactory.getLog(WorkflowUtil.class);
 
+    /**
+     * maximum number of values in a single set-based filter. {@value}
+     */
+    public static final int IN_FILTER_SIZE = 500;
+
+    /**
+     * number of incremental updates of a terrein after which the geometry is
+     * rebuilt from all kavels. {@value}
+     */
+    public static final int FULL_REBUILD_INTERVAL = 25;
+    /**
+     * relative area tolerance for the validity check of an incremental update
+     * and the drift check of a full rebuild. {@value}
+     */
+    public static final double AREA_TOLERANCE = 1e-6;
+
+    /**
+     * number of incremental updates per terrein and workflow status since the
+     * last full rebuild.
+     */
+    private static final ConcurrentMap<String, AtomicInteger> deltaCounts = new ConcurrentHashMap<>();
+
+    private static final AtomicLong deltaUpdates = new AtomicLong();
+    private static final AtomicLong fullUpdates = new AtomicLong();
+    private static final AtomicLong deltaFallbacks = new AtomicLong();
+    private static final AtomicLong driftDetected = new AtomicLong();
+    private static final AtomicLong sharedUpdates = new AtomicLong();
+
+    private static final AtomicLong afgevoerdTerreinen = new AtomicLong();
+
+    private static volatile boolean sharedTransaction = false;
+
+    /**
+     * featuretype id and lookup time by application and layer name.
+     */
+    private static final ConcurrentMap<String, long[]> featureTypeIds = new ConcurrentHashMap<>();
+
     /**
      * private constructor for utility class.
      */
@@ -69,104 +117,316 @@ public class WorkflowUtil implements IbisConstants {
      * @param em
      */
     public static void updateTerreinGeometry(Integer terreinID, Layer layer, WorkflowStatus kavelStatus, Application application, EntityManager em) {
-        log.debug("Updating terrein geometry for " + terreinID);
-        SimpleFeatureStore terreinStore = null;
-        SimpleFeatureStore kavelStore = null;
-        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
-        Transaction terreinTransaction = new DefaultTransaction("edit-terrein-geom");
-        Transaction kavelTransaction = new DefaultTransaction("get-kavel-geom");
+        updateTerreinGeometry(terreinID, layer, kavelStatus, application, em, null);
+    }
+
+    /**
+     * Update the geometry of the TERREIN incrementally. Only the kavels that
+     * intersect the changed geometries are read, the new terrein geometry is
+     * the current terrein geometry minus the changed area plus the union of
+     * those kavels. When the incremental result is invalid, or its area is
+     * outside the expected bounds, the geometry is rebuilt from all kavels;
+     * this also happens every {@link #FULL_REBUILD_INTERVAL} updates to detect
+     * drift. Must be called after the kavels transaction.
+     *
+     * @param terreinID
+     * @param layer kavels layer
+     * @param kavelStatus
+     * @param application
+     * @param em
+     * @param changed the old and new geometries of the added, changed and
+     * removed kavels, {@code null} or empty for a full rebuild
+     */
+    public static void updateTerreinGeometry(Integer terreinID, Layer layer, WorkflowStatus kavelStatus, Application application,
+            EntityManager em, Collection<Geometry> changed) {
+        try {
+            updateTerreinGeometry(terreinID, layer.getFeatureType(), getTerreinFeatureType(application, em), kavelStatus, changed);
+        } catch (Exception e) {
+            log.error(String.format("Update van terrein geometrie %s is mislukt", terreinID), e);
+        }
+    }
+
+    /**
+     * Queue an update of the geometry of the TERREIN, see
+     * {@link TerreinGeometryQueue}. The featuretypes are resolved in the
+     * calling thread. Must be called after the kavels transaction.
+     *
+     * @param terreinID
+     * @param layer kavels layer
+     * @param kavelStatus
+     * @param application
+     * @param em
+     * @param changed the old and new geometries of the added, changed and
+     * removed kavels, {@code null} for a full rebuild
+     */
+    public static void queueTerreinGeometryUpdate(Integer terreinID, Layer layer, WorkflowStatus kavelStatus, Application application,
+            EntityManager em, Collection<Geometry> changed) {
         try {
-            // determine whichs kavels to use for calcutating new geometry
-            Filter kavelFilter = Filter.EXCLUDE;
-            switch (kavelStatus) {
-                case bewerkt:
-                    // find all "definitief" and "bewerkt" kavel for terreinID
-                    kavelFilter = ff.and(
-                            ff.equals(ff.property(KAVEL_TERREIN_ID_FIELDNAME), ff.literal(terreinID)),
-                            ff.or(
-                                    ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.toString()), false),
-                                    ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.toString()), false)
-                            ));
-                    break;
-                case archief:
-                case afgevoerd:
-                case definitief:
-                    // find all "definitief" kavel for terreinID
-                    kavelFilter = ff.and(
-                            ff.equals(ff.property(KAVEL_TERREIN_ID_FIELDNAME), ff.literal(terreinID)),
-                            ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.toString()), false)
-                    );
-                    break;
-                default:
-                // do nothing / should not happen
+            SimpleFeatureType kavelFt = layer.getFeatureType();
+            SimpleFeatureType terreinFt = getTerreinFeatureType(application, em);
+            // open the datastores while the entities are attached
+            DataStoreRegistry.lease(kavelFt).close();
+            DataStoreRegistry.lease(terreinFt).close();
+            TerreinGeometryQueue.submit(terreinID, kavelStatus, kavelFt, terreinFt, changed);
+        } catch (Exception e) {
+            log.error(String.format("Update van terrein geometrie %s is mislukt", terreinID), e);
+        }
+    }
+
+    /**
+     * find the featuretype of the terrein layer in the application.
+     *
+     * @param application
+     * @param em
+     * @return the terrein featuretype
+     */
+    public static SimpleFeatureType getTerreinFeatureType(Application application, EntityManager em) {
+        return getFeatureType(application, em, TERREIN_LAYER_NAME);
+    }
+
+    /**
+     * find the featuretype of the kavel layer in the application.
+     *
+     * @param application
+     * @param em
+     * @return the kavel featuretype
+     */
+    public static SimpleFeatureType getKavelFeatureType(Application application, EntityManager em) {
+        return getFeatureType(application, em, KAVEL_LAYER_NAME);
+    }
+
+    /**
+     * find the featuretype of a layer in the application, the id of the
+     * featuretype is cached for the
+     * {@link PropertyNamesCache#getTimeToLive() time to live} of the attribute
+     * configuration so the application tree is only scanned once.
+     */
+    private static SimpleFeatureType getFeatureType(Application application, EntityManager em, String layerName) {
+        String key = application.getId() + "|" + layerName.toLowerCase();
+        long[] cached = featureTypeIds.get(key);
+        if (cached != null && System.currentTimeMillis() - cached[1] < PropertyNamesCache.getTimeToLive()) {
+            SimpleFeatureType sft = em.find(SimpleFeatureType.class, cached[0]);
+            if (sft != null) {
+                return sft;
             }
-            log.debug("Looking for kavel with filter: " + kavelFilter);
+        }
+        // find appLayer
+        ApplicationLayer appLyr = null;
+        List<ApplicationLayer> lyrs = application.loadTreeCache(em).getApplicationLayers();
+        for (ListIterator<ApplicationLayer> it = lyrs.listIterator(); it.hasNext();) {
+            ApplicationLayer al = it.next();
+            if (al.getLayerName().equalsIgnoreCase(layerName)) {
+                appLyr = al;
+                break;
+            }
+        }
+        if (appLyr == null) {
+            throw new IllegalArgumentException(String.format("Kaartlaag %s niet gevonden in applicatie %s", layerName, application.getId()));
+        }
+        Layer l = appLyr.getService().getLayer(layerName, em);
+        featureTypeIds.put(key, new long[]{l.getFeatureType().getId(), System.currentTimeMillis()});
+        return l.getFeatureType();
+    }
 
-            kavelStore = (SimpleFeatureStore) layer.getFeatureType().openGeoToolsFeatureSource();
-            kavelStore.setTransaction(kavelTransaction);
-            SimpleFeatureCollection kavels = kavelStore.getFeatures(kavelFilter);
+    /**
+     * Remove the cached featuretypes of the kavel and terrein layers, eg.
+     * after changing the application in the admin webapp.
+     */
+    public static void clearFeatureTypeCache() {
+        featureTypeIds.clear();
+    }
 
-            // dissolve all kavel geometries
-            final Collection<Geometry> kavelGeoms = new ArrayList();
-            kavels.accepts(new AbstractFeatureVisitor() {
-                @Override
-                public void visit(Feature feature) {
-                    Geometry geom = (Geometry) feature.getDefaultGeometryProperty().getValue();
-                    if (geom != null) {
-                        kavelGeoms.add(geom);
-                    }
-                }
-            }, null);
-            log.debug("Kavels found: " + kavelGeoms.size());
-            GeometryFactory factory = JTSFactoryFinder.getGeometryFactory(null);
-            GeometryCollection geometryCollection = (GeometryCollection) factory.buildGeometry(kavelGeoms);
-            Geometry newTerreinGeom = geometryCollection.union();
-            if (!newTerreinGeom.getGeometryType().equalsIgnoreCase("MultiPolygon")) {
-                GeometryFactory f = JTSFactoryFinder.getGeometryFactory();
-                newTerreinGeom = f.createMultiPolygon(new Polygon[]{(Polygon) newTerreinGeom});
+    /**
+     * Set the kavels of terreinen to "afgevoerd" in one set-based update per
+     * {@link #IN_FILTER_SIZE} terreinen. When the kavels and terreinen are in
+     * the same feature source this is done in the (uncommitted) transaction of
+     * the terreinen, otherwise in a transaction of its own that is committed
+     * right away. Kavels that are already "afgevoerd" are not updated.
+     *
+     * @param terreinIDs ids of the "afgevoerd" terreinen
+     * @param terreinLayer terreinen layer
+     * @param terreinStore terreinen store with the transaction of the edit
+     * @param application
+     * @param em
+     * @throws IOException if the update failed, the transaction of the
+     * terreinen should be rolled back
+     */
+    public static void afvoerenKavels(Collection<?> terreinIDs, Layer terreinLayer, SimpleFeatureStore terreinStore,
+            Application application, EntityManager em) throws IOException {
+        if (terreinIDs.isEmpty()) {
+            return;
+        }
+        SimpleFeatureType kavelFt = getKavelFeatureType(application, em);
+        SimpleFeatureType terreinFt = terreinLayer.getFeatureType();
+        if (terreinStore.getTransaction() != Transaction.AUTO_COMMIT
+                && kavelFt.getFeatureSource().getId().equals(terreinFt.getFeatureSource().getId())) {
+            DataStore store = (DataStore) terreinStore.getDataStore();
+            SimpleFeatureStore kavelStore = (SimpleFeatureStore) store.getFeatureSource(kavelFt.getTypeName());
+            kavelStore.setTransaction(terreinStore.getTransaction());
+            afvoerenKavels(terreinIDs, kavelStore);
+            return;
+        }
+        log.debug("Kavels en terreinen hebben verschillende bronnen, kavels worden apart afgevoerd.");
+        try (DataStoreRegistry.Lease kavelLease = DataStoreRegistry.lease(kavelFt);
+                Transaction kavelTransaction = new DefaultTransaction("afvoeren-kavels")) {
+            SimpleFeatureStore kavelStore = (SimpleFeatureStore) kavelLease.getFeatureSource(kavelFt);
+            kavelStore.setTransaction(kavelTransaction);
+            try {
+                afvoerenKavels(terreinIDs, kavelStore);
+                kavelTransaction.commit();
+            } catch (IOException e) {
+                kavelTransaction.rollback();
+                throw e;
             }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Afvoeren van kavels is mislukt", e);
+        }
+    }
 
-            // find terrein appLayer
-            ApplicationLayer terreinAppLyr = null;
-            List<ApplicationLayer> lyrs = application.loadTreeCache(em).getApplicationLayers();
-            for (ListIterator<ApplicationLayer> it = lyrs.listIterator(); it.hasNext();) {
-                terreinAppLyr = it.next();
-                if (terreinAppLyr.getLayerName().equalsIgnoreCase(TERREIN_LAYER_NAME)) {
-                    break;
-                }
+    /**
+     * Set a number of terreinen and their kavels to "afgevoerd" according to
+     * the workflow, the current ("bewerkt" or else "definitief") version of
+     * each terrein is "afgevoerd" and its "definitief" version archived. The
+     * terreinen are read, written and cascaded to the kavels in set-based
+     * operations of {@link #IN_FILTER_SIZE} ids. Does not commit the
+     * transaction of the terreinen.
+     *
+     * @param terreinIDs ids of the terreinen
+     * @param terreinLayer terreinen layer
+     * @param terreinStore terreinen store with the transaction of the edit
+     * @param application
+     * @param em
+     * @return the number of terreinen that were "afgevoerd", ids without a
+     * "definitief" or "bewerkt" version are skipped
+     * @throws IOException if the update failed, the transaction should be
+     * rolled back
+     */
+    public static int afvoerenTerreinen(Collection<?> terreinIDs, Layer terreinLayer, SimpleFeatureStore terreinStore,
+            Application application, EntityManager em) throws IOException {
+        List<Object> afvoeren = new ArrayList<>();
+        int count = afvoerenTerreinen(terreinIDs, terreinStore, afvoeren);
+        afvoerenKavels(afvoeren, terreinLayer, terreinStore, application, em);
+        return count;
+    }
+
+    /**
+     * Set a number of terreinen and their kavels to "afgevoerd" as
+     * {@link #afvoerenTerreinen(java.util.Collection, nl.b3p.viewer.config.services.Layer, org.geotools.data.simple.SimpleFeatureStore, nl.b3p.viewer.config.app.Application, javax.persistence.EntityManager)},
+     * with a given kavel store. Does not commit the transactions.
+     *
+     * @param terreinIDs ids of the terreinen
+     * @param terreinStore terreinen store with the transaction of the edit
+     * @param kavelStore kavels store, usually with the same transaction
+     * @return the number of terreinen that were "afgevoerd"
+     * @throws IOException if the update failed, the transactions should be
+     * rolled back
+     */
+    public static int afvoerenTerreinen(Collection<?> terreinIDs, SimpleFeatureStore terreinStore,
+            SimpleFeatureStore kavelStore) throws IOException {
+        List<Object> afvoeren = new ArrayList<>();
+        int count = afvoerenTerreinen(terreinIDs, terreinStore, afvoeren);
+        if (!afvoeren.isEmpty()) {
+            afvoerenKavels(afvoeren, kavelStore);
+        }
+        return count;
+    }
+
+    /**
+     * write the "afgevoerd" terreinen.
+     *
+     * @param afvoeren receives the ids of the terreinen whose kavels must be
+     * "afgevoerd"
+     */
+    private static int afvoerenTerreinen(Collection<?> terreinIDs, SimpleFeatureStore terreinStore,
+            List<Object> afvoeren) throws IOException {
+        Map<Object, WorkflowVersions> versions = WorkflowVersions.loadCurrent(terreinStore, terreinIDs);
+        String[] attributes = new String[]{WORKFLOW_FIELDNAME, MUTATIEDATUM_FIELDNAME};
+        Object[] values = new Object[]{WorkflowStatus.afgevoerd, new Date()};
+        WorkflowBatch batch = new WorkflowBatch();
+        for (Map.Entry<Object, WorkflowVersions> e : versions.entrySet()) {
+            if (WorkflowTransitions.plan(batch, e.getValue(), WorkflowStatus.afgevoerd, null, attributes, values)) {
+                afvoeren.add(e.getKey());
             }
-            Layer l = terreinAppLyr.getService().getLayer(TERREIN_LAYER_NAME, em);
-            terreinStore = (SimpleFeatureStore) l.getFeatureType().openGeoToolsFeatureSource();
-            terreinStore.setTransaction(terreinTransaction);
+        }
+        log.debug(String.format("%d terreinen afvoeren in %d schrijfacties", versions.size(), batch.getOperationCount()));
+        batch.execute(terreinStore);
+        return versions.size();
+    }
 
-            // determine which terrein to update
-            Filter terreinFilter = Filter.EXCLUDE;
-            switch (kavelStatus) {
-                case bewerkt:
-                    terreinFilter = ff.and(
-                            ff.equals(ff.property(ID_FIELDNAME), ff.literal(terreinID)),
-                            ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false)
-                    );
-                    break;
-                case archief:
-                case afgevoerd:
-                case definitief:
-                    terreinFilter = ff.and(
-                            ff.equals(ff.property(ID_FIELDNAME), ff.literal(terreinID)),
-                            ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false)
-                    );
-                    break;
-                default:
-                // won't do anything
+    /**
+     * set the kavels of the terreinen to "afgevoerd" using the transaction of
+     * the store.
+     */
+    private static void afvoerenKavels(Collection<?> terreinIDs, SimpleFeatureStore kavelStore) throws IOException {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Filter notAfgevoerd = ff.notEqual(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.afgevoerd.name()), false);
+        for (List<Filter> chunk : inFilters(KAVEL_TERREIN_ID_FIELDNAME, terreinIDs)) {
+            Filter filter = ff.and(chunk.size() == 1 ? chunk.get(0) : ff.or(chunk), notAfgevoerd);
+            log.debug("Kavels afvoeren met filter: " + filter);
+            kavelStore.modifyFeatures(WORKFLOW_FIELDNAME, WorkflowStatus.afgevoerd, filter);
+        }
+        afgevoerdTerreinen.addAndGet(terreinIDs.size());
+    }
+
+    /**
+     * equals filters for the values of an attribute, in chunks of
+     * {@link #IN_FILTER_SIZE}.
+     *
+     * @param attribute attribute name
+     * @param values values
+     * @return chunks of filters, to be combined with or
+     */
+    public static List<List<Filter>> inFilters(String attribute, Collection<?> values) {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        List<List<Filter>> chunks = new ArrayList<>();
+        List<Filter> chunk = null;
+        for (Object value : values) {
+            if (chunk == null || chunk.size() == IN_FILTER_SIZE) {
+                chunk = new ArrayList<>();
+                chunks.add(chunk);
             }
-            log.debug("Update terrein geom for kavels filtered by: " + terreinFilter);
+            chunk.add(ff.equals(ff.property(attribute), ff.literal(value)));
+        }
+        return chunks;
+    }
 
-            // update terrein with new geom
-            String geomAttrName = terreinStore.getSchema().getGeometryDescriptor().getLocalName();
-            terreinStore.modifyFeatures(geomAttrName, newTerreinGeom, terreinFilter);
+    /**
+     * Update the geometry of the TERREIN, see
+     * {@link #updateTerreinGeometry(java.lang.Integer, nl.b3p.viewer.config.services.Layer, nl.b3p.viewer.ibis.util.WorkflowStatus, nl.b3p.viewer.config.app.Application, javax.persistence.EntityManager, java.util.Collection)}.
+     * Does not need an entitymanager, so it can be called from a background
+     * thread.
+     *
+     * @param terreinID
+     * @param kavelFt kavels featuretype
+     * @param terreinFt terrein featuretype
+     * @param kavelStatus
+     * @param changed the old and new geometries of the added, changed and
+     * removed kavels, {@code null} or empty for a full rebuild
+     * @throws Exception if the update failed
+     */
+    public static void updateTerreinGeometry(Integer terreinID, SimpleFeatureType kavelFt, SimpleFeatureType terreinFt,
+            WorkflowStatus kavelStatus, Collection<Geometry> changed) throws Exception {
+        log.debug("Updating terrein geometry for " + terreinID);
+        DataStoreRegistry.Lease terreinLease = null;
+        DataStoreRegistry.Lease kavelLease = null;
+        Transaction terreinTransaction = new DefaultTransaction("edit-terrein-geom");
+        Transaction kavelTransaction = new DefaultTransaction("get-kavel-geom");
+        try {
+            kavelLease = DataStoreRegistry.lease(kavelFt);
+            SimpleFeatureStore kavelStore = (SimpleFeatureStore) kavelLease.getFeatureSource(kavelFt);
+            kavelStore.setTransaction(kavelTransaction);
+
+            terreinLease = DataStoreRegistry.lease(terreinFt);
+            SimpleFeatureStore terreinStore = (SimpleFeatureStore) terreinLease.getFeatureSource(terreinFt);
+            terreinStore.setTransaction(terreinTransaction);
+
+            updateTerreinGeometry(terreinID, kavelStore, terreinStore, kavelStatus, changed);
             terreinTransaction.commit();
         } catch (Exception e) {
-            log.error(String.format("Update van terrein geometrie %s is mislukt", terreinID), e);
+            terreinTransaction.rollback();
+            throw e;
         } finally {
             try {
                 kavelTransaction.close();
@@ -174,12 +434,370 @@ public class WorkflowUtil implements IbisConstants {
             } catch (IOException io) {
                 // closing transaction failed
             }
-            if (terreinStore != null) {
-                terreinStore.getDataStore().dispose();
+            if (terreinLease != null) {
+                terreinLease.close();
+            }
+            if (kavelLease != null) {
+                kavelLease.close();
+            }
+        }
+    }
+
+    /**
+     * Update the geometry of the TERREIN in the (uncommitted) transaction of
+     * the kavels, so the kavel mutation and the terrein update are committed
+     * or rolled back together on one connection. This is only possible when
+     * {@link #setSharedTransaction(boolean) enabled} and the kavels and
+     * terreinen are in the same feature source; otherwise nothing is done and
+     * the caller should {@link #queueTerreinGeometryUpdate queue} the update
+     * after its commit.
+     *
+     * @param terreinID
+     * @param layer kavels layer
+     * @param kavelStore kavels store with the transaction of the mutation
+     * @param kavelStatus
+     * @param application
+     * @param em
+     * @param changed the old and new geometries of the added, changed and
+     * removed kavels, {@code null} for a full rebuild
+     * @return {@code true} if the terrein was updated in the transaction
+     * @throws IOException if the update failed, the transaction should be
+     * rolled back
+     */
+    public static boolean updateTerreinGeometryInTransaction(Integer terreinID, Layer layer, SimpleFeatureStore kavelStore,
+            WorkflowStatus kavelStatus, Application application, EntityManager em, Collection<Geometry> changed) throws IOException {
+        if (!sharedTransaction || kavelStore.getTransaction() == Transaction.AUTO_COMMIT) {
+            return false;
+        }
+        SimpleFeatureType terreinFt = getTerreinFeatureType(application, em);
+        SimpleFeatureType kavelFt = layer.getFeatureType();
+        if (!kavelFt.getFeatureSource().getId().equals(terreinFt.getFeatureSource().getId())) {
+            log.debug("Kavels en terreinen hebben verschillende bronnen, terrein update na commit.");
+            return false;
+        }
+        log.debug("Updating terrein geometry in kavel transaction for " + terreinID);
+        DataStore store = (DataStore) kavelStore.getDataStore();
+        SimpleFeatureStore terreinStore = (SimpleFeatureStore) store.getFeatureSource(terreinFt.getTypeName());
+        terreinStore.setTransaction(kavelStore.getTransaction());
+        updateTerreinGeometry(terreinID, kavelStore, terreinStore, kavelStatus, changed);
+        sharedUpdates.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Calculate and write the terrein geometry using the transactions of the
+     * stores, does not commit.
+     */
+    static void updateTerreinGeometry(Integer terreinID, SimpleFeatureStore kavelStore, SimpleFeatureStore terreinStore,
+            WorkflowStatus kavelStatus, Collection<Geometry> changed) throws IOException {
+        Filter kavelFilter = kavelFilter(terreinID, kavelStatus);
+        log.debug("Looking for kavel with filter: " + kavelFilter);
+        Filter terreinFilter = terreinFilter(terreinID, kavelStatus);
+        log.debug("Update terrein geom for kavels filtered by: " + terreinFilter);
+
+        Geometry newTerreinGeom = null;
+        Geometry region = changedRegion(changed);
+        if (region != null) {
+            Geometry delta = deltaGeometry(kavelStore, kavelFilter, terreinStore, terreinFilter, region);
+            if (delta == null) {
+                deltaFallbacks.incrementAndGet();
+            } else if (isRebuildDue(terreinID + "|" + kavelStatus)) {
+                // periodic full rebuild, check the incremental result for drift
+                newTerreinGeom = unionKavels(kavelStore.getFeatures(kavelFilter));
+                checkDrift(terreinID, delta, newTerreinGeom);
+                fullUpdates.incrementAndGet();
+            } else {
+                newTerreinGeom = delta;
+                deltaUpdates.incrementAndGet();
+            }
+        }
+        if (newTerreinGeom == null) {
+            // dissolve all kavel geometries
+            newTerreinGeom = unionKavels(kavelStore.getFeatures(kavelFilter));
+            fullUpdates.incrementAndGet();
+        }
+        newTerreinGeom = toMultiPolygon(newTerreinGeom);
+
+        // update terrein with new geom
+        String geomAttrName = terreinStore.getSchema().getGeometryDescriptor().getLocalName();
+        terreinStore.modifyFeatures(geomAttrName, newTerreinGeom, terreinFilter);
+    }
+
+    /**
+     * Filter for the kavels that make up the geometry of a terrein: for a
+     * "bewerkt" terrein the "definitief" and "bewerkt" kavels, otherwise only
+     * the "definitief" kavels.
+     *
+     * @param terreinID
+     * @param kavelStatus workflow status of the changed kavels
+     * @return kavel filter
+     */
+    public static Filter kavelFilter(Integer terreinID, WorkflowStatus kavelStatus) {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        switch (kavelStatus) {
+            case bewerkt:
+                // find all "definitief" and "bewerkt" kavel for terreinID
+                return ff.and(
+                        ff.equals(ff.property(KAVEL_TERREIN_ID_FIELDNAME), ff.literal(terreinID)),
+                        ff.or(
+                                ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.toString()), false),
+                                ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.toString()), false)
+                        ));
+            case archief:
+            case afgevoerd:
+            case definitief:
+                // find all "definitief" kavel for terreinID
+                return ff.and(
+                        ff.equals(ff.property(KAVEL_TERREIN_ID_FIELDNAME), ff.literal(terreinID)),
+                        ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.toString()), false)
+                );
+            default:
+                // should not happen
+                return Filter.EXCLUDE;
+        }
+    }
+
+    /**
+     * Filter for the terrein that is updated when kavels with the given status
+     * change: the "bewerkt" terrein for "bewerkt" kavels, otherwise the
+     * "definitief" terrein.
+     *
+     * @param terreinID
+     * @param kavelStatus workflow status of the changed kavels
+     * @return terrein filter
+     */
+    public static Filter terreinFilter(Integer terreinID, WorkflowStatus kavelStatus) {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        switch (kavelStatus) {
+            case bewerkt:
+                return ff.and(
+                        ff.equals(ff.property(ID_FIELDNAME), ff.literal(terreinID)),
+                        ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false)
+                );
+            case archief:
+            case afgevoerd:
+            case definitief:
+                return ff.and(
+                        ff.equals(ff.property(ID_FIELDNAME), ff.literal(terreinID)),
+                        ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false)
+                );
+            default:
+                // won't do anything
+                return Filter.EXCLUDE;
+        }
+    }
+
+    /**
+     * terrein geometries are stored as multipolygon.
+     *
+     * @param geom a (multi)polygon
+     * @return a multipolygon
+     */
+    static Geometry toMultiPolygon(Geometry geom) {
+        if (!geom.getGeometryType().equalsIgnoreCase("MultiPolygon")) {
+            GeometryFactory f = JTSFactoryFinder.getGeometryFactory();
+            return f.createMultiPolygon(new Polygon[]{(Polygon) geom});
+        }
+        return geom;
+    }
+
+    /**
+     * Union the geometries of the kavels.
+     *
+     * @param kavels kavels to dissolve
+     * @return the union
+     * @throws IOException if reading the kavels fails
+     */
+    private static Geometry unionKavels(SimpleFeatureCollection kavels) throws IOException {
+        final Collection<Geometry> kavelGeoms = new ArrayList();
+        kavels.accepts(new AbstractFeatureVisitor() {
+            @Override
+            public void visit(Feature feature) {
+                Geometry geom = (Geometry) feature.getDefaultGeometryProperty().getValue();
+                if (geom != null) {
+                    kavelGeoms.add(geom);
+                }
+            }
+        }, null);
+        log.debug("Kavels found: " + kavelGeoms.size());
+        return ParallelUnion.union(kavelGeoms);
+    }
+
+    /**
+     * union of the changed geometries.
+     *
+     * @return the changed region or {@code null} if there are no geometries
+     */
+    private static Geometry changedRegion(Collection<Geometry> changed) {
+        if (changed == null) {
+            return null;
+        }
+        List<Geometry> geoms = new ArrayList<>();
+        for (Geometry g : changed) {
+            if (g != null && !g.isEmpty()) {
+                geoms.add(g);
+            }
+        }
+        if (geoms.isEmpty()) {
+            return null;
+        }
+        GeometryFactory factory = JTSFactoryFinder.getGeometryFactory(null);
+        return factory.buildGeometry(geoms).union();
+    }
+
+    /**
+     * Calculate the new terrein geometry from the current terrein geometry and
+     * the kavels in the changed region.
+     *
+     * @return the new geometry or {@code null} if it could not be determined
+     * incrementally
+     * @throws IOException if reading the features fails
+     */
+    static Geometry deltaGeometry(SimpleFeatureStore kavelStore, Filter kavelFilter,
+            SimpleFeatureStore terreinStore, Filter terreinFilter, Geometry region) throws IOException {
+        Geometry current = null;
+        int count = 0;
+        try (SimpleFeatureIterator terreinen = terreinStore.getFeatures(terreinFilter).features()) {
+            while (terreinen.hasNext()) {
+                current = (Geometry) terreinen.next().getDefaultGeometry();
+                count++;
             }
-            if (kavelStore != null) {
-                kavelStore.getDataStore().dispose();
+        }
+        if (count != 1 || current == null || current.isEmpty()) {
+            log.debug(String.format("Geen eenduidige terrein geometrie (%d terreinen), volledige update.", count));
+            return null;
+        }
+
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        String kavelGeomName = kavelStore.getSchema().getGeometryDescriptor().getLocalName();
+        Filter inRegion = ff.and(kavelFilter, ff.intersects(ff.property(kavelGeomName), ff.literal(region)));
+        Geometry local = unionKavels(kavelStore.getFeatures(inRegion));
+
+        try {
+            Geometry outside = current.difference(region);
+            Geometry result = local.isEmpty() ? outside : outside.union(local);
+            if (isAcceptable(result, outside, local)) {
+                return result;
             }
+            log.info("Incrementele terrein geometrie is ongeldig, volledige update.");
+        } catch (RuntimeException e) {
+            // eg. a TopologyException
+            log.info("Incrementele terrein geometrie is mislukt, volledige update: " + e.getLocalizedMessage());
         }
+        return null;
+    }
+
+    /**
+     * Validate an incremental result: it must be a valid, non-empty polygon
+     * and, within tolerance, its area must be between the area of the largest
+     * part and the sum of both parts.
+     */
+    static boolean isAcceptable(Geometry result, Geometry outside, Geometry local) {
+        if (result == null || result.isEmpty() || !(result instanceof Polygonal) || !result.isValid()) {
+            return false;
+        }
+        double area = result.getArea();
+        double min = Math.max(outside.getArea(), local.getArea());
+        double max = outside.getArea() + local.getArea();
+        double tolerance = AREA_TOLERANCE * max;
+        return area >= min - tolerance && area <= max + tolerance;
+    }
+
+    /**
+     * count an incremental update for the key and check if a full rebuild is
+     * due.
+     */
+    private static boolean isRebuildDue(String key) {
+        AtomicInteger count = deltaCounts.get(key);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = deltaCounts.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        if (count.incrementAndGet() >= FULL_REBUILD_INTERVAL) {
+            count.set(0);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * log a warning if the incremental geometry differs from the full rebuild.
+     */
+    static void checkDrift(Integer terreinID, Geometry delta, Geometry full) {
+        try {
+            double drift = delta.symDifference(full).getArea();
+            if (drift > AREA_TOLERANCE * full.getArea()) {
+                driftDetected.incrementAndGet();
+                log.warn(String.format("Incrementele geometrie van terrein %s wijkt %.3f m2 af van volledige update.", terreinID, drift));
+            }
+        } catch (RuntimeException e) {
+            driftDetected.incrementAndGet();
+            log.warn("Controle van incrementele geometrie van terrein " + terreinID + " is mislukt", e);
+        }
+    }
+
+    /**
+     * @return the number of incremental terrein geometry updates
+     */
+    public static long getDeltaUpdates() {
+        return deltaUpdates.get();
+    }
+
+    /**
+     * @return the number of full terrein geometry updates, including periodic
+     * rebuilds and fallbacks
+     */
+    public static long getFullUpdates() {
+        return fullUpdates.get();
+    }
+
+    /**
+     * @return the number of incremental updates that fell back to a full
+     * update
+     */
+    public static long getDeltaFallbacks() {
+        return deltaFallbacks.get();
+    }
+
+    /**
+     * @return the number of periodic rebuilds that found drift
+     */
+    public static long getDriftDetected() {
+        return driftDetected.get();
+    }
+
+    /**
+     * @return the number of terrein geometry updates done in the transaction
+     * of the kavels
+     */
+    public static long getSharedUpdates() {
+        return sharedUpdates.get();
+    }
+
+    /**
+     * @return the number of terreinen of which the kavels were set to
+     * "afgevoerd"
+     */
+    public static long getAfgevoerdTerreinen() {
+        return afgevoerdTerreinen.get();
+    }
+
+    /**
+     * Update the terrein geometry in the transaction of the kavel mutation
+     * when possible, see
+     * {@link #updateTerreinGeometryInTransaction(java.lang.Integer, nl.b3p.viewer.config.services.Layer, org.geotools.data.simple.SimpleFeatureStore, nl.b3p.viewer.ibis.util.WorkflowStatus, nl.b3p.viewer.config.app.Application, javax.persistence.EntityManager, java.util.Collection)}.
+     *
+     * @param shared {@code true} to update in the kavel transaction,
+     * {@code false} to always queue the update
+     */
+    public static void setSharedTransaction(boolean shared) {
+        sharedTransaction = shared;
+    }
+
+    public static boolean isSharedTransaction() {
+        return sharedTransaction;
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Resolves the current ("actuele") version of each {@link IbisConstants#ID_FIELDNAME}
+ * in a single pass over a set of features. Only {@link WorkflowStatus#bewerkt}
+ * and {@link WorkflowStatus#definitief} features are considered; for an id a
+ * bewerkt feature wins over a definitief feature, within the same status the
+ * feature with the youngest {@link IbisConstants#MUTATIEDATUM_FIELDNAME} wins
+ * (a feature without date is the oldest) and after that the feature with the
+ * lowest primary key. This is the same order as the {@code v_workflow_*}
+ * views in {@code src/main/ddl}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class WorkflowVersionResolver implements IbisConstants {
+
+    /**
+     * private constructor for utility class.
+     */
+    private WorkflowVersionResolver() {
+    }
+
+    /**
+     * Resolve the current feature for each id. The iterator is consumed, but
+     * not closed.
+     *
+     * @param features features to resolve, may contain any workflow status
+     * @return the current features, in order of first appearance of their id
+     */
+    public static List<SimpleFeature> resolve(FeatureIterator<SimpleFeature> features) {
+        Map<Object, SimpleFeature> actueel = new LinkedHashMap<>();
+        while (features.hasNext()) {
+            SimpleFeature f = features.next();
+            if (rank(f) < 0) {
+                continue;
+            }
+            Object id = f.getAttribute(ID_FIELDNAME);
+            SimpleFeature current = actueel.get(id);
+            if (current == null || isPreferred(f, current)) {
+                actueel.put(id, f);
+            }
+        }
+        return new ArrayList<>(actueel.values());
+    }
+
+    /**
+     * Determine if the candidate is a more recent version than the current
+     * feature. Ties are resolved by the primary key of the feature id, the
+     * lowest wins.
+     *
+     * @param candidate feature to test
+     * @param current feature found so far
+     * @return {@code true} if candidate should replace current
+     */
+    public static boolean isPreferred(SimpleFeature candidate, SimpleFeature current) {
+        int rankCandidate = rank(candidate);
+        int rankCurrent = rank(current);
+        if (rankCandidate != rankCurrent) {
+            return rankCandidate > rankCurrent;
+        }
+        Date dCandidate = (Date) candidate.getAttribute(MUTATIEDATUM_FIELDNAME);
+        Date dCurrent = (Date) current.getAttribute(MUTATIEDATUM_FIELDNAME);
+        if (dCandidate != null && (dCurrent == null || dCandidate.after(dCurrent))) {
+            return true;
+        }
+        // not younger, so older unless both dates are equal
+        if (dCandidate == null ? dCurrent != null : dCandidate.before(dCurrent)) {
+            return false;
+        }
+        return comparePrimaryKeys(candidate.getID(), current.getID()) < 0;
+    }
+
+    /**
+     * Compare the primary keys of two feature ids, eg.
+     * {@code bedrijvenkavels.12}; numeric keys are compared as numbers.
+     *
+     * @param fid1 feature id
+     * @param fid2 feature id
+     * @return a negative number, zero, or a positive number as the key of
+     * {@code fid1} is less than, equal to, or greater than the key of
+     * {@code fid2}
+     */
+    static int comparePrimaryKeys(String fid1, String fid2) {
+        if (fid1 == null || fid2 == null) {
+            return fid1 == null ? (fid2 == null ? 0 : 1) : -1;
+        }
+        String key1 = fid1.substring(fid1.lastIndexOf('.') + 1);
+        String key2 = fid2.substring(fid2.lastIndexOf('.') + 1);
+        try {
+            return Long.compare(Long.parseLong(key1), Long.parseLong(key2));
+        } catch (NumberFormatException e) {
+            return key1.compareTo(key2);
+        }
+    }
+
+    /**
+     * rank a feature by workflow status; bewerkt sorts before definitief.
+     *
+     * @param f feature to rank
+     * @return 1 for bewerkt, 0 for definitief, -1 for any other status
+     */
+    private static int rank(SimpleFeature f) {
+        Object status = f.getAttribute(WORKFLOW_FIELDNAME);
+        if (status == null) {
+            return -1;
+        }
+        String s = status.toString();
+        if (s.equalsIgnoreCase(WorkflowStatus.bewerkt.name())) {
+            return 1;
+        } else if (s.equalsIgnoreCase(WorkflowStatus.definitief.name())) {
+            return 0;
+        }
+        return -1;
+    }
+}
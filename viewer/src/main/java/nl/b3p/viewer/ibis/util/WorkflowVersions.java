@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.identity.FeatureIdImpl;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.FeatureId;
+
+/**
+ * The feature that is edited and the live ("definitief" and "bewerkt")
+ * versions of its {@link IbisConstants#ID_FIELDNAME}, read in a single query
+ * when the id is known beforehand, or in two queries for a batch of features.
+ * The current versions of a number of ids can be read in a single query as
+ * well.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class WorkflowVersions implements IbisConstants {
+
+    private static final Log log = LogFactory.getLog(WorkflowVersions.class);
+
+    private final SimpleFeature original;
+    private final List<SimpleFeature> definitief = new ArrayList<>();
+    private final List<SimpleFeature> bewerkt = new ArrayList<>();
+
+    private WorkflowVersions(SimpleFeature original) {
+        this.original = original;
+    }
+
+    /**
+     * Read a feature and the live versions of its id. If {@code ibisId} is
+     * given the versions are read in the same query as the feature, otherwise,
+     * or if the id of the feature turns out to be different, a second query is
+     * used.
+     *
+     * @param source feature source, uses the transaction of the source
+     * @param fid feature id of the edited feature
+     * @param ibisId the expected id of the feature, eg. from the posted json,
+     * may be {@code null}
+     * @return the versions
+     * @throws IOException if reading fails
+     * @throws NoSuchElementException if the feature does not exist
+     */
+    public static WorkflowVersions load(SimpleFeatureSource source, String fid, Object ibisId) throws IOException {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Filter fidFilter = ff.id(new FeatureIdImpl(fid));
+        Filter filter = ibisId == null ? fidFilter : ff.or(fidFilter, liveFilter(ibisId));
+
+        SimpleFeature original = null;
+        List<SimpleFeature> candidates = new ArrayList<>();
+        try (SimpleFeatureIterator it = source.getFeatures(filter).features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                if (fid.equals(f.getID())) {
+                    original = f;
+                }
+                candidates.add(f);
+            }
+        }
+        if (original == null) {
+            throw new NoSuchElementException("Feature niet gevonden: " + fid);
+        }
+
+        Object id = original.getAttribute(ID_FIELDNAME);
+        if (ibisId == null || !sameId(id, ibisId)) {
+            log.debug(String.format("Versies van %s=%s apart opvragen", ID_FIELDNAME, id));
+            candidates.clear();
+            try (SimpleFeatureIterator it = source.getFeatures(liveFilter(id)).features()) {
+                while (it.hasNext()) {
+                    candidates.add(it.next());
+                }
+            }
+        }
+
+        return versions(original, candidates);
+    }
+
+    /**
+     * Read features and the live versions of their ids in two queries.
+     *
+     * @param source feature source, uses the transaction of the source
+     * @param fids feature ids of the edited features
+     * @return the versions by fid
+     * @throws IOException if reading fails
+     * @throws NoSuchElementException if a feature does not exist
+     */
+    public static Map<String, WorkflowVersions> loadAll(SimpleFeatureSource source, Collection<String> fids) throws IOException {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Set<FeatureId> ids = new LinkedHashSet<>();
+        for (String fid : fids) {
+            ids.add(new FeatureIdImpl(fid));
+        }
+        Map<String, SimpleFeature> originals = new LinkedHashMap<>();
+        try (SimpleFeatureIterator it = source.getFeatures(ff.id(ids)).features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                originals.put(f.getID(), f);
+            }
+        }
+        List<Filter> idFilters = new ArrayList<>();
+        for (String fid : fids) {
+            SimpleFeature original = originals.get(fid);
+            if (original == null) {
+                throw new NoSuchElementException("Feature niet gevonden: " + fid);
+            }
+            idFilters.add(ff.equals(ff.property(ID_FIELDNAME), ff.literal(original.getAttribute(ID_FIELDNAME))));
+        }
+
+        List<SimpleFeature> candidates = new ArrayList<>();
+        if (!idFilters.isEmpty()) {
+            Filter filter = ff.and(
+                    idFilters.size() == 1 ? idFilters.get(0) : ff.or(idFilters),
+                    ff.or(
+                            ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false),
+                            ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false)
+                    ));
+            try (SimpleFeatureIterator it = source.getFeatures(filter).features()) {
+                while (it.hasNext()) {
+                    candidates.add(it.next());
+                }
+            }
+        }
+
+        Map<String, WorkflowVersions> versions = new LinkedHashMap<>();
+        for (String fid : fids) {
+            versions.put(fid, versions(originals.get(fid), candidates));
+        }
+        return versions;
+    }
+
+    /**
+     * Read the live versions of a number of ids in one query per
+     * {@link WorkflowUtil#IN_FILTER_SIZE} ids. The "bewerkt" version is used
+     * as the edited feature, or the "definitief" version if there is no
+     * "bewerkt" version. Ids without live versions are left out.
+     *
+     * @param source feature source, uses the transaction of the source
+     * @param ibisIds the ids
+     * @return the versions by id
+     * @throws IOException if reading fails
+     */
+    public static Map<Object, WorkflowVersions> loadCurrent(SimpleFeatureSource source, Collection<?> ibisIds) throws IOException {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Filter live = ff.or(
+                ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false),
+                ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false)
+        );
+        List<SimpleFeature> candidates = new ArrayList<>();
+        for (List<Filter> chunk : WorkflowUtil.inFilters(ID_FIELDNAME, ibisIds)) {
+            Filter filter = ff.and(chunk.size() == 1 ? chunk.get(0) : ff.or(chunk), live);
+            try (SimpleFeatureIterator it = source.getFeatures(filter).features()) {
+                while (it.hasNext()) {
+                    candidates.add(it.next());
+                }
+            }
+        }
+
+        Map<String, List<SimpleFeature>> byId = new HashMap<>();
+        for (SimpleFeature f : candidates) {
+            String key = idKey(f.getAttribute(ID_FIELDNAME));
+            List<SimpleFeature> features = byId.get(key);
+            if (features == null) {
+                features = new ArrayList<>();
+                byId.put(key, features);
+            }
+            features.add(f);
+        }
+
+        Map<Object, WorkflowVersions> versions = new LinkedHashMap<>();
+        for (Object id : ibisIds) {
+            List<SimpleFeature> features = byId.get(idKey(id));
+            if (features == null) {
+                log.debug(String.format("Geen definitief of bewerkt %s=%s", ID_FIELDNAME, id));
+                continue;
+            }
+            SimpleFeature current = features.get(0);
+            for (SimpleFeature f : features) {
+                if (WorkflowStatus.bewerkt.name().equalsIgnoreCase(f.getAttribute(WORKFLOW_FIELDNAME).toString())) {
+                    current = f;
+                }
+            }
+            versions.put(id, versions(current, features));
+        }
+        return versions;
+    }
+
+    /**
+     * key of an id that matches {@link #sameId(java.lang.Object, java.lang.Object)},
+     * use this to put ids in a set or map.
+     *
+     * @param id the id
+     * @return the key of the id
+     */
+    public static String idKey(Object id) {
+        if (id instanceof Number) {
+            return Long.toString(((Number) id).longValue());
+        }
+        return String.valueOf(id);
+    }
+
+    /**
+     * the versions of the original among the candidates.
+     */
+    private static WorkflowVersions versions(SimpleFeature original, List<SimpleFeature> candidates) {
+        Object id = original.getAttribute(ID_FIELDNAME);
+        WorkflowVersions versions = new WorkflowVersions(original);
+        for (SimpleFeature f : candidates) {
+            if (!sameId(id, f.getAttribute(ID_FIELDNAME))) {
+                continue;
+            }
+            Object status = f.getAttribute(WORKFLOW_FIELDNAME);
+            if (status == null) {
+                continue;
+            }
+            if (WorkflowStatus.definitief.name().equalsIgnoreCase(status.toString())) {
+                versions.definitief.add(f);
+            } else if (WorkflowStatus.bewerkt.name().equalsIgnoreCase(status.toString())) {
+                versions.bewerkt.add(f);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * filter for the "definitief" and "bewerkt" versions of an id.
+     */
+    private static Filter liveFilter(Object ibisId) {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        return ff.and(
+                ff.equals(ff.property(ID_FIELDNAME), ff.literal(ibisId)),
+                ff.or(
+                        ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false),
+                        ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false)
+                ));
+    }
+
+    /**
+     * compare ids, numbers by value and anything else by string value.
+     *
+     * @param a an id
+     * @param b another id
+     * @return {@code true} if the ids are the same
+     */
+    public static boolean sameId(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return ((Number) a).longValue() == ((Number) b).longValue();
+        }
+        return a.toString().equals(b.toString());
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="getters en setters">
+    /**
+     * @return the edited feature
+     */
+    public SimpleFeature getOriginal() {
+        return original;
+    }
+
+    /**
+     * @return the workflow status of the edited feature
+     */
+    public WorkflowStatus getOriginalStatus() {
+        return WorkflowStatus.valueOf(original.getAttribute(WORKFLOW_FIELDNAME).toString());
+    }
+
+    public List<SimpleFeature> getDefinitief() {
+        return definitief;
+    }
+
+    public List<SimpleFeature> getBewerkt() {
+        return bewerkt;
+    }
+
+    public boolean isDefinitiefExists() {
+        return !definitief.isEmpty();
+    }
+
+    public boolean isBewerktExists() {
+        return !bewerkt.isEmpty();
+    }
+    //</editor-fold>
+}
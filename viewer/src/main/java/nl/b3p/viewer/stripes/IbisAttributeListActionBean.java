@@ -19,15 +19,19 @@ package nl.b3p.viewer.stripes;
 import static nl.b3p.viewer.ibis.util.DateUtils.addMonth;
 import static nl.b3p.viewer.ibis.util.DateUtils.differenceInMonths;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.StringReader;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +40,7 @@ import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import javax.persistence.EntityManager;
+import javax.servlet.http.HttpServletResponse;
 import net.sourceforge.stripes.action.ActionBean;
 import net.sourceforge.stripes.action.ActionBeanContext;
 import net.sourceforge.stripes.action.After;
@@ -56,22 +61,31 @@ import nl.b3p.viewer.config.services.AttributeDescriptor;
 import nl.b3p.viewer.config.services.FeatureTypeRelation;
 import nl.b3p.viewer.config.services.Layer;
 import nl.b3p.viewer.config.services.SimpleFeatureType;
+import nl.b3p.viewer.ibis.report.ChunkedFeatureIterator;
+import nl.b3p.viewer.ibis.report.CsvReportWriter;
+import nl.b3p.viewer.ibis.report.JoinedFeatureIterator;
+import nl.b3p.viewer.ibis.report.JsonReportWriter;
+import nl.b3p.viewer.ibis.report.ReportCache;
+import nl.b3p.viewer.ibis.report.ReportJobManager;
+import nl.b3p.viewer.ibis.report.ReportWriter;
+import nl.b3p.viewer.ibis.report.UitgifteRollup;
+import nl.b3p.viewer.ibis.report.XlsxReportWriter;
+import nl.b3p.viewer.ibis.util.AggregateQuery;
 import nl.b3p.viewer.ibis.util.IbisConstants;
-import nl.b3p.viewer.util.FeatureToJson;
+import nl.b3p.viewer.util.DataStoreRegistry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.filter.text.ecql.ECQL;
+import org.geotools.jdbc.JDBCDataStore;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.filter.Filter;
 import org.stripesstuff.stripersist.Stripersist;
@@ -104,6 +118,16 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
      */
     @Validate
     private String mimetype;
+    /**
+     * file format of {@link #export()}, {@code csv} or {@code xlsx}.
+     */
+    @Validate
+    private String format;
+    /**
+     * id of a report job, see {@link #submitJob()}.
+     */
+    @Validate
+    private String jobId;
 
     @Validate
     private Application application;
@@ -140,6 +164,10 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
     private boolean unauthorized;
     private String gebiedsNaamQuery;
     private QueryArea areaType;
+    /**
+     * the terreinen the report is computed from, for {@link ReportCache}.
+     */
+    private Collection<Object> reportTerreinIDs = Collections.emptySet();
 
     enum QueryArea {
 
@@ -236,7 +264,8 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
 
     /**
      * Echo back the received base64 encoded form data. A fallback for IE and
-     * browsers that don't support client side downloads.
+     * browsers that don't support client side downloads. For large reports
+     * use {@link #export()}, which does not need the data from the browser.
      *
      * @return excel download of the posted fData (posted data is not validated
      * for 'excel-ness')
@@ -260,6 +289,208 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
 
     @DefaultHandler
     public Resolution query() throws Exception {
+        final JSONObject json = newResponse();
+
+        String error = this.validate();
+        if (error != null) {
+            json.put("success", Boolean.FALSE);
+            json.put("message", error);
+            log.debug("returning json:" + json);
+            return new StreamingResolution("application/json", new StringReader(json.toString()));
+        }
+
+        // the small ISSUE and AGGREGATED reports are cached until a terrein they use is edited
+        final String cacheKey = reportType == ReportType.INDIVIDUAL ? null : ReportCache.key(appLayer.getId(), reportType,
+                regio, gemeente, terrein, aggregationLevel, aggregationLevelDate, fromDate, toDate, attrNames);
+        if (cacheKey != null) {
+            String cached = ReportCache.get(cacheKey);
+            if (cached != null) {
+                log.debug("rapport uit cache: " + cacheKey);
+                return new StreamingResolution("application/json", new StringReader(cached));
+            }
+        }
+
+        // the rows are written while they are read, so there is no limit on the size of the report
+        return new StreamingResolution("application/json") {
+            @Override
+            protected void stream(HttpServletResponse response) throws Exception {
+                long generation = ReportCache.generation();
+                ReportCache.Recorder recorder = cacheKey == null ? null : new ReportCache.Recorder(response.getWriter());
+                JsonReportWriter out = new JsonReportWriter(recorder == null ? response.getWriter() : recorder);
+                report(json, out);
+                if (recorder != null && recorder.getCopy() != null && json.getBoolean("success")) {
+                    ReportCache.put(cacheKey, recorder.getCopy(), reportTerreinIDs, generation);
+                }
+            }
+        };
+    }
+
+    /**
+     * Run the report and stream it as a spreadsheet, the same parameters as
+     * {@link #query()} plus {@code format} ({@code csv} or {@code xlsx}, the
+     * default). Unlike {@link #download()} the report does not pass through
+     * the browser.
+     *
+     * @return the report as a csv or xlsx file, or a json error if the
+     * parameters are invalid
+     * @throws JSONException if any
+     */
+    public Resolution export() throws JSONException {
+        String error = this.validate();
+        if (error == null && format != null && !"csv".equalsIgnoreCase(format) && !"xlsx".equalsIgnoreCase(format)) {
+            error = "Onbekend formaat " + format;
+        }
+        if (error != null) {
+            JSONObject json = new JSONObject().put("success", Boolean.FALSE).put("message", error);
+            return new StreamingResolution("application/json", new StringReader(json.toString()));
+        }
+
+        final boolean csv = "csv".equalsIgnoreCase(format);
+        final JSONObject json = new JSONObject().put(JSON_METADATA, new JSONObject());
+        String name = filename != null ? filename : "ibisrapportage." + (csv ? "csv" : "xlsx");
+        return new StreamingResolution(csv ? CsvReportWriter.MIMETYPE + ";charset=UTF-8" : XlsxReportWriter.MIMETYPE) {
+            @Override
+            protected void stream(HttpServletResponse response) throws Exception {
+                ReportWriter out;
+                if (csv) {
+                    response.setCharacterEncoding("UTF-8");
+                    out = new CsvReportWriter(response.getWriter());
+                } else {
+                    out = new XlsxReportWriter(response.getOutputStream());
+                }
+                report(json, out);
+            }
+        }.setFilename(name).setAttachment(true);
+    }
+
+    /**
+     * Submit the report as a background job, for reports that take longer
+     * than the http request may take. Takes the same parameters as
+     * {@link #query()}.
+     *
+     * @return json with the {@code jobId} and the progress of the job
+     * @throws JSONException if any
+     * @see #jobProgress()
+     * @see #jobResult()
+     */
+    public Resolution submitJob() throws JSONException {
+        String error = this.validate();
+        if (error == null) {
+            try {
+                this.prepareJob();
+                ReportJobManager.Job job = ReportJobManager.submit(context.getRequest().getRemoteUser(),
+                        new ReportJobManager.Report() {
+                            @Override
+                            public void run(ReportJobManager.Job job, Writer writer) throws Exception {
+                                JSONObject json = newResponse();
+                                report(json, job.track(new JsonReportWriter(writer)));
+                                if (!json.getBoolean("success")) {
+                                    throw new IllegalStateException(json.optString("message"));
+                                }
+                            }
+                        });
+                return this.jobResponse(job);
+            } catch (Exception e) {
+                log.error("Indienen van rapport is mislukt.", e);
+                error = e.getLocalizedMessage();
+            }
+        }
+        return this.jobError(error);
+    }
+
+    /**
+     * Progress of a report job: status, stage and number of rows.
+     *
+     * @return json with the progress
+     * @throws JSONException if any
+     */
+    public Resolution jobProgress() throws JSONException {
+        ReportJobManager.Job job = this.findJob();
+        if (job == null) {
+            return this.jobError("Rapport niet gevonden.");
+        }
+        return this.jobResponse(job);
+    }
+
+    /**
+     * Cancel a report job.
+     *
+     * @return json with the progress
+     * @throws JSONException if any
+     */
+    public Resolution cancelJob() throws JSONException {
+        ReportJobManager.Job job = this.findJob();
+        if (job == null) {
+            return this.jobError("Rapport niet gevonden.");
+        }
+        ReportJobManager.cancel(job.getId());
+        return this.jobResponse(job);
+    }
+
+    /**
+     * The result of a finished report job, the same json as {@link #query()}.
+     * The result can be fetched until the job expires.
+     *
+     * @return the report
+     * @throws Exception if the result cannot be read
+     */
+    public Resolution jobResult() throws Exception {
+        ReportJobManager.Job job = this.findJob();
+        if (job == null) {
+            return this.jobError("Rapport niet gevonden.");
+        }
+        File result = job.getResult();
+        if (job.getStatus() != ReportJobManager.Status.DONE || result == null) {
+            return this.jobError("Rapport is niet beschikbaar, status: " + job.getStatus());
+        }
+        return new StreamingResolution("application/json;charset=UTF-8", new FileInputStream(result));
+    }
+
+    /**
+     * Load the configuration the report needs while the entity manager of the
+     * request is open, the job runs without it.
+     */
+    private void prepareJob() {
+        SimpleFeatureType ft = layer.getFeatureType();
+        ft.getAttributes().size();
+        ft.getFeatureSource().getName();
+        for (FeatureTypeRelation rel : ft.getRelations()) {
+            SimpleFeatureType relFt = rel.getForeignFeatureType();
+            relFt.getTypeName();
+            relFt.getAttributes().size();
+            relFt.getFeatureSource().getName();
+        }
+    }
+
+    /**
+     * @return the job of {@link #jobId} if the user may see it
+     */
+    private ReportJobManager.Job findJob() {
+        if (unauthorized) {
+            return null;
+        }
+        ReportJobManager.Job job = ReportJobManager.get(jobId);
+        if (job == null || (job.getOwner() != null && !job.getOwner().equals(context.getRequest().getRemoteUser()))) {
+            return null;
+        }
+        return job;
+    }
+
+    private Resolution jobResponse(ReportJobManager.Job job) throws JSONException {
+        JSONObject json = new JSONObject(job.getMetrics()).put("success", Boolean.TRUE);
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
+
+    private Resolution jobError(String message) throws JSONException {
+        JSONObject json = new JSONObject().put("success", Boolean.FALSE).put("message", message);
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
+
+    /**
+     * @return a report response with the initial metadata
+     * @throws JSONException if any
+     */
+    private static JSONObject newResponse() throws JSONException {
         JSONObject json = new JSONObject();
         json.put("success", Boolean.FALSE);
         // initial metadata
@@ -269,7 +500,15 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
                 .put("messageProperty", "message")
                 .put("idProperty", "rownum");
         json.put(JSON_METADATA, metadata);
+        return json;
+    }
 
+    /**
+     * Check the parameters of a report and set the area to report on.
+     *
+     * @return an error message or {@code null} if the parameters are valid
+     */
+    private String validate() {
         String error = null;
         if (appLayer == null) {
             error = "Invalid parameters.";
@@ -292,44 +531,55 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
                 } else {
                     throw new IllegalArgumentException("Geen gebied opgegeven voor rapport.");
                 }
-
-                switch (reportType) {
-                    case ISSUE:
-                        reportIssued(json);
-                        break;
-                    case INDIVIDUAL:
-                        reportIndividualData(json);
-                        break;
-                    case AGGREGATED:
-                        reportAggregateData(json);
-                        break;
-                }
-
-                json.put("message", "OK");
-                json.put("success", Boolean.TRUE);
-
             } catch (Exception e) {
                 log.error("Error generating report data.", e);
                 error = e.getLocalizedMessage();
             }
         }
+        return error;
+    }
 
-        if (error != null) {
+    /**
+     * Run the report of {@link #reportType} and complete the output with the
+     * outcome.
+     *
+     * @param json response properties, gets the metadata, success and message
+     * @param out output for the rows
+     * @throws IOException if writing fails
+     * @throws JSONException if any
+     */
+    private void report(JSONObject json, ReportWriter out) throws IOException, JSONException {
+        try {
+            switch (reportType) {
+                case ISSUE:
+                    reportIssued(json, out);
+                    break;
+                case INDIVIDUAL:
+                    reportIndividualData(json, out);
+                    break;
+                case AGGREGATED:
+                    reportAggregateData(json, out);
+                    break;
+            }
+            json.put("message", "OK");
+            json.put("success", Boolean.TRUE);
+        } catch (Exception e) {
+            log.error("Error generating report data.", e);
             json.put("success", Boolean.FALSE);
-            json.put("message", error);
+            json.put("message", e.getLocalizedMessage());
         }
-
-        log.debug("returning json:" + json);
-        return new StreamingResolution("application/json", new StringReader(json.toString()));
+        out.finish(json);
+        log.debug(String.format("rapport %s: %d rijen", reportType, out.getTotal()));
     }
 
     /**
      * Uitgifte report.
      *
-     * @param json that get the data added
+     * @param json that get the metadata added
+     * @param out writer for the data
      * @throws Exception if any
      */
-    private void reportIssued(JSONObject json) throws Exception {
+    private void reportIssued(JSONObject json, ReportWriter out) throws Exception {
         if (fromDate == null || toDate == null) {
             throw new IllegalArgumentException("Datum vanaf en datum tot zijn verplicht voor uitgifte.");
         }
@@ -338,8 +588,10 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
 
         SimpleFeatureType ft = layer.getFeatureType();
         SimpleFeatureType relFt = this.getRelatedSFT(ft, RELATED_FT_NAME);
-        SimpleFeatureSource fs = (SimpleFeatureSource) ft.openGeoToolsFeatureSource();
-        SimpleFeatureSource foreignFs = (SimpleFeatureSource) relFt.openGeoToolsFeatureSource();
+        DataStoreRegistry.Lease lease = DataStoreRegistry.lease(ft);
+        DataStoreRegistry.Lease foreignLease = DataStoreRegistry.lease(relFt);
+        SimpleFeatureSource fs = lease.getFeatureSource(ft);
+        SimpleFeatureSource foreignFs = foreignLease.getFeatureSource(relFt);
 
         Filter filter = ECQL.toFilter(this.gebiedsNaamQuery);
         List<String> tPropnames = Arrays.asList(
@@ -351,13 +603,12 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
         q.setPropertyNames(tPropnames);
         q.setFilter(filter);
         q.setHandle("uitgifte-rapport");
-        q.setMaxFeatures(FeatureToJson.MAX_FEATURES);
 
         try {
-            // store terreinen in mem and get a list of the id's
-            SimpleFeatureCollection inMem = DataUtilities.collection(fs.getFeatures(q).features());
-            StringBuilder in = new StringBuilder();
-            SimpleFeatureIterator inMemFeats = inMem.features();
+            // get a list of the terrein id's and names
+            List<Object> ids = new ArrayList<>();
+            reportTerreinIDs = ids;
+            SimpleFeatureIterator inMemFeats = fs.getFeatures(q).features();
             Set<String> terreinNames = new TreeSet<>(
                     new Comparator<String>() {
                         @Override
@@ -381,7 +632,7 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
 
             while (inMemFeats.hasNext()) {
                 SimpleFeature f = inMemFeats.next();
-                in.append(f.getAttribute(TERREINID_FIELDNAME)).append(",");
+                ids.add(f.getAttribute(TERREINID_FIELDNAME));
                 terreinNames.add((String) f.getAttribute(TERREIN_FIELDNAME));
                 regioNames.add((String) f.getAttribute(REGIO_FIELDNAME));
                 gemeenteNames.add((String) f.getAttribute(GEMEENTE_FIELDNAME));
@@ -400,13 +651,25 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
                     GEMEENTE_RELATED_FIELDNAME);
             foreignQ.setPropertyNames(propnames);
             String query = STATUS_FIELDNAME + "= 'uitgegeven' AND "
-                    + TERREINID_RELATED_FIELDNAME + " IN (" + in.substring(0, in.length() - 1) + ") AND "
                     + UITGIFTEDATUM_RELATED_FIELDNAME + " DURING " + sdf.format(fromDate) + "/" + sdf.format(toDate);
             log.debug("uitgifte query: " + query);
             foreignQ.setFilter(ECQL.toFilter(query));
 
-            // kavels for selected terrein id's
-            SimpleFeatureCollection sfc = DataUtilities.collection(foreignFs.getFeatures(foreignQ).features());
+            // monthly rollup or kavels for selected terrein id's
+            SimpleFeatureIterator items;
+            SimpleFeatureSource rollupFs = UitgifteRollup.getFeatureSource(relFt, foreignFs);
+            if (rollupFs != null) {
+                items = UitgifteRollup.features(rollupFs, foreignFs, foreignQ,
+                        TERREINID_RELATED_FIELDNAME, ids, fromDate, toDate,
+                        OPPERVLAKTE_GEOM_RELATED_FIELDNAME,
+                        UITGIFTEDATUM_RELATED_FIELDNAME,
+                        TERREIN_RELATED_FIELDNAME,
+                        REGIO_RELATED_FIELDNAME,
+                        GEMEENTE_RELATED_FIELDNAME);
+            } else {
+                items = new ChunkedFeatureIterator(foreignFs, foreignQ, TERREINID_RELATED_FIELDNAME, ids);
+            }
+            SimpleFeatureCollection sfc = null;
 
             // create new aggregate featuretype
             org.opengis.feature.simple.SimpleFeatureType type = DataUtilities.createType(
@@ -440,11 +703,11 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
                 case REGIO:
                     switch (aggregationLevelDate) {
                         case MONTH:
-                            sfc = aggregateUitgifteByMonthAndArea(sfc, type, "oppervlakte",
+                            sfc = aggregateUitgifteByMonthAndArea(items, type, "oppervlakte",
                                     regioNames, REGIO_RELATED_FIELDNAME);
                             break;
                         case NONE:
-                            sfc = aggregateUitgifteByArea(sfc, type, "oppervlakte",
+                            sfc = aggregateUitgifteByArea(items, type, "oppervlakte",
                                     regioNames, REGIO_RELATED_FIELDNAME);
                             break;
                     }
@@ -452,11 +715,11 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
                 case GEMEENTE:
                     switch (aggregationLevelDate) {
                         case MONTH:
-                            sfc = aggregateUitgifteByMonthAndArea(sfc, type, "oppervlakte",
+                            sfc = aggregateUitgifteByMonthAndArea(items, type, "oppervlakte",
                                     gemeenteNames, GEMEENTE_RELATED_FIELDNAME);
                             break;
                         case NONE:
-                            sfc = aggregateUitgifteByArea(sfc, type, "oppervlakte",
+                            sfc = aggregateUitgifteByArea(items, type, "oppervlakte",
                                     gemeenteNames, GEMEENTE_RELATED_FIELDNAME);
                             break;
                     }
@@ -464,11 +727,11 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
                 case TERREIN:
                     switch (aggregationLevelDate) {
                         case MONTH:
-                            sfc = aggregateUitgifteByMonthAndArea(sfc, type, "oppervlakte",
+                            sfc = aggregateUitgifteByMonthAndArea(items, type, "oppervlakte",
                                     terreinNames, TERREIN_RELATED_FIELDNAME);
                             break;
                         case NONE:
-                            sfc = aggregateUitgifteByArea(sfc, type, "oppervlakte",
+                            sfc = aggregateUitgifteByArea(items, type, "oppervlakte",
                                     terreinNames, TERREIN_RELATED_FIELDNAME);
                             break;
                     }
@@ -481,10 +744,10 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
                 case NONE:
                     propnames = Arrays.asList("oppervlakte", GEBIED_FIELDNAME);
             }
-            featuresToJson(sfc, json, relFeatureTypeAttributes, propnames);
+            writeFeatures(sfc.features(), json, out, relFeatureTypeAttributes, propnames);
         } finally {
-            foreignFs.getDataStore().dispose();
-            fs.getDataStore().dispose();
+            foreignLease.close();
+            lease.close();
         }
     }
 
@@ -492,14 +755,14 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
      * aggregate features by date and area into new collection with named
      * features.
      *
-     * @param sfc source of simple features to aggregate
+     * @param items simple features to aggregate, closed when done
      * @param type aggregate feature type
      * @param featNames names of the new features
      * @param gebiedFieldName field name of the aggregation bucket (eg. gemeente
      * or regio)
      * @return aggregated features
      */
-    private SimpleFeatureCollection aggregateUitgifteByMonthAndArea(SimpleFeatureCollection sfc,
+    private SimpleFeatureCollection aggregateUitgifteByMonthAndArea(SimpleFeatureIterator items,
             org.opengis.feature.simple.SimpleFeatureType type, final String sfTypeAreaName,
             Set<String> featNames, final String gebiedFieldName) {
 
@@ -520,17 +783,18 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
         }
 
         // for each month add up opp_geometrie
-        SimpleFeatureIterator items = sfc.features();
-        while (items.hasNext()) {
-            SimpleFeature f = items.next();
-            Date d = (Date) f.getAttribute(UITGIFTEDATUM_RELATED_FIELDNAME);
-            SimpleFeature newFeat = newfeats.get(f.getAttribute(gebiedFieldName) + YYYYMM.format(d));
-            newFeat.setAttribute(sfTypeAreaName,
-                    ((Double) newFeat.getAttribute(sfTypeAreaName))
-                    + ((BigDecimal) f.getAttribute(OPPERVLAKTE_GEOM_RELATED_FIELDNAME)).doubleValue());
-
+        try {
+            while (items.hasNext()) {
+                SimpleFeature f = items.next();
+                Date d = (Date) f.getAttribute(UITGIFTEDATUM_RELATED_FIELDNAME);
+                SimpleFeature newFeat = newfeats.get(f.getAttribute(gebiedFieldName) + YYYYMM.format(d));
+                newFeat.setAttribute(sfTypeAreaName,
+                        ((Double) newFeat.getAttribute(sfTypeAreaName))
+                        + ((BigDecimal) f.getAttribute(OPPERVLAKTE_GEOM_RELATED_FIELDNAME)).doubleValue());
+            }
+        } finally {
+            items.close();
         }
-        items.close();
 
         ArrayList<SimpleFeature> feats = new ArrayList<>(newfeats.values());
         return DataUtilities.collection(feats);
@@ -539,14 +803,14 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
     /**
      * aggregate features area into new collection with named features.
      *
-     * @param sfc source of simple features to aggregate
+     * @param items simple features to aggregate, closed when done
      * @param type aggregate featuretype
      * @param featNames names of the new features
      * @param gebiedFieldName field name of the aggregation bucket (eg. gemeente
      * or regio)
      * @return aggregated features
      */
-    private SimpleFeatureCollection aggregateUitgifteByArea(SimpleFeatureCollection sfc,
+    private SimpleFeatureCollection aggregateUitgifteByArea(SimpleFeatureIterator items,
             org.opengis.feature.simple.SimpleFeatureType type, String sfTypeAreaName,
             Set<String> featNames, final String gebiedFieldName) {
 
@@ -559,73 +823,68 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
         }
 
         // for each regio add up opp_geometrie
-        SimpleFeatureIterator items = sfc.features();
-        while (items.hasNext()) {
-            SimpleFeature f = items.next();
-            SimpleFeature newFeat = newfeats.get((String) f.getAttribute(gebiedFieldName));
-            newFeat.setAttribute(sfTypeAreaName,
-                    ((Double) newFeat.getAttribute(sfTypeAreaName))
-                    + ((BigDecimal) f.getAttribute(OPPERVLAKTE_GEOM_RELATED_FIELDNAME)).doubleValue());
-
+        try {
+            while (items.hasNext()) {
+                SimpleFeature f = items.next();
+                SimpleFeature newFeat = newfeats.get((String) f.getAttribute(gebiedFieldName));
+                newFeat.setAttribute(sfTypeAreaName,
+                        ((Double) newFeat.getAttribute(sfTypeAreaName))
+                        + ((BigDecimal) f.getAttribute(OPPERVLAKTE_GEOM_RELATED_FIELDNAME)).doubleValue());
+            }
+        } finally {
+            items.close();
         }
-        items.close();
         ArrayList<SimpleFeature> feats = new ArrayList<SimpleFeature>(newfeats.values());
         Collections.reverse(feats);
         return DataUtilities.collection(feats);
     }
 
     /**
-     * Convert a SimpleFeatureCollection to JSON with metadata.
+     * Write features as rows and add the metadata.
      *
-     * @param sfc collections of features
-     * @param json output/appendend to json structure
+     * @param sfIter features, closed when done
+     * @param json appendend with the metadata
+     * @param out writer for the rows
      * @param featureTypeAttributes flamingo attribute descriptors for the
      * features
      * @param outputPropNames fieldnames to put in output
      * @throws JSONException is any
+     * @throws IOException if writing fails
      */
-    private void featuresToJson(SimpleFeatureCollection sfc, JSONObject json,
-            List<AttributeDescriptor> featureTypeAttributes, List<String> outputPropNames) throws JSONException {
+    private void writeFeatures(SimpleFeatureIterator sfIter, JSONObject json, ReportWriter out,
+            List<AttributeDescriptor> featureTypeAttributes, List<String> outputPropNames) throws JSONException, IOException {
 
         // metadata for fData fields
         JSONArray fields = new JSONArray();
         // columns for grid
         JSONArray columns = new JSONArray();
-        // fData payload
-        JSONArray datas = new JSONArray();
-
-        SimpleFeatureIterator sfIter = sfc.features();
-
-        boolean getMetadataFromFirstFeature = true;
-        while (sfIter.hasNext()) {
-            SimpleFeature feature = sfIter.next();
-            JSONObject fData = new JSONObject();
-
-            for (AttributeDescriptor attr : featureTypeAttributes) {
-                String name = attr.getName();
-                if (getMetadataFromFirstFeature) {
-                    if (outputPropNames.contains(name)) {
-                        // only load metadata into json this for first feature
-                        JSONObject field = new JSONObject().put("name", name).put("type", attr.getExtJSType());
-                        if (reportType == ReportType.ISSUE && attr.getType().equals(AttributeDescriptor.TYPE_DATE)) {
-                            field.put("dateFormat", "Y-m");
-                        }
-                        fields.put(field);
-                        columns.put(new JSONObject().put("text", (attr.getAlias() != null ? attr.getAlias() : name)).put("dataIndex", name));
-                    }
+        for (AttributeDescriptor attr : featureTypeAttributes) {
+            String name = attr.getName();
+            if (outputPropNames.contains(name)) {
+                JSONObject field = new JSONObject().put("name", name).put("type", attr.getExtJSType());
+                if (reportType == ReportType.ISSUE && attr.getType().equals(AttributeDescriptor.TYPE_DATE)) {
+                    field.put("dateFormat", "Y-m");
                 }
-                fData.put(attr.getName(), feature.getAttribute(attr.getName()));
+                fields.put(field);
+                columns.put(new JSONObject().put("text", (attr.getAlias() != null ? attr.getAlias() : name)).put("dataIndex", name));
             }
-            datas.put(fData);
-            getMetadataFromFirstFeature = false;
         }
-
         json.getJSONObject(JSON_METADATA).put("fields", fields);
         json.getJSONObject(JSON_METADATA).put("columns", columns);
-        json.put("data", datas);
-        json.put("total", datas.length());
 
-        sfIter.close();
+        try {
+            out.writeColumns(columns);
+            while (sfIter.hasNext()) {
+                SimpleFeature feature = sfIter.next();
+                JSONObject fData = new JSONObject();
+                for (AttributeDescriptor attr : featureTypeAttributes) {
+                    fData.put(attr.getName(), feature.getAttribute(attr.getName()));
+                }
+                out.writeRow(fData);
+            }
+        } finally {
+            sfIter.close();
+        }
     }
 
     /**
@@ -652,12 +911,13 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
         return relFt;
     }
 
-    private void reportIndividualData(JSONObject json) throws Exception {
+    private void reportIndividualData(JSONObject json, ReportWriter out) throws Exception {
         List<String> tPropnames = new ArrayList(attrNames);
 
         SimpleFeatureType ft = layer.getFeatureType();
         List<AttributeDescriptor> featureTypeAttributes = ft.getAttributes();
-        SimpleFeatureSource fs = (SimpleFeatureSource) ft.openGeoToolsFeatureSource();
+        DataStoreRegistry.Lease lease = DataStoreRegistry.lease(ft);
+        SimpleFeatureSource fs = lease.getFeatureSource(ft);
 
         List<String> foreignAttrNames = new ArrayList<String>();
         // find out which attribute names -if any- are from related features
@@ -675,38 +935,23 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
         q.setPropertyNames(tPropnames);
         q.setFilter(filter);
         q.setHandle("individueel-rapport");
-        q.setMaxFeatures(FeatureToJson.MAX_FEATURES);
 
-        SimpleFeatureCollection mainFSinMem;
         try {
-            mainFSinMem = DataUtilities.collection(fs.getFeatures(q).features());
-        } finally {
-            fs.getDataStore().dispose();
-        }
-        if (!foreignAttrNames.isEmpty()) {
-            SimpleFeatureType relFt = this.getRelatedSFT(ft, RELATED_FT_NAME);
-            SimpleFeatureSource foreignFs = (SimpleFeatureSource) relFt.openGeoToolsFeatureSource();
-            // compose IN query criteria and store parent features in a map so we can easily get them later
-            StringBuilder in = new StringBuilder();
-            HashMap<Integer, SimpleFeature> parentFeatures = new HashMap<>();
-            SimpleFeatureIterator inMemFeats = mainFSinMem.features();
-            while (inMemFeats.hasNext()) {
-                SimpleFeature f = inMemFeats.next();
-                in.append(f.getAttribute(TERREINID_FIELDNAME)).append(",");
-                parentFeatures.put((Integer) f.getAttribute(TERREINID_FIELDNAME), f);
+            if (foreignAttrNames.isEmpty()) {
+                writeFeatures(fs.getFeatures(q).features(), json, out, featureTypeAttributes, attrNames);
+                return;
             }
-            inMemFeats.close();
+            // store parent features in a map so we can easily get them later
+            Map<Object, SimpleFeature> parentFeatures = JoinedFeatureIterator.readParents(fs, q, TERREINID_FIELDNAME);
 
+            SimpleFeatureType relFt = this.getRelatedSFT(ft, RELATED_FT_NAME);
+            DataStoreRegistry.Lease foreignLease = DataStoreRegistry.lease(relFt);
+            SimpleFeatureSource foreignFs = foreignLease.getFeatureSource(relFt);
             // get related features (children)
             Query foreignQ = new Query(foreignFs.getName().toString());
             foreignQ.setHandle("individueel-rapport-related");
             foreignQ.setPropertyNames(foreignAttrNames);
-            String query = TERREINID_RELATED_FIELDNAME + " IN (" + in.substring(0, in.length() - 1) + ")";
-            log.debug("individueel-rapport-related: " + query);
-            foreignQ.setFilter(ECQL.toFilter(query));
             try {
-                // kavels/children for selected terrein id's
-                SimpleFeatureCollection relatedFC = foreignFs.getFeatures(foreignQ);
                 // create a new aggregate feature type 'COMPOSITE' that has attributes of both parent and child types
                 SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
                 tb.setName("COMPOSITE");
@@ -723,35 +968,25 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
                 //  merge main & related child flamingo attribute descriptors for COMPOSITE,
                 featureTypeAttributes.addAll(relFt.getAttributes());
 
-                SimpleFeatureBuilder sfBuilder = new SimpleFeatureBuilder(type);
-                SimpleFeatureIterator sfcIter = relatedFC.features();
-                ArrayList<SimpleFeature> newfeats = new ArrayList<>();
-                while (sfcIter.hasNext()) {
-                    // create as many new features as children
-                    SimpleFeature f = sfcIter.next();
-                    SimpleFeature n = SimpleFeatureBuilder.retype(f, sfBuilder);
-                    // copy main data to related children(n)
-                    SimpleFeature p = parentFeatures.get((Integer) f.getAttribute(TERREINID_RELATED_FIELDNAME));
-                    for (Property a : p.getProperties()) {
-                        if (attrNames.contains(a.getName().toString())) {
-                            n.setAttribute(a.getName(), a.getValue());
-                        }
-                    }
-                    newfeats.add(n);
-                }
-                sfcIter.close();
-                mainFSinMem = DataUtilities.collection(newfeats);
+                // create as many new features as children (kavels) of the selected terrein id's,
+                //  with the main data copied to them
+                SimpleFeatureIterator rows = new JoinedFeatureIterator(
+                        new ChunkedFeatureIterator(foreignFs, foreignQ, TERREINID_RELATED_FIELDNAME, parentFeatures.keySet()),
+                        type, parentFeatures, TERREINID_RELATED_FIELDNAME, attrNames, false);
+                writeFeatures(rows, json, out, featureTypeAttributes, attrNames);
             } finally {
-                foreignFs.getDataStore().dispose();
+                foreignLease.close();
             }
+        } finally {
+            lease.close();
         }
-        featuresToJson(mainFSinMem, json, featureTypeAttributes, attrNames);
     }
 
-    private void reportAggregateData(JSONObject json) throws Exception {
+    private void reportAggregateData(JSONObject json, ReportWriter out) throws Exception {
         SimpleFeatureType ft = layer.getFeatureType();
         List<AttributeDescriptor> featureTypeAttributes = ft.getAttributes();
-        SimpleFeatureSource fs = (SimpleFeatureSource) ft.openGeoToolsFeatureSource();
+        DataStoreRegistry.Lease lease = DataStoreRegistry.lease(ft);
+        SimpleFeatureSource fs = lease.getFeatureSource(ft);
 
         List<String> tPropnames = new ArrayList(attrNames);
         List<String> foreignAttrNames = new ArrayList<>();
@@ -774,7 +1009,6 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
         q.setPropertyNames(tPropnames);
         q.setFilter(filter);
         q.setHandle("aggregatie-rapport");
-        q.setMaxFeatures(FeatureToJson.MAX_FEATURES);
         log.debug("aggregatie query:" + q);
 
         try {
@@ -795,12 +1029,21 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
             g.setAlias("gebiedsnaam");
             g.setType(AttributeDescriptor.TYPE_STRING);
             featureTypeAttributes.add(0, g);
-            // get parent features
-            SimpleFeatureCollection sfc = DataUtilities.collection(fs.getFeatures(q).features());
 
-            if (!foreignAttrNames.isEmpty()) {
-                SimpleFeatureType relFt = this.getRelatedSFT(ft, RELATED_FT_NAME);
-                SimpleFeatureSource foreignFs = (SimpleFeatureSource) relFt.openGeoToolsFeatureSource();
+            if (foreignAttrNames.isEmpty()) {
+                type = tb.buildFeatureType();
+                // aggregate the parent features
+                reportTerreinIDs = readTerreinIDs(fs, q);
+                SimpleFeatureCollection sfc = aggregate(fs.getFeatures(q).features(), type);
+                attrNames.add(GEBIED_FIELDNAME);
+                writeFeatures(sfc.features(), json, out, featureTypeAttributes, attrNames);
+                return;
+            }
+
+            SimpleFeatureType relFt = this.getRelatedSFT(ft, RELATED_FT_NAME);
+            DataStoreRegistry.Lease foreignLease = DataStoreRegistry.lease(relFt);
+            try {
+                SimpleFeatureSource foreignFs = foreignLease.getFeatureSource(relFt);
 
                 // add related attributes to type
                 for (String prop : foreignAttrNames) {
@@ -815,133 +1058,199 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
                 //  merge main & related child flamingo attribute descriptors for AGGREGATE,
                 featureTypeAttributes.addAll(relFt.getAttributes());
 
-                // compose IN query criteria and store parent features in a map so we can easily get them later
-                StringBuilder in = new StringBuilder();
-                HashMap<Integer, SimpleFeature> parentFeatures = new HashMap<>();
-                SimpleFeatureIterator inMemFeats = sfc.features();
-                while (inMemFeats.hasNext()) {
-                    SimpleFeature f = inMemFeats.next();
-                    in.append(f.getAttribute(TERREINID_FIELDNAME)).append(",");
-                    parentFeatures.put((Integer) f.getAttribute(TERREINID_FIELDNAME), f);
+                SimpleFeatureCollection sfc = null;
+                try {
+                    sfc = aggregateInDatabase(ft, fs, relFt, foreignFs, type);
+                    if (sfc != null) {
+                        reportTerreinIDs = readTerreinIDs(fs, q);
+                    }
+                } catch (IOException e) {
+                    log.warn("Aggregatie in de database is mislukt, aggregatie in het geheugen wordt gebruikt: " + e.getLocalizedMessage());
+                    log.debug(e);
                 }
-                inMemFeats.close();
 
-                // get related features (children)
-                Query foreignQ = new Query(foreignFs.getName().toString());
-                foreignQ.setHandle("aggregatie-rapport-related");
-                foreignQ.setPropertyNames(foreignAttrNames);
-                String query = TERREINID_RELATED_FIELDNAME + " IN (" + in.substring(0, in.length() - 1) + ")";
-                log.debug("aggregatie-rapport-related: " + query);
-                foreignQ.setFilter(ECQL.toFilter(query));
+                if (sfc == null) {
+                    // store parent features in a map so we can easily get them later
+                    Map<Object, SimpleFeature> parentFeatures = JoinedFeatureIterator.readParents(fs, q, TERREINID_FIELDNAME);
+                    reportTerreinIDs = parentFeatures.keySet();
+
+                    // get related features (children)
+                    Query foreignQ = new Query(foreignFs.getName().toString());
+                    foreignQ.setHandle("aggregatie-rapport-related");
+                    foreignQ.setPropertyNames(foreignAttrNames);
+
+                    // create as many new features as related/children, with the main data copied
+                    //   but payload field only once to prevent aggregating those values later
+                    SimpleFeatureIterator items = new JoinedFeatureIterator(
+                            new ChunkedFeatureIterator(foreignFs, foreignQ, TERREINID_RELATED_FIELDNAME, parentFeatures.keySet()),
+                            type, parentFeatures, TERREINID_RELATED_FIELDNAME, attrNames, true);
+                    sfc = aggregate(items, type);
+                }
+                attrNames.add(GEBIED_FIELDNAME);
+                writeFeatures(sfc.features(), json, out, featureTypeAttributes, attrNames);
+            } finally {
+                foreignLease.close();
+            }
+        } finally {
+            lease.close();
+        }
+    }
 
-                try {
-                    // kavels/children for selected terrein id's
-                    SimpleFeatureCollection relatedFC = foreignFs.getFeatures(foreignQ);
-                    SimpleFeatureBuilder sfBuilder = new SimpleFeatureBuilder(type);
-                    SimpleFeatureIterator sfcIter = relatedFC.features();
-                    ArrayList<SimpleFeature> newfeats = new ArrayList<>();
-
-                    boolean firsttimeForP = true;
-                    Set<SimpleFeature> firsttimeForPSet = new HashSet<>();
-                    while (sfcIter.hasNext()) {
-                        // create as many new features as related/children
-                        SimpleFeature f = sfcIter.next();
-                        SimpleFeature n = SimpleFeatureBuilder.retype(f, sfBuilder);
-
-                        // copy main data to related children
-                        //   but payload field only once to prevent aggregating those values later
-                        SimpleFeature p = parentFeatures.get((Integer) f.getAttribute(TERREINID_RELATED_FIELDNAME));
-                        for (Property a : p.getProperties()) {
-                            if (firsttimeForPSet.contains(p)) {
-                                if (!attrNames.contains(a.getName().toString())) {
-                                    n.setAttribute(a.getName(), a.getValue());
-                                }
-                            } else {
-                                if (tPropnames.contains(a.getName().toString())) {
-                                    n.setAttribute(a.getName(), a.getValue());
-                                }
-                            }
-                        }
-                        newfeats.add(n);
-                        firsttimeForPSet.add(p);
-                    }
-                    sfcIter.close();
-                    sfc = DataUtilities.collection(newfeats);
-                } finally {
-                    foreignFs.getDataStore().dispose();
+    /**
+     * read the ids of the terreinen of the report.
+     *
+     * @param fs parent feature source
+     * @param q parent query
+     * @return terrein ids
+     * @throws IOException if reading fails
+     */
+    private Collection<Object> readTerreinIDs(SimpleFeatureSource fs, Query q) throws IOException {
+        Query idQuery = new Query(q);
+        idQuery.setPropertyNames(Collections.singletonList(TERREINID_FIELDNAME));
+        idQuery.setHandle(q.getHandle() + "-ids");
+        List<Object> ids = new ArrayList<>();
+        try (SimpleFeatureIterator it = fs.getFeatures(idQuery).features()) {
+            while (it.hasNext()) {
+                ids.add(it.next().getAttribute(TERREINID_FIELDNAME));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Aggregate the rows of the report at the aggregation level.
+     *
+     * @param items rows to aggregate, closed when done
+     * @param type aggregate feature type
+     * @return aggregated features
+     */
+    private SimpleFeatureCollection aggregate(SimpleFeatureIterator items, org.opengis.feature.simple.SimpleFeatureType type) {
+        // the requested gebied is always reported, other gebieden only if found
+        Set<String> regions = new HashSet<>();
+        switch (aggregationLevel) {
+            case REGIO:
+                // max number for regio is 1
+                regions.add(regio);
+                return aggregateFields(items, type, regions, attrNames, REGIO_FIELDNAME);
+            case GEMEENTE:
+                if (this.areaType == QueryArea.TERREIN) {
+                    regions.add(gemeente);
                 }
-            } else {
-                type = tb.buildFeatureType();
+                return aggregateFields(items, type, regions, attrNames, GEMEENTE_FIELDNAME);
+            case TERREIN:
+            default:
+                if (this.areaType == QueryArea.TERREIN) {
+                    regions.add(terrein);
+                }
+                return aggregateFields(items, type, regions, attrNames, TERREIN_FIELDNAME);
+        }
+    }
+
+    /**
+     * Aggregate the parent and related (child) values per gebied in the
+     * database using a single group by query.
+     *
+     * @param ft parent feature type
+     * @param fs parent feature source
+     * @param relFt related feature type
+     * @param foreignFs related feature source
+     * @param type aggregate feature type
+     * @return aggregated features or {@code null} if the aggregation cannot be
+     * done in the database (eg. not a JDBC datastore or parent and related
+     * features in a different feature source)
+     * @throws IOException if the query fails
+     */
+    private SimpleFeatureCollection aggregateInDatabase(SimpleFeatureType ft, SimpleFeatureSource fs,
+            SimpleFeatureType relFt, SimpleFeatureSource foreignFs,
+            org.opengis.feature.simple.SimpleFeatureType type) throws IOException {
+        if (!(fs.getDataStore() instanceof JDBCDataStore)
+                || !ft.getFeatureSource().getId().equals(relFt.getFeatureSource().getId())) {
+            return null;
+        }
+        JDBCDataStore jdbc = (JDBCDataStore) fs.getDataStore();
+        AggregateQuery query = new AggregateQuery(jdbc.getDatabaseSchema(),
+                fs.getSchema().getTypeName(), TERREINID_FIELDNAME,
+                foreignFs.getSchema().getTypeName(), TERREINID_RELATED_FIELDNAME);
+        List<String> sumNames = new ArrayList<>();
+        for (String a : attrNames) {
+            if (fs.getSchema().getDescriptor(a) != null) {
+                query.sumParent(a);
+                sumNames.add(a);
+            } else if (foreignFs.getSchema().getDescriptor(a) != null) {
+                query.sumChild(a);
+                sumNames.add(a);
             }
+        }
+        query.groupBy(fieldName(aggregationLevel)).where(fieldName(areaType), areaName(areaType));
+
+        // same buckets as the in-memory aggregation: the requested gebied is
+        //  reported even if there is nothing to aggregate
+        Set<String> regions = new HashSet<>();
+        if (aggregationLevel == QueryArea.REGIO || aggregationLevel == areaType) {
+            regions.add(areaName(aggregationLevel));
+        } else if (aggregationLevel == QueryArea.GEMEENTE && areaType == QueryArea.TERREIN) {
+            regions.add(gemeente);
+        }
+        regions.remove(null);
 
-            // aggregation
-            Set<String> regions = new HashSet<>();
-            switch (aggregationLevel) {
-                case REGIO:
-                    // max number for regio is 1
-                    regions.add(regio);
-                    sfc = aggregateFields(sfc, type, regions, attrNames, REGIO_FIELDNAME);
-                    break;
-                case GEMEENTE:
-                    if (this.areaType == QueryArea.TERREIN) {
-                        regions.add(gemeente);
-                    } else {
-                        // create set of all gemeente from query result
-                        SimpleFeatureIterator iter = sfc.features();
-                        try {
-                            while (iter.hasNext()) {
-                                SimpleFeature f = iter.next();
-                                regions.add((String) f.getAttribute(GEMEENTE_FIELDNAME));
-                            }
-                        } finally {
-                            iter.close();
-                        }
-                    }
-                    sfc = aggregateFields(sfc, type, regions, attrNames, GEMEENTE_FIELDNAME);
-                    break;
-                case TERREIN:
-                    if (this.areaType == QueryArea.TERREIN) {
-                        regions.add(terrein);
-                    } else {
-                        // create set of all terrein from query result
-                        SimpleFeatureIterator iter = sfc.features();
-                        try {
-                            while (iter.hasNext()) {
-                                SimpleFeature f = iter.next();
-                                regions.add((String) f.getAttribute(TERREIN_FIELDNAME));
-                            }
-                        } finally {
-                            iter.close();
-                        }
-                    }
-                    sfc = aggregateFields(sfc, type, regions, attrNames, TERREIN_FIELDNAME);
-                    break;
+        Map<String, Map<String, Number>> sums = new TreeMap<>(query.execute(jdbc));
+        for (String region : regions) {
+            if (!sums.containsKey(region)) {
+                sums.put(region, Collections.<String, Number>emptyMap());
             }
+        }
+        List<SimpleFeature> feats = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Number>> e : sums.entrySet()) {
+            SimpleFeature newfeat = DataUtilities.template(type);
+            for (String aggrName : sumNames) {
+                Number sum = e.getValue().get(aggrName);
+                newfeat.setAttribute(aggrName, sum == null ? 0 : sum.doubleValue());
+            }
+            newfeat.setAttribute(GEBIED_FIELDNAME, e.getKey());
+            feats.add(newfeat);
+        }
+        log.debug(String.format("aggregatie in de database: %d gebieden", feats.size()));
+        return DataUtilities.collection(feats);
+    }
 
-            attrNames.add(GEBIED_FIELDNAME);
-            featuresToJson(sfc, json, featureTypeAttributes, attrNames);
-        } finally {
-            fs.getDataStore().dispose();
+    private static String fieldName(QueryArea area) {
+        switch (area) {
+            case REGIO:
+                return REGIO_FIELDNAME;
+            case GEMEENTE:
+                return GEMEENTE_FIELDNAME;
+            default:
+                return TERREIN_FIELDNAME;
         }
+    }
 
+    private String areaName(QueryArea area) {
+        switch (area) {
+            case REGIO:
+                return regio;
+            case GEMEENTE:
+                return gemeente;
+            default:
+                return terrein;
+        }
     }
 
     /**
-     * Aggregate the values of the given feature collection into new features of
+     * Aggregate the values of the given features into new features of
      * {@code type} that are named.
      *
-     * @param sfc source of simple features to aggregate
+     * @param items simple features to aggregate, closed when done
      * @param type aggregate feature type
-     * @param featNames names of the new features
+     * @param featNames names of the new features that are always created,
+     * features for other names are created when found in {@code items}
+     * @param aggregateFieldNames fields to add up
      * @param gebiedFieldName field name of the aggregation bucket (eg. gemeente
      * or regio)
-     * @param aggregateFieldNames
-     * @param gebiedFieldName
      * @return aggregated features
      *
      */
-    private SimpleFeatureCollection aggregateFields(
-            SimpleFeatureCollection sfc,
+    static SimpleFeatureCollection aggregateFields(
+            SimpleFeatureIterator items,
             org.opengis.feature.simple.SimpleFeatureType type,
             Set<String> featNames,
             List<String> aggregateFieldNames,
@@ -950,36 +1259,48 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
         // create a feature for each (regio|gemeente|terrein) name with 0 value
         Map<String, SimpleFeature> newfeats = new TreeMap<>();
         for (String fName : featNames) {
-            SimpleFeature newfeat = DataUtilities.template(type);
-            for (String aggrName : aggregateFieldNames) {
-                newfeat.setAttribute(aggrName, 0);
-            }
-            newfeat.setAttribute(GEBIED_FIELDNAME, fName);
-            newfeats.put(fName, newfeat);
+            newfeats.put(fName, newAggregateFeature(type, aggregateFieldNames, fName));
         }
 
         // for each (regio|gemeente|terrein) name in relatedFC get the attribute to aggregate
         //  and add up in new named feature
-        SimpleFeatureIterator items = sfc.features();
-        while (items.hasNext()) {
-            SimpleFeature f = items.next();
-            SimpleFeature newFeat = newfeats.get((String) f.getAttribute(gebiedFieldName));
-
-            for (String aggrFieldName : aggregateFieldNames) {
-                if (f.getAttribute(aggrFieldName) != null) {
-                    // add up if not null
-                    newFeat.setAttribute(aggrFieldName,
-                            ((Number) newFeat.getAttribute(aggrFieldName)).doubleValue()
-                            + ((Number) f.getAttribute(aggrFieldName)).doubleValue()
-                    );
+        try {
+            while (items.hasNext()) {
+                SimpleFeature f = items.next();
+                String fName = (String) f.getAttribute(gebiedFieldName);
+                SimpleFeature newFeat = newfeats.get(fName);
+                if (newFeat == null) {
+                    newFeat = newAggregateFeature(type, aggregateFieldNames, fName);
+                    newfeats.put(fName, newFeat);
+                }
+
+                for (String aggrFieldName : aggregateFieldNames) {
+                    if (f.getAttribute(aggrFieldName) != null) {
+                        // add up if not null
+                        newFeat.setAttribute(aggrFieldName,
+                                ((Number) newFeat.getAttribute(aggrFieldName)).doubleValue()
+                                + ((Number) f.getAttribute(aggrFieldName)).doubleValue()
+                        );
+                    }
                 }
             }
+        } finally {
+            items.close();
         }
-        items.close();
         ArrayList<SimpleFeature> feats = new ArrayList<>(newfeats.values());
         return DataUtilities.collection(feats);
     }
 
+    private static SimpleFeature newAggregateFeature(org.opengis.feature.simple.SimpleFeatureType type,
+            List<String> aggregateFieldNames, String fName) {
+        SimpleFeature newfeat = DataUtilities.template(type);
+        for (String aggrName : aggregateFieldNames) {
+            newfeat.setAttribute(aggrName, 0);
+        }
+        newfeat.setAttribute(GEBIED_FIELDNAME, fName);
+        return newfeat;
+    }
+
     //<editor-fold defaultstate="collapsed" desc="getters en setters">
     public String getData() {
         return data;
@@ -1005,6 +1326,22 @@ public class IbisAttributeListActionBean implements ActionBean, IbisConstants {
         this.mimetype = mimetype;
     }
 
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
     @Override
     public void setContext(ActionBeanContext context) {
         this.context = context;
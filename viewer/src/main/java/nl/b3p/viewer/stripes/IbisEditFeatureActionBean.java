@@ -17,33 +17,56 @@
 package nl.b3p.viewer.stripes;
 
 import nl.b3p.viewer.ibis.util.IbisConstants;
+import nl.b3p.viewer.ibis.util.IdAllocator;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import javax.persistence.EntityManager;
+import net.sourceforge.stripes.action.Resolution;
+import net.sourceforge.stripes.action.StreamingResolution;
 import net.sourceforge.stripes.action.StrictBinding;
 import net.sourceforge.stripes.action.UrlBinding;
+import net.sourceforge.stripes.validation.Validate;
 import nl.b3p.viewer.config.app.ApplicationLayer;
+import nl.b3p.viewer.config.app.ConfiguredAttribute;
+import nl.b3p.viewer.config.security.Authorizations;
 import nl.b3p.viewer.config.services.Layer;
+import nl.b3p.viewer.ibis.report.ReportCache;
+import nl.b3p.viewer.ibis.util.WorkflowBatch;
 import nl.b3p.viewer.ibis.util.WorkflowStatus;
+import nl.b3p.viewer.ibis.util.WorkflowTransitions;
 import nl.b3p.viewer.ibis.util.WorkflowUtil;
+import nl.b3p.viewer.ibis.util.WorkflowVersions;
+import nl.b3p.viewer.util.DataStoreRegistry;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.geotools.data.DataUtilities;
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.Transaction;
 import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.filter.identity.FeatureIdImpl;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.GeometryType;
 import org.opengis.filter.Filter;
@@ -61,18 +84,57 @@ public class IbisEditFeatureActionBean extends EditFeatureActionBean implements
 
     private static final Log log = LogFactory.getLog(IbisEditFeatureActionBean.class);
 
+    /**
+     * json array of features for {@link #editBatch()}.
+     */
+    @Validate
+    private String features;
+
+    /**
+     * json array of terrein ids for {@link #afvoerenTerreinen()}.
+     */
+    @Validate
+    private String terreinen;
+
     @Override
     protected String addNewFeature() throws Exception {
+        if (StringUtils.isBlank(this.getJsonFeature().optString(ID_FIELDNAME, null))) {
+            // new kavel or terrein, get a new id
+            long id = IdAllocator.forStore(this.getStore()).next(this.getStore());
+            log.debug("New feature gets " + ID_FIELDNAME + "=" + id);
+            this.getJsonFeature().put(ID_FIELDNAME, id);
+        }
         String kavelID = super.addNewFeature();
         //update  terrein
         Object terreinID = this.getJsonFeature().optString(KAVEL_TERREIN_ID_FIELDNAME, null);
+        ReportCache.invalidate(terreinID);
         WorkflowStatus status = WorkflowStatus.valueOf(this.getJsonFeature().optString(WORKFLOW_FIELDNAME, WorkflowStatus.bewerkt.name()));
         if (terreinID != null) {
-            WorkflowUtil.updateTerreinGeometry(Integer.parseInt(terreinID.toString()), this.getLayer(), status, this.getApplication(), Stripersist.getEntityManager());
+            WorkflowUtil.queueTerreinGeometryUpdate(Integer.parseInt(terreinID.toString()), this.getLayer(), status, this.getApplication(),
+                    Stripersist.getEntityManager(), Collections.singletonList(this.getJsonGeometry()));
         }
         return kavelID;
     }
 
+    /**
+     * Get the geometry of the posted feature.
+     *
+     * @return the geometry or {@code null} if the feature has no (valid) wkt
+     */
+    private Geometry getJsonGeometry() {
+        String geomAttrName = this.getStore().getSchema().getGeometryDescriptor().getLocalName();
+        String wkt = this.getJsonFeature().optString(geomAttrName, null);
+        if (wkt == null) {
+            return null;
+        }
+        try {
+            return new WKTReader().read(wkt);
+        } catch (ParseException e) {
+            log.debug("Geometrie van nieuw kavel is ongeldig: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
     /**
      * Override to not delete a feature but set workflow status to
      * {@code WorkflowStatus.archief}
@@ -93,12 +155,20 @@ public class IbisEditFeatureActionBean extends EditFeatureActionBean implements
         Filter filter = ff.id(new FeatureIdImpl(fid));
 
         try {
-            this.getStore().modifyFeatures(WORKFLOW_FIELDNAME, WorkflowStatus.afgevoerd, filter);
+            WorkflowBatch batch = new WorkflowBatch();
+            batch.modify(new FeatureIdImpl(fid), new String[]{WORKFLOW_FIELDNAME}, new Object[]{WorkflowStatus.afgevoerd});
+            batch.execute(this.getStore());
             SimpleFeature original = this.getStore().getFeatures(filter).features().next();
-            transaction.commit();
             Object terreinID = original.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
-            if (terreinID != null) {
-                WorkflowUtil.updateTerreinGeometry(Integer.parseInt(terreinID.toString()), this.getLayer(), WorkflowStatus.afgevoerd, this.getApplication(), Stripersist.getEntityManager());
+            List<Geometry> changed = Collections.singletonList((Geometry) original.getDefaultGeometry());
+            boolean terreinUpdated = terreinID != null && WorkflowUtil.updateTerreinGeometryInTransaction(
+                    Integer.parseInt(terreinID.toString()), this.getLayer(), this.getStore(), WorkflowStatus.afgevoerd,
+                    this.getApplication(), Stripersist.getEntityManager(), changed);
+            transaction.commit();
+            ReportCache.invalidate(terreinID);
+            if (terreinID != null && !terreinUpdated) {
+                WorkflowUtil.queueTerreinGeometryUpdate(Integer.parseInt(terreinID.toString()), this.getLayer(), WorkflowStatus.afgevoerd, this.getApplication(),
+                        Stripersist.getEntityManager(), changed);
             }
         } catch (Exception e) {
             transaction.rollback();
@@ -117,29 +187,97 @@ public class IbisEditFeatureActionBean extends EditFeatureActionBean implements
     @Override
     protected void editFeature(String fid) throws Exception {
         log.debug("ibis editFeature:" + fid);
-        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
-        Filter fidFilter = ff.id(new FeatureIdImpl(fid));
 
         List<String> attributes = new ArrayList();
         List values = new ArrayList();
+        WorkflowStatus incomingWorkflowStatus = this.parseEdit(this.getJsonFeature(), this.getStore().getSchema(), null, attributes, values);
+        log.debug(String.format("Modifying feature source #%d fid=%s, attributes=%s, values=%s",
+                this.getLayer().getFeatureType().getId(), fid, attributes.toString(), values.toString()));
+
+        Transaction editTransaction = new DefaultTransaction("ibis_edit");
+        this.getStore().setTransaction(editTransaction);
+        try {
+            if (incomingWorkflowStatus == null) {
+                throw new IllegalArgumentException("Workflow status van edit feature is null, dit wordt niet ondersteund.");
+            }
+            // read the original and the live versions of its id in one go
+            String ibisId = this.getJsonFeature().optString(ID_FIELDNAME, null);
+            WorkflowVersions versions = WorkflowVersions.load(this.getStore(), fid,
+                    NumberUtils.isNumber(ibisId) ? ibisId : null);
+            SimpleFeature original = versions.getOriginal();
+            Object terreinID = original.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+
+            // make a copy of the original feature and set (new) attribute values on the copy
+            SimpleFeature editedNewFeature = createCopy(original);
+            for (int i = 0; i < attributes.size(); i++) {
+                editedNewFeature.setAttribute(attributes.get(i), values.get(i));
+            }
+
+            boolean afvoerenKavels = WorkflowTransitions.apply(this.getStore(), versions, incomingWorkflowStatus, editedNewFeature,
+                    attributes.toArray(new String[attributes.size()]), values.toArray());
+            if (afvoerenKavels) {
+                // find any kavels related to this terrein and also set them to "afgevoerd"
+                WorkflowUtil.afvoerenKavels(Collections.singletonList(original.getAttribute(ID_FIELDNAME)), this.getLayer(),
+                        this.getStore(), this.getApplication(), Stripersist.getEntityManager());
+            }
+
+            // update terrein geometry, only the area of the original and edited kavel geometry has changed
+            List<Geometry> changed = Arrays.asList((Geometry) original.getDefaultGeometry(), (Geometry) editedNewFeature.getDefaultGeometry());
+            boolean terreinUpdated = terreinID != null && WorkflowUtil.updateTerreinGeometryInTransaction(
+                    Integer.parseInt(terreinID.toString()), this.getLayer(), this.getStore(), incomingWorkflowStatus,
+                    this.getApplication(), Stripersist.getEntityManager(), changed);
+
+            editTransaction.commit();
+            editTransaction.close();
+            ReportCache.invalidate(terreinID);
+            Object editedTerreinID = editedNewFeature.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+            if (!WorkflowVersions.sameId(terreinID, editedTerreinID)) {
+                // the kavel was moved to another terrein
+                ReportCache.invalidate(editedTerreinID);
+            }
+            if (terreinID != null && !terreinUpdated) {
+                WorkflowUtil.queueTerreinGeometryUpdate(Integer.parseInt(terreinID.toString()), this.getLayer(), incomingWorkflowStatus, this.getApplication(),
+                        Stripersist.getEntityManager(), changed);
+            }
+        } catch (IllegalArgumentException | IOException | NoSuchElementException e) {
+            editTransaction.rollback();
+            log.error("Ibis editFeature error", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Parse the editable attributes of a posted feature.
+     *
+     * @param json posted feature
+     * @param schema feature type of the store
+     * @param disabled the attributes that are not user editable, {@code null}
+     * to use {@link #isAttributeUserEditingDisabled(java.lang.String)}
+     * @param attributes list to add the edited attribute names to
+     * @param values list to add the edited values to
+     * @return the incoming workflow status, or {@code null} if not posted
+     * @throws JSONException if the json is invalid
+     * @throws ParseException if a geometry is invalid
+     */
+    private WorkflowStatus parseEdit(JSONObject json, SimpleFeatureType schema, Set<String> disabled,
+            List<String> attributes, List values) throws JSONException, ParseException {
         WorkflowStatus incomingWorkflowStatus = null;
-        // parse json
-        for (Iterator<String> it = this.getJsonFeature().keys(); it.hasNext();) {
+        for (Iterator<String> it = json.keys(); it.hasNext();) {
             String attribute = it.next();
             if (!this.getFID().equals(attribute)) {
-                AttributeDescriptor ad = this.getStore().getSchema().getDescriptor(attribute);
+                AttributeDescriptor ad = schema.getDescriptor(attribute);
                 if (ad != null) {
-                    if (!isAttributeUserEditingDisabled(attribute)) {
+                    if (!(disabled == null ? isAttributeUserEditingDisabled(attribute) : disabled.contains(attribute))) {
                         attributes.add(attribute);
                         if (ad.getType() instanceof GeometryType) {
-                            String wkt = this.getJsonFeature().getString(ad.getLocalName());
+                            String wkt = json.getString(ad.getLocalName());
                             Geometry g = null;
                             if (wkt != null) {
                                 g = new WKTReader().read(wkt);
                             }
                             values.add(g);
                         } else {
-                            String v = this.getJsonFeature().getString(attribute);
+                            String v = json.getString(attribute);
                             values.add(StringUtils.defaultIfBlank(v, null));
                             // remember the incoming workflow status
                             if (attribute.equals(WORKFLOW_FIELDNAME)) {
@@ -154,118 +292,227 @@ public class IbisEditFeatureActionBean extends EditFeatureActionBean implements
                 }
             }
         }
-        log.debug(String.format("Modifying feature source #%d fid=%s, attributes=%s, values=%s",
-                this.getLayer().getFeatureType().getId(), fid, attributes.toString(), values.toString()));
+        return incomingWorkflowStatus;
+    }
 
-        Transaction editTransaction = new DefaultTransaction("ibis_edit");
-        this.getStore().setTransaction(editTransaction);
+    /**
+     * Edit a number of existing features in one transaction. The
+     * {@code features} parameter is a json array of features in the same
+     * format as the {@code feature} parameter of the default handler, each
+     * with a fid. The workflow is applied to every feature, the writes are
+     * grouped and each affected terrein is updated once. If any edit fails
+     * nothing is saved.
+     *
+     * @return json with the {@code fids} of the edited features
+     * @throws JSONException if any
+     */
+    public Resolution editBatch() throws JSONException {
+        JSONObject json = new JSONObject().put("success", Boolean.FALSE);
+        EntityManager em = Stripersist.getEntityManager();
+        ApplicationLayer al = this.getAppLayer();
+        DataStoreRegistry.Lease lease = null;
+        Transaction transaction = new DefaultTransaction("ibis_edit_batch");
         try {
-            if (incomingWorkflowStatus == null) {
-                throw new IllegalArgumentException("Workflow status van edit feature is null, dit wordt niet ondersteund.");
+            Layer layer = al == null ? null : al.getService().getLayer(al.getLayerName(), em);
+            if (layer == null || layer.getFeatureType() == null) {
+                json.put("error", "App layer or service not found");
+            } else if (!Authorizations.isAppLayerWriteAuthorized(this.getApplication(), al, this.getContext().getRequest(), em)) {
+                json.put("error", "U heeft geen rechten om deze kaartlaag te bewerken");
+            } else {
+                lease = DataStoreRegistry.lease(layer.getFeatureType());
+                SimpleFeatureStore store = (SimpleFeatureStore) lease.getFeatureSource(layer.getFeatureType());
+                store.setTransaction(transaction);
+                List<String> fids = this.applyBatch(store, layer, al, new JSONArray(this.features), transaction, em);
+                json.put("fids", new JSONArray(fids));
+                json.put("success", Boolean.TRUE);
             }
-            SimpleFeature original = this.getStore().getFeatures(fidFilter).features().next();
-            Object terreinID = original.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
-            WorkflowStatus originalWorkflowStatus = WorkflowStatus.valueOf(original.getAttribute(WORKFLOW_FIELDNAME).toString());
+        } catch (Exception e) {
+            log.error("Ibis editBatch error", e);
+            try {
+                transaction.rollback();
+            } catch (IOException io) {
+                log.error("Rollback van batch is mislukt", io);
+            }
+            json.put("error", e.getLocalizedMessage());
+        } finally {
+            try {
+                transaction.close();
+            } catch (IOException io) {
+                // closing transaction failed
+            }
+            if (lease != null) {
+                lease.close();
+            }
+        }
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
 
-            // make a copy of the original feature and set (new) attribute values on the copy
-            SimpleFeature editedNewFeature = createCopy(original);
-            for (int i = 0; i < attributes.size(); i++) {
-                editedNewFeature.setAttribute(attributes.get(i), values.get(i));
+    /**
+     * Set a number of terreinen and their kavels to "afgevoerd" in one
+     * transaction, see
+     * {@link WorkflowUtil#afvoerenTerreinen(java.util.Collection, nl.b3p.viewer.config.services.Layer, org.geotools.data.simple.SimpleFeatureStore, nl.b3p.viewer.config.app.Application, javax.persistence.EntityManager)}.
+     * The {@code terreinen} parameter is a json array of terrein ids, the
+     * {@code appLayer} must be the terreinen layer. If anything fails nothing
+     * is saved.
+     *
+     * @return json with the number of terreinen that were {@code afgevoerd}
+     * @throws JSONException if any
+     */
+    public Resolution afvoerenTerreinen() throws JSONException {
+        JSONObject json = new JSONObject().put("success", Boolean.FALSE);
+        EntityManager em = Stripersist.getEntityManager();
+        ApplicationLayer al = this.getAppLayer();
+        DataStoreRegistry.Lease lease = null;
+        Transaction transaction = new DefaultTransaction("ibis_afvoeren_terreinen");
+        try {
+            Layer layer = al == null ? null : al.getService().getLayer(al.getLayerName(), em);
+            if (layer == null || layer.getFeatureType() == null) {
+                json.put("error", "App layer or service not found");
+            } else if (!layer.getName().equalsIgnoreCase(TERREIN_LAYER_NAME)) {
+                json.put("error", "Kaartlaag is niet " + TERREIN_LAYER_NAME);
+            } else if (!Authorizations.isAppLayerWriteAuthorized(this.getApplication(), al, this.getContext().getRequest(), em)) {
+                json.put("error", "U heeft geen rechten om deze kaartlaag te bewerken");
+            } else {
+                lease = DataStoreRegistry.lease(layer.getFeatureType());
+                SimpleFeatureStore store = (SimpleFeatureStore) lease.getFeatureSource(layer.getFeatureType());
+                store.setTransaction(transaction);
+                JSONArray ids = new JSONArray(this.terreinen);
+                Set<Object> terreinIDs = new LinkedHashSet<>();
+                for (int i = 0; i < ids.length(); i++) {
+                    terreinIDs.add(ids.get(i));
+                }
+                int count = WorkflowUtil.afvoerenTerreinen(terreinIDs, layer, store, this.getApplication(), em);
+                transaction.commit();
+                ReportCache.invalidate(terreinIDs);
+                json.put("count", count);
+                json.put("success", Boolean.TRUE);
+            }
+        } catch (Exception e) {
+            log.error("Ibis afvoerenTerreinen error", e);
+            try {
+                transaction.rollback();
+            } catch (IOException io) {
+                log.error("Rollback van afvoeren terreinen is mislukt", io);
             }
+            json.put("error", e.getLocalizedMessage());
+        } finally {
+            try {
+                transaction.close();
+            } catch (IOException io) {
+                // closing transaction failed
+            }
+            if (lease != null) {
+                lease.close();
+            }
+        }
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
 
-            Filter definitief = ff.and(
-                    ff.equals(ff.property(ID_FIELDNAME), ff.literal(original.getAttribute(ID_FIELDNAME))),
-                    ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false)
-            );
-            boolean definitiefExists = (this.getStore().getFeatures(definitief).size() > 0);
-
-            Filter bewerkt = ff.and(
-                    ff.equals(ff.property(ID_FIELDNAME), ff.literal(original.getAttribute(ID_FIELDNAME))),
-                    ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false)
-            );
-            int aantalBewerkt = this.getStore().getFeatures(bewerkt).size();
-            boolean bewerktExists = (aantalBewerkt > 0);
-
-            switch (incomingWorkflowStatus) {
-                case bewerkt:
-                    if (originalWorkflowStatus.equals(WorkflowStatus.definitief)) {
-                        // definitief -> bewerkt
-                        if (bewerktExists) {
-                            // delete existing bewerkt
-                            this.getStore().removeFeatures(bewerkt);
-                        }
-                        // insert new record with original id and workflowstatus "bewerkt", leave original "definitief"
-                        this.getStore().addFeatures(DataUtilities.collection(editedNewFeature));
-                    } else if (originalWorkflowStatus.equals(WorkflowStatus.bewerkt)) {
-                        // bewerkt -> bewerkt, overwrite, only one 'bewerkt' is allowed
-                        if (aantalBewerkt > 1) {
-                            log.error("Er is meer dan 1 bewerkt kavel/terrein voor " + ID_FIELDNAME + "=" + original.getAttribute(ID_FIELDNAME));
-                            // more than 1 bewerkt, move them to archief
-                            this.getStore().modifyFeatures(WORKFLOW_FIELDNAME, WorkflowStatus.archief, bewerkt);
-                        }
-                        this.getStore().modifyFeatures(attributes.toArray(new String[attributes.size()]), values.toArray(), fidFilter);
-                    } else {
-                        // other behaviour not documented eg. archief -> bewerkt, afgevoerd -> bewerkt
-                        //  and not possible to occur in the application as only definitief and bewerkt can be edited
-                        throw new IllegalArgumentException(String.format(
-                                "Niet ondersteunde workflow stap van %s naar %s",
-                                originalWorkflowStatus.label(),
-                                incomingWorkflowStatus.label()));
-                    }
-                    break;
-                case definitief:
-                    if (definitiefExists) {
-                        // check if any "definitief" exists for this id and move that to "archief"
-                        this.getStore().modifyFeatures(WORKFLOW_FIELDNAME, WorkflowStatus.archief, definitief);
-                    }
-                    if (originalWorkflowStatus.equals(WorkflowStatus.definitief)) {
-                        // if the original was "definitief" insert a new "definitief"
-                        this.getStore().addFeatures(DataUtilities.collection(editedNewFeature));
-                    } else if (originalWorkflowStatus.equals(WorkflowStatus.bewerkt)) {
-                        // if original was "bewerkt" update this to "definitief" with the edits
-                        this.getStore().modifyFeatures(attributes.toArray(new String[attributes.size()]), values.toArray(), fidFilter);
-                    } else {
-                        // other behaviour not documented eg. archief -> definitief, afgevoerd -> definitief
-                        //  and not possible to occur in the application as only definitief and bewerkt can be edited
-                        throw new IllegalArgumentException(String.format(
-                                "Niet ondersteunde workflow stap van %s naar %s",
-                                originalWorkflowStatus.label(),
-                                incomingWorkflowStatus.label()));
-                    }
-                    break;
-                case afgevoerd:
-                    if (definitiefExists) {
-                        // update any "definitief" for this id to "archief"
-                        this.getStore().modifyFeatures(WORKFLOW_FIELDNAME, WorkflowStatus.archief, definitief);
-                    }
-                    // update original with the new/edited data including "afgevoerd"
-                    this.getStore().modifyFeatures(attributes.toArray(new String[attributes.size()]), values.toArray(), fidFilter);
+    /**
+     * apply the edits and commit.
+     *
+     * @return the fids of the edited features
+     */
+    List<String> applyBatch(SimpleFeatureStore store, Layer layer, ApplicationLayer al, JSONArray edits, Transaction transaction,
+            EntityManager em) throws Exception {
+        SimpleFeatureType schema = store.getSchema();
+        Set<String> disabled = this.getUserEditingDisabled(al, layer);
+        Map<String, JSONObject> posted = new LinkedHashMap<>();
+        for (int i = 0; i < edits.length(); i++) {
+            JSONObject edit = edits.getJSONObject(i);
+            String fid = edit.optString(this.getFID(), null);
+            if (fid == null) {
+                throw new IllegalArgumentException("Een batch kan alleen bestaande features wijzigen, fid ontbreekt.");
+            }
+            if (posted.put(fid, edit) != null) {
+                throw new IllegalArgumentException("Feature komt meer dan eens voor in de batch: " + fid);
+            }
+        }
+        log.debug(String.format("Batch edit van %d features in feature source #%d", posted.size(), layer.getFeatureType().getId()));
 
-                    if (terreinID == null) {
-                        // find any kavels related to this terrein and also set them to "afgevoerd"
-                        Filter kavelFilter = ff.equals(ff.property(KAVEL_TERREIN_ID_FIELDNAME), ff.literal(original.getAttribute(ID_FIELDNAME)));
-                        this.updateKavelWorkflowForTerrein(kavelFilter, WorkflowStatus.afgevoerd);
-                    }
-                    break;
-                case archief: {
-                    // not described, for now just edit the feature
-                    this.getStore().modifyFeatures(attributes.toArray(new String[attributes.size()]), values.toArray(), fidFilter);
-                    break;
-                }
-                default:
-                    throw new IllegalArgumentException("Workflow status van edit feature is null, dit wordt niet ondersteund.");
+        Map<String, WorkflowVersions> versions = WorkflowVersions.loadAll(store, posted.keySet());
+        WorkflowBatch batch = new WorkflowBatch();
+        Set<String> ids = new HashSet<>();
+        // changed kavel geometries per terrein and workflow status
+        Map<String, TerreinUpdate> terreinen = new LinkedHashMap<>();
+        List<Object> afvoeren = new ArrayList<>();
+        // the reports of these terreinen are no longer valid, null for a terrein that may have moved to another area
+        Set<Object> reports = new HashSet<>();
+        for (Map.Entry<String, JSONObject> e : posted.entrySet()) {
+            List<String> attributes = new ArrayList();
+            List values = new ArrayList();
+            WorkflowStatus incoming = this.parseEdit(e.getValue(), schema, disabled, attributes, values);
+            WorkflowVersions v = versions.get(e.getKey());
+            SimpleFeature original = v.getOriginal();
+            Object id = original.getAttribute(ID_FIELDNAME);
+            if (!ids.add(WorkflowVersions.idKey(id))) {
+                throw new IllegalArgumentException("Meer dan een versie van " + ID_FIELDNAME + "=" + id + " in de batch.");
             }
 
-            editTransaction.commit();
-            editTransaction.close();
-            // update terrein geometry
+            SimpleFeature edited = createCopy(original);
+            for (int i = 0; i < attributes.size(); i++) {
+                edited.setAttribute(attributes.get(i), values.get(i));
+            }
+            if (WorkflowTransitions.plan(batch, v, incoming, edited, attributes.toArray(new String[attributes.size()]), values.toArray())) {
+                afvoeren.add(original.getAttribute(ID_FIELDNAME));
+            }
+
+            Object terreinID = original.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+            reports.add(terreinID);
+            Object editedTerreinID = edited.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+            if (!WorkflowVersions.sameId(terreinID, editedTerreinID)) {
+                // the kavel was moved to another terrein
+                reports.add(editedTerreinID);
+            }
             if (terreinID != null) {
-                WorkflowUtil.updateTerreinGeometry(Integer.parseInt(terreinID.toString()), this.getLayer(), incomingWorkflowStatus, this.getApplication(), Stripersist.getEntityManager());
+                // archief, afgevoerd and definitief kavels all update the definitief terrein
+                WorkflowStatus status = incoming == WorkflowStatus.bewerkt ? WorkflowStatus.bewerkt : WorkflowStatus.definitief;
+                String key = terreinID + "|" + status;
+                TerreinUpdate update = terreinen.get(key);
+                if (update == null) {
+                    update = new TerreinUpdate(Integer.parseInt(terreinID.toString()), status);
+                    terreinen.put(key, update);
+                }
+                update.changed.add((Geometry) original.getDefaultGeometry());
+                update.changed.add((Geometry) edited.getDefaultGeometry());
             }
-        } catch (IllegalArgumentException | IOException | NoSuchElementException e) {
-            editTransaction.rollback();
-            log.error("Ibis editFeature error", e);
-            throw e;
+        }
+        batch.execute(store);
+
+        // find any kavels related to these terreinen and also set them to "afgevoerd"
+        WorkflowUtil.afvoerenKavels(afvoeren, layer, store, this.getApplication(), em);
+        List<TerreinUpdate> queued = new ArrayList<>();
+        for (TerreinUpdate update : terreinen.values()) {
+            if (!WorkflowUtil.updateTerreinGeometryInTransaction(update.terreinID, layer, store, update.status,
+                    this.getApplication(), em, update.changed)) {
+                queued.add(update);
+            }
+        }
+        transaction.commit();
+        if (reports.contains(null)) {
+            ReportCache.clear();
+        } else {
+            ReportCache.invalidate(reports);
+        }
+        for (TerreinUpdate update : queued) {
+            WorkflowUtil.queueTerreinGeometryUpdate(update.terreinID, layer, update.status, this.getApplication(),
+                    em, update.changed);
+        }
+        return new ArrayList<>(posted.keySet());
+    }
+
+    /**
+     * the changed kavel geometries of a terrein in a batch.
+     */
+    private static final class TerreinUpdate {
+
+        private final Integer terreinID;
+        private final WorkflowStatus status;
+        private final List<Geometry> changed = new ArrayList<>();
+
+        TerreinUpdate(Integer terreinID, WorkflowStatus status) {
+            this.terreinID = terreinID;
+            this.status = status;
         }
     }
 
@@ -281,44 +528,6 @@ public class IbisEditFeatureActionBean extends EditFeatureActionBean implements
         return builder.buildFeature(null);
     }
 
-    /**
-     * Update any of the selected kavels to the given workflow.
-     *
-     * @param terreinID
-     * @param kavelFilter
-     * @param newStatus
-     */
-    private void updateKavelWorkflowForTerrein(Filter kavelFilter, WorkflowStatus newStatus) {
-        SimpleFeatureStore kavelStore = null;
-        try (Transaction kavelTransaction = new DefaultTransaction("get-related-kavel-geom")) {
-            EntityManager em = Stripersist.getEntityManager();
-            log.debug("updating kavels voor terrein met filter: " + kavelFilter);
-            // find kavel appLayer
-            ApplicationLayer kavelAppLyr = null;
-            List<ApplicationLayer> lyrs = this.getApplication().loadTreeCache(em).getApplicationLayers();
-            for (ListIterator<ApplicationLayer> it = lyrs.listIterator(); it.hasNext();) {
-                kavelAppLyr = it.next();
-                if (kavelAppLyr.getLayerName().equalsIgnoreCase(KAVEL_LAYER_NAME)) {
-                    break;
-                }
-            }
-            Layer l = kavelAppLyr.getService().getLayer(KAVEL_LAYER_NAME, em);
-            kavelStore = (SimpleFeatureStore) l.getFeatureType().openGeoToolsFeatureSource();
-            kavelStore.setTransaction(kavelTransaction);
-            // update kavels
-            kavelStore.modifyFeatures(WORKFLOW_FIELDNAME, newStatus, kavelFilter);
-            kavelTransaction.commit();
-            kavelTransaction.close();
-        } catch (Exception e) {
-            log.error(String.format("Bijwerken van kavel workflow status naar %s voor terrein met %s is mislukt.",
-                    newStatus, kavelFilter), e);
-        } finally {
-            if (kavelStore != null) {
-                kavelStore.getDataStore().dispose();
-            }
-        }
-    }
-
     /**
      * Check that if {@code disableUserEdit} flag is set on the attribute.
      * Override superclass behaviour for the workflow field, so that it's not
@@ -339,8 +548,45 @@ public class IbisEditFeatureActionBean extends EditFeatureActionBean implements
         return isAttributeUserEditingDisabled;
     }
 
+    /**
+     * Find the attributes that have the {@code disableUserEdit} flag set in
+     * the configuration of an application layer, the workflow field is always
+     * editable.
+     *
+     * @param al application layer
+     * @param layer layer of the application layer
+     * @return names of the attributes that are not user editable
+     */
+    private Set<String> getUserEditingDisabled(ApplicationLayer al, Layer layer) {
+        Set<String> disabled = new HashSet<>();
+        for (ConfiguredAttribute ca : al.getAttributes(layer.getFeatureType())) {
+            if (ca.isDisableUserEdit() && !ca.getAttributeName().equalsIgnoreCase(WORKFLOW_FIELDNAME)) {
+                disabled.add(ca.getAttributeName());
+            }
+        }
+        return disabled;
+    }
+
     private boolean isSameMutatiedatum(Object datum1, Object datum2) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-mm-dd");
         return sdf.format(datum1).equals(sdf.format(datum2));
     }
+
+    //<editor-fold defaultstate="collapsed" desc="getters en setters">
+    public String getFeatures() {
+        return features;
+    }
+
+    public void setFeatures(String features) {
+        this.features = features;
+    }
+
+    public String getTerreinen() {
+        return terreinen;
+    }
+
+    public void setTerreinen(String terreinen) {
+        this.terreinen = terreinen;
+    }
+    //</editor-fold>
 }
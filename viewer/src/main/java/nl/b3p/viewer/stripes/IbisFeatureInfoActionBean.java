@@ -16,21 +16,35 @@
  */
 package nl.b3p.viewer.stripes;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import javax.persistence.EntityManager;
+import javax.servlet.http.HttpServletResponse;
+import net.sourceforge.stripes.action.Resolution;
+import net.sourceforge.stripes.action.StreamingResolution;
 import net.sourceforge.stripes.action.StrictBinding;
 import net.sourceforge.stripes.action.UrlBinding;
+import net.sourceforge.stripes.validation.Validate;
 import nl.b3p.viewer.config.app.ApplicationLayer;
 import nl.b3p.viewer.config.security.Authorizations;
+import nl.b3p.viewer.config.services.Layer;
 import nl.b3p.viewer.config.services.SimpleFeatureType;
 import nl.b3p.viewer.ibis.util.IbisConstants;
+import nl.b3p.viewer.util.DataStoreRegistry;
 import nl.b3p.viewer.util.FeatureToJson;
 import nl.b3p.viewer.util.IbisFeatureToJson;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
+import org.geotools.filter.text.ecql.ECQL;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
+import org.opengis.filter.Filter;
 import org.stripesstuff.stripersist.Stripersist;
 
 /**
@@ -46,6 +60,139 @@ public class IbisFeatureInfoActionBean extends FeatureInfoActionBean implements
 
     private static final Log log = LogFactory.getLog(IbisFeatureInfoActionBean.class);
 
+    /**
+     * ECQL filter for {@link #stream()}.
+     */
+    @Validate
+    private String cqlFilter;
+    /**
+     * start index for {@link #stream()}.
+     */
+    @Validate
+    private int offset = 0;
+    /**
+     * maximum number of features for {@link #stream()}, at most
+     * {@link IbisFeatureToJson#MAX_FEATURES}.
+     */
+    @Validate
+    private int maxFeatures = IbisFeatureToJson.MAX_FEATURES;
+
+    /**
+     * Stream the features of the {@link #getLayer() layer} to the client. Each
+     * feature is written as soon as it is converted, so large attribute grids
+     * don't need the complete response in memory. The features have the same
+     * json format as the {@code features} array of the default featureinfo
+     * response. The default featureinfo event still builds the array in
+     * memory: the flamingo base class combines the responses of all queried
+     * layers into one json object and the flamingo featureinfo and edit
+     * components read that object, so this event is a separate entry point
+     * for clients that page through a single layer.
+     *
+     * @return json object with a {@code features} array
+     * @throws Exception if any
+     */
+    public Resolution stream() throws Exception {
+        final Layer layer = this.getLayer();
+        EntityManager em = Stripersist.getEntityManager();
+        final ApplicationLayer al = this.findApplicationLayer(layer, em);
+
+        String error = null;
+        if (al == null || layer.getFeatureType() == null) {
+            error = "Invalid parameters.";
+        } else if (!Authorizations.isAppLayerReadAuthorized(this.getApplication(), al, this.getContext().getRequest(), em)) {
+            error = "Not authorized.";
+        } else if (!(layer.getName().equalsIgnoreCase(KAVEL_LAYER_NAME) || layer.getName().equalsIgnoreCase(TERREIN_LAYER_NAME))) {
+            error = "Layer is not supported.";
+        }
+        if (error != null) {
+            JSONObject json = new JSONObject().put("success", Boolean.FALSE).put("message", error);
+            return new StreamingResolution("application/json", new StringReader(json.toString()));
+        }
+
+        final boolean writeAuthorized = Authorizations.isAppLayerWriteAuthorized(this.getApplication(), al,
+                this.getContext().getRequest(), em);
+        final IbisFeatureToJson ftjson = new IbisFeatureToJson(
+                this.isArrays(),
+                this.isEdit(),
+                this.isGraph(),
+                this.getAttributesToInclude());
+        Filter filter = Filter.INCLUDE;
+        if (cqlFilter != null) {
+            filter = ECQL.toFilter(cqlFilter);
+        }
+        // the lease is returned after writing the features
+        final DataStoreRegistry.Lease lease = DataStoreRegistry.lease(layer.getFeatureType());
+        final FeatureSource fs;
+        try {
+            fs = lease.getFeatureSource(layer.getFeatureType());
+        } catch (IOException e) {
+            lease.close();
+            throw e;
+        }
+        final Query q = new Query(fs.getName().toString());
+        q.setFilter(filter);
+        q.setStartIndex(Math.max(0, offset));
+        q.setMaxFeatures(maxFeatures > 0 ? Math.min(maxFeatures, IbisFeatureToJson.MAX_FEATURES) : IbisFeatureToJson.MAX_FEATURES);
+
+        return new StreamingResolution("application/json") {
+            @Override
+            public void stream(HttpServletResponse response) throws Exception {
+                try {
+                    response.setCharacterEncoding("UTF-8");
+                    Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+                    // the features come first, so an error while reading them
+                    // can still be reported in success and message
+                    out.write("{\"features\":");
+                    boolean success = true;
+                    String message = null;
+                    try {
+                        if (writeAuthorized) {
+                            log.debug("Streaming custom IBIS featureinfo for write-authorized user on layer " + layer.getName());
+                            ftjson.writeWorkflowJSONFeatures(al, layer.getFeatureType(), fs, q, out);
+                        } else {
+                            log.debug("Streaming custom IBIS featureinfo for non-write-authorized user on layer " + layer.getName());
+                            ftjson.writeDefinitiefJSONFeatures(al, layer.getFeatureType(), fs, q, out);
+                        }
+                    } catch (Exception e) {
+                        log.error("Ophalen van features is mislukt.", e);
+                        success = false;
+                        message = e.getLocalizedMessage();
+                    }
+                    out.write(",\"success\":");
+                    out.write(Boolean.toString(success));
+                    if (message != null) {
+                        out.write(",\"message\":");
+                        out.write(JSONObject.quote(message));
+                    }
+                    out.write('}');
+                    out.flush();
+                } finally {
+                    lease.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * find the application layer for the layer in the current application.
+     *
+     * @param layer layer to find
+     * @param em entity manager
+     * @return application layer or {@code null}
+     */
+    private ApplicationLayer findApplicationLayer(Layer layer, EntityManager em) {
+        if (layer == null || this.getApplication() == null) {
+            return null;
+        }
+        for (ApplicationLayer appLyr : this.getApplication().loadTreeCache(em).getApplicationLayers()) {
+            if (appLyr.getLayerName().equals(layer.getName())
+                    && appLyr.getService().getId().equals(layer.getService().getId())) {
+                return appLyr;
+            }
+        }
+        return null;
+    }
+
     /**
      * execute the query, can be overridden in subclasses to modify behaviour
      * such as workflow.
@@ -93,4 +240,29 @@ public class IbisFeatureInfoActionBean extends FeatureInfoActionBean implements
         return features;
     }
 
+    //<editor-fold defaultstate="collapsed" desc="getters en setters">
+    public String getCqlFilter() {
+        return cqlFilter;
+    }
+
+    public void setCqlFilter(String cqlFilter) {
+        this.cqlFilter = cqlFilter;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    public int getMaxFeatures() {
+        return maxFeatures;
+    }
+
+    public void setMaxFeatures(int maxFeatures) {
+        this.maxFeatures = maxFeatures;
+    }
+    //</editor-fold>
 }
@@ -17,25 +17,55 @@
 package nl.b3p.viewer.stripes;
 
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import net.sourceforge.stripes.action.Resolution;
+import net.sourceforge.stripes.action.StreamingResolution;
 import net.sourceforge.stripes.action.StrictBinding;
 import net.sourceforge.stripes.action.UrlBinding;
+import net.sourceforge.stripes.validation.Validate;
+import nl.b3p.viewer.config.app.ApplicationLayer;
+import nl.b3p.viewer.config.security.Authorizations;
+import nl.b3p.viewer.config.services.Layer;
+import nl.b3p.viewer.ibis.report.ReportCache;
+import nl.b3p.viewer.ibis.util.GeometryPreview;
 import nl.b3p.viewer.ibis.util.IbisConstants;
+import nl.b3p.viewer.ibis.util.ParallelUnion;
+import nl.b3p.viewer.ibis.util.PreviewCache;
+import nl.b3p.viewer.ibis.util.WorkflowBatch;
 import nl.b3p.viewer.ibis.util.WorkflowStatus;
 import nl.b3p.viewer.ibis.util.WorkflowUtil;
+import nl.b3p.viewer.util.DataStoreRegistry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.identity.FeatureIdImpl;
 import org.geotools.util.Converter;
 import org.geotools.util.GeometryTypeConverterFactory;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.GeometryType;
 import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
 import org.opengis.filter.identity.FeatureId;
 import org.stripesstuff.stripersist.Stripersist;
 
@@ -51,6 +81,21 @@ public class IbisMergeFeaturesActionBean extends MergeFeaturesActionBean impleme
     private static final Log log = LogFactory.getLog(IbisMergeFeaturesActionBean.class);
     private Object terreinID = null;
     private WorkflowStatus newWorkflowStatus = WorkflowStatus.definitief;
+    /**
+     * geometries of the merged kavels, the area of the terrein that changed.
+     */
+    private final List<Geometry> changedGeoms = new ArrayList<>();
+    /**
+     * {@code true} if the terrein geometry was updated in the merge
+     * transaction.
+     */
+    private boolean terreinUpdated = false;
+
+    /**
+     * json array of the fids for {@link #mergeAll()}.
+     */
+    @Validate
+    private String fids;
 
     /**
      * Force the workflow status attribute on the feature. This will handle the
@@ -101,38 +146,290 @@ public class IbisMergeFeaturesActionBean extends MergeFeaturesActionBean impleme
                 null);
 
         if (this.getStrategy().equalsIgnoreCase("new")) {
+            WorkflowBatch batch = new WorkflowBatch();
             // archive the source feature (A)
-            localStore.modifyFeatures(WORKFLOW_FIELDNAME, WorkflowStatus.archief, filterA);
+            batch.archive(Collections.singletonList(featureA));
 
             // update B with status afgevoerd, and a null terreinid
             String[] fields = new String[]{WORKFLOW_FIELDNAME, KAVEL_TERREIN_ID_FIELDNAME};
             Object[] values = new Object[]{WorkflowStatus.afgevoerd, null};
-            localStore.modifyFeatures(fields, values, filterB);
+            batch.modify(featureB.getIdentifier(), fields, values);
 
             // create a new feature with the attributes of A but a new geom
             SimpleFeature newAfeat = DataUtilities.createFeature(featureA.getType(),
                     DataUtilities.encodeFeature(featureA, false));
             newAfeat.setAttribute(geomAttrName, c.convert(newGeom, type.getBinding()));
 
-            // remember terreinID
+            // remember terreinID and the changed area
             this.terreinID = newAfeat.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+            this.changedGeoms.add((Geometry) featureA.getDefaultGeometry());
+            this.changedGeoms.add((Geometry) featureB.getDefaultGeometry());
+            this.changedGeoms.add(newGeom);
 
             List<SimpleFeature> newFeats = new ArrayList();
             newFeats.add(newAfeat);
             // update new feature set mut. date, workflow status etc.
             newFeats = this.handleExtraData(newFeats);
-            ids = localStore.addFeatures(DataUtilities.collection(newFeats));
+            for (SimpleFeature newFeat : newFeats) {
+                batch.add(newFeat);
+            }
+            ids = batch.execute(localStore);
+            if (this.terreinID != null) {
+                this.terreinUpdated = WorkflowUtil.updateTerreinGeometryInTransaction(Integer.parseInt(this.terreinID.toString()),
+                        this.getLayer(), localStore, this.newWorkflowStatus, this.getApplication(), Stripersist.getEntityManager(),
+                        this.changedGeoms);
+            }
         } else {
             throw new IllegalArgumentException("Unknown merge strategy '" + this.getStrategy() + "', cannot merge.");
         }
         return ids;
     }
 
+    /**
+     * Merge any number of kavels in one transaction using the "new" strategy:
+     * the first kavel of the {@code fids} parameter (a json array) is
+     * archived, the other kavels are "afgevoerd" and lose their terrein, and
+     * one new kavel with the attributes of the first kavel and the union of
+     * all geometries is inserted. The geometries are unioned once, the sources
+     * are updated in one set-based update and each affected terrein is
+     * updated once. All kavels must belong to the same terrein. If anything
+     * fails nothing is saved.
+     *
+     * @return json with the {@code fids} of the new kavel
+     * @throws JSONException if any
+     */
+    public Resolution mergeAll() throws JSONException {
+        JSONObject json = new JSONObject().put("success", Boolean.FALSE);
+        EntityManager em = Stripersist.getEntityManager();
+        ApplicationLayer al = this.getAppLayer();
+        DataStoreRegistry.Lease lease = null;
+        Transaction transaction = new DefaultTransaction("ibis_merge_all");
+        try {
+            Layer layer = al == null ? null : al.getService().getLayer(al.getLayerName(), em);
+            if (layer == null || layer.getFeatureType() == null) {
+                json.put("error", "App layer or service not found");
+            } else if (!layer.getName().equalsIgnoreCase(KAVEL_LAYER_NAME)) {
+                json.put("error", "Aborting as merge layer is not " + KAVEL_LAYER_NAME);
+            } else if (!"new".equalsIgnoreCase(this.getStrategy())) {
+                json.put("error", "Unknown merge strategy '" + this.getStrategy() + "', cannot merge.");
+            } else if (!Authorizations.isAppLayerWriteAuthorized(this.getApplication(), al, this.getContext().getRequest(), em)) {
+                json.put("error", "U heeft geen rechten om deze kaartlaag te bewerken");
+            } else {
+                lease = DataStoreRegistry.lease(layer.getFeatureType());
+                SimpleFeatureStore store = (SimpleFeatureStore) lease.getFeatureSource(layer.getFeatureType());
+                store.setTransaction(transaction);
+                List<FeatureId> ids = this.mergeAll(store, layer, new JSONArray(this.fids), transaction);
+                JSONArray newFids = new JSONArray();
+                for (FeatureId id : ids) {
+                    newFids.put(id.getID());
+                }
+                json.put("fids", newFids);
+                json.put("success", Boolean.TRUE);
+            }
+        } catch (Exception e) {
+            log.error("Ibis mergeAll error", e);
+            try {
+                transaction.rollback();
+            } catch (IOException io) {
+                log.error("Rollback van samenvoegen is mislukt", io);
+            }
+            json.put("error", e.getLocalizedMessage());
+        } finally {
+            try {
+                transaction.close();
+            } catch (IOException io) {
+                // closing transaction failed
+            }
+            if (lease != null) {
+                lease.close();
+            }
+        }
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
+
+    /**
+     * Preview a merge without saving anything: the union of the kavels of the
+     * {@code fids} parameter (a json array), or of {@code fidA} and
+     * {@code fidB}, with its area and validity. The kavel geometries are
+     * cached prepared in the session.
+     *
+     * @return json with the merged geometry as the only element of
+     * {@code parts}, the total {@code area} of the kavels and {@code valid},
+     * {@code true} if the kavels form a single valid polygon
+     * @throws JSONException if any
+     */
+    public Resolution preview() throws JSONException {
+        JSONObject json = new JSONObject().put("success", Boolean.FALSE);
+        EntityManager em = Stripersist.getEntityManager();
+        ApplicationLayer al = this.getAppLayer();
+        Layer layer = al == null ? null : al.getService().getLayer(al.getLayerName(), em);
+        if (layer == null || layer.getFeatureType() == null) {
+            json.put("error", "App layer or service not found");
+        } else if (!Authorizations.isAppLayerWriteAuthorized(this.getApplication(), al, this.getContext().getRequest(), em)) {
+            json.put("error", "U heeft geen rechten om deze kaartlaag te bewerken");
+        } else {
+            try (DataStoreRegistry.Lease lease = DataStoreRegistry.lease(layer.getFeatureType())) {
+                List<String> previewFids = new ArrayList<>();
+                if (this.fids != null) {
+                    JSONArray posted = new JSONArray(this.fids);
+                    for (int i = 0; i < posted.length(); i++) {
+                        previewFids.add(posted.getString(i));
+                    }
+                } else {
+                    previewFids.add(this.getFidA());
+                    previewFids.add(this.getFidB());
+                }
+                SimpleFeatureSource fs = lease.getFeatureSource(layer.getFeatureType());
+                List<Geometry> sources = new ArrayList<>();
+                double area = 0d;
+                for (PreparedGeometry p : PreviewCache.get(this.getContext().getRequest().getSession()).get(fs, al.getId(), previewFids)) {
+                    sources.add(p.getGeometry());
+                    area += p.getGeometry().getArea();
+                }
+                Geometry merged = GeometryPreview.merge(sources);
+                List<Geometry> parts = Collections.singletonList(merged);
+                json.put("area", area);
+                json.put("parts", GeometryPreview.toJson(parts));
+                // overlapping kavels lose area in the union, kavels that do not touch give a multipolygon
+                json.put("valid", merged.getNumGeometries() == 1 && GeometryPreview.isValid(area, parts));
+                json.put("success", Boolean.TRUE);
+            } catch (Exception e) {
+                log.error("Ibis merge preview error", e);
+                json.put("error", e.getLocalizedMessage());
+            }
+        }
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
+
+    /**
+     * merge the kavels and commit.
+     *
+     * @return the id of the new kavel
+     */
+    List<FeatureId> mergeAll(SimpleFeatureStore store, Layer layer, JSONArray posted, Transaction transaction) throws Exception {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Set<FeatureId> fidSet = new LinkedHashSet<>();
+        for (int i = 0; i < posted.length(); i++) {
+            if (!fidSet.add(new FeatureIdImpl(posted.getString(i)))) {
+                throw new IllegalArgumentException("Kavel komt meer dan eens voor: " + posted.getString(i));
+            }
+        }
+        if (fidSet.size() < 2) {
+            throw new IllegalArgumentException("Er zijn minstens twee kavels nodig om samen te voegen.");
+        }
+
+        // read all kavels in one query, keep the posted order
+        Map<String, SimpleFeature> kavels = new LinkedHashMap<>();
+        try (SimpleFeatureIterator it = store.getFeatures(ff.id(fidSet)).features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                kavels.put(f.getID(), f);
+            }
+        }
+        List<SimpleFeature> sources = new ArrayList<>();
+        List<Geometry> geoms = new ArrayList<>();
+        for (FeatureId fid : fidSet) {
+            SimpleFeature f = kavels.get(fid.getID());
+            if (f == null) {
+                throw new NoSuchElementException("Feature niet gevonden: " + fid.getID());
+            }
+            sources.add(f);
+            geoms.add((Geometry) f.getDefaultGeometry());
+        }
+        log.debug(String.format("Samenvoegen van %d kavels", sources.size()));
+        checkSameTerrein(sources);
+
+        GeometryType type = store.getSchema().getGeometryDescriptor().getType();
+        Converter c = new GeometryTypeConverterFactory().createConverter(Geometry.class, type.getBinding(), null);
+        Geometry union = ParallelUnion.union(geoms);
+        Object newGeom = c == null ? null : c.convert(union, type.getBinding());
+        // the conversion may also drop parts of the union
+        if (newGeom == null || Math.abs(((Geometry) newGeom).getArea() - union.getArea()) > WorkflowUtil.AREA_TOLERANCE * union.getArea()) {
+            throw new IllegalArgumentException("Samengevoegde geometrie (" + union.getGeometryType()
+                    + ") past niet in de geometrie van " + KAVEL_LAYER_NAME + ", liggen de kavels tegen elkaar?");
+        }
+
+        SimpleFeature featureA = sources.get(0);
+        WorkflowBatch batch = new WorkflowBatch();
+        // archive the source feature (A)
+        batch.archive(Collections.singletonList(featureA));
+        // update the others with status afgevoerd, and a null terreinid
+        String[] fields = new String[]{WORKFLOW_FIELDNAME, KAVEL_TERREIN_ID_FIELDNAME};
+        Object[] values = new Object[]{WorkflowStatus.afgevoerd, null};
+        for (SimpleFeature f : sources.subList(1, sources.size())) {
+            batch.modify(f.getIdentifier(), fields, values);
+        }
+        // create a new feature with the attributes of A but a new geom
+        SimpleFeature newAfeat = DataUtilities.createFeature(featureA.getType(), DataUtilities.encodeFeature(featureA, false));
+        newAfeat.setAttribute(store.getSchema().getGeometryDescriptor().getLocalName(), newGeom);
+        List<SimpleFeature> newFeats = new ArrayList<>();
+        newFeats.add(newAfeat);
+        // update new feature set mut. date, workflow status etc.
+        for (SimpleFeature f : this.handleExtraData(newFeats)) {
+            batch.add(f);
+        }
+        List<FeatureId> ids = batch.execute(store);
+
+        // each terrein of the merged kavels is updated once
+        List<Geometry> changed = new ArrayList<>(geoms);
+        changed.add(union);
+        Set<Integer> terreinIDs = new LinkedHashSet<>();
+        for (SimpleFeature f : sources) {
+            Object terreinID = f.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+            if (terreinID != null) {
+                terreinIDs.add(Integer.parseInt(terreinID.toString()));
+            }
+        }
+        List<Integer> queued = new ArrayList<>();
+        for (Integer terreinID : terreinIDs) {
+            if (!WorkflowUtil.updateTerreinGeometryInTransaction(terreinID, layer, store, this.newWorkflowStatus,
+                    this.getApplication(), Stripersist.getEntityManager(), changed)) {
+                queued.add(terreinID);
+            }
+        }
+        transaction.commit();
+        ReportCache.invalidate(terreinIDs);
+        for (Integer terreinID : queued) {
+            WorkflowUtil.queueTerreinGeometryUpdate(terreinID, layer, this.newWorkflowStatus, this.getApplication(),
+                    Stripersist.getEntityManager(), changed);
+        }
+        return ids;
+    }
+
+    /**
+     * the merged kavel takes the terrein of the first kavel, so all kavels
+     * must belong to the same terrein.
+     *
+     * @throws IllegalArgumentException if the kavels belong to different
+     * terreinen
+     */
+    private static void checkSameTerrein(List<SimpleFeature> kavels) {
+        Set<String> terreinIDs = new LinkedHashSet<>();
+        for (SimpleFeature f : kavels) {
+            Object terreinID = f.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+            terreinIDs.add(terreinID == null ? null : terreinID.toString());
+        }
+        if (terreinIDs.size() > 1) {
+            throw new IllegalArgumentException("Kavels van verschillende terreinen kunnen niet worden samengevoegd: " + terreinIDs);
+        }
+    }
+
     @Override
     protected void afterMerge(List<FeatureId> ids) {
-        if (this.terreinID != null) {
-            WorkflowUtil.updateTerreinGeometry(Integer.parseInt(this.terreinID.toString()), this.getLayer(),
-                    this.newWorkflowStatus, this.getApplication(), Stripersist.getEntityManager());
+        ReportCache.invalidate(this.terreinID);
+        if (this.terreinID != null && !this.terreinUpdated) {
+            WorkflowUtil.queueTerreinGeometryUpdate(Integer.parseInt(this.terreinID.toString()), this.getLayer(),
+                    this.newWorkflowStatus, this.getApplication(), Stripersist.getEntityManager(), this.changedGeoms);
         }
     }
+
+    //<editor-fold defaultstate="collapsed" desc="getters en setters">
+    public String getFids() {
+        return fids;
+    }
+
+    public void setFids(String fids) {
+        this.fids = fids;
+    }
+    //</editor-fold>
 }
@@ -17,28 +17,57 @@
 package nl.b3p.viewer.stripes;
 
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import net.sourceforge.stripes.action.Resolution;
+import net.sourceforge.stripes.action.StreamingResolution;
 import net.sourceforge.stripes.action.StrictBinding;
 import net.sourceforge.stripes.action.UrlBinding;
+import nl.b3p.viewer.config.app.ApplicationLayer;
+import nl.b3p.viewer.config.security.Authorizations;
+import nl.b3p.viewer.config.services.Layer;
+import nl.b3p.viewer.ibis.report.ReportCache;
+import nl.b3p.viewer.ibis.util.GeometryPreview;
 import nl.b3p.viewer.ibis.util.IbisConstants;
+import nl.b3p.viewer.ibis.util.IdAllocator;
+import nl.b3p.viewer.ibis.util.PreviewCache;
 import static nl.b3p.viewer.ibis.util.IbisConstants.KAVEL_TERREIN_ID_FIELDNAME;
 import static nl.b3p.viewer.ibis.util.IbisConstants.WORKFLOW_FIELDNAME;
+import nl.b3p.viewer.ibis.util.WorkflowBatch;
 import nl.b3p.viewer.ibis.util.WorkflowStatus;
+import nl.b3p.viewer.ibis.util.WorkflowTransitions;
 import nl.b3p.viewer.ibis.util.WorkflowUtil;
+import nl.b3p.viewer.ibis.util.WorkflowVersions;
+import nl.b3p.viewer.util.DataStoreRegistry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.util.Converter;
 import org.geotools.util.GeometryTypeConverterFactory;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.GeometryType;
 import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
 import org.opengis.filter.identity.FeatureId;
 import org.json.JSONObject;
 import org.stripesstuff.stripersist.Stripersist;
@@ -56,6 +85,15 @@ public class IbisSplitFeatureActionBean extends SplitFeatureActionBean implement
 
     private Object terreinID = null;
     private WorkflowStatus newWorkflowStatus = WorkflowStatus.definitief;
+    /**
+     * geometry of the split kavel, the area of the terrein that changed.
+     */
+    private Geometry changedGeom = null;
+    /**
+     * {@code true} if the terrein geometry was updated in the split
+     * transaction.
+     */
+    private boolean terreinUpdated = false;
 
     /**
      * force the workflow status attribute on the feature. This will handle the
@@ -103,8 +141,9 @@ public class IbisSplitFeatureActionBean extends SplitFeatureActionBean implement
         GeometryType type = localStore.getSchema().getGeometryDescriptor().getType();
         String geomAttribute = localStore.getSchema().getGeometryDescriptor().getLocalName();
 
+        WorkflowBatch batch = new WorkflowBatch();
         boolean firstFeature = true;
-        int newID = (int) (new Date().getTime() / 1000);
+        IdAllocator ids = IdAllocator.forStore(localStore);
         for (Geometry newGeom : geoms) {
             log.debug("Creating feature with geom: " + newGeom.getLength());
             if (firstFeature) {
@@ -112,11 +151,14 @@ public class IbisSplitFeatureActionBean extends SplitFeatureActionBean implement
                     // existing feature to "archief"
                     feature.setAttribute(WORKFLOW_FIELDNAME, WorkflowStatus.archief);
                     Object[] attributevalues = feature.getAttributes().toArray(new Object[feature.getAttributeCount()]);
-                    AttributeDescriptor[] attributes = feature.getFeatureType().getAttributeDescriptors()
-                            .toArray(new AttributeDescriptor[feature.getAttributeCount()]);
-                    localStore.modifyFeatures(attributes, attributevalues, filter);
-                    // remember terreinID
+                    String[] attributes = new String[feature.getAttributeCount()];
+                    for (int i = 0; i < attributes.length; i++) {
+                        attributes[i] = feature.getFeatureType().getDescriptor(i).getLocalName();
+                    }
+                    batch.modify(feature.getIdentifier(), attributes, attributevalues);
+                    // remember terreinID and the changed area
                     this.terreinID = feature.getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+                    this.changedGeom = (Geometry) feature.getDefaultGeometry();
 
                     // create the first new feature
                     SimpleFeature newFeat = DataUtilities.createFeature(feature.getType(),
@@ -133,24 +175,271 @@ public class IbisSplitFeatureActionBean extends SplitFeatureActionBean implement
             SimpleFeature newFeat = DataUtilities.createFeature(feature.getType(),
                     DataUtilities.encodeFeature(feature, false));
             newFeat.setAttribute(geomAttribute, c.convert(newGeom, type.getBinding()));
-            newFeat.setAttribute(ID_FIELDNAME, newID++);
+            long newID = ids.next(localStore);
+            newFeat.setAttribute(ID_FIELDNAME, newID);
             log.debug("created new feature with id: " + newID);
             newFeats.add(newFeat);
         }
         // update specified fields on the new features
         newFeats = this.handleExtraData(newFeats);
-        return localStore.addFeatures(DataUtilities.collection(newFeats));
+        for (SimpleFeature newFeat : newFeats) {
+            batch.add(newFeat);
+        }
+        List<FeatureId> newIds = batch.execute(localStore);
+        if (this.terreinID != null) {
+            this.terreinUpdated = WorkflowUtil.updateTerreinGeometryInTransaction(Integer.parseInt(this.terreinID.toString()),
+                    this.getLayer(), localStore, this.newWorkflowStatus, this.getApplication(), Stripersist.getEntityManager(),
+                    Collections.singletonList(this.changedGeom));
+        }
+        return newIds;
+    }
+
+    /**
+     * Preview a split without saving anything: the parts of the kavel
+     * {@code splitFeatureFID} split by the line {@code toSplitWithFeature}
+     * (wkt), with their area and validity. The kavel geometry is cached
+     * prepared in the session, so previews while drawing the line do not read
+     * the store again.
+     *
+     * @return json with the {@code parts}, the {@code area} of the kavel and
+     * {@code valid}, {@code true} if the line splits the kavel in valid parts
+     * @throws JSONException if any
+     */
+    public Resolution preview() throws JSONException {
+        JSONObject json = new JSONObject().put("success", Boolean.FALSE);
+        EntityManager em = Stripersist.getEntityManager();
+        ApplicationLayer al = this.getAppLayer();
+        Layer layer = al == null ? null : al.getService().getLayer(al.getLayerName(), em);
+        if (layer == null || layer.getFeatureType() == null) {
+            json.put("error", "App layer or service not found");
+        } else if (!Authorizations.isAppLayerWriteAuthorized(this.getApplication(), al, this.getContext().getRequest(), em)) {
+            json.put("error", "U heeft geen rechten om deze kaartlaag te bewerken");
+        } else {
+            try (DataStoreRegistry.Lease lease = DataStoreRegistry.lease(layer.getFeatureType())) {
+                SimpleFeatureSource fs = lease.getFeatureSource(layer.getFeatureType());
+                PreparedGeometry source = PreviewCache.get(this.getContext().getRequest().getSession())
+                        .get(fs, al.getId(), Collections.singletonList(this.getSplitFeatureFID())).get(0);
+                Geometry line = new WKTReader().read(this.getToSplitWithFeature());
+                List<Geometry> parts = GeometryPreview.split(source, line);
+                double area = source.getGeometry().getArea();
+                json.put("area", area);
+                json.put("parts", GeometryPreview.toJson(parts));
+                json.put("valid", parts.size() > 1 && GeometryPreview.isValid(area, parts));
+                json.put("success", Boolean.TRUE);
+            } catch (Exception e) {
+                log.error("Ibis split preview error", e);
+                json.put("error", e.getLocalizedMessage());
+            }
+        }
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
+
+    /**
+     * Split every current ("bewerkt", or else "definitief") kavel that the
+     * line {@code toSplitWithFeature} (wkt) crosses, in one transaction and
+     * using the "add" strategy: the first part of each kavel keeps its id and
+     * the other parts get new ids. As in {@link WorkflowTransitions} the
+     * "bewerkt" versions of the kavels are archived, the "definitief" versions
+     * only when the parts are "definitief". The kavels are found with one
+     * spatial query, the archive, inserts and ids are done in bulk and the
+     * changed geometries of each affected terrein are updated once. If
+     * anything fails nothing is saved.
+     *
+     * @return json with the number of {@code split} kavels and the
+     * {@code fids} of the new kavels
+     * @throws JSONException if any
+     */
+    public Resolution splitAll() throws JSONException {
+        JSONObject json = new JSONObject().put("success", Boolean.FALSE);
+        EntityManager em = Stripersist.getEntityManager();
+        ApplicationLayer al = this.getAppLayer();
+        DataStoreRegistry.Lease lease = null;
+        Transaction transaction = new DefaultTransaction("ibis_split_all");
+        try {
+            Layer layer = al == null ? null : al.getService().getLayer(al.getLayerName(), em);
+            if (layer == null || layer.getFeatureType() == null) {
+                json.put("error", "App layer or service not found");
+            } else if (!layer.getName().equalsIgnoreCase(KAVEL_LAYER_NAME)) {
+                json.put("error", "Aborting as split layer is not " + KAVEL_LAYER_NAME);
+            } else if (!"add".equalsIgnoreCase(this.getStrategy())) {
+                json.put("error", "Unknown or unsupported strategy '" + this.getStrategy() + "', cannot split.");
+            } else if (!Authorizations.isAppLayerWriteAuthorized(this.getApplication(), al, this.getContext().getRequest(), em)) {
+                json.put("error", "U heeft geen rechten om deze kaartlaag te bewerken");
+            } else {
+                lease = DataStoreRegistry.lease(layer.getFeatureType());
+                SimpleFeatureStore store = (SimpleFeatureStore) lease.getFeatureSource(layer.getFeatureType());
+                store.setTransaction(transaction);
+                Geometry line = new WKTReader().read(this.getToSplitWithFeature());
+                JSONArray newFids = new JSONArray();
+                int split = this.splitAll(store, layer, line, transaction, newFids);
+                json.put("split", split);
+                json.put("fids", newFids);
+                json.put("success", Boolean.TRUE);
+            }
+        } catch (Exception e) {
+            log.error("Ibis splitAll error", e);
+            try {
+                transaction.rollback();
+            } catch (IOException io) {
+                log.error("Rollback van splitsen is mislukt", io);
+            }
+            json.put("error", e.getLocalizedMessage());
+        } finally {
+            try {
+                transaction.close();
+            } catch (IOException io) {
+                // closing transaction failed
+            }
+            if (lease != null) {
+                lease.close();
+            }
+        }
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
+
+    /**
+     * split the kavels crossed by the line and commit.
+     *
+     * @return the number of split kavels
+     */
+    int splitAll(SimpleFeatureStore store, Layer layer, Geometry line, Transaction transaction, JSONArray newFids)
+            throws Exception {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        String geomAttribute = store.getSchema().getGeometryDescriptor().getLocalName();
+        Filter filter = ff.and(
+                ff.intersects(ff.property(geomAttribute), ff.literal(line)),
+                ff.or(
+                        ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false),
+                        ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false)
+                ));
+        // the ids of the crossed kavels
+        Set<Object> crossed = new LinkedHashSet<>();
+        try (SimpleFeatureIterator it = store.getFeatures(filter).features()) {
+            while (it.hasNext()) {
+                crossed.add(it.next().getAttribute(ID_FIELDNAME));
+            }
+        }
+        // the current version of each crossed kavel and all its live versions
+        Map<Object, WorkflowVersions> current = WorkflowVersions.loadCurrent(store, crossed);
+
+        GeometryType type = store.getSchema().getGeometryDescriptor().getType();
+        Converter c = new GeometryTypeConverterFactory().createConverter(Geometry.class, type.getBinding(), null);
+        List<WorkflowVersions> splitKavels = new ArrayList<>();
+        List<SimpleFeature> newFeats = new ArrayList<>();
+        List<SimpleFeature> needIds = new ArrayList<>();
+        for (WorkflowVersions v : current.values()) {
+            SimpleFeature kavel = v.getOriginal();
+            Geometry geom = (Geometry) kavel.getDefaultGeometry();
+            List<Geometry> parts = GeometryPreview.split(PreparedGeometryFactory.prepare(geom), line);
+            if (parts.size() < 2) {
+                // touches, but does not cross
+                continue;
+            }
+            log.debug(String.format("Kavel %s in %d delen splitsen", kavel.getID(), parts.size()));
+            splitKavels.add(v);
+            boolean firstFeature = true;
+            for (Geometry part : parts) {
+                Object newGeom = c == null ? null : c.convert(part, type.getBinding());
+                if (newGeom == null) {
+                    throw new IllegalArgumentException("Deel van kavel " + kavel.getID() + " past niet in de geometrie van " + KAVEL_LAYER_NAME);
+                }
+                SimpleFeature newFeat = DataUtilities.createFeature(kavel.getType(), DataUtilities.encodeFeature(kavel, false));
+                newFeat.setAttribute(geomAttribute, newGeom);
+                if (!firstFeature) {
+                    needIds.add(newFeat);
+                }
+                firstFeature = false;
+                newFeats.add(newFeat);
+            }
+        }
+        if (splitKavels.isEmpty()) {
+            return 0;
+        }
+        // sets the workflow status of the parts
+        newFeats = this.handleExtraData(newFeats);
+        boolean definitief = this.newWorkflowStatus == WorkflowStatus.definitief;
+
+        List<SimpleFeature> archive = new ArrayList<>();
+        // changed kavel geometries per terrein
+        Map<Integer, List<Geometry>> terreinen = new LinkedHashMap<>();
+        for (WorkflowVersions v : splitKavels) {
+            // as in WorkflowTransitions: "definitief" versions are only
+            // replaced by "definitief" parts, "bewerkt" parts are a new edit
+            List<SimpleFeature> versions = new ArrayList<>(v.getBewerkt());
+            if (definitief) {
+                versions.addAll(v.getDefinitief());
+            }
+            archive.addAll(versions);
+            Object terreinID = v.getOriginal().getAttribute(KAVEL_TERREIN_ID_FIELDNAME);
+            if (terreinID != null) {
+                Integer key = Integer.parseInt(terreinID.toString());
+                List<Geometry> changed = terreinen.get(key);
+                if (changed == null) {
+                    changed = new ArrayList<>();
+                    terreinen.put(key, changed);
+                }
+                changed.add((Geometry) v.getOriginal().getDefaultGeometry());
+                for (SimpleFeature version : versions) {
+                    changed.add((Geometry) version.getDefaultGeometry());
+                }
+            }
+        }
+
+        long[] ids = IdAllocator.forStore(store).next(store, needIds.size());
+        for (int i = 0; i < ids.length; i++) {
+            needIds.get(i).setAttribute(ID_FIELDNAME, ids[i]);
+        }
+        WorkflowBatch batch = new WorkflowBatch();
+        // existing features to "archief"
+        batch.archive(archive);
+        for (SimpleFeature newFeat : newFeats) {
+            batch.add(newFeat);
+        }
+        for (FeatureId fid : batch.execute(store)) {
+            newFids.put(fid.getID());
+        }
+
+        // the "bewerkt" terrein includes the "definitief" kavels, so it always
+        // changes; the "definitief" terrein only when "definitief" kavels change
+        WorkflowStatus[] statuses = definitief
+                ? new WorkflowStatus[]{WorkflowStatus.definitief, WorkflowStatus.bewerkt}
+                : new WorkflowStatus[]{WorkflowStatus.bewerkt};
+        Map<Integer, List<WorkflowStatus>> queued = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<Geometry>> e : terreinen.entrySet()) {
+            for (WorkflowStatus status : statuses) {
+                if (!WorkflowUtil.updateTerreinGeometryInTransaction(e.getKey(), layer, store, status,
+                        this.getApplication(), Stripersist.getEntityManager(), e.getValue())) {
+                    List<WorkflowStatus> q = queued.get(e.getKey());
+                    if (q == null) {
+                        q = new ArrayList<>();
+                        queued.put(e.getKey(), q);
+                    }
+                    q.add(status);
+                }
+            }
+        }
+        transaction.commit();
+        ReportCache.invalidate(terreinen.keySet());
+        for (Map.Entry<Integer, List<WorkflowStatus>> e : queued.entrySet()) {
+            for (WorkflowStatus status : e.getValue()) {
+                WorkflowUtil.queueTerreinGeometryUpdate(e.getKey(), layer, status, this.getApplication(),
+                        Stripersist.getEntityManager(), terreinen.get(e.getKey()));
+            }
+        }
+        return splitKavels.size();
     }
 
     /**
      * Called after the split is completed and commit was performed. update
-     * terrein geometry
+     * terrein geometry, unless that was done in the split transaction
      */
     @Override
     protected void afterSplit(List<FeatureId> ids) {
-        if (this.terreinID != null) {
-            WorkflowUtil.updateTerreinGeometry(Integer.parseInt(this.terreinID.toString()), this.getLayer(),
-                    this.newWorkflowStatus, this.getApplication(), Stripersist.getEntityManager());
+        ReportCache.invalidate(this.terreinID);
+        if (this.terreinID != null && !this.terreinUpdated) {
+            WorkflowUtil.queueTerreinGeometryUpdate(Integer.parseInt(this.terreinID.toString()), this.getLayer(),
+                    this.newWorkflowStatus, this.getApplication(), Stripersist.getEntityManager(),
+                    Collections.singletonList(this.changedGeom));
         }
     }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.stripes;
+
+import java.io.StringReader;
+import javax.persistence.EntityManager;
+import net.sourceforge.stripes.action.ActionBean;
+import net.sourceforge.stripes.action.ActionBeanContext;
+import net.sourceforge.stripes.action.Before;
+import net.sourceforge.stripes.action.DefaultHandler;
+import net.sourceforge.stripes.action.Resolution;
+import net.sourceforge.stripes.action.StreamingResolution;
+import net.sourceforge.stripes.action.StrictBinding;
+import net.sourceforge.stripes.action.UrlBinding;
+import net.sourceforge.stripes.controller.LifecycleStage;
+import net.sourceforge.stripes.validation.Validate;
+import nl.b3p.viewer.config.app.Application;
+import nl.b3p.viewer.config.security.Group;
+import nl.b3p.viewer.ibis.util.IbisConstants;
+import nl.b3p.viewer.ibis.report.ReportCache;
+import nl.b3p.viewer.ibis.report.ReportJobManager;
+import nl.b3p.viewer.ibis.report.UitgifteRollup;
+import nl.b3p.viewer.ibis.util.PreviewCache;
+import nl.b3p.viewer.ibis.util.TerreinGeometryQueue;
+import nl.b3p.viewer.ibis.util.TerreinGeometryRebuildJob;
+import nl.b3p.viewer.ibis.util.WorkflowUtil;
+import nl.b3p.viewer.util.DataStoreRegistry;
+import nl.b3p.viewer.util.IbisFeatureToJson;
+import nl.b3p.viewer.util.PropertyNamesCache;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.stripesstuff.stripersist.Stripersist;
+
+/**
+ * Status and maintenance of the IBIS caches and datastore pool for
+ * administrators. Use {@code clearCache} with an optional {@code appLayer} id
+ * after changing the configuration of a layer in the admin, and
+ * {@code rebuildTerreinen} with an {@code application} id to rebuild all
+ * terrein geometries.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+@UrlBinding("/action/ibisstatus")
+@StrictBinding
+public class IbisStatusActionBean implements ActionBean, IbisConstants {
+
+    private static final Log log = LogFactory.getLog(IbisStatusActionBean.class);
+
+    private ActionBeanContext context;
+
+    /**
+     * id of the application layer to clear the cache for, all entries are
+     * removed if not given.
+     */
+    @Validate
+    private Long appLayer;
+
+    /**
+     * id of the application with the kavel and terrein layers to rebuild.
+     */
+    @Validate
+    private Long application;
+
+    private boolean unauthorized;
+
+    @Before(stages = LifecycleStage.EventHandling)
+    public void checkAuthorization() {
+        unauthorized = !context.getRequest().isUserInRole(Group.ADMIN);
+    }
+
+    /**
+     * Metrics of the IBIS caches, datastore pool and terrein geometry
+     * updates.
+     *
+     * @return json with the metrics
+     * @throws JSONException if any
+     */
+    @DefaultHandler
+    public Resolution status() throws JSONException {
+        if (unauthorized) {
+            return this.error("Not authorized.");
+        }
+        JSONObject json = new JSONObject().put("success", Boolean.TRUE);
+        json.put("propertyNamesCache", new JSONObject()
+                .put("size", PropertyNamesCache.size())
+                .put("hits", PropertyNamesCache.getHits())
+                .put("misses", PropertyNamesCache.getMisses())
+                .put("evictions", PropertyNamesCache.getEvictions())
+                .put("maxEntries", PropertyNamesCache.getMaxEntries())
+                .put("timeToLive", PropertyNamesCache.getTimeToLive()));
+        json.put("dataStores", new JSONObject(DataStoreRegistry.getMetrics()));
+        json.put("terreinGeometry", new JSONObject()
+                .put("deltaUpdates", WorkflowUtil.getDeltaUpdates())
+                .put("fullUpdates", WorkflowUtil.getFullUpdates())
+                .put("deltaFallbacks", WorkflowUtil.getDeltaFallbacks())
+                .put("driftDetected", WorkflowUtil.getDriftDetected())
+                .put("sharedTransaction", WorkflowUtil.isSharedTransaction())
+                .put("sharedUpdates", WorkflowUtil.getSharedUpdates())
+                .put("afgevoerdTerreinen", WorkflowUtil.getAfgevoerdTerreinen()));
+        json.put("terreinQueue", new JSONObject(TerreinGeometryQueue.getMetrics()));
+        json.put("previewCache", new JSONObject()
+                .put("hits", PreviewCache.getHits())
+                .put("misses", PreviewCache.getMisses()));
+        json.put("reportCache", new JSONObject(ReportCache.getMetrics()));
+        json.put("reportJobs", new JSONObject(ReportJobManager.getMetrics()));
+        TerreinGeometryRebuildJob job = TerreinGeometryRebuildJob.getCurrent();
+        if (job != null) {
+            json.put("terreinRebuild", new JSONObject(job.getMetrics()));
+        }
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
+
+    /**
+     * Clear the cached configuration of an application layer, or of all
+     * layers.
+     *
+     * @return the metrics after clearing
+     * @throws JSONException if any
+     */
+    public Resolution clearCache() throws JSONException {
+        if (unauthorized) {
+            return this.error("Not authorized.");
+        }
+        if (appLayer != null) {
+            log.info("Legen IBIS cache voor applicatielaag " + appLayer);
+            PropertyNamesCache.invalidate(appLayer);
+        } else {
+            log.info("Legen IBIS cache");
+            PropertyNamesCache.clear();
+        }
+        WorkflowUtil.clearFeatureTypeCache();
+        ReportCache.clear();
+        UitgifteRollup.clear();
+        IbisFeatureToJson.clearWorkflowViewCache();
+        return this.status();
+    }
+
+    /**
+     * Start rebuilding the geometry of all terreinen of the kavel and terrein
+     * layers of an application in the background, see
+     * {@link TerreinGeometryRebuildJob}. The progress is shown in the status.
+     *
+     * @return the metrics after starting
+     * @throws JSONException if any
+     */
+    public Resolution rebuildTerreinen() throws JSONException {
+        if (unauthorized) {
+            return this.error("Not authorized.");
+        }
+        EntityManager em = Stripersist.getEntityManager();
+        Application app = application == null ? null : em.find(Application.class, application);
+        if (app == null) {
+            return this.error("Applicatie niet gevonden.");
+        }
+        try {
+            TerreinGeometryRebuildJob job = TerreinGeometryRebuildJob.start(
+                    WorkflowUtil.getKavelFeatureType(app, em), WorkflowUtil.getTerreinFeatureType(app, em));
+            if (job == null) {
+                return this.error("Herberekenen van terreinen is al gestart.");
+            }
+        } catch (Exception e) {
+            log.error("Starten van herberekenen van terreinen is mislukt", e);
+            return this.error("Starten van herberekenen van terreinen is mislukt: " + e.getLocalizedMessage());
+        }
+        return this.status();
+    }
+
+    private Resolution error(String message) throws JSONException {
+        JSONObject json = new JSONObject().put("success", Boolean.FALSE).put("message", message);
+        return new StreamingResolution("application/json", new StringReader(json.toString()));
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="getters en setters">
+    @Override
+    public ActionBeanContext getContext() {
+        return context;
+    }
+
+    @Override
+    public void setContext(ActionBeanContext context) {
+        this.context = context;
+    }
+
+    public Long getAppLayer() {
+        return appLayer;
+    }
+
+    public void setAppLayer(Long appLayer) {
+        this.appLayer = appLayer;
+    }
+
+    public Long getApplication() {
+        return application;
+    }
+
+    public void setApplication(Long application) {
+        this.application = application;
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.b3p.viewer.config.services.FeatureSource;
+import nl.b3p.viewer.config.services.SimpleFeatureType;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.DataAccess;
+import org.geotools.data.DataStore;
+import org.geotools.data.simple.SimpleFeatureSource;
+
+/**
+ * Keeps one GeoTools {@link DataStore} per flamingo {@link FeatureSource}
+ * configuration, so the connection pool and schema metadata are reused between
+ * requests instead of being created and disposed for every call. Stores are
+ * handed out as refcounted {@link Lease leases}; a store that has not been
+ * leased for {@link #setMaxIdle(long) max idle} milliseconds is disposed by a
+ * background reaper. Pooled stores must never be disposed by their users, use
+ * {@link #isPooled(org.geotools.data.DataAccess)} where ownership is unknown.
+ * <p>
+ * Usage:
+ * <pre>
+ * try (DataStoreRegistry.Lease lease = DataStoreRegistry.lease(ft)) {
+ *     SimpleFeatureSource fs = lease.getFeatureSource(ft);
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class DataStoreRegistry {
+
+    private static final Log log = LogFactory.getLog(DataStoreRegistry.class);
+
+    private static final int TIMEOUT = 5000;
+
+    private static final ConcurrentMap<String, Holder> stores = new ConcurrentHashMap<>();
+    /**
+     * identity set of the pooled stores.
+     */
+    private static final Set<DataStore> pooled = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<DataStore, Boolean>()));
+
+    private static volatile long maxIdle = TimeUnit.MINUTES.toMillis(5);
+    private static ScheduledExecutorService reaper;
+
+    private static final AtomicLong leases = new AtomicLong();
+    private static final AtomicInteger activeLeases = new AtomicInteger();
+    private static final AtomicLong leaseWaitNanos = new AtomicLong();
+    private static final AtomicLong maxLeaseWaitNanos = new AtomicLong();
+    private static final AtomicLong opened = new AtomicLong();
+    private static final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * private constructor for utility class.
+     */
+    private DataStoreRegistry() {
+    }
+
+    /**
+     * A store and its leases.
+     */
+    private static final class Holder {
+
+        private final String key;
+        private DataStore store;
+        private int leaseCount;
+        private long lastReleased = System.currentTimeMillis();
+        private boolean closed;
+
+        Holder(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A lease on a pooled store, close it to return the store to the registry.
+     */
+    public static final class Lease implements AutoCloseable {
+
+        private final Holder holder;
+        private final DataStore store;
+        private boolean released;
+
+        private Lease(Holder holder, DataStore store) {
+            this.holder = holder;
+            this.store = store;
+        }
+
+        public DataStore getDataStore() {
+            return store;
+        }
+
+        /**
+         * Get the feature source of a feature type in this store.
+         *
+         * @param ft feature type of the leased feature source
+         * @return the feature source, a
+         * {@link org.geotools.data.simple.SimpleFeatureStore} if the store is
+         * writable
+         * @throws IOException if the type does not exist in the store
+         */
+        public SimpleFeatureSource getFeatureSource(SimpleFeatureType ft) throws IOException {
+            return store.getFeatureSource(ft.getTypeName());
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            activeLeases.decrementAndGet();
+            synchronized (holder) {
+                holder.leaseCount--;
+                holder.lastReleased = System.currentTimeMillis();
+                if (holder.closed && holder.leaseCount == 0) {
+                    // disposal was deferred by shutdown
+                    close(holder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lease the store of the feature source of a feature type, opening it when
+     * needed.
+     *
+     * @param ft feature type
+     * @return a lease, to be closed after use
+     * @throws Exception if opening the store fails
+     */
+    public static Lease lease(SimpleFeatureType ft) throws Exception {
+        final long start = System.nanoTime();
+        String key = key(ft.getFeatureSource());
+        ensureReaper();
+        while (true) {
+            Holder holder = stores.get(key);
+            if (holder == null) {
+                Holder created = new Holder(key);
+                holder = stores.putIfAbsent(key, created);
+                if (holder == null) {
+                    holder = created;
+                }
+            }
+            synchronized (holder) {
+                if (holder.closed) {
+                    // evicted in the mean time
+                    continue;
+                }
+                if (holder.store == null) {
+                    log.debug("Openen datastore voor " + key);
+                    try {
+                        holder.store = (DataStore) ft.openGeoToolsFeatureSource(TIMEOUT).getDataStore();
+                    } catch (Exception e) {
+                        holder.closed = true;
+                        stores.remove(key, holder);
+                        throw e;
+                    }
+                    pooled.add(holder.store);
+                    opened.incrementAndGet();
+                }
+                holder.leaseCount++;
+                leases.incrementAndGet();
+                activeLeases.incrementAndGet();
+                long wait = System.nanoTime() - start;
+                leaseWaitNanos.addAndGet(wait);
+                long max = maxLeaseWaitNanos.get();
+                while (wait > max && !maxLeaseWaitNanos.compareAndSet(max, wait)) {
+                    max = maxLeaseWaitNanos.get();
+                }
+                return new Lease(holder, holder.store);
+            }
+        }
+    }
+
+    /**
+     * Test if a store is managed by the registry.
+     *
+     * @param store store to test
+     * @return {@code true} if the store must not be disposed by its user
+     */
+    public static boolean isPooled(DataAccess<?, ?> store) {
+        return pooled.contains(store);
+    }
+
+    /**
+     * Dispose the stores that have been idle longer than max idle time.
+     */
+    static void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Holder holder : stores.values()) {
+            synchronized (holder) {
+                if (holder.leaseCount == 0 && now - holder.lastReleased > maxIdle) {
+                    close(holder);
+                    evicted.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * close the holder, caller must hold the lock.
+     */
+    private static void close(Holder holder) {
+        holder.closed = true;
+        stores.remove(holder.key, holder);
+        if (holder.store != null) {
+            log.debug("Sluiten datastore voor " + holder.key);
+            pooled.remove(holder.store);
+            try {
+                holder.store.dispose();
+            } catch (RuntimeException e) {
+                log.warn("Sluiten datastore is mislukt: " + holder.key, e);
+            }
+            holder.store = null;
+        }
+    }
+
+    /**
+     * Dispose all stores and stop the reaper, eg. when the webapp stops.
+     * Leases that are still open keep their store until they are closed, the
+     * store is disposed when its last lease is closed.
+     */
+    public static synchronized void shutdown() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+        for (Holder holder : stores.values()) {
+            synchronized (holder) {
+                if (holder.leaseCount > 0) {
+                    log.warn(String.format("Datastore %s heeft nog %d lease(s) bij afsluiten, sluiten na de laatste lease", holder.key, holder.leaseCount));
+                    // new leases get a new store, this one is disposed by the last lease
+                    holder.closed = true;
+                    stores.remove(holder.key, holder);
+                } else {
+                    close(holder);
+                }
+            }
+        }
+    }
+
+    private static synchronized void ensureReaper() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ibis-datastore-reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(TimeUnit.SECONDS.toMillis(10), maxIdle / 2);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evictIdle();
+                } catch (RuntimeException e) {
+                    log.error("Opruimen van datastores is mislukt", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * key for the configuration of the feature source, a changed url or user
+     * results in a new store.
+     */
+    private static String key(FeatureSource fs) {
+        return fs.getId() + "|" + fs.getUrl() + "|" + fs.getUsername();
+    }
+
+    /**
+     * Set the time an unused store is kept open.
+     *
+     * @param millis max idle time in milliseconds
+     */
+    public static void setMaxIdle(long millis) {
+        maxIdle = millis;
+    }
+
+    public static long getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @return the number of open stores
+     */
+    public static int getOpenStores() {
+        return stores.size();
+    }
+
+    public static int getActiveLeases() {
+        return activeLeases.get();
+    }
+
+    public static long getLeases() {
+        return leases.get();
+    }
+
+    /**
+     * @return the number of stores opened since startup
+     */
+    public static long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return the number of idle stores disposed since startup
+     */
+    public static long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * @return the total time spent waiting for a lease, including opening
+     * stores, in milliseconds
+     */
+    public static long getLeaseWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(leaseWaitNanos.get());
+    }
+
+    /**
+     * @return the longest time spent waiting for a lease in milliseconds
+     */
+    public static long getMaxLeaseWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLeaseWaitNanos.get());
+    }
+
+    /**
+     * @return the metrics as a map, eg. for status pages
+     */
+    public static Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("openStores", getOpenStores());
+        m.put("activeLeases", getActiveLeases());
+        m.put("leases", getLeases());
+        m.put("opened", getOpened());
+        m.put("evicted", getEvicted());
+        m.put("leaseWaitMillis", getLeaseWaitMillis());
+        m.put("maxLeaseWaitMillis", getMaxLeaseWaitMillis());
+        m.put("maxIdle", getMaxIdle());
+        return m;
+    }
+}
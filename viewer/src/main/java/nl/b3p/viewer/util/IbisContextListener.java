@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.util;
+
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import nl.b3p.viewer.ibis.report.ReportCache;
+import nl.b3p.viewer.ibis.report.ReportJobManager;
+import nl.b3p.viewer.ibis.util.IdAllocator;
+import nl.b3p.viewer.ibis.util.ParallelUnion;
+import nl.b3p.viewer.ibis.util.TerreinGeometryQueue;
+import nl.b3p.viewer.ibis.util.WorkflowUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Configures the IBIS caches and pools from the context parameters and shuts
+ * them down when the webapp stops.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class IbisContextListener implements ServletContextListener {
+
+    private static final Log log = LogFactory.getLog(IbisContextListener.class);
+
+    /**
+     * context parameter for the max idle time of pooled datastores in
+     * seconds. {@value}
+     */
+    public static final String DATASTORE_MAX_IDLE = "ibis.datastore.maxIdle";
+    /**
+     * context parameter for the time to live of the property names cache in
+     * seconds. {@value}
+     */
+    public static final String PROPERTYNAMES_TTL = "ibis.propertynames.ttl";
+    /**
+     * context parameter for the maximum number of entries of the property
+     * names cache. {@value}
+     */
+    public static final String PROPERTYNAMES_SIZE = "ibis.propertynames.size";
+    /**
+     * context parameter for the quiet period of the terrein geometry queue in
+     * milliseconds. {@value}
+     */
+    public static final String TERREIN_QUEUE_DELAY = "ibis.terreinqueue.delay";
+    /**
+     * context parameter to update the terrein geometry in the transaction of
+     * the kavel mutation, {@code true} or {@code false}. {@value}
+     */
+    public static final String TERREIN_SHARED_TRANSACTION = "ibis.terrein.sharedTransaction";
+    /**
+     * context parameter for the number of ibis_id values that are fetched at
+     * once. {@value}
+     */
+    public static final String ID_BLOCK_SIZE = "ibis.id.blockSize";
+    /**
+     * context parameter to hand out ibis_id values from memory when a table
+     * has no sequence, {@code true} or {@code false}. {@value}
+     */
+    public static final String ID_MEMORY_FALLBACK = "ibis.id.memoryFallback";
+    /**
+     * context parameter for the time to live of the report cache in seconds.
+     * {@value}
+     */
+    public static final String REPORT_CACHE_TTL = "ibis.reportcache.ttl";
+    /**
+     * context parameter for the maximum number of cached reports. {@value}
+     */
+    public static final String REPORT_CACHE_SIZE = "ibis.reportcache.size";
+    /**
+     * context parameter for the maximum number of report jobs that run at the
+     * same time. {@value}
+     */
+    public static final String REPORT_JOBS_THREADS = "ibis.reportjobs.threads";
+    /**
+     * context parameter for the maximum number of waiting report jobs.
+     * {@value}
+     */
+    public static final String REPORT_JOBS_QUEUE = "ibis.reportjobs.queue";
+    /**
+     * context parameter for the time to live of finished report jobs in
+     * seconds. {@value}
+     */
+    public static final String REPORT_JOBS_TTL = "ibis.reportjobs.ttl";
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        ServletContext ctx = sce.getServletContext();
+        Long maxIdle = getNumber(ctx, DATASTORE_MAX_IDLE);
+        if (maxIdle != null) {
+            DataStoreRegistry.setMaxIdle(TimeUnit.SECONDS.toMillis(maxIdle));
+        }
+        Long ttl = getNumber(ctx, PROPERTYNAMES_TTL);
+        if (ttl != null) {
+            PropertyNamesCache.setTimeToLive(TimeUnit.SECONDS.toMillis(ttl));
+        }
+        Long namesSize = getNumber(ctx, PROPERTYNAMES_SIZE);
+        if (namesSize != null && namesSize > 0) {
+            PropertyNamesCache.setMaxEntries(namesSize.intValue());
+        }
+        Long delay = getNumber(ctx, TERREIN_QUEUE_DELAY);
+        if (delay != null) {
+            TerreinGeometryQueue.setDelay(delay);
+        }
+        String shared = ctx.getInitParameter(TERREIN_SHARED_TRANSACTION);
+        if (shared != null) {
+            WorkflowUtil.setSharedTransaction(Boolean.parseBoolean(shared.trim()));
+        }
+        Long blockSize = getNumber(ctx, ID_BLOCK_SIZE);
+        if (blockSize != null && blockSize > 0) {
+            IdAllocator.setDefaultBlockSize(blockSize.intValue());
+        }
+        String memoryIds = ctx.getInitParameter(ID_MEMORY_FALLBACK);
+        if (memoryIds != null && Boolean.parseBoolean(memoryIds.trim())) {
+            log.warn("Ids van kavels en terreinen zonder sequentie worden in het geheugen uitgegeven, dit is alleen veilig met een enkele viewer.");
+            IdAllocator.setMemoryFallback(true);
+        }
+        Long reportTtl = getNumber(ctx, REPORT_CACHE_TTL);
+        if (reportTtl != null) {
+            ReportCache.setTimeToLive(TimeUnit.SECONDS.toMillis(reportTtl));
+        }
+        Long reportSize = getNumber(ctx, REPORT_CACHE_SIZE);
+        if (reportSize != null && reportSize >= 0) {
+            ReportCache.setMaxEntries(reportSize.intValue());
+        }
+        Long jobThreads = getNumber(ctx, REPORT_JOBS_THREADS);
+        if (jobThreads != null && jobThreads > 0) {
+            ReportJobManager.setMaxRunning(jobThreads.intValue());
+        }
+        Long jobQueue = getNumber(ctx, REPORT_JOBS_QUEUE);
+        if (jobQueue != null && jobQueue >= 0) {
+            ReportJobManager.setMaxQueued(jobQueue.intValue());
+        }
+        Long jobTtl = getNumber(ctx, REPORT_JOBS_TTL);
+        if (jobTtl != null) {
+            ReportJobManager.setTimeToLive(TimeUnit.SECONDS.toMillis(jobTtl));
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        log.debug("Afsluiten IBIS terrein updates, rapporten en datastores");
+        TerreinGeometryQueue.shutdown(TimeUnit.SECONDS.toMillis(30));
+        ReportJobManager.shutdown();
+        ParallelUnion.shutdown();
+        DataStoreRegistry.shutdown();
+        PropertyNamesCache.clear();
+        WorkflowUtil.clearFeatureTypeCache();
+        IbisFeatureToJson.clearWorkflowViewCache();
+        IdAllocator.clear();
+        ReportCache.clear();
+    }
+
+    /**
+     * read a context parameter as a number.
+     *
+     * @return the value or {@code null} if not set or invalid
+     */
+    protected static Long getNumber(ServletContext ctx, String name) {
+        String value = ctx.getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            log.error(String.format("Ongeldige waarde '%s' voor %s, standaardwaarde wordt gebruikt.", value, name));
+            return null;
+        }
+    }
+}
@@ -16,46 +16,52 @@
  */
 package nl.b3p.viewer.util;
 
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
 import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import nl.b3p.viewer.config.app.ApplicationLayer;
-import nl.b3p.viewer.config.app.ConfiguredAttribute;
 import nl.b3p.viewer.config.services.AttributeDescriptor;
 import nl.b3p.viewer.config.services.FeatureTypeRelation;
 import nl.b3p.viewer.config.services.FeatureTypeRelationKey;
 import nl.b3p.viewer.config.services.SimpleFeatureType;
 import static nl.b3p.viewer.ibis.util.IbisConstants.ID_FIELDNAME;
-import static nl.b3p.viewer.ibis.util.IbisConstants.MUTATIEDATUM_FIELDNAME;
+import static nl.b3p.viewer.ibis.util.IbisConstants.WORKFLOW_VIEW_PREFIX;
 import static nl.b3p.viewer.ibis.util.IbisConstants.WORKFLOW_FIELDNAME;
 import nl.b3p.viewer.ibis.util.WorkflowStatus;
+import nl.b3p.viewer.ibis.util.WorkflowVersionResolver;
 import static nl.b3p.viewer.stripes.FeatureInfoActionBean.FID;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.FeatureIterator;
-import org.geotools.feature.collection.SortedSimpleFeatureCollection;
 import org.geotools.filter.text.cql2.CQL;
+import org.geotools.jdbc.JDBCDataStore;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
-import org.opengis.filter.expression.Function;
-import org.opengis.filter.sort.SortBy;
-import org.opengis.filter.sort.SortOrder;
 
 /**
  * This is a custom version of {@link FeatureToJson}.
@@ -71,7 +77,6 @@ public class IbisFeatureToJson {
     private boolean edit = false;
     private boolean graph = false;
     private List<Long> attributesToInclude = new ArrayList<>();
-    private static final int TIMEOUT = 5000;
 
     public IbisFeatureToJson(boolean arrays, boolean edit, boolean graph, List<Long> attributesToInclude) {
         this.arrays = arrays;
@@ -80,6 +85,56 @@ public class IbisFeatureToJson {
         this.attributesToInclude = attributesToInclude;
     }
 
+    /**
+     * Receives the features one at a time, as they are converted.
+     */
+    private interface FeatureSink {
+
+        void add(JSONObject feature) throws JSONException, IOException;
+    }
+
+    /**
+     * Collects features in a JSONArray.
+     */
+    private static class JSONArraySink implements FeatureSink {
+
+        private final JSONArray features = new JSONArray();
+
+        @Override
+        public void add(JSONObject feature) {
+            features.put(feature);
+        }
+    }
+
+    /**
+     * Writes features to a stream as the elements of a json array, without
+     * keeping them in memory.
+     */
+    private static class WriterSink implements FeatureSink {
+
+        private final Writer out;
+        private boolean first = true;
+
+        WriterSink(Writer out) throws IOException {
+            this.out = out;
+            this.out.write('[');
+        }
+
+        @Override
+        public void add(JSONObject feature) throws JSONException, IOException {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            feature.write(out);
+        }
+
+        void close() throws IOException {
+            out.write(']');
+            out.flush();
+        }
+    }
+
     /**
      * Get the features as JSONArray with the given params
      *
@@ -93,6 +148,36 @@ public class IbisFeatureToJson {
      * @throws Exception
      */
     public JSONArray getWorkflowJSONFeatures(ApplicationLayer al, SimpleFeatureType ft, FeatureSource fs, Query q) throws IOException, JSONException, Exception {
+        JSONArraySink sink = new JSONArraySink();
+        this.workflowFeatures(al, ft, fs, q, sink);
+        return sink.features;
+    }
+
+    /**
+     * Write the features as a json array with the given params to the writer,
+     * the array has the same content as
+     * {@link #getWorkflowJSONFeatures(nl.b3p.viewer.config.app.ApplicationLayer, nl.b3p.viewer.config.services.SimpleFeatureType, org.geotools.data.FeatureSource, org.geotools.data.Query)}.
+     *
+     * @param al The application layer(if there is a application layer)
+     * @param ft The featuretype that must be used to get the features
+     * @param fs The featureSource
+     * @param q The query
+     * @param out writer for the json array, the array is also closed when
+     * reading the features fails
+     * @throws IOException
+     * @throws JSONException
+     * @throws Exception
+     */
+    public void writeWorkflowJSONFeatures(ApplicationLayer al, SimpleFeatureType ft, FeatureSource fs, Query q, Writer out) throws IOException, JSONException, Exception {
+        WriterSink sink = new WriterSink(out);
+        try {
+            this.workflowFeatures(al, ft, fs, q, sink);
+        } finally {
+            sink.close();
+        }
+    }
+
+    private void workflowFeatures(ApplicationLayer al, SimpleFeatureType ft, FeatureSource fs, Query q, FeatureSink sink) throws IOException, JSONException, Exception {
         log.debug("Ophalen workflow json features met: " + q);
         Map<String, String> attributeAliases = new HashMap<>();
         if (!edit) {
@@ -127,74 +212,113 @@ public class IbisFeatureToJson {
             q.setMaxFeatures(q.getMaxFeatures() + start);
         }
 
-        JSONArray features = new JSONArray();
         try {
-            // workflow handling
-            SimpleFeatureCollection feats = (SimpleFeatureCollection) fs.getFeatures(q);
-            // get a list of unique ID_FIELDNAME
-            FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
-            Function uniq = ff.function("Collection_Unique", ff.property(ID_FIELDNAME));
-            Set<Object> idlist = (Set<Object>) uniq.evaluate(feats);
-
-            SimpleFeatureCollection inMem = DataUtilities.collection(feats);
-            List<SimpleFeature> actueel = new ArrayList<>();
-
-            // this works as follows:
-            //  - filter out all definitief and bewerkt for a certain id
-            //  - sort that set ascending by WORKFLOW_FIELDNAME
-            //  - sort that set descending by MUTATIEDATUM_FIELDNAME
-            //  - get the first feature from the collection
-            // which should be the youngest bewerkt or definitief
-            SimpleFeature actFeat;
-            SortedSimpleFeatureCollection sorted;
-            Filter filter;
-            SortBy[] sortBy = new SortBy[]{
-                ff.sort(WORKFLOW_FIELDNAME, SortOrder.ASCENDING),
-                ff.sort(MUTATIEDATUM_FIELDNAME, SortOrder.DESCENDING)
-            };
-            if (idlist != null && idlist.size() > 0) {
-                for (Object id : idlist) {
-                    filter = ff.and(
-                            ff.equals(ff.property(ID_FIELDNAME), ff.literal(id)),
-                            ff.or(
-                                    ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false),
-                                    ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false)
-                            ));
-                    sorted = new SortedSimpleFeatureCollection(inMem.subCollection(filter), sortBy);
-                    log.debug("aantal gevonden: " + sorted.size());
-                    if (log.isDebugEnabled()) {
-                        SimpleFeatureIterator sfi = sorted.features();
-                        while (sfi.hasNext()) {
-                            log.debug("gevonden feature: " + sfi.next());
+            if (shouldRemoveID_FIELDbeforeJSONify) {
+                propertyNames.remove(ID_FIELDNAME);
+            }
+            int featureIndex = 0;
+            JoinBatch joins = new JoinBatch(ft, al, sink);
+
+            SimpleFeatureSource workflowFs = getWorkflowFeatureSource(ft, fs);
+            if (workflowFs != null) {
+                // the datastore only returns the current version for each ID_FIELDNAME
+                log.debug("Gebruik workflow view " + workflowFs.getName());
+                Query wq = new Query(q);
+                wq.setTypeName(workflowFs.getName().getLocalPart());
+                String viewFidPrefix = workflowFs.getName().getLocalPart() + ".";
+                String fidPrefix = fs.getName().getLocalPart() + ".";
+                try (SimpleFeatureIterator sfi = workflowFs.getFeatures(wq).features()) {
+                    while (sfi.hasNext()) {
+                        SimpleFeature feature = sfi.next();
+                        if (offsetSupported || featureIndex >= start) {
+                            // use the fid of the layer instead of the view so features can be edited
+                            String fid = feature.getID();
+                            if (fid.startsWith(viewFidPrefix)) {
+                                fid = fidPrefix + fid.substring(viewFidPrefix.length());
+                            }
+                            this.addFeature(joins, new JSONObject().put(FID, fid), feature, ft, propertyNames, attributeAliases);
                         }
-                    }
-                    actFeat = DataUtilities.first(sorted);
-                    log.debug("actuele feature: " + actFeat);
-                    if (actFeat != null) {
-                        actueel.add(actFeat);
+                        featureIndex++;
                     }
                 }
-
-                int featureIndex = 0;
-
-                if (shouldRemoveID_FIELDbeforeJSONify) {
-                    propertyNames.remove(ID_FIELDNAME);
+            } else {
+                // workflow handling
+                SimpleFeatureCollection feats = (SimpleFeatureCollection) fs.getFeatures(q);
+                // resolve the youngest bewerkt or definitief feature for each ID_FIELDNAME
+                //  in a single pass, see WorkflowVersionResolver
+                List<SimpleFeature> actueel;
+                try (SimpleFeatureIterator sfi = feats.features()) {
+                    actueel = WorkflowVersionResolver.resolve(sfi);
                 }
+                log.debug("aantal actuele features: " + actueel.size());
 
                 for (SimpleFeature feature : actueel) {
                     /* if offset not supported and there are more features returned then
                      * only get the features after index >= start*/
                     if (offsetSupported || featureIndex >= start) {
-                        JSONObject j = this.toJSONFeature(new JSONObject(), feature, ft, al, propertyNames, attributeAliases, 0);
-                        features.put(j);
+                        this.addFeature(joins, new JSONObject(), feature, ft, propertyNames, attributeAliases);
                     }
                     featureIndex++;
                 }
             }
+            joins.flush();
         } finally {
+            disposeUnlessPooled(fs);
+        }
+    }
+
+    /**
+     * dispose the datastore of the featuresource, unless it is managed by the
+     * {@link DataStoreRegistry}.
+     */
+    private static void disposeUnlessPooled(FeatureSource fs) {
+        if (!DataStoreRegistry.isPooled(fs.getDataStore())) {
             fs.getDataStore().dispose();
         }
-        return features;
+    }
+
+    /**
+     * cache of the feature type id's that have a {@code WORKFLOW_VIEW_PREFIX}
+     * view in their datastore.
+     */
+    private static final ConcurrentMap<Long, Boolean> workflowViewCache = new ConcurrentHashMap<>();
+
+    /**
+     * forget which feature types have a workflow view, eg. after creating the
+     * views.
+     */
+    public static void clearWorkflowViewCache() {
+        workflowViewCache.clear();
+    }
+
+    /**
+     * Look up the workflow view for the featuresource in the same (JDBC)
+     * datastore, eg. {@code v_workflow_bedrijvenkavels} for
+     * {@code bedrijvenkavels}.
+     *
+     * @param ft flamingo feature type of the featuresource
+     * @param fs featuresource to find the view for
+     * @return the view featuresource or {@code null} if the datastore does not
+     * have the view
+     */
+    private SimpleFeatureSource getWorkflowFeatureSource(SimpleFeatureType ft, FeatureSource fs) {
+        if (!(fs.getDataStore() instanceof JDBCDataStore)) {
+            return null;
+        }
+        Boolean hasView = workflowViewCache.get(ft.getId());
+        if (hasView != null && !hasView) {
+            return null;
+        }
+        String viewName = WORKFLOW_VIEW_PREFIX + fs.getName().getLocalPart();
+        SimpleFeatureSource workflowFs = null;
+        try {
+            workflowFs = ((JDBCDataStore) fs.getDataStore()).getFeatureSource(viewName);
+        } catch (IOException e) {
+            log.info(String.format("Workflow view %s is niet beschikbaar, workflow wordt in de viewer bepaald.", viewName));
+            log.debug(e);
+        }
+        workflowViewCache.put(ft.getId(), workflowFs != null);
+        return workflowFs;
     }
 
     /**
@@ -211,6 +335,38 @@ public class IbisFeatureToJson {
      */
     public JSONArray getDefinitiefJSONFeatures(ApplicationLayer al, SimpleFeatureType ft, FeatureSource fs, Query q)
             throws IOException, JSONException, Exception {
+        JSONArraySink sink = new JSONArraySink();
+        this.definitiefFeatures(al, ft, fs, q, sink);
+        return sink.features;
+    }
+
+    /**
+     * Write the features as a json array with the given params to the writer,
+     * the array has the same content as
+     * {@link #getDefinitiefJSONFeatures(nl.b3p.viewer.config.app.ApplicationLayer, nl.b3p.viewer.config.services.SimpleFeatureType, org.geotools.data.FeatureSource, org.geotools.data.Query)}.
+     *
+     * @param al The application layer(if there is a application layer)
+     * @param ft The featuretype that must be used to get the features
+     * @param fs The featureSource
+     * @param q The query
+     * @param out writer for the json array, the array is also closed when
+     * reading the features fails
+     * @throws IOException
+     * @throws JSONException
+     * @throws Exception
+     */
+    public void writeDefinitiefJSONFeatures(ApplicationLayer al, SimpleFeatureType ft, FeatureSource fs, Query q, Writer out)
+            throws IOException, JSONException, Exception {
+        WriterSink sink = new WriterSink(out);
+        try {
+            this.definitiefFeatures(al, ft, fs, q, sink);
+        } finally {
+            sink.close();
+        }
+    }
+
+    private void definitiefFeatures(ApplicationLayer al, SimpleFeatureType ft, FeatureSource fs, Query q, FeatureSink sink)
+            throws IOException, JSONException, Exception {
         log.debug("Ophalen definitief json features met: " + q);
         Map<String, String> attributeAliases = new HashMap<>();
         if (!edit) {
@@ -240,36 +396,63 @@ public class IbisFeatureToJson {
             q.setMaxFeatures(q.getMaxFeatures() + start);
         }
 
-        JSONArray features = new JSONArray();
         try {
             // only get 'definitief'
             SimpleFeatureCollection feats = (SimpleFeatureCollection) fs.getFeatures(q);
             FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
             Filter definitief = ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false);
-            SimpleFeatureCollection defSFC = DataUtilities.collection(feats.subCollection(definitief));
 
             int featureIndex = 0;
+            JoinBatch joins = new JoinBatch(ft, al, sink);
             SimpleFeature feature;
-            try (SimpleFeatureIterator defs = defSFC.features()) {
+            try (SimpleFeatureIterator defs = feats.subCollection(definitief).features()) {
                 while (defs.hasNext()) {
                     feature = defs.next();
                     /* if offset not supported and there are more features returned then
                      * only get the features after index >= start*/
                     if (offsetSupported || featureIndex >= start) {
-                        JSONObject j = this.toJSONFeature(new JSONObject(), feature, ft, al, propertyNames, attributeAliases, 0);
-                        features.put(j);
+                        this.addFeature(joins, new JSONObject(), feature, ft, propertyNames, attributeAliases);
                     }
                     featureIndex++;
                 }
             }
+            joins.flush();
         } finally {
-            fs.getDataStore().dispose();
+            disposeUnlessPooled(fs);
         }
-        return features;
     }
 
+    /**
+     * Convert a feature, including the features of its relations.
+     */
     private JSONObject toJSONFeature(JSONObject j, SimpleFeature f, SimpleFeatureType ft, ApplicationLayer al, List<String> propertyNames, Map<String, String> attributeAliases, int index)
             throws JSONException, Exception {
+        index = this.putAttributes(j, f, propertyNames, attributeAliases, index);
+        if (ft.hasRelations()) {
+            JoinBatch joins = new JoinBatch(ft, al, null);
+            joins.queue(j, f, index);
+            joins.resolve();
+        }
+        return j;
+    }
+
+    /**
+     * Convert a feature and hand it to the batch, the batch will add the
+     * joined features and pass it on to the sink.
+     */
+    private void addFeature(JoinBatch joins, JSONObject j, SimpleFeature f, SimpleFeatureType ft, List<String> propertyNames, Map<String, String> attributeAliases)
+            throws JSONException, Exception {
+        int index = this.putAttributes(j, f, propertyNames, attributeAliases, 0);
+        joins.add(j, f, index);
+    }
+
+    /**
+     * put the attribute values and the feature id in the json object.
+     *
+     * @return the next index when using arrays
+     */
+    private int putAttributes(JSONObject j, SimpleFeature f, List<String> propertyNames, Map<String, String> attributeAliases, int index)
+            throws JSONException {
         if (arrays) {
             for (String name : propertyNames) {
                 Object value = f.getAttribute(name);
@@ -291,139 +474,307 @@ public class IbisFeatureToJson {
             String id = f.getID();
             j.put(FID, id);
         }
-        if (ft.hasRelations()) {
-            j = populateWithRelatedFeatures(j, f, ft, al, index);
+        return index;
+    }
+
+    /**
+     * Add the filters for the related (non-join) featuretypes to the json
+     * object.
+     */
+    private void addRelatedFeatureTypes(JSONObject j, SimpleFeature feature, SimpleFeatureType ft) throws JSONException {
+        JSONArray related_featuretypes = new JSONArray();
+        for (FeatureTypeRelation rel : ft.getRelations()) {
+            if (rel.getType().equals(FeatureTypeRelation.JOIN)) {
+                continue;
+            }
+            Filter filter = createFilter(feature, rel);
+            if (filter == null) {
+                continue;
+            }
+            JSONObject related_ft = new JSONObject();
+            related_ft.put("filter", CQL.toCQL(filter));
+            related_ft.put("id", rel.getForeignFeatureType().getId());
+            related_featuretypes.put(related_ft);
+        }
+        if (related_featuretypes.length() > 0) {
+            j.put("related_featuretypes", related_featuretypes);
         }
-        return j;
     }
 
     /**
-     * Populate the json object with related featues
+     * number of features for which the features of a join are retrieved using
+     * a single query.
      */
-    private JSONObject populateWithRelatedFeatures(JSONObject j, SimpleFeature feature, SimpleFeatureType ft, ApplicationLayer al, int index) throws Exception {
-        if (ft.hasRelations()) {
-            JSONArray related_featuretypes = new JSONArray();
+    private static final int JOIN_BATCH_SIZE = 250;
+
+    /**
+     * Populates a batch of converted features with their joined features. For
+     * every {@link FeatureTypeRelation#JOIN} relation the related features of
+     * the whole batch are retrieved with one query, instead of a query per
+     * feature, and matched back to the features; as before only the first
+     * matching feature is joined. Features are passed on to the sink in the
+     * order they were added.
+     */
+    private class JoinBatch {
+
+        private final SimpleFeatureType ft;
+        private final ApplicationLayer al;
+        private final FeatureSink sink;
+        private final boolean hasJoins;
+        private final List<JSONObject> jsons = new ArrayList<>();
+        private final List<SimpleFeature> features = new ArrayList<>();
+        private final List<Integer> indexes = new ArrayList<>();
+
+        JoinBatch(SimpleFeatureType ft, ApplicationLayer al, FeatureSink sink) {
+            this.ft = ft;
+            this.al = al;
+            this.sink = sink;
+            boolean joins = false;
+            if (ft.hasRelations()) {
+                for (FeatureTypeRelation rel : ft.getRelations()) {
+                    joins = joins || rel.getType().equals(FeatureTypeRelation.JOIN);
+                }
+            }
+            this.hasJoins = joins;
+        }
+
+        /**
+         * add a feature to the batch, the batch is flushed when full.
+         */
+        void add(JSONObject j, SimpleFeature f, int index) throws Exception {
+            if (!hasJoins) {
+                if (ft.hasRelations()) {
+                    addRelatedFeatureTypes(j, f, ft);
+                }
+                sink.add(j);
+                return;
+            }
+            this.queue(j, f, index);
+            if (jsons.size() >= JOIN_BATCH_SIZE) {
+                this.flush();
+            }
+        }
+
+        void queue(JSONObject j, SimpleFeature f, int index) {
+            jsons.add(j);
+            features.add(f);
+            indexes.add(index);
+        }
+
+        /**
+         * join the queued features and pass them on to the sink.
+         */
+        void flush() throws Exception {
+            if (jsons.isEmpty()) {
+                return;
+            }
+            this.resolve();
+            for (JSONObject j : jsons) {
+                sink.add(j);
+            }
+            jsons.clear();
+            features.clear();
+            indexes.clear();
+        }
+
+        /**
+         * join the queued features, then add their related featuretypes so
+         * these replace those of the joined features.
+         */
+        void resolve() throws Exception {
             for (FeatureTypeRelation rel : ft.getRelations()) {
-                boolean isJoin = rel.getType().equals(FeatureTypeRelation.JOIN);
-                if (isJoin) {
-                    FeatureSource foreignFs = rel.getForeignFeatureType().openGeoToolsFeatureSource(TIMEOUT);
-                    FeatureIterator<SimpleFeature> foreignIt = null;
-                    try {
-                        Query foreignQ = new Query(foreignFs.getName().toString());
-                        //create filter
-                        Filter filter = createFilter(feature, rel);
-                        if (filter == null) {
-                            continue;
-                        }
-                        //if join only get 1 feature
-                        foreignQ.setMaxFeatures(1);
-                        foreignQ.setFilter(filter);
-                        //set propertynames
-                        List<String> propertyNames;
-                        if (al != null) {
-                            propertyNames = setPropertyNames(al, foreignQ, rel.getForeignFeatureType(), edit);
-                        } else {
-                            propertyNames = new ArrayList<>();
-                            for (AttributeDescriptor ad : rel.getForeignFeatureType().getAttributes()) {
-                                propertyNames.add(ad.getName());
-                            }
-                        }
-                        if (propertyNames.isEmpty()) {
-                            // if there are no properties to retrieve just get out
-                            continue;
-                        }
-                        //get aliases
-                        Map<String, String> attributeAliases = new HashMap<>();
-                        if (!edit) {
-                            for (AttributeDescriptor ad : rel.getForeignFeatureType().getAttributes()) {
-                                if (ad.getAlias() != null) {
-                                    attributeAliases.put(ad.getName(), ad.getAlias());
-                                }
-                            }
+                if (rel.getType().equals(FeatureTypeRelation.JOIN)) {
+                    this.join(rel);
+                }
+            }
+            for (int i = 0; i < jsons.size(); i++) {
+                addRelatedFeatureTypes(jsons.get(i), features.get(i), ft);
+            }
+        }
+
+        private void join(FeatureTypeRelation rel) throws Exception {
+            FeatureTypeRelationKey geomKey = null;
+            for (FeatureTypeRelationKey key : rel.getRelationKeys()) {
+                if (AttributeDescriptor.GEOMETRY_TYPES.contains(key.getRightSide().getType())
+                        && AttributeDescriptor.GEOMETRY_TYPES.contains(key.getLeftSide().getType())) {
+                    geomKey = key;
+                    break;
+                }
+            }
+
+            // create the filter for every feature, skipping duplicate keys
+            Filter[] filters = new Filter[features.size()];
+            String[] keys = new String[features.size()];
+            Set<List<String>> keyNames = new HashSet<>();
+            Set<String> seen = new HashSet<>();
+            List<Filter> batchFilters = new ArrayList<>();
+            for (int i = 0; i < filters.length; i++) {
+                filters[i] = createFilter(features.get(i), rel);
+                if (filters[i] == null) {
+                    continue;
+                }
+                if (geomKey == null) {
+                    List<String> left = new ArrayList<>();
+                    List<String> right = new ArrayList<>();
+                    for (FeatureTypeRelationKey key : rel.getRelationKeys()) {
+                        if (features.get(i).getAttribute(key.getLeftSide().getName()) != null) {
+                            left.add(key.getLeftSide().getName());
+                            right.add(key.getRightSide().getName());
                         }
-                        //Get Feature and populate JSON object with the values.
-                        foreignIt = foreignFs.getFeatures(foreignQ).features();
-                        while (foreignIt.hasNext()) {
-                            SimpleFeature foreignFeature = foreignIt.next();
-                            //join it in the same json
-                            j = toJSONFeature(j, foreignFeature, rel.getForeignFeatureType(), al, propertyNames, attributeAliases, index);
+                    }
+                    keyNames.add(right);
+                    keys[i] = joinKey(features.get(i), left, right);
+                    if (!seen.add(keys[i])) {
+                        continue;
+                    }
+                }
+                batchFilters.add(filters[i]);
+            }
+            if (batchFilters.isEmpty()) {
+                return;
+            }
+
+            SimpleFeatureType foreignFt = rel.getForeignFeatureType();
+            try (DataStoreRegistry.Lease lease = DataStoreRegistry.lease(foreignFt)) {
+                FeatureSource foreignFs = lease.getFeatureSource(foreignFt);
+                Query foreignQ = new Query(foreignFs.getName().toString());
+                FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+                foreignQ.setFilter(batchFilters.size() == 1 ? batchFilters.get(0) : ff.or(batchFilters));
+                //set propertynames
+                List<String> propertyNames;
+                if (al != null) {
+                    propertyNames = setPropertyNames(al, foreignQ, foreignFt, edit);
+                } else {
+                    propertyNames = new ArrayList<>();
+                    for (AttributeDescriptor ad : foreignFt.getAttributes()) {
+                        propertyNames.add(ad.getName());
+                    }
+                }
+                if (propertyNames.isEmpty()) {
+                    // if there are no properties to retrieve just get out
+                    return;
+                }
+                if (foreignQ.getPropertyNames() != null) {
+                    // the right side of the keys is needed to match the features
+                    List<String> names = new ArrayList<>(Arrays.asList(foreignQ.getPropertyNames()));
+                    for (FeatureTypeRelationKey key : rel.getRelationKeys()) {
+                        if (!names.contains(key.getRightSide().getName())) {
+                            names.add(key.getRightSide().getName());
                         }
-                    } finally {
-                        if (foreignIt != null) {
-                            foreignIt.close();
+                    }
+                    foreignQ.setPropertyNames(names);
+                }
+                //get aliases
+                Map<String, String> attributeAliases = new HashMap<>();
+                if (!edit) {
+                    for (AttributeDescriptor ad : foreignFt.getAttributes()) {
+                        if (ad.getAlias() != null) {
+                            attributeAliases.put(ad.getName(), ad.getAlias());
                         }
-                        foreignFs.getDataStore().dispose();
                     }
+                }
+
+                SimpleFeature[] matches;
+                if (geomKey == null) {
+                    matches = this.matchByKey(foreignFs, foreignQ, keys, keyNames);
                 } else {
-                    Filter filter = createFilter(feature, rel);
-                    if (filter == null) {
-                        continue;
+                    matches = this.matchByFilter(foreignFs, foreignQ, filters, geomKey);
+                }
+                for (int i = 0; i < matches.length; i++) {
+                    if (matches[i] != null) {
+                        //join it in the same json
+                        toJSONFeature(jsons.get(i), matches[i], foreignFt, al, propertyNames, attributeAliases, indexes.get(i));
                     }
-                    JSONObject related_ft = new JSONObject();
-                    related_ft.put("filter", CQL.toCQL(filter));
-                    related_ft.put("id", rel.getForeignFeatureType().getId());
-                    related_featuretypes.put(related_ft);
                 }
             }
-            if (related_featuretypes.length() > 0) {
-                j.put("related_featuretypes", related_featuretypes);
-            }
         }
-        return j;
-    }
 
-    HashMap<Long, List<String>> propertyNamesQueryCache = new HashMap<>();
-    HashMap<Long, Boolean> haveInvisiblePropertiesCache = new HashMap<>();
-    HashMap<Long, List<String>> propertyNamesReturnCache = new HashMap<>();
+        /**
+         * match the joined features on the values of the relation keys, the
+         * first feature for a key wins.
+         */
+        private SimpleFeature[] matchByKey(FeatureSource foreignFs, Query foreignQ, String[] keys, Set<List<String>> keyNames)
+                throws IOException {
+            Map<String, SimpleFeature> byKey = new HashMap<>();
+            try (FeatureIterator<SimpleFeature> foreignIt = foreignFs.getFeatures(foreignQ).features()) {
+                while (foreignIt.hasNext()) {
+                    SimpleFeature foreignFeature = foreignIt.next();
+                    for (List<String> names : keyNames) {
+                        String key = joinKey(foreignFeature, names, names);
+                        if (key != null && !byKey.containsKey(key)) {
+                            byKey.put(key, foreignFeature);
+                        }
+                    }
+                }
+            }
+            SimpleFeature[] matches = new SimpleFeature[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    matches[i] = byKey.get(keys[i]);
+                }
+            }
+            return matches;
+        }
 
-    /**
-     * Get the propertynames and add the needed propertynames to the query.
-     */
-    private List<String> setPropertyNames(ApplicationLayer appLayer, Query q, SimpleFeatureType sft, boolean edit) {
-        List<String> propertyNames = new ArrayList<>();
-        boolean haveInvisibleProperties = false;
-        if (propertyNamesQueryCache.containsKey(sft.getId())) {
-            haveInvisibleProperties = haveInvisiblePropertiesCache.get(sft.getId());
-            if (haveInvisibleProperties) {
-                q.setPropertyNames(propertyNamesQueryCache.get(sft.getId()));
+        /**
+         * match the joined features by evaluating the filter of each feature,
+         * using a spatial index on the geometry key.
+         */
+        private SimpleFeature[] matchByFilter(FeatureSource foreignFs, Query foreignQ, Filter[] filters, FeatureTypeRelationKey geomKey)
+                throws IOException {
+            List<SimpleFeature> candidates = new ArrayList<>();
+            STRtree index = new STRtree();
+            try (FeatureIterator<SimpleFeature> foreignIt = foreignFs.getFeatures(foreignQ).features()) {
+                while (foreignIt.hasNext()) {
+                    SimpleFeature foreignFeature = foreignIt.next();
+                    Object geom = foreignFeature.getAttribute(geomKey.getRightSide().getName());
+                    if (geom instanceof Geometry) {
+                        index.insert(((Geometry) geom).getEnvelopeInternal(), candidates.size());
+                    }
+                    candidates.add(foreignFeature);
+                }
             }
-            return propertyNamesReturnCache.get(sft.getId());
-        } else {
-            for (ConfiguredAttribute ca : appLayer.getAttributes(sft)) {
-                if ((!edit && !graph && ca.isVisible()) || (edit && ca.isEditable()) || (graph && attributesToInclude.contains(ca.getId()))) {
-                    propertyNames.add(ca.getAttributeName());
+            SimpleFeature[] matches = new SimpleFeature[filters.length];
+            for (int i = 0; i < filters.length; i++) {
+                if (filters[i] == null) {
+                    continue;
+                }
+                List<Integer> hits = new ArrayList<>();
+                Object geom = features.get(i).getAttribute(geomKey.getLeftSide().getName());
+                if (geom instanceof Geometry) {
+                    for (Object hit : index.query(((Geometry) geom).getEnvelopeInternal())) {
+                        hits.add((Integer) hit);
+                    }
                 } else {
-                    haveInvisibleProperties = true;
+                    // no geometry in the filter, so test every feature
+                    for (int c = 0; c < candidates.size(); c++) {
+                        hits.add(c);
+                    }
                 }
-            }
-            haveInvisiblePropertiesCache.put(sft.getId(), haveInvisibleProperties);
-            propertyNamesReturnCache.put(sft.getId(), propertyNames);
-            propertyNamesQueryCache.put(sft.getId(), propertyNames);
-            if (haveInvisibleProperties) {
-                // By default Query retrieves Query.ALL_NAMES
-                // Query.NO_NAMES is an empty String array
-                q.setPropertyNames(propertyNames);
-                // If any related featuretypes are set, add the leftside names in the query
-                // don't add them to propertynames, maybe they are not visible
-                if (sft.getRelations() != null) {
-                    List<String> withRelations = new ArrayList<>();
-                    withRelations.addAll(propertyNames);
-                    for (FeatureTypeRelation ftr : sft.getRelations()) {
-                        if (ftr.getRelationKeys() != null) {
-                            for (FeatureTypeRelationKey key : ftr.getRelationKeys()) {
-                                if (!withRelations.contains(key.getLeftSide().getName())) {
-                                    withRelations.add(key.getLeftSide().getName());
-                                }
-                            }
-                        }
+                // keep the order of the datastore so the result is the same as a query per feature
+                Collections.sort(hits);
+                for (Integer hit : hits) {
+                    if (filters[i].evaluate(candidates.get(hit))) {
+                        matches[i] = candidates.get(hit);
+                        break;
                     }
-                    propertyNamesQueryCache.put(sft.getId(), withRelations);
-                    q.setPropertyNames(withRelations);
                 }
             }
-            propertyNamesReturnCache.put(sft.getId(), propertyNames);
-            return propertyNames;
+            return matches;
+        }
+    }
+
+    /**
+     * Get the propertynames and add the needed propertynames to the query.
+     * The names are cached application wide in {@link PropertyNamesCache}.
+     */
+    private List<String> setPropertyNames(ApplicationLayer appLayer, Query q, SimpleFeatureType sft, boolean edit) {
+        PropertyNamesCache.Entry names = PropertyNamesCache.get(appLayer, sft, edit, graph, attributesToInclude);
+        if (names.getQueryNames() != null) {
+            q.setPropertyNames(names.getQueryNames());
         }
+        // callers may add to the list
+        return new ArrayList<>(names.getPropertyNames());
     }
 
     private final DateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss");
@@ -438,6 +789,45 @@ public class IbisFeatureToJson {
         }
     }
 
+    /**
+     * Create a key for the values of the named attributes of the feature.
+     *
+     * @param f feature
+     * @param names attribute names to read
+     * @param labels names to use in the key
+     * @return the key or {@code null} if one of the values is {@code null}
+     */
+    private static String joinKey(SimpleFeature f, List<String> names, List<String> labels) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            Object value = f.getAttribute(names.get(i));
+            if (value == null) {
+                return null;
+            }
+            sb.append(labels.get(i)).append('=').append(keyValue(value)).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * normalise a value so eg. an Integer and a Long with the same value give
+     * the same key, like the datastore would compare them.
+     */
+    private static String keyValue(Object value) {
+        if (value instanceof Date) {
+            return Long.toString(((Date) value).getTime());
+        }
+        String s = value.toString();
+        if (value instanceof Number) {
+            try {
+                return new BigDecimal(s).stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                // NaN or Infinity, use as is
+            }
+        }
+        return s;
+    }
+
     private Filter createFilter(SimpleFeature feature, FeatureTypeRelation rel) {
         FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
         List<Filter> filters = new ArrayList<>();
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.b3p.viewer.config.app.ApplicationLayer;
+import nl.b3p.viewer.config.app.ConfiguredAttribute;
+import nl.b3p.viewer.config.services.FeatureTypeRelation;
+import nl.b3p.viewer.config.services.FeatureTypeRelationKey;
+import nl.b3p.viewer.config.services.SimpleFeatureType;
+
+/**
+ * Application wide cache of the attribute names to retrieve for an
+ * application layer and featuretype, as used by {@link IbisFeatureToJson}.
+ * Entries are keyed by application layer, featuretype, mode (edit, graph or
+ * default) and the graph attributes to include. The layer configuration is
+ * managed in the admin webapp, so entries expire after a time to live and can
+ * be invalidated explicitly. The attributes to include come from the client,
+ * so the number of entries is bounded; the least recently used entries are
+ * evicted first.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public final class PropertyNamesCache {
+
+    private static volatile int maxEntries = 256;
+
+    private static final Map<Key, Entry> cache = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, PropertyNamesCache.Entry> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static volatile long timeToLive = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * private constructor for utility class.
+     */
+    private PropertyNamesCache() {
+    }
+
+    /**
+     * The cached names for a featuretype.
+     */
+    public static final class Entry {
+
+        private final List<String> propertyNames;
+        private final List<String> queryNames;
+        private final long created = System.currentTimeMillis();
+
+        private Entry(List<String> propertyNames, List<String> queryNames) {
+            this.propertyNames = Collections.unmodifiableList(propertyNames);
+            this.queryNames = queryNames == null ? null : Collections.unmodifiableList(queryNames);
+        }
+
+        /**
+         * @return the names of the attributes to put in the json
+         */
+        public List<String> getPropertyNames() {
+            return propertyNames;
+        }
+
+        /**
+         * @return the names of the attributes to retrieve, including the left
+         * side of the relation keys, or {@code null} if all attributes should
+         * be retrieved
+         */
+        public List<String> getQueryNames() {
+            return queryNames;
+        }
+    }
+
+    private static final class Key {
+
+        private final Long appLayerId;
+        private final Long featureTypeId;
+        private final boolean edit;
+        private final boolean graph;
+        private final List<Long> attributesToInclude;
+
+        Key(Long appLayerId, Long featureTypeId, boolean edit, boolean graph, List<Long> attributesToInclude) {
+            this.appLayerId = appLayerId;
+            this.featureTypeId = featureTypeId;
+            this.edit = edit;
+            this.graph = graph;
+            // only used in graph mode
+            List<Long> include = new ArrayList<>();
+            if (graph && attributesToInclude != null) {
+                include.addAll(attributesToInclude);
+                Collections.sort(include);
+            }
+            this.attributesToInclude = include;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 31 * hash + (appLayerId != null ? appLayerId.hashCode() : 0);
+            hash = 31 * hash + (featureTypeId != null ? featureTypeId.hashCode() : 0);
+            hash = 31 * hash + (edit ? 1 : 0);
+            hash = 31 * hash + (graph ? 1 : 0);
+            hash = 31 * hash + attributesToInclude.hashCode();
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (appLayerId == null ? other.appLayerId == null : appLayerId.equals(other.appLayerId))
+                    && (featureTypeId == null ? other.featureTypeId == null : featureTypeId.equals(other.featureTypeId))
+                    && edit == other.edit
+                    && graph == other.graph
+                    && attributesToInclude.equals(other.attributesToInclude);
+        }
+    }
+
+    /**
+     * Get the names for the featuretype, computing them from the configured
+     * attributes of the application layer if they are not cached or expired.
+     *
+     * @param appLayer application layer
+     * @param sft featuretype of (a relation of) the application layer
+     * @param edit {@code true} to get the editable attributes
+     * @param graph {@code true} to get the {@code attributesToInclude}
+     * @param attributesToInclude configured attribute id's for graph mode
+     * @return the cached names
+     */
+    public static Entry get(ApplicationLayer appLayer, SimpleFeatureType sft, boolean edit, boolean graph, List<Long> attributesToInclude) {
+        Key key = new Key(appLayer.getId(), sft.getId(), edit, graph, attributesToInclude);
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && System.currentTimeMillis() - entry.created < timeToLive) {
+                hits.incrementAndGet();
+                return entry;
+            }
+            if (entry != null) {
+                cache.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        entry = create(appLayer, sft, edit, graph, key.attributesToInclude);
+        synchronized (cache) {
+            cache.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static Entry create(ApplicationLayer appLayer, SimpleFeatureType sft, boolean edit, boolean graph, List<Long> attributesToInclude) {
+        List<String> propertyNames = new ArrayList<>();
+        boolean haveInvisibleProperties = false;
+        for (ConfiguredAttribute ca : appLayer.getAttributes(sft)) {
+            if ((!edit && !graph && ca.isVisible()) || (edit && ca.isEditable()) || (graph && attributesToInclude.contains(ca.getId()))) {
+                propertyNames.add(ca.getAttributeName());
+            } else {
+                haveInvisibleProperties = true;
+            }
+        }
+        if (!haveInvisibleProperties) {
+            // By default Query retrieves Query.ALL_NAMES
+            return new Entry(propertyNames, null);
+        }
+        // If any related featuretypes are set, add the leftside names in the query
+        // don't add them to propertynames, maybe they are not visible
+        List<String> withRelations = new ArrayList<>(propertyNames);
+        if (sft.getRelations() != null) {
+            for (FeatureTypeRelation ftr : sft.getRelations()) {
+                if (ftr.getRelationKeys() != null) {
+                    for (FeatureTypeRelationKey key : ftr.getRelationKeys()) {
+                        if (!withRelations.contains(key.getLeftSide().getName())) {
+                            withRelations.add(key.getLeftSide().getName());
+                        }
+                    }
+                }
+            }
+        }
+        return new Entry(propertyNames, withRelations);
+    }
+
+    /**
+     * Remove the entries of an application layer, eg. after changing its
+     * configured attributes.
+     *
+     * @param appLayerId id of the application layer
+     */
+    public static void invalidate(Long appLayerId) {
+        synchronized (cache) {
+            Iterator<Key> keys = cache.keySet().iterator();
+            while (keys.hasNext()) {
+                Key k = keys.next();
+                if (k.appLayerId == null ? appLayerId == null : k.appLayerId.equals(appLayerId)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Set the time entries stay valid.
+     *
+     * @param millis time to live in milliseconds
+     */
+    public static void setTimeToLive(long millis) {
+        timeToLive = millis;
+    }
+
+    /**
+     * Set the maximum number of entries, the least recently used entries are
+     * evicted when more entries are added.
+     *
+     * @param max maximum number of entries
+     */
+    public static void setMaxEntries(int max) {
+        maxEntries = max;
+    }
+
+    public static int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public static long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static long getEvictions() {
+        return evictions.get();
+    }
+
+    public static int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
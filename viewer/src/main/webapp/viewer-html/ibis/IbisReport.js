@@ -34,6 +34,11 @@ Ext.define('viewer.components.IbisReport', {
     reportdataStore: null,
     dataGridPopup: null,
     dataGridColumns: [],
+    reportParams: null,
+    /** id of the running background report (INDIVIDUAL reports). */
+    reportJobId: null,
+    /** interval in ms between polls of the background report. */
+    JOB_POLL_INTERVAL: 2000,
     config: {
         title: null,
         titlebarIcon: null,
@@ -378,7 +383,7 @@ Ext.define('viewer.components.IbisReport', {
             dockedItems: [{
                     xtype: 'toolbar',
                     docked: 'bottom',
-                    items: [me.getDownloadExcelButton(), {
+                    items: [me.getDownloadExcelButton(), me.getExportButton(), {
                             xtype: 'button',
                             flex: 1,
                             text: 'Open in popup',
@@ -427,6 +432,21 @@ Ext.define('viewer.components.IbisReport', {
             }.bind(this)
         };
     },
+    /**
+     * Download the last requested report as xlsx, created in the backend.
+     */
+    getExportButton: function(enabled) {
+        return {
+            xtype: 'button',
+            flex: 1,
+            text: 'Exporteer (xlsx)',
+            disabled: !enabled,
+            handler: function () {
+                var params = Ext.apply({'export': '', format: 'xlsx'}, this.reportParams);
+                window.location.href = this.config.actionbeanUrl + '?' + Ext.Object.toQueryString(params);
+            }.bind(this)
+        };
+    },
     getReportTitle: function() {
         return [
             this.step2.getComponent('reportType').getRawValue(),
@@ -727,7 +747,24 @@ Ext.define('viewer.components.IbisReport', {
                 /*useDataValues*/false);
         formData.appLayer = me.config.componentLayer;
         formData.application = me.config.viewerController.app.id;
+        me.reportParams = formData;
 
+        me.cancelReportJob();
+        if (formData.reportType === 'INDIVIDUAL') {
+            // individual reports can take longer than the request timeout,
+            // run them in the background and poll until done
+            me.submitReportJob(formData);
+        } else {
+            me.loadReport(formData);
+        }
+    },
+    /**
+     * Load the report data in the grid.
+     * @param {Object} params request parameters, the report parameters or
+     * the jobResult of a background report
+     */
+    loadReport: function (params) {
+        var me = this;
         // get data from backend
         me.reportdataStore = Ext.create('Ext.data.Store', {
             model: reportdataModel,
@@ -746,7 +783,7 @@ Ext.define('viewer.components.IbisReport', {
                 }
             },
             autoLoad: {
-                params: formData
+                params: params
             },
             pageSize: 0,
             listeners: {
@@ -768,6 +805,106 @@ Ext.define('viewer.components.IbisReport', {
             }
         });
     },
+    /**
+     * Start the report as a background job with the submitJob event.
+     * @param {Object} formData report parameters
+     */
+    submitReportJob: function (formData) {
+        var me = this;
+        me.jobRequest(Ext.apply({submitJob: ''}, formData), function (job) {
+            me.reportJobId = job.jobId;
+            me.pollReportJob(job.jobId);
+        });
+    },
+    /**
+     * Poll the jobProgress event until the job is done, then load the result
+     * with the jobResult event.
+     * @param {String} jobId id of the background report
+     */
+    pollReportJob: function (jobId) {
+        var me = this;
+        Ext.defer(function () {
+            if (me.reportJobId !== jobId) {
+                // replaced by a newer report
+                return;
+            }
+            me.jobRequest(me.jobParams('jobProgress', jobId), function (job) {
+                if (me.reportJobId !== jobId) {
+                    return;
+                }
+                switch (job.status) {
+                    case 'DONE':
+                        me.reportJobId = null;
+                        me.loadReport(me.jobParams('jobResult', jobId));
+                        break;
+                    case 'FAILED':
+                    case 'CANCELLED':
+                        me.reportJobId = null;
+                        Ext.MessageBox.alert("Fout", "Fout tijdens samenstellen van het rapport: "
+                                + (job.message || job.status));
+                        me.toggleGridButtons(/*disabled=*/true);
+                        me.setDoneLoading();
+                        break;
+                    default:
+                        me.setIsLoading("Rapport samenstellen... " + job.rows + " rijen");
+                        me.pollReportJob(jobId);
+                }
+            });
+        }, me.JOB_POLL_INTERVAL);
+    },
+    /**
+     * Cancel the running background report, if any.
+     */
+    cancelReportJob: function () {
+        if (this.reportJobId !== null) {
+            var jobId = this.reportJobId;
+            this.reportJobId = null;
+            Ext.Ajax.request({
+                url: this.config.actionbeanUrl,
+                method: 'POST',
+                params: this.jobParams('cancelJob', jobId)
+            });
+        }
+    },
+    jobParams: function (event, jobId) {
+        var params = {
+            jobId: jobId,
+            appLayer: this.config.componentLayer,
+            application: this.config.viewerController.app.id
+        };
+        params[event] = '';
+        return params;
+    },
+    /**
+     * Call a job event, on failure the message is shown and loading stops.
+     * @param {Object} params request parameters including the event
+     * @param {Function} success called with the job metrics
+     */
+    jobRequest: function (params, success) {
+        var me = this;
+        var failure = function (message) {
+            me.reportJobId = null;
+            Ext.MessageBox.alert("Fout", "Fout tijdens samenstellen van het rapport: " + message);
+            me.toggleGridButtons(/*disabled=*/true);
+            me.setDoneLoading();
+        };
+        Ext.Ajax.request({
+            url: me.config.actionbeanUrl,
+            method: 'POST',
+            params: params,
+            success: function (response) {
+                var job = Ext.JSON.decode(response.responseText);
+                if (job.success) {
+                    success(job);
+                } else {
+                    failure(job.message);
+                }
+            },
+            failure: function (response) {
+                failure(response.statusText);
+            }
+        });
+    },
     toggleGridButtons: function(disabled) {
         var btns = this.step4.query('button');
         for(var i = 0; i < btns.length; i++) {
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * testcases for {@link ReportCache}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class ReportCacheTest {
+
+    @After
+    public void tearDown() {
+        ReportCache.clear();
+        ReportCache.setMaxEntries(64);
+        ReportCache.setTimeToLive(TimeUnit.MINUTES.toMillis(15));
+    }
+
+    @Test
+    public void testKey() {
+        Date from = new Date(0);
+        assertEquals(ReportCache.key(1L, "AGGREGATED", "regio", null, Arrays.asList("b", "a"), from),
+                ReportCache.key(1L, "AGGREGATED", "regio", null, Arrays.asList("a", "b"), new Date(0)));
+        assertFalse(ReportCache.key(1L, "AGGREGATED", "regio", null).equals(
+                ReportCache.key(1L, "AGGREGATED", null, "regio")));
+    }
+
+    @Test
+    public void testInvalidate() {
+        ReportCache.put("a", "{a}", Arrays.asList(1, 2), ReportCache.generation());
+        ReportCache.put("b", "{b}", Arrays.asList(3), ReportCache.generation());
+        assertEquals("{a}", ReportCache.get("a"));
+
+        // ids of another type, eg. the terreinid of a kavel
+        ReportCache.invalidate(2L);
+        assertNull(ReportCache.get("a"));
+        assertEquals("{b}", ReportCache.get("b"));
+
+        // an edit of a terrein removes all
+        ReportCache.invalidate((Object) null);
+        assertNull(ReportCache.get("b"));
+    }
+
+    @Test
+    public void testInvalidatedWhileRunning() {
+        long started = ReportCache.generation();
+        ReportCache.invalidate(7);
+        assertFalse(ReportCache.put("a", "{a}", Arrays.asList(1), started));
+        assertNull(ReportCache.get("a"));
+    }
+
+    @Test
+    public void testEviction() {
+        ReportCache.setMaxEntries(2);
+        ReportCache.put("a", "{a}", Arrays.asList(1), ReportCache.generation());
+        ReportCache.put("b", "{b}", Arrays.asList(1), ReportCache.generation());
+        // a is used, so b is the least recently used
+        ReportCache.get("a");
+        ReportCache.put("c", "{c}", Arrays.asList(1), ReportCache.generation());
+        assertNull(ReportCache.get("b"));
+        assertEquals("{a}", ReportCache.get("a"));
+        assertEquals(2, ReportCache.getMetrics().get("size"));
+    }
+
+    @Test
+    public void testExpired() {
+        ReportCache.setTimeToLive(-1);
+        ReportCache.put("a", "{a}", Arrays.asList(1), ReportCache.generation());
+        assertNull(ReportCache.get("a"));
+    }
+
+    @Test
+    public void testRecorder() throws Exception {
+        StringWriter response = new StringWriter();
+        ReportCache.Recorder recorder = new ReportCache.Recorder(response);
+        recorder.write("{\"data\":[]}");
+        assertEquals("{\"data\":[]}", recorder.getCopy());
+        assertEquals(response.toString(), recorder.getCopy());
+
+        char[] large = new char[ReportCache.MAX_ENTRY_LENGTH];
+        recorder.write(large);
+        assertNull(recorder.getCopy());
+        assertTrue(response.toString().length() > ReportCache.MAX_ENTRY_LENGTH);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * testcases for {@link ReportJobManager}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class ReportJobManagerTest {
+
+    /**
+     * writes rows until released or cancelled.
+     */
+    private static class BlockingReport implements ReportJobManager.Report {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void run(ReportJobManager.Job job, Writer writer) throws Exception {
+            ReportWriter out = job.track(new JsonReportWriter(writer));
+            out.writeRow(new JSONObject().put("a", 1));
+            started.countDown();
+            while (!release.await(10, TimeUnit.MILLISECONDS)) {
+                out.writeRow(new JSONObject().put("a", 2));
+            }
+            out.finish(new JSONObject().put("success", true));
+        }
+    }
+
+    private static void await(ReportJobManager.Job job, ReportJobManager.Status status) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (job.getStatus() != status || job.getStage() != null) {
+            if (System.currentTimeMillis() > end) {
+                fail("Job heeft status " + job.getStatus() + " in plaats van " + status);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ReportJobManager.shutdown();
+        ReportJobManager.setMaxRunning(2);
+        ReportJobManager.setMaxQueued(10);
+        ReportJobManager.setTimeToLive(TimeUnit.MINUTES.toMillis(15));
+    }
+
+    @Test
+    public void testResult() throws Exception {
+        ReportJobManager.Job job = ReportJobManager.submit("mark", new ReportJobManager.Report() {
+            @Override
+            public void run(ReportJobManager.Job job, Writer writer) throws Exception {
+                ReportWriter out = job.track(new JsonReportWriter(writer));
+                for (int i = 0; i < 1000; i++) {
+                    out.writeRow(new JSONObject().put("a", i));
+                }
+                out.finish(new JSONObject().put("success", true));
+            }
+        });
+        assertEquals("mark", job.getOwner());
+        await(job, ReportJobManager.Status.DONE);
+        assertEquals(1000, job.getRows());
+        assertEquals(job, ReportJobManager.get(job.getId()));
+
+        File result = job.getResult();
+        JSONObject json = new JSONObject(new String(Files.readAllBytes(result.toPath()), StandardCharsets.UTF_8));
+        assertEquals(1000, json.getInt("total"));
+
+        // finished jobs and their result are removed after the time to live
+        ReportJobManager.setTimeToLive(-1);
+        assertNull(ReportJobManager.get(job.getId()));
+        assertFalse(result.exists());
+    }
+
+    @Test
+    public void testExpireWithoutPolling() throws Exception {
+        ReportJobManager.Job job = ReportJobManager.submit(null, new ReportJobManager.Report() {
+            @Override
+            public void run(ReportJobManager.Job job, Writer writer) throws Exception {
+                job.track(new JsonReportWriter(writer)).finish(new JSONObject().put("success", true));
+            }
+        });
+        await(job, ReportJobManager.Status.DONE);
+        File result = job.getResult();
+        assertTrue(result.exists());
+
+        // the reaper removes the result without a call to get or submit
+        ReportJobManager.setTimeToLive(-1);
+        long end = System.currentTimeMillis() + 15000;
+        while (result.exists() && System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+        }
+        assertFalse(result.exists());
+        assertNull(job.getResult());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        ReportJobManager.Job job = ReportJobManager.submit(null, new ReportJobManager.Report() {
+            @Override
+            public void run(ReportJobManager.Job job, Writer writer) throws Exception {
+                throw new IllegalArgumentException("kapot");
+            }
+        });
+        await(job, ReportJobManager.Status.FAILED);
+        assertEquals("kapot", job.getMessage());
+        assertNull(job.getResult());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        BlockingReport report = new BlockingReport();
+        ReportJobManager.Job job = ReportJobManager.submit(null, report);
+        assertTrue(report.started.await(10, TimeUnit.SECONDS));
+        assertEquals(ReportJobManager.Status.RUNNING, job.getStatus());
+        assertTrue(job.getRows() > 0);
+
+        assertTrue(ReportJobManager.cancel(job.getId()));
+        assertFalse(ReportJobManager.cancel(job.getId()));
+        await(job, ReportJobManager.Status.CANCELLED);
+        assertNull(job.getResult());
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        ReportJobManager.setMaxRunning(1);
+        ReportJobManager.setMaxQueued(1);
+        long rejected = (Long) ReportJobManager.getMetrics().get("rejected");
+        BlockingReport running = new BlockingReport();
+        ReportJobManager.Job first = ReportJobManager.submit(null, running);
+        assertTrue(running.started.await(10, TimeUnit.SECONDS));
+        ReportJobManager.Job queued = ReportJobManager.submit(null, new BlockingReport());
+        assertEquals(ReportJobManager.Status.QUEUED, queued.getStatus());
+        try {
+            ReportJobManager.submit(null, new BlockingReport());
+            fail("Derde rapport had geweigerd moeten worden");
+        } catch (IllegalStateException e) {
+            assertNotNull(e.getMessage());
+        }
+        assertEquals(rejected + 1, ReportJobManager.getMetrics().get("rejected"));
+
+        // a cancelled waiting job makes room in the queue
+        assertTrue(ReportJobManager.cancel(queued.getId()));
+        BlockingReport next = new BlockingReport();
+        ReportJobManager.Job third = ReportJobManager.submit(null, next);
+        running.release.countDown();
+        await(first, ReportJobManager.Status.DONE);
+        assertTrue(next.started.await(10, TimeUnit.SECONDS));
+        await(queued, ReportJobManager.Status.CANCELLED);
+        next.release.countDown();
+        await(third, ReportJobManager.Status.DONE);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.text.ecql.ECQL;
+import org.json.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * testcases for the streaming report pipeline: {@link ChunkedFeatureIterator},
+ * {@link JoinedFeatureIterator} and {@link JsonReportWriter}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class ReportPipelineTest {
+
+    private static final int ROWS = 100000;
+    private static final int PARENTS = 1500;
+
+    /**
+     * synthetic kavels, created while iterating so the source itself holds
+     * nothing in memory.
+     */
+    private static class SyntheticKavels implements SimpleFeatureIterator {
+
+        private final SimpleFeatureBuilder builder;
+        private final int rows;
+        private int i;
+        private boolean closed;
+
+        SyntheticKavels(SimpleFeatureType type, int rows) {
+            this.builder = new SimpleFeatureBuilder(type);
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return i < rows;
+        }
+
+        @Override
+        public SimpleFeature next() throws NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            builder.set("terreinid", i % PARENTS);
+            builder.set("opp", 1d);
+            return builder.buildFeature("kavel." + i++);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * counts the written characters instead of keeping them.
+     */
+    private static class CountingWriter extends Writer {
+
+        private long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static Map<Object, SimpleFeature> parents(SimpleFeatureType type, int count) {
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        Map<Object, SimpleFeature> parents = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            builder.set("id", i);
+            builder.set("naam", "gemeente " + (i % 10));
+            builder.set("terreinopp", 10d);
+            parents.put(i, builder.buildFeature("terrein." + i));
+        }
+        return parents;
+    }
+
+    @Test
+    public void testJoinAndAggregate100k() throws Exception {
+        SimpleFeatureType terrein = DataUtilities.createType("terrein", "id:Integer,naam:String,terreinopp:Double");
+        SimpleFeatureType kavel = DataUtilities.createType("kavel", "terreinid:Integer,opp:Double");
+        SimpleFeatureType report = DataUtilities.createType("AGGREGATE", "naam:String,terreinopp:Double,opp:Double,terreinid:Integer");
+
+        SyntheticKavels kavels = new SyntheticKavels(kavel, ROWS);
+        JoinedFeatureIterator rows = new JoinedFeatureIterator(kavels, report, parents(terrein, PARENTS),
+                "terreinid", Arrays.asList("terreinopp", "opp"), true);
+
+        // aggregate per gemeente while iterating
+        Map<Object, double[]> sums = new HashMap<>();
+        int count = 0;
+        try {
+            while (rows.hasNext()) {
+                SimpleFeature f = rows.next();
+                double[] sum = sums.get(f.getAttribute("naam"));
+                if (sum == null) {
+                    sum = new double[2];
+                    sums.put(f.getAttribute("naam"), sum);
+                }
+                if (f.getAttribute("terreinopp") != null) {
+                    sum[0] += (Double) f.getAttribute("terreinopp");
+                }
+                sum[1] += (Double) f.getAttribute("opp");
+                count++;
+            }
+        } finally {
+            rows.close();
+        }
+        assertTrue(kavels.closed);
+        assertEquals(ROWS, count);
+        assertEquals(10, sums.size());
+        double terreinOpp = 0, kavelOpp = 0;
+        for (double[] sum : sums.values()) {
+            terreinOpp += sum[0];
+            kavelOpp += sum[1];
+        }
+        // the payload of a terrein is counted once, not once per kavel
+        assertEquals(PARENTS * 10d, terreinOpp, 0.001);
+        assertEquals(ROWS, kavelOpp, 0.001);
+    }
+
+    @Test
+    public void testWrite100k() throws Exception {
+        SimpleFeatureType terrein = DataUtilities.createType("terrein", "id:Integer,naam:String,terreinopp:Double");
+        SimpleFeatureType kavel = DataUtilities.createType("kavel", "terreinid:Integer,opp:Double");
+        SimpleFeatureType report = DataUtilities.createType("COMPOSITE", "naam:String,opp:Double,terreinid:Integer");
+
+        JoinedFeatureIterator rows = new JoinedFeatureIterator(new SyntheticKavels(kavel, ROWS), report,
+                parents(terrein, PARENTS), "terreinid", Arrays.asList("naam", "opp"), false);
+        CountingWriter writer = new CountingWriter();
+        JsonReportWriter out = new JsonReportWriter(writer);
+        try {
+            while (rows.hasNext()) {
+                SimpleFeature f = rows.next();
+                out.writeRow(new JSONObject().put("naam", f.getAttribute("naam")).put("opp", f.getAttribute("opp")));
+            }
+        } finally {
+            rows.close();
+        }
+        out.finish(new JSONObject().put("success", true));
+        assertEquals(ROWS, out.getTotal());
+        assertTrue(writer.count > ROWS * 20L);
+    }
+
+    @Test
+    public void testChunkedQueries() throws Exception {
+        SimpleFeatureType kavel = DataUtilities.createType("kavel", "terreinid:Integer,status:String");
+        MemoryDataStore store = new MemoryDataStore();
+        store.createSchema(kavel);
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(kavel);
+        for (int i = 0; i < 2 * PARENTS; i++) {
+            builder.set("terreinid", i % PARENTS);
+            builder.set("status", i % 2 == 0 ? "uitgegeven" : "vrij");
+            store.addFeature(builder.buildFeature("kavel." + i));
+        }
+        SimpleFeatureSource source = store.getFeatureSource("kavel");
+
+        Query q = new Query("kavel");
+        q.setHandle("test");
+        q.setFilter(ECQL.toFilter("status = 'uitgegeven'"));
+        ChunkedFeatureIterator it = new ChunkedFeatureIterator(source, q, "terreinid", parents(
+                DataUtilities.createType("terrein", "id:Integer,naam:String,terreinopp:Double"), PARENTS).keySet());
+        int count = 0;
+        try {
+            while (it.hasNext()) {
+                assertEquals("uitgegeven", it.next().getAttribute("status"));
+                count++;
+            }
+        } finally {
+            it.close();
+        }
+        // more terreinen than the old MAX_FEATURES limit, no truncation
+        assertEquals(PARENTS, count);
+        assertEquals(3, it.getQueries());
+    }
+
+    @Test
+    public void testNoKeys() throws Exception {
+        MemoryDataStore store = new MemoryDataStore();
+        store.createSchema(DataUtilities.createType("kavel", "terreinid:Integer"));
+        ChunkedFeatureIterator it = new ChunkedFeatureIterator(store.getFeatureSource("kavel"), new Query("kavel"),
+                "terreinid", new LinkedHashMap<>().keySet());
+        assertFalse(it.hasNext());
+        assertEquals(0, it.getQueries());
+    }
+
+    @Test
+    public void testWriterOutput() throws Exception {
+        StringWriter writer = new StringWriter();
+        JsonReportWriter out = new JsonReportWriter(writer);
+        out.writeRow(new JSONObject().put("a", 1));
+        out.writeRow(new JSONObject().put("a", 2));
+        out.finish(new JSONObject().put("success", true).put("message", "OK"));
+
+        JSONObject json = new JSONObject(writer.toString());
+        assertEquals(2, json.getJSONArray("data").length());
+        assertEquals(2, json.getInt("total"));
+        assertTrue(json.getBoolean("success"));
+
+        writer = new StringWriter();
+        new JsonReportWriter(writer).finish(new JSONObject().put("success", false));
+        json = new JSONObject(writer.toString());
+        assertEquals(0, json.getJSONArray("data").length());
+        assertEquals(0, json.getInt("total"));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * testcases for the file exports {@link CsvReportWriter} and
+ * {@link XlsxReportWriter}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class SpreadsheetReportWriterTest {
+
+    private static JSONArray columns() throws Exception {
+        return new JSONArray()
+                .put(new JSONObject().put("text", "Terrein").put("dataIndex", "terreinnaam"))
+                .put(new JSONObject().put("text", "Oppervlakte").put("dataIndex", "opp"))
+                .put(new JSONObject().put("text", "Datum").put("dataIndex", "datum"));
+    }
+
+    private static Map<String, String> unzip(byte[] zip) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            ZipEntry e;
+            while ((e = in.getNextEntry()) != null) {
+                entries.put(e.getName(), read(in));
+            }
+        }
+        return entries;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            bytes.write(buf, 0, n);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        StringWriter writer = new StringWriter();
+        CsvReportWriter out = new CsvReportWriter(writer);
+        out.writeColumns(columns());
+        out.writeRow(new JSONObject().put("terreinnaam", "De \"Hoek\", Oost").put("opp", new BigDecimal("1.5"))
+                .put("datum", new GregorianCalendar(2015, 2, 1).getTime()).put("ignored", 1));
+        out.writeRow(new JSONObject().put("terreinnaam", "West"));
+        out.finish(new JSONObject().put("success", true));
+
+        String[] lines = writer.toString().split("\r\n");
+        assertEquals(3, lines.length);
+        assertEquals("\uFEFFTerrein,Oppervlakte,Datum", lines[0]);
+        assertEquals("\"De \"\"Hoek\"\", Oost\",1.5,2015-03-01", lines[1]);
+        assertEquals("West,,", lines[2]);
+        assertEquals(2, out.getTotal());
+    }
+
+    @Test
+    public void testCsvError() throws Exception {
+        StringWriter writer = new StringWriter();
+        CsvReportWriter out = new CsvReportWriter(writer);
+        out.writeColumns(columns());
+        out.finish(new JSONObject().put("success", false).put("message", "kapot"));
+
+        String[] lines = writer.toString().split("\r\n");
+        assertEquals(2, lines.length);
+        assertEquals("Fout bij maken rapport: kapot", lines[1]);
+        assertEquals(0, out.getTotal());
+    }
+
+    @Test
+    public void testXlsx() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        XlsxReportWriter out = new XlsxReportWriter(bytes);
+        out.writeColumns(columns());
+        for (int i = 0; i < 1000; i++) {
+            out.writeRow(new JSONObject().put("terreinnaam", "T<" + i + ">").put("opp", i)
+                    .put("datum", new GregorianCalendar(1970, 0, 1).getTime()));
+        }
+        out.finish(new JSONObject().put("success", true));
+
+        Map<String, String> entries = unzip(bytes.toByteArray());
+        List<String> expected = new ArrayList<>();
+        expected.add("[Content_Types].xml");
+        expected.add("_rels/.rels");
+        expected.add("xl/workbook.xml");
+        expected.add("xl/_rels/workbook.xml.rels");
+        expected.add("xl/styles.xml");
+        expected.add("xl/worksheets/sheet1.xml");
+        assertEquals(expected, new ArrayList<>(entries.keySet()));
+
+        String sheet = entries.get("xl/worksheets/sheet1.xml");
+        assertTrue(sheet.endsWith("</sheetData></worksheet>"));
+        assertTrue(sheet.contains("<c s=\"2\" t=\"inlineStr\"><is><t xml:space=\"preserve\">Terrein</t></is></c>"));
+        assertTrue(sheet.contains("<t xml:space=\"preserve\">T&lt;999&gt;</t></is></c><c><v>999</v></c><c s=\"1\"><v>25569.0</v></c>"));
+        assertEquals(1001, sheet.split("<row>").length - 1);
+        assertEquals(1000, out.getTotal());
+    }
+
+    @Test
+    public void testEscape() {
+        assertEquals("a &amp; b &quot;c&quot;", XlsxReportWriter.escape("a & b \"c\""));
+        assertEquals("ab", XlsxReportWriter.escape("a\u0001b"));
+        assertEquals("plain", CsvReportWriter.quote("plain"));
+        assertEquals("\"a\nb\"", CsvReportWriter.quote("a\nb"));
+    }
+
+    @Test
+    public void testCsvFormula() throws Exception {
+        assertEquals("'=1+2", CsvReportWriter.quote("=1+2"));
+        assertEquals("'+31 6", CsvReportWriter.quote("+31 6"));
+        assertEquals("'-2", CsvReportWriter.quote("-2"));
+        assertEquals("'@SUM(A1)", CsvReportWriter.quote("@SUM(A1)"));
+        assertEquals("\"'=HYPERLINK(\"\"x\"\",\"\"y\"\")\"", CsvReportWriter.quote("=HYPERLINK(\"x\",\"y\")"));
+        assertEquals("a=b", CsvReportWriter.quote("a=b"));
+        assertEquals("", CsvReportWriter.quote(""));
+
+        // numbers are not text, a negative number stays a number
+        StringWriter writer = new StringWriter();
+        CsvReportWriter out = new CsvReportWriter(writer);
+        out.writeColumns(columns());
+        out.writeRow(new JSONObject().put("terreinnaam", "=cmd|' /C calc'!A0").put("opp", new BigDecimal("-1.5")));
+        out.finish(new JSONObject().put("success", true));
+        assertEquals("'=cmd|' /C calc'!A0,-1.5,", writer.toString().split("\r\n")[1]);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.report;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import nl.b3p.viewer.ibis.util.DateUtils;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.text.ecql.ECQL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * testcases for {@link UitgifteRollup}: the rollup path must give the same
+ * result as reading the kavels.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class UitgifteRollupTest {
+
+    private static final List<Integer> TERREINEN = Arrays.asList(1, 2, 3);
+
+    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    private SimpleFeatureSource kavels;
+    private SimpleFeatureSource rollup;
+
+    @Before
+    public void setUp() throws Exception {
+        SimpleFeatureType kavelType = DataUtilities.createType("kavels",
+                "kavelid:Integer,terreinid:Integer,status:String,datumuitgifte:java.util.Date,opp_geometrie:Double");
+        SimpleFeatureType rollupType = DataUtilities.createType(UitgifteRollup.ROLLUP_TABLE,
+                "terreinid:Integer,datumuitgifte:java.util.Date,opp_geometrie:Double");
+        MemoryDataStore kavelStore = new MemoryDataStore(kavelType);
+        MemoryDataStore rollupStore = new MemoryDataStore(rollupType);
+
+        // a kavel every 5 days (at midnight, like a date column) for half a year
+        Map<String, Double> months = new TreeMap<>();
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(kavelType);
+        Calendar cal = new GregorianCalendar(2015, Calendar.JANUARY, 1);
+        for (int i = 0; i < 36; i++) {
+            int terreinid = TERREINEN.get(i % TERREINEN.size());
+            String status = i % 7 == 6 ? "uitgeefbaar" : "uitgegeven";
+            double opp = 100d + i;
+            builder.set("kavelid", i);
+            builder.set("terreinid", terreinid);
+            builder.set("status", status);
+            builder.set("datumuitgifte", cal.getTime());
+            builder.set("opp_geometrie", opp);
+            kavelStore.addFeature(builder.buildFeature("kavels." + i));
+            if ("uitgegeven".equals(status)) {
+                String key = terreinid + "|" + DateUtils.firstDayOfMonth(cal.getTime()).getTime();
+                Double sum = months.get(key);
+                months.put(key, (sum == null ? 0d : sum) + opp);
+            }
+            cal.add(Calendar.DAY_OF_MONTH, 5);
+        }
+
+        // the rollup as maintained by the triggers
+        builder = new SimpleFeatureBuilder(rollupType);
+        int i = 0;
+        for (Map.Entry<String, Double> month : months.entrySet()) {
+            String[] key = month.getKey().split("\\|");
+            builder.set("terreinid", Integer.valueOf(key[0]));
+            builder.set("datumuitgifte", new Date(Long.parseLong(key[1])));
+            builder.set("opp_geometrie", month.getValue());
+            rollupStore.addFeature(builder.buildFeature(UitgifteRollup.ROLLUP_TABLE + "." + i++));
+        }
+        kavels = kavelStore.getFeatureSource("kavels");
+        rollup = rollupStore.getFeatureSource(UitgifteRollup.ROLLUP_TABLE);
+    }
+
+    @Test
+    public void testMidMonth() throws Exception {
+        assertSamePerMonth(date(2015, Calendar.FEBRUARY, 14, 12), date(2015, Calendar.MAY, 17, 0));
+    }
+
+    @Test
+    public void testMonthStart() throws Exception {
+        // kavels are issued on 2015-03-02 and 2015-05-01
+        assertSamePerMonth(date(2015, Calendar.MARCH, 1, 0), date(2015, Calendar.MAY, 1, 0));
+        assertSamePerMonth(date(2015, Calendar.MARCH, 2, 0), date(2015, Calendar.MAY, 2, 0));
+    }
+
+    @Test
+    public void testWithinOneMonth() throws Exception {
+        assertSamePerMonth(date(2015, Calendar.MARCH, 3, 0), date(2015, Calendar.MARCH, 25, 0));
+    }
+
+    @Test
+    public void testWholeMonths() {
+        Date from = date(2015, Calendar.FEBRUARY, 14, 12);
+        assertEquals(date(2015, Calendar.MARCH, 1, 0), UitgifteRollup.firstWholeMonth(from));
+        assertEquals(date(2015, Calendar.FEBRUARY, 1, 0), UitgifteRollup.endOfWholeMonths(from));
+        // DURING excludes the start, so the month of a first day is not whole
+        assertEquals(date(2015, Calendar.APRIL, 1, 0),
+                UitgifteRollup.firstWholeMonth(date(2015, Calendar.MARCH, 1, 0)));
+    }
+
+    /**
+     * compare the issued area per terrein per month of the rollup path to the
+     * kavels {@code DURING from/to}.
+     */
+    private void assertSamePerMonth(Date from, Date to) throws Exception {
+        Query q = new Query("kavels");
+        q.setFilter(ECQL.toFilter("status = 'uitgegeven' AND datumuitgifte DURING "
+                + sdf.format(from) + "/" + sdf.format(to)));
+        Map<String, Double> expected = perMonth(new ChunkedFeatureIterator(kavels, q, "terreinid", TERREINEN));
+        Map<String, Double> actual = perMonth(UitgifteRollup.features(rollup, kavels, q, "terreinid", TERREINEN,
+                from, to, "terreinid", "datumuitgifte", "opp_geometrie"));
+        assertFalse("geen kavels in de periode", expected.isEmpty());
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            assertEquals(key, expected.get(key), actual.get(key), 0.001);
+        }
+    }
+
+    private static Map<String, Double> perMonth(SimpleFeatureIterator items) {
+        Map<String, Double> sums = new TreeMap<>();
+        try {
+            while (items.hasNext()) {
+                SimpleFeature f = items.next();
+                String key = f.getAttribute("terreinid") + "|"
+                        + DateUtils.firstDayOfMonth((Date) f.getAttribute("datumuitgifte")).getTime();
+                Double sum = sums.get(key);
+                sums.put(key, (sum == null ? 0d : sum) + ((Number) f.getAttribute("opp_geometrie")).doubleValue());
+            }
+        } finally {
+            items.close();
+        }
+        return sums;
+    }
+
+    private static Date date(int year, int month, int day, int hour) {
+        return new GregorianCalendar(year, month, day, hour, 0).getTime();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * testcases for {@link AggregateQuery}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class AggregateQueryTest {
+
+    @Test
+    public void testSql() {
+        AggregateQuery q = new AggregateQuery("ibis", "terrein", "id", "kavel", "terreinid")
+                .sumParent("opp")
+                .sumChild("uitgifte")
+                .groupBy("naam")
+                .where("vvr_naam", "Holland Rijnland");
+        assertEquals("select g.gebied, sum(g.p0), sum(g.c0) from ("
+                + "select p.\"naam\" as gebied, p.\"opp\" as p0, null as c0 from \"ibis\".\"terrein\" p"
+                + " where exists (select 1 from \"ibis\".\"kavel\" c where c.\"terreinid\" = p.\"id\")"
+                + " and p.\"vvr_naam\" = ?"
+                + " union all "
+                + "select p.\"naam\", null, c.\"uitgifte\" from \"ibis\".\"kavel\" c"
+                + " join \"ibis\".\"terrein\" p on c.\"terreinid\" = p.\"id\" where p.\"vvr_naam\" = ?"
+                + ") g group by g.gebied", q.toSql());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoGroupBy() {
+        new AggregateQuery(null, "terrein", "id", "kavel", "terreinid").toSql();
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals("\"a\"\"b\"", AggregateQuery.quote("a\"b"));
+    }
+}
@@ -13,6 +13,7 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import static nl.b3p.viewer.ibis.util.DateUtils.differenceInMonths;
 import static nl.b3p.viewer.ibis.util.DateUtils.addMonth;
+import static nl.b3p.viewer.ibis.util.DateUtils.firstDayOfMonth;
 import org.junit.Test;
 
 /**
@@ -48,4 +49,10 @@ public class DateUtilsTest {
         assertEquals("added one month to current date", 1, differenceInMonths(now, addMonth(now)));
         assertEquals("added two months to current date", 2, differenceInMonths(now, addMonth(addMonth(now))));
     }
+
+    @Test
+    public void testFirstDayOfMonth() throws ParseException {
+        assertEquals(sdf.parse("2014/03/01"), firstDayOfMonth(sdf.parse("2014/03/22")));
+        assertEquals(sdf.parse("2014/03/01"), firstDayOfMonth(sdf.parse("2014/03/01")));
+    }
 }
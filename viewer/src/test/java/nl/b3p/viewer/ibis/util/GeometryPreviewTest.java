@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * testcases for {@link GeometryPreview} and {@link PreviewCache}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class GeometryPreviewTest {
+
+    private final WKTReader reader = new WKTReader();
+
+    @Test
+    public void testSplit() throws Exception {
+        PreparedGeometry kavel = PreparedGeometryFactory.prepare(reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))"));
+        List<Geometry> parts = GeometryPreview.split(kavel, reader.read("LINESTRING(4 -1, 4 11)"));
+        assertEquals(2, parts.size());
+        assertEquals(100d, parts.get(0).getArea() + parts.get(1).getArea(), 1e-9);
+        assertTrue(GeometryPreview.isValid(100d, parts));
+    }
+
+    @Test
+    public void testSplitWithHole() throws Exception {
+        PreparedGeometry kavel = PreparedGeometryFactory.prepare(
+                reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (6 6, 8 6, 8 8, 6 8, 6 6))"));
+        List<Geometry> parts = GeometryPreview.split(kavel, reader.read("LINESTRING(4 -1, 4 11)"));
+        assertEquals(2, parts.size());
+        assertTrue(GeometryPreview.isValid(96d, parts));
+    }
+
+    @Test
+    public void testLineOutside() throws Exception {
+        Geometry geom = reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))");
+        List<Geometry> parts = GeometryPreview.split(PreparedGeometryFactory.prepare(geom),
+                reader.read("LINESTRING(20 -1, 20 11)"));
+        assertEquals(1, parts.size());
+        assertSame(geom, parts.get(0));
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        Geometry merged = GeometryPreview.merge(Arrays.asList(
+                reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))"),
+                reader.read("POLYGON((10 0, 20 0, 20 10, 10 10, 10 0))")));
+        assertEquals(1, merged.getNumGeometries());
+        assertTrue(GeometryPreview.isValid(200d, Arrays.asList(merged)));
+
+        Geometry overlap = GeometryPreview.merge(Arrays.asList(
+                reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))"),
+                reader.read("POLYGON((5 0, 15 0, 15 10, 5 10, 5 0))")));
+        assertFalse(GeometryPreview.isValid(200d, Arrays.asList(overlap)));
+    }
+
+    @Test
+    public void testCacheEviction() throws Exception {
+        PreviewCache cache = new PreviewCache();
+        Geometry geom = reader.read("POINT(1 1)");
+        for (int i = 0; i <= PreviewCache.MAX_SIZE; i++) {
+            cache.put(PreviewCache.key(1L, "f" + i), geom);
+        }
+        assertEquals(PreviewCache.MAX_SIZE, cache.size());
+        assertNull(cache.get(PreviewCache.key(1L, "f0")));
+        assertSame(geom, cache.get(PreviewCache.key(1L, "f1")).getGeometry());
+    }
+}
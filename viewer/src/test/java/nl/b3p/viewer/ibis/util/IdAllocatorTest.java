@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * testcases for {@link IdAllocator}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class IdAllocatorTest implements IbisConstants {
+
+    @After
+    public void tearDown() {
+        IdAllocator.clear();
+    }
+
+    @Test
+    public void testBlocks() throws Exception {
+        MemoryIdAllocator ids = new MemoryIdAllocator(10, 4);
+        for (long expected = 10; expected < 20; expected++) {
+            assertEquals(expected, ids.next(null));
+        }
+        assertEquals(3, ids.getBlocks());
+        assertEquals(10, ids.getAllocated());
+    }
+
+    @Test
+    public void testBulk() throws Exception {
+        MemoryIdAllocator ids = new MemoryIdAllocator(1, 4);
+        assertEquals(1, ids.next(null));
+        // smaller than a block, taken from the blocks
+        long[] small = ids.next(null, 3);
+        assertEquals(2, small[0]);
+        assertEquals(4, small[2]);
+        assertEquals(1, ids.getBlocks());
+        // a large request is fetched in one go
+        long[] large = ids.next(null, 10);
+        assertEquals(10, large.length);
+        assertEquals(5, large[0]);
+        assertEquals(14, large[9]);
+        assertEquals(2, ids.getBlocks());
+        assertEquals(14, ids.getAllocated());
+    }
+
+    @Test
+    public void testConcurrentNoCollisions() throws Exception {
+        final MemoryIdAllocator ids = new MemoryIdAllocator(1, 7);
+        final Set<Long> seen = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final int threads = 8;
+        final int perThread = 1000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            assertTrue(seen.add(ids.next(null)));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : results) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(threads * perThread, seen.size());
+        assertEquals((threads * perThread + 6) / 7, ids.getBlocks());
+    }
+
+    @Test
+    public void testForStoreContinuesFromMax() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType(KAVEL_LAYER_NAME, "ibis_id:Integer,workflow_status:String");
+        MemoryDataStore store = new MemoryDataStore();
+        store.createSchema(type);
+        SimpleFeatureStore fs = (SimpleFeatureStore) store.getFeatureSource(KAVEL_LAYER_NAME);
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        builder.set(ID_FIELDNAME, 41);
+        store.addFeature(builder.buildFeature("f1"));
+
+        IdAllocator ids = IdAllocator.forStore(fs);
+        assertSame(ids, IdAllocator.forStore(fs));
+        assertEquals(42, ids.next(fs));
+        assertEquals(43, ids.next(fs));
+    }
+}
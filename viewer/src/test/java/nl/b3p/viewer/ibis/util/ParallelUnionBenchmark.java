@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simple benchmark comparing {@link ParallelUnion} with the single threaded
+ * {@code GeometryCollection.union()}. This is not a unit test, run it using
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.b3p.viewer.ibis.util.ParallelUnionBenchmark}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class ParallelUnionBenchmark {
+
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        bench(25, 20);
+        bench(50, 40);
+        bench(100, 50);
+        ParallelUnion.shutdown();
+    }
+
+    private static void bench(int cols, int rows) {
+        List<Geometry> kavels = ParallelUnionTest.kavels(cols, rows, 0, new Random(42));
+
+        for (int i = 0; i < WARMUP; i++) {
+            ParallelUnion.serialUnion(kavels);
+            ParallelUnion.union(kavels);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            ParallelUnion.serialUnion(kavels);
+        }
+        long serial = (System.nanoTime() - start) / RUNS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            ParallelUnion.union(kavels);
+        }
+        long parallel = (System.nanoTime() - start) / RUNS;
+
+        System.out.println(String.format("%d kavels: serial %.2f ms, parallel %.2f ms (x%.1f, %d processors)",
+                kavels.size(), serial / 1e6, parallel / 1e6, (double) serial / parallel,
+                Runtime.getRuntime().availableProcessors()));
+    }
+}
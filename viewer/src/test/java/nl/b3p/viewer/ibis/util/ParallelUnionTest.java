@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * testcases for {@link ParallelUnion}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class ParallelUnionTest {
+
+    private static final GeometryFactory factory = new GeometryFactory();
+
+    @Test
+    public void testSmallSetIsSerial() {
+        List<Geometry> kavels = kavels(10, 10, 0, new Random(1));
+        Geometry expected = ParallelUnion.serialUnion(kavels);
+        Geometry actual = ParallelUnion.union(kavels);
+        assertTrue(expected.equalsExact(actual));
+    }
+
+    @Test
+    public void testSameAsSerialUnion() {
+        // 2 separate blocks of adjoining kavels, with some overlap
+        List<Geometry> kavels = kavels(40, 40, 0, new Random(42));
+        kavels.addAll(kavels(30, 30, 1000, new Random(43)));
+
+        Geometry expected = ParallelUnion.serialUnion(kavels);
+        Geometry actual = ParallelUnion.union(kavels);
+
+        assertTrue(actual.isValid());
+        assertEquals(expected.getNumGeometries(), actual.getNumGeometries());
+        assertEquals(expected.getArea(), actual.getArea(), 1e-6);
+        assertTrue(expected.equalsTopo(actual));
+    }
+
+    /**
+     * create a grid of square kavels of 10x10, some of them slightly larger so
+     * they overlap their neighbours.
+     */
+    static List<Geometry> kavels(int cols, int rows, double offset, Random r) {
+        List<Geometry> kavels = new ArrayList<>(cols * rows);
+        for (int x = 0; x < cols; x++) {
+            for (int y = 0; y < rows; y++) {
+                double grow = r.nextInt(10) == 0 ? r.nextDouble() : 0d;
+                double minx = offset + x * 10, miny = offset + y * 10;
+                kavels.add(factory.createPolygon(new Coordinate[]{
+                    new Coordinate(minx, miny),
+                    new Coordinate(minx + 10 + grow, miny),
+                    new Coordinate(minx + 10 + grow, miny + 10 + grow),
+                    new Coordinate(minx, miny + 10 + grow),
+                    new Coordinate(minx, miny)
+                }));
+            }
+        }
+        return kavels;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import nl.b3p.viewer.config.services.SimpleFeatureType;
+import static nl.b3p.viewer.util.MemoryFeatureType.square;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * testcases for {@link TerreinGeometryQueue}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class TerreinGeometryQueueTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private Recorder recorder;
+
+    /**
+     * records the updates, the first {@code failures} updates fail.
+     */
+    private static final class Recorder implements TerreinGeometryQueue.Updater {
+
+        private final List<Integer> terreinIDs = new ArrayList<>();
+        private final List<WorkflowStatus> statuses = new ArrayList<>();
+        private final List<Collection<Geometry>> changes = new ArrayList<>();
+        private final List<Long> times = new ArrayList<>();
+        private int failures;
+
+        @Override
+        public synchronized void update(Integer terreinID, SimpleFeatureType kavelFt, SimpleFeatureType terreinFt,
+                WorkflowStatus status, Collection<Geometry> changed) throws Exception {
+            terreinIDs.add(terreinID);
+            statuses.add(status);
+            changes.add(changed == null ? null : new ArrayList<>(changed));
+            times.add(System.nanoTime());
+            if (failures > 0) {
+                failures--;
+                throw new Exception("test failure");
+            }
+        }
+
+        synchronized int count() {
+            return times.size();
+        }
+
+        synchronized long time(int i) {
+            return times.get(i);
+        }
+
+        /**
+         * wait until at least {@code n} updates were done.
+         */
+        void await(int n) throws InterruptedException {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (count() < n && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertTrue("verwacht " + n + " updates, was " + count(), count() >= n);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        recorder = new Recorder();
+        TerreinGeometryQueue.setUpdater(recorder);
+        // long enough that requests only run on flush
+        TerreinGeometryQueue.setDelay(TimeUnit.MINUTES.toMillis(10));
+    }
+
+    @After
+    public void tearDown() {
+        TerreinGeometryQueue.shutdown(TIMEOUT);
+        TerreinGeometryQueue.setUpdater(TerreinGeometryQueue.WORKFLOW_UPDATER);
+        TerreinGeometryQueue.setDelay(2000);
+    }
+
+    @Test
+    public void testCoalescePerTerreinAndStatus() throws Exception {
+        long coalesced = metric("coalesced");
+        TerreinGeometryQueue.submit(1, WorkflowStatus.definitief, null, null, Arrays.asList(square(0)));
+        TerreinGeometryQueue.submit(1, WorkflowStatus.definitief, null, null, Arrays.asList(square(10), square(20)));
+        // archief kavels update the definitief terrein
+        TerreinGeometryQueue.submit(1, WorkflowStatus.archief, null, null, Arrays.asList(square(30)));
+        TerreinGeometryQueue.submit(1, WorkflowStatus.bewerkt, null, null, Arrays.asList(square(0)));
+        TerreinGeometryQueue.submit(2, WorkflowStatus.definitief, null, null, Arrays.asList(square(0)));
+        assertEquals(3, TerreinGeometryQueue.getQueueDepth());
+        assertEquals(coalesced + 2, metric("coalesced"));
+        assertEquals(0, recorder.count());
+
+        TerreinGeometryQueue.flush(TIMEOUT);
+        assertEquals(0, TerreinGeometryQueue.getQueueDepth());
+        assertEquals(3, recorder.count());
+        assertEquals(Arrays.asList(1, 1, 2), recorder.terreinIDs);
+        assertEquals(Arrays.asList(WorkflowStatus.definitief, WorkflowStatus.bewerkt, WorkflowStatus.definitief), recorder.statuses);
+        assertEquals(4, recorder.changes.get(0).size());
+        assertEquals(1, recorder.changes.get(1).size());
+    }
+
+    @Test
+    public void testCoalesceFullUpdate() throws Exception {
+        TerreinGeometryQueue.submit(1, WorkflowStatus.definitief, null, null, Arrays.asList(square(0)));
+        TerreinGeometryQueue.submit(1, WorkflowStatus.definitief, null, null, null);
+        TerreinGeometryQueue.submit(1, WorkflowStatus.definitief, null, null, Arrays.asList(square(10)));
+        TerreinGeometryQueue.flush(TIMEOUT);
+
+        assertEquals(1, recorder.count());
+        // a full update covers all changes
+        assertNull(recorder.changes.get(0));
+    }
+
+    @Test
+    public void testMaxDelay() throws Exception {
+        final long delay = 200;
+        TerreinGeometryQueue.setDelay(delay);
+        long start = System.nanoTime();
+        // keep editing faster than the delay, the update must not wait forever
+        while (recorder.count() == 0 && System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT)) {
+            TerreinGeometryQueue.submit(1, WorkflowStatus.definitief, null, null, Collections.singletonList(square(0)));
+            Thread.sleep(delay / 4);
+        }
+        assertEquals(1, recorder.count());
+        long waited = TimeUnit.NANOSECONDS.toMillis(recorder.time(0) - start);
+        long max = TerreinGeometryQueue.MAX_DELAY_FACTOR * delay;
+        assertTrue("update na " + waited + " ms", waited >= max - delay / 4);
+        assertTrue("update na " + waited + " ms", waited < max + 1000);
+    }
+
+    @Test
+    public void testRetryAfterFailure() throws Exception {
+        long retries = metric("retries");
+        long completed = metric("completed");
+        recorder.failures = 2;
+        TerreinGeometryQueue.submit(1, WorkflowStatus.definitief, null, null, Arrays.asList(square(0)));
+
+        TerreinGeometryQueue.flush(TIMEOUT);
+        // failed, rescheduled
+        assertEquals(1, recorder.count());
+        assertEquals(1, TerreinGeometryQueue.getQueueDepth());
+        TerreinGeometryQueue.flush(TIMEOUT);
+        assertEquals(2, recorder.count());
+        assertEquals(1, TerreinGeometryQueue.getQueueDepth());
+        TerreinGeometryQueue.flush(TIMEOUT);
+        assertEquals(3, recorder.count());
+        assertEquals(0, TerreinGeometryQueue.getQueueDepth());
+
+        assertEquals(retries + 2, metric("retries"));
+        assertEquals(completed + 1, metric("completed"));
+        // every attempt has the same changes
+        assertEquals(recorder.changes.get(0), recorder.changes.get(2));
+    }
+
+    @Test
+    public void testGiveUpAfterMaxAttempts() throws Exception {
+        long failures = metric("failures");
+        recorder.failures = Integer.MAX_VALUE;
+        TerreinGeometryQueue.submit(1, WorkflowStatus.definitief, null, null, Arrays.asList(square(0)));
+        for (int i = 0; i < TerreinGeometryQueue.MAX_ATTEMPTS + 1; i++) {
+            TerreinGeometryQueue.flush(TIMEOUT);
+        }
+        assertEquals(TerreinGeometryQueue.MAX_ATTEMPTS, recorder.count());
+        assertEquals(0, TerreinGeometryQueue.getQueueDepth());
+        assertEquals(failures + 1, metric("failures"));
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        final long delay = 100;
+        TerreinGeometryQueue.setDelay(delay);
+        recorder.failures = 2;
+        TerreinGeometryQueue.submit(1, WorkflowStatus.definitief, null, null, Arrays.asList(square(0)));
+        recorder.await(3);
+
+        // the wait doubles after every failed attempt
+        long first = TimeUnit.NANOSECONDS.toMillis(recorder.time(1) - recorder.time(0));
+        long second = TimeUnit.NANOSECONDS.toMillis(recorder.time(2) - recorder.time(1));
+        assertTrue("eerste nieuwe poging na " + first + " ms", first >= (delay << 1) - 10);
+        assertTrue("tweede nieuwe poging na " + second + " ms", second >= (delay << 2) - 10);
+    }
+
+    private static long metric(String name) {
+        return (Long) TerreinGeometryQueue.getMetrics().get(name);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import static nl.b3p.viewer.util.MemoryFeatureType.feature;
+import static nl.b3p.viewer.util.MemoryFeatureType.multiSquare;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * testcases for {@link TerreinGeometryRebuildJob}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class TerreinGeometryRebuildJobTest implements IbisConstants {
+
+    private MemoryDataStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        SimpleFeatureType kavelType = DataUtilities.createType(KAVEL_LAYER_NAME,
+                "geom:MultiPolygon,ibis_id:Integer,terreinid:Integer,workflow_status:String");
+        SimpleFeatureType terreinType = DataUtilities.createType(TERREIN_LAYER_NAME,
+                "geom:MultiPolygon,ibis_id:Integer,workflow_status:String");
+        store = new MemoryDataStore();
+        store.createSchema(kavelType);
+        store.createSchema(terreinType);
+
+        // terrein 1: 2 definitief kavels and a bewerkt kavel next to them
+        store.addFeature(feature(kavelType, "k1", multiSquare(0, 0), 1, 1, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k2", multiSquare(10, 0), 2, 1, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k3", multiSquare(20, 0), 3, 1, WorkflowStatus.bewerkt));
+        store.addFeature(feature(kavelType, "k4", multiSquare(30, 0), 4, 1, WorkflowStatus.archief));
+        // terrein 2: 1 definitief kavel
+        store.addFeature(feature(kavelType, "k5", multiSquare(100, 0), 5, 2, WorkflowStatus.definitief));
+
+        store.addFeature(feature(terreinType, "t1", multiSquare(0, 0), 1, null, WorkflowStatus.definitief));
+        store.addFeature(feature(terreinType, "t2", multiSquare(0, 0), 1, null, WorkflowStatus.bewerkt));
+        store.addFeature(feature(terreinType, "t3", multiSquare(0, 0), 2, null, WorkflowStatus.definitief));
+        store.addFeature(feature(terreinType, "t4", multiSquare(0, 0), 3, null, WorkflowStatus.definitief));
+        store.addFeature(feature(terreinType, "t5", multiSquare(0, 0), 2, null, WorkflowStatus.archief));
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        SimpleFeatureStore terreinen = (SimpleFeatureStore) store.getFeatureSource(TERREIN_LAYER_NAME);
+        TerreinGeometryRebuildJob job = new TerreinGeometryRebuildJob(store.getFeatureSource(KAVEL_LAYER_NAME), terreinen);
+        job.setThreads(2);
+        job.setBatchSize(2);
+        job.run();
+
+        assertEquals(4, job.getTotal());
+        assertEquals(3, job.getUpdated());
+        assertEquals(1, job.getSkipped());
+        assertEquals(0, job.getFailed());
+        assertTrue(!job.isRunning());
+
+        assertEquals(200d, area(terreinen, "t1"), 1e-9);
+        assertEquals(300d, area(terreinen, "t2"), 1e-9);
+        assertEquals(100d, area(terreinen, "t3"), 1e-9);
+        // no kavels, unchanged
+        assertEquals(100d, area(terreinen, "t4"), 1e-9);
+        // archief, unchanged
+        assertEquals(100d, area(terreinen, "t5"), 1e-9);
+    }
+
+    private static double area(SimpleFeatureStore terreinen, String fid) throws Exception {
+        try (SimpleFeatureIterator it = terreinen.getFeatures().features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                if (f.getID().equals(fid)) {
+                    Geometry g = (Geometry) f.getDefaultGeometry();
+                    assertEquals("MultiPolygon", g.getGeometryType());
+                    return g.getArea();
+                }
+            }
+        }
+        throw new AssertionError("feature not found: " + fid);
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+
+/**
+ * testcases for {@link WorkflowVersions}, {@link WorkflowTransitions} and
+ * {@link WorkflowBatch}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class WorkflowTransitionsTest implements IbisConstants {
+
+    private SimpleFeatureType type;
+    private MemoryDataStore store;
+    private SimpleFeatureStore fs;
+
+    @Before
+    public void setUp() throws Exception {
+        type = DataUtilities.createType(KAVEL_LAYER_NAME, "ibis_id:Integer,terreinid:Integer,workflow_status:String,naam:String");
+        store = new MemoryDataStore();
+        store.createSchema(type);
+        fs = (SimpleFeatureStore) store.getFeatureSource(KAVEL_LAYER_NAME);
+    }
+
+    @Test
+    public void testLoadSingleQuery() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        add("f2", 1, WorkflowStatus.bewerkt);
+        add("f3", 1, WorkflowStatus.archief);
+        add("f4", 2, WorkflowStatus.definitief);
+
+        WorkflowVersions versions = WorkflowVersions.load(fs, "f1", "1");
+        assertEquals("f1", versions.getOriginal().getID());
+        assertEquals(WorkflowStatus.definitief, versions.getOriginalStatus());
+        assertEquals(1, versions.getDefinitief().size());
+        assertEquals(1, versions.getBewerkt().size());
+    }
+
+    @Test
+    public void testLoadWrongOrNoHint() throws Exception {
+        add("f1", 1, WorkflowStatus.bewerkt);
+        add("f2", 1, WorkflowStatus.definitief);
+        add("f3", 2, WorkflowStatus.definitief);
+        add("f4", 2, WorkflowStatus.bewerkt);
+
+        WorkflowVersions versions = WorkflowVersions.load(fs, "f1", "2");
+        assertEquals(1, versions.getDefinitief().size());
+        assertEquals("f2", versions.getDefinitief().get(0).getID());
+        assertEquals(1, versions.getBewerkt().size());
+        assertEquals("f1", versions.getBewerkt().get(0).getID());
+
+        versions = WorkflowVersions.load(fs, "f1", null);
+        assertEquals(1, versions.getDefinitief().size());
+        assertEquals(1, versions.getBewerkt().size());
+    }
+
+    @Test(expected = java.util.NoSuchElementException.class)
+    public void testLoadMissing() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        WorkflowVersions.load(fs, "f9", "1");
+    }
+
+    @Test
+    public void testDefinitiefToBewerkt() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        apply("f1", WorkflowStatus.bewerkt);
+        assertEquals(statuses(WorkflowStatus.bewerkt, WorkflowStatus.definitief), statuses(1));
+    }
+
+    @Test
+    public void testDefinitiefToBewerktReplacesBewerkt() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        add("f2", 1, WorkflowStatus.bewerkt);
+        apply("f1", WorkflowStatus.bewerkt);
+        assertEquals(statuses(WorkflowStatus.bewerkt, WorkflowStatus.definitief), statuses(1));
+        assertEquals("nieuw", naam(1, WorkflowStatus.bewerkt));
+    }
+
+    @Test
+    public void testBewerktToBewerkt() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        add("f2", 1, WorkflowStatus.bewerkt);
+        apply("f2", WorkflowStatus.bewerkt);
+        assertEquals(statuses(WorkflowStatus.bewerkt, WorkflowStatus.definitief), statuses(1));
+        assertEquals("nieuw", naam(1, WorkflowStatus.bewerkt));
+    }
+
+    @Test
+    public void testBewerktToBewerktArchivesDuplicates() throws Exception {
+        add("f1", 1, WorkflowStatus.bewerkt);
+        add("f2", 1, WorkflowStatus.bewerkt);
+        apply("f2", WorkflowStatus.bewerkt);
+        assertEquals(statuses(WorkflowStatus.archief, WorkflowStatus.bewerkt), statuses(1));
+    }
+
+    @Test
+    public void testBewerktToDefinitief() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        add("f2", 1, WorkflowStatus.bewerkt);
+        apply("f2", WorkflowStatus.definitief);
+        assertEquals(statuses(WorkflowStatus.archief, WorkflowStatus.definitief), statuses(1));
+        assertEquals("nieuw", naam(1, WorkflowStatus.definitief));
+    }
+
+    @Test
+    public void testDefinitiefToDefinitief() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        apply("f1", WorkflowStatus.definitief);
+        assertEquals(statuses(WorkflowStatus.archief, WorkflowStatus.definitief), statuses(1));
+        assertEquals("nieuw", naam(1, WorkflowStatus.definitief));
+    }
+
+    @Test
+    public void testToAfgevoerd() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        add("f2", 1, WorkflowStatus.bewerkt);
+        assertTrue(apply("f2", WorkflowStatus.afgevoerd));
+        assertEquals(statuses(WorkflowStatus.afgevoerd, WorkflowStatus.archief), statuses(1));
+    }
+
+    @Test
+    public void testKavelToAfgevoerdNoCascade() throws Exception {
+        SimpleFeature f = feature("f1", 1, WorkflowStatus.definitief);
+        f.setAttribute(KAVEL_TERREIN_ID_FIELDNAME, 10);
+        store.addFeature(f);
+        assertFalse(apply("f1", WorkflowStatus.afgevoerd));
+        assertEquals(statuses(WorkflowStatus.afgevoerd), statuses(1));
+    }
+
+    @Test
+    public void testToArchief() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        apply("f1", WorkflowStatus.archief);
+        assertEquals(statuses(WorkflowStatus.archief), statuses(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testArchiefToBewerkt() throws Exception {
+        add("f1", 1, WorkflowStatus.archief);
+        apply("f1", WorkflowStatus.bewerkt);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAfgevoerdToDefinitief() throws Exception {
+        add("f1", 1, WorkflowStatus.afgevoerd);
+        apply("f1", WorkflowStatus.definitief);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        add("f1", 1, WorkflowStatus.bewerkt);
+        add("f2", 2, WorkflowStatus.bewerkt);
+        add("f3", 2, WorkflowStatus.definitief);
+        add("f4", 3, WorkflowStatus.definitief);
+
+        Map<String, WorkflowVersions> versions = WorkflowVersions.loadAll(fs, Arrays.asList("f1", "f2", "f4"));
+        assertEquals(3, versions.size());
+        assertEquals(1, versions.get("f2").getDefinitief().size());
+
+        WorkflowBatch batch = new WorkflowBatch();
+        String[] attributes = new String[]{WORKFLOW_FIELDNAME, "naam"};
+        Object[] values = new Object[]{WorkflowStatus.definitief.name(), "nieuw"};
+        for (WorkflowVersions v : versions.values()) {
+            SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+            builder.init(v.getOriginal());
+            SimpleFeature edited = builder.buildFeature(null);
+            edited.setAttribute(WORKFLOW_FIELDNAME, values[0]);
+            edited.setAttribute("naam", values[1]);
+            WorkflowTransitions.plan(batch, v, WorkflowStatus.definitief, edited, attributes, values);
+        }
+        // f1 and f2 are modified in one call
+        assertEquals(2, batch.getModifiedCount());
+        // one archive (f3, f4), one modify (f1, f2) and one add
+        assertEquals(3, batch.getOperationCount());
+        batch.execute(fs);
+
+        assertEquals(statuses(WorkflowStatus.definitief), statuses(1));
+        assertEquals(statuses(WorkflowStatus.archief, WorkflowStatus.definitief), statuses(2));
+        assertEquals(statuses(WorkflowStatus.archief, WorkflowStatus.definitief), statuses(3));
+        assertEquals("nieuw", naam(2, WorkflowStatus.definitief));
+        assertEquals("nieuw", naam(3, WorkflowStatus.definitief));
+    }
+
+    @Test
+    public void testLoadCurrent() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        add("f2", 1, WorkflowStatus.bewerkt);
+        add("f3", 2, WorkflowStatus.definitief);
+        add("f4", 3, WorkflowStatus.archief);
+
+        Map<Object, WorkflowVersions> versions = WorkflowVersions.loadCurrent(fs, Arrays.asList(1, 2, 3));
+        assertEquals(2, versions.size());
+        assertEquals("f2", versions.get(1).getOriginal().getID());
+        assertEquals(1, versions.get(1).getDefinitief().size());
+        assertEquals("f3", versions.get(2).getOriginal().getID());
+
+        // retire both in one archive and one modify
+        WorkflowBatch batch = new WorkflowBatch();
+        String[] attributes = new String[]{WORKFLOW_FIELDNAME};
+        Object[] values = new Object[]{WorkflowStatus.afgevoerd.name()};
+        for (WorkflowVersions v : versions.values()) {
+            assertTrue(WorkflowTransitions.plan(batch, v, WorkflowStatus.afgevoerd, null, attributes, values));
+        }
+        assertEquals(2, batch.getOperationCount());
+        batch.execute(fs);
+        assertEquals(statuses(WorkflowStatus.afgevoerd, WorkflowStatus.archief), statuses(1));
+        assertEquals(statuses(WorkflowStatus.afgevoerd), statuses(2));
+    }
+
+    @Test
+    public void testInFilters() {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < WorkflowUtil.IN_FILTER_SIZE * 2 + 1; i++) {
+            ids.add(i);
+        }
+        List<List<Filter>> chunks = WorkflowUtil.inFilters(ID_FIELDNAME, ids);
+        assertEquals(3, chunks.size());
+        assertEquals(WorkflowUtil.IN_FILTER_SIZE, chunks.get(0).size());
+        assertEquals(1, chunks.get(2).size());
+    }
+
+    @Test
+    public void testTransitionTable() {
+        assertTrue(WorkflowTransitions.isSupported(WorkflowStatus.definitief, WorkflowStatus.bewerkt));
+        assertTrue(WorkflowTransitions.isSupported(WorkflowStatus.archief, WorkflowStatus.afgevoerd));
+        assertFalse(WorkflowTransitions.isSupported(WorkflowStatus.archief, WorkflowStatus.bewerkt));
+        assertFalse(WorkflowTransitions.isSupported(WorkflowStatus.afgevoerd, WorkflowStatus.definitief));
+        assertFalse(WorkflowTransitions.isSupported(WorkflowStatus.bewerkt, null));
+        assertEquals(Arrays.asList(WorkflowTransitions.Step.REMOVE_BEWERKT, WorkflowTransitions.Step.INSERT_EDITED),
+                WorkflowTransitions.getPlan(WorkflowStatus.definitief, WorkflowStatus.bewerkt));
+    }
+
+    @Test
+    public void testOperationCounts() throws Exception {
+        add("f1", 1, WorkflowStatus.definitief);
+        add("f2", 1, WorkflowStatus.bewerkt);
+        // remove f2, add
+        assertEquals(2, operations("f1", WorkflowStatus.bewerkt));
+        // modify f2
+        assertEquals(1, operations("f2", WorkflowStatus.bewerkt));
+        // archive f1, add
+        assertEquals(2, operations("f1", WorkflowStatus.definitief));
+        // archive f1, modify f2
+        assertEquals(2, operations("f2", WorkflowStatus.definitief));
+        // archive f1, modify f2
+        assertEquals(2, operations("f2", WorkflowStatus.afgevoerd));
+        // modify f1
+        assertEquals(1, operations("f1", WorkflowStatus.archief));
+
+        add("f3", 2, WorkflowStatus.definitief);
+        // nothing to remove, add
+        assertEquals(1, operations("f3", WorkflowStatus.bewerkt));
+    }
+
+    /**
+     * the number of store calls of an edit of the naam and status of a
+     * feature, without executing it.
+     */
+    private int operations(String fid, WorkflowStatus incoming) throws Exception {
+        WorkflowVersions versions = WorkflowVersions.load(fs, fid, versionsId(fid));
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        builder.init(versions.getOriginal());
+        WorkflowBatch batch = new WorkflowBatch();
+        WorkflowTransitions.plan(batch, versions, incoming, builder.buildFeature(null),
+                new String[]{WORKFLOW_FIELDNAME, "naam"}, new Object[]{incoming.name(), "nieuw"});
+        return batch.getOperationCount();
+    }
+
+    /**
+     * edit the naam and status of a feature, the way the edit action bean
+     * does.
+     */
+    private boolean apply(String fid, WorkflowStatus incoming) throws Exception {
+        WorkflowVersions versions = WorkflowVersions.load(fs, fid, versionsId(fid));
+        String[] attributes = new String[]{WORKFLOW_FIELDNAME, "naam"};
+        Object[] values = new Object[]{incoming.name(), "nieuw"};
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        builder.init(versions.getOriginal());
+        SimpleFeature edited = builder.buildFeature(null);
+        for (int i = 0; i < attributes.length; i++) {
+            edited.setAttribute(attributes[i], values[i]);
+        }
+        return WorkflowTransitions.apply(fs, versions, incoming, edited, attributes, values);
+    }
+
+    private Object versionsId(String fid) throws Exception {
+        try (SimpleFeatureIterator it = fs.getFeatures().features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                if (f.getID().equals(fid)) {
+                    return f.getAttribute(ID_FIELDNAME);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void add(String fid, int id, WorkflowStatus status) throws Exception {
+        store.addFeature(feature(fid, id, status));
+    }
+
+    private SimpleFeature feature(String fid, int id, WorkflowStatus status) {
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        builder.set(ID_FIELDNAME, id);
+        builder.set(WORKFLOW_FIELDNAME, status.name());
+        builder.set("naam", "oud");
+        return builder.buildFeature(fid);
+    }
+
+    /**
+     * sorted statuses of all versions of an id.
+     */
+    private List<String> statuses(int id) throws Exception {
+        List<String> statuses = new ArrayList<>();
+        try (SimpleFeatureIterator it = fs.getFeatures().features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                if (Integer.valueOf(id).equals(f.getAttribute(ID_FIELDNAME))) {
+                    statuses.add(f.getAttribute(WORKFLOW_FIELDNAME).toString());
+                }
+            }
+        }
+        Collections.sort(statuses);
+        return statuses;
+    }
+
+    private static List<String> statuses(WorkflowStatus... expected) {
+        List<String> statuses = new ArrayList<>();
+        for (WorkflowStatus s : expected) {
+            statuses.add(s.name());
+        }
+        Collections.sort(statuses);
+        return statuses;
+    }
+
+    private String naam(int id, WorkflowStatus status) throws Exception {
+        try (SimpleFeatureIterator it = fs.getFeatures().features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                if (Integer.valueOf(id).equals(f.getAttribute(ID_FIELDNAME))
+                        && status.name().equals(f.getAttribute(WORKFLOW_FIELDNAME).toString())) {
+                    return (String) f.getAttribute("naam");
+                }
+            }
+        }
+        return null;
+    }
+}
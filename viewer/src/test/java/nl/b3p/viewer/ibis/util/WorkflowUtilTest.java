@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static nl.b3p.viewer.util.MemoryFeatureType.feature;
+import static nl.b3p.viewer.util.MemoryFeatureType.multiSquare;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+/**
+ * testcases for the incremental terrein geometry update of
+ * {@link WorkflowUtil}, the result must be the same as a full rebuild, and
+ * for afvoeren of terreinen.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class WorkflowUtilTest implements IbisConstants {
+
+    private final FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+
+    private MemoryDataStore store;
+    private SimpleFeatureType kavelType;
+    private SimpleFeatureType terreinType;
+    private SimpleFeatureStore kavels;
+    private SimpleFeatureStore terreinen;
+
+    @Before
+    public void setUp() throws Exception {
+        kavelType = DataUtilities.createType(KAVEL_LAYER_NAME,
+                "geom:MultiPolygon,ibis_id:Integer,terreinid:Integer,workflow_status:String");
+        terreinType = DataUtilities.createType(TERREIN_LAYER_NAME,
+                "geom:MultiPolygon,ibis_id:Integer,workflow_status:String,datummutatie:java.util.Date");
+        store = new MemoryDataStore();
+        store.createSchema(kavelType);
+        store.createSchema(terreinType);
+
+        // terrein 1: 3 definitief kavels in a row and an archief kavel
+        store.addFeature(feature(kavelType, "k1", multiSquare(0, 0), 1, 1, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k2", multiSquare(10, 0), 2, 1, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k3", multiSquare(20, 0), 3, 1, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k4", multiSquare(30, 0), 4, 1, WorkflowStatus.archief));
+        store.addFeature(feature(terreinType, "t1", read("MULTIPOLYGON(((0 0, 30 0, 30 10, 0 10, 0 0)))"), 1, null, WorkflowStatus.definitief));
+
+        kavels = (SimpleFeatureStore) store.getFeatureSource(KAVEL_LAYER_NAME);
+        terreinen = (SimpleFeatureStore) store.getFeatureSource(TERREIN_LAYER_NAME);
+    }
+
+    @Test
+    public void testAddKavel() throws Exception {
+        Geometry added = multiSquare(30, 5);
+        kavels.addFeatures(DataUtilities.collection(feature(kavelType, "k5", added, 5, 1, WorkflowStatus.definitief)));
+
+        this.update(added);
+    }
+
+    @Test
+    public void testRemoveKavel() throws Exception {
+        Geometry removed = multiSquare(10, 0);
+        kavels.removeFeatures(ff.id(ff.featureId("k2")));
+
+        this.update(removed);
+        // two separate parts remain
+        assertEquals(2, terrein().getNumGeometries());
+    }
+
+    @Test
+    public void testMoveKavel() throws Exception {
+        Geometry before = multiSquare(20, 0);
+        Geometry after = multiSquare(20, 10);
+        kavels.modifyFeatures("geom", after, ff.id(ff.featureId("k3")));
+
+        this.update(before, after);
+    }
+
+    @Test
+    public void testReshapeKavel() throws Exception {
+        // shrink a kavel in the middle, leaving a gap in the terrein
+        Geometry before = multiSquare(10, 0);
+        Geometry after = read("MULTIPOLYGON(((10 0, 20 0, 20 5, 10 5, 10 0)))");
+        kavels.modifyFeatures("geom", after, ff.id(ff.featureId("k2")));
+
+        this.update(before, after);
+        assertEquals(250d, terrein().getArea(), 1e-9);
+    }
+
+    @Test
+    public void testInvalidDeltaFallsBackToFullUpdate() throws Exception {
+        // a second definitief terrein with the same id, the current geometry is ambiguous
+        store.addFeature(feature(terreinType, "t2", multiSquare(100, 100), 1, null, WorkflowStatus.definitief));
+        Geometry added = multiSquare(30, 0);
+        kavels.addFeatures(DataUtilities.collection(feature(kavelType, "k5", added, 5, 1, WorkflowStatus.definitief)));
+
+        assertEquals(null, WorkflowUtil.deltaGeometry(kavels, WorkflowUtil.kavelFilter(1, WorkflowStatus.definitief),
+                terreinen, WorkflowUtil.terreinFilter(1, WorkflowStatus.definitief), added));
+
+        long fallbacks = WorkflowUtil.getDeltaFallbacks();
+        this.update(added);
+        assertEquals(fallbacks + 1, WorkflowUtil.getDeltaFallbacks());
+    }
+
+    @Test
+    public void testEmptyTerreinFallsBackToFullUpdate() throws Exception {
+        terreinen.modifyFeatures("geom", null, ff.id(ff.featureId("t1")));
+        Geometry added = multiSquare(30, 0);
+        kavels.addFeatures(DataUtilities.collection(feature(kavelType, "k5", added, 5, 1, WorkflowStatus.definitief)));
+
+        long fallbacks = WorkflowUtil.getDeltaFallbacks();
+        this.update(added);
+        assertEquals(fallbacks + 1, WorkflowUtil.getDeltaFallbacks());
+    }
+
+    @Test
+    public void testIsAcceptable() throws Exception {
+        Geometry outside = read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))");
+        Geometry local = read("POLYGON((10 0, 20 0, 20 10, 10 10, 10 0))");
+        assertTrue(WorkflowUtil.isAcceptable(outside.union(local), outside, local));
+        // overlapping parts
+        assertTrue(WorkflowUtil.isAcceptable(outside, outside, read("POLYGON((0 0, 5 0, 5 5, 0 5, 0 0))")));
+
+        // empty, not polygonal, invalid (bow tie)
+        assertFalse(WorkflowUtil.isAcceptable(read("POLYGON EMPTY"), outside, local));
+        assertFalse(WorkflowUtil.isAcceptable(read("LINESTRING(0 0, 20 10)"), outside, local));
+        assertFalse(WorkflowUtil.isAcceptable(read("POLYGON((0 0, 20 10, 20 0, 0 10, 0 0))"), outside, local));
+        // area smaller than the largest part, or larger than both parts
+        assertFalse(WorkflowUtil.isAcceptable(read("POLYGON((0 0, 5 0, 5 5, 0 5, 0 0))"), outside, local));
+        assertFalse(WorkflowUtil.isAcceptable(read("POLYGON((0 0, 30 0, 30 10, 0 10, 0 0))"), outside, local));
+    }
+
+    @Test
+    public void testCheckDrift() throws Exception {
+        Geometry full = read("POLYGON((0 0, 30 0, 30 10, 0 10, 0 0))");
+        long drift = WorkflowUtil.getDriftDetected();
+        WorkflowUtil.checkDrift(1, read("POLYGON((0 0, 30 0, 30 10, 0 10, 0 0))"), full);
+        assertEquals(drift, WorkflowUtil.getDriftDetected());
+
+        WorkflowUtil.checkDrift(1, read("POLYGON((0 0, 20 0, 20 10, 0 10, 0 0))"), full);
+        assertEquals(drift + 1, WorkflowUtil.getDriftDetected());
+    }
+
+    @Test
+    public void testAfvoerenTerreinen() throws Exception {
+        this.addTerreinen();
+        Transaction transaction = new DefaultTransaction("test");
+        try {
+            kavels.setTransaction(transaction);
+            terreinen.setTransaction(transaction);
+            // 99 does not exist
+            assertEquals(2, WorkflowUtil.afvoerenTerreinen(Arrays.asList(1, 2, 99), terreinen, kavels));
+            transaction.commit();
+        } finally {
+            transaction.close();
+        }
+
+        Map<String, String> t = statuses(TERREIN_LAYER_NAME);
+        // the current version is afgevoerd, the definitief version of terrein 1 is archived
+        assertEquals(WorkflowStatus.archief.name(), t.get("t1"));
+        assertEquals(WorkflowStatus.afgevoerd.name(), t.get("t1b"));
+        assertEquals(WorkflowStatus.afgevoerd.name(), t.get("t2"));
+        assertEquals(WorkflowStatus.definitief.name(), t.get("t3"));
+
+        Map<String, String> k = statuses(KAVEL_LAYER_NAME);
+        for (String fid : new String[]{"k1", "k2", "k3", "k4", "k5"}) {
+            assertEquals(fid, WorkflowStatus.afgevoerd.name(), k.get(fid));
+        }
+        assertEquals(WorkflowStatus.definitief.name(), k.get("k6"));
+    }
+
+    @Test
+    public void testAfvoerenTerreinenRollback() throws Exception {
+        this.addTerreinen();
+        Map<String, String> t = statuses(TERREIN_LAYER_NAME);
+        Map<String, String> k = statuses(KAVEL_LAYER_NAME);
+        Transaction transaction = new DefaultTransaction("test");
+        try {
+            kavels.setTransaction(transaction);
+            terreinen.setTransaction(transaction);
+            assertEquals(2, WorkflowUtil.afvoerenTerreinen(Arrays.asList(1, 2), terreinen, kavels));
+            transaction.rollback();
+        } finally {
+            transaction.close();
+        }
+        assertEquals(t, statuses(TERREIN_LAYER_NAME));
+        assertEquals(k, statuses(KAVEL_LAYER_NAME));
+    }
+
+    /**
+     * terrein 1 gets a bewerkt version, terrein 2 and 3 are definitief with
+     * one kavel each.
+     */
+    private void addTerreinen() throws Exception {
+        store.addFeature(feature(terreinType, "t1b", multiSquare(0, 0), 1, null, WorkflowStatus.bewerkt));
+        store.addFeature(feature(terreinType, "t2", multiSquare(50, 0), 2, null, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k5", multiSquare(50, 0), 5, 2, WorkflowStatus.definitief));
+        store.addFeature(feature(terreinType, "t3", multiSquare(70, 0), 3, null, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k6", multiSquare(70, 0), 6, 3, WorkflowStatus.definitief));
+    }
+
+    private Map<String, String> statuses(String typeName) throws Exception {
+        Map<String, String> statuses = new HashMap<>();
+        try (SimpleFeatureIterator it = store.getFeatureSource(typeName).getFeatures().features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                statuses.put(f.getID(), String.valueOf(f.getAttribute(WORKFLOW_FIELDNAME)));
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * update terrein 1 incrementally with the changed geometries and compare
+     * with the union of all definitief kavels.
+     */
+    private void update(Geometry... changed) throws Exception {
+        WorkflowUtil.updateTerreinGeometry(1, kavels, terreinen, WorkflowStatus.definitief, Arrays.asList(changed));
+
+        Geometry expected = ParallelUnion.union(kavelGeometries(WorkflowUtil.kavelFilter(1, WorkflowStatus.definitief)));
+        Geometry actual = terrein();
+        assertEquals("MultiPolygon", actual.getGeometryType());
+        assertEquals(expected.getArea(), actual.getArea(), 1e-9);
+        assertEquals(0d, expected.symDifference(actual).getArea(), 1e-9);
+    }
+
+    private List<Geometry> kavelGeometries(Filter filter) throws Exception {
+        List<Geometry> geoms = new ArrayList<>();
+        try (SimpleFeatureIterator it = kavels.getFeatures(filter).features()) {
+            while (it.hasNext()) {
+                geoms.add((Geometry) it.next().getDefaultGeometry());
+            }
+        }
+        return geoms;
+    }
+
+    private Geometry terrein() throws Exception {
+        List<Geometry> geoms = new ArrayList<>();
+        try (SimpleFeatureIterator it = terreinen.getFeatures(ff.id(ff.featureId("t1"))).features()) {
+            while (it.hasNext()) {
+                geoms.add((Geometry) it.next().getDefaultGeometry());
+            }
+        }
+        assertEquals(1, geoms.size());
+        return geoms.get(0);
+    }
+
+    private static Geometry read(String wkt) throws Exception {
+        return new WKTReader().read(wkt);
+    }
+}
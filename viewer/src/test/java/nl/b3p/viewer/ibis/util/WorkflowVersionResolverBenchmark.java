@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import java.util.Random;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+
+/**
+ * Simple benchmark comparing {@link WorkflowVersionResolver} with the original
+ * filter and sort implementation. This is not a unit test, run it using
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.b3p.viewer.ibis.util.WorkflowVersionResolverBenchmark}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class WorkflowVersionResolverBenchmark {
+
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        // average of 4 versions per ibis_id
+        bench(1000, 250);
+        bench(100000, 25000);
+    }
+
+    private static void bench(int size, int ids) throws Exception {
+        SimpleFeatureCollection sfc = WorkflowVersionResolverTest.randomFeatures(size, ids, new Random(42));
+
+        for (int i = 0; i < WARMUP; i++) {
+            single(sfc);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            single(sfc);
+        }
+        long singlePass = (System.nanoTime() - start) / RUNS;
+
+        // the original implementation is quadratic, so don't bother warming up on large sets
+        int legacyRuns = size > 10000 ? 1 : RUNS;
+        start = System.nanoTime();
+        for (int i = 0; i < legacyRuns; i++) {
+            WorkflowVersionResolverTest.legacyResolve(sfc);
+        }
+        long legacy = (System.nanoTime() - start) / legacyRuns;
+
+        System.out.println(String.format("%d features, %d ids: single pass %.2f ms, filter and sort %.2f ms (x%.0f)",
+                size, ids, singlePass / 1e6, legacy / 1e6, (double) legacy / singlePass));
+    }
+
+    private static int single(SimpleFeatureCollection sfc) {
+        try (SimpleFeatureIterator it = sfc.features()) {
+            return WorkflowVersionResolver.resolve(it).size();
+        }
+    }
+}
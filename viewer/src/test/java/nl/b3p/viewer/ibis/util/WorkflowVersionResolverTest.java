@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.ibis.util;
+
+import static nl.b3p.viewer.ibis.util.IbisConstants.ID_FIELDNAME;
+import static nl.b3p.viewer.ibis.util.IbisConstants.MUTATIEDATUM_FIELDNAME;
+import static nl.b3p.viewer.ibis.util.IbisConstants.WORKFLOW_FIELDNAME;
+import static org.junit.Assert.assertEquals;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.collection.SortedSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.Function;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+
+/**
+ * testcases for {@link WorkflowVersionResolver}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class WorkflowVersionResolverTest {
+
+    private static final WorkflowStatus[] STATUSES = WorkflowStatus.values();
+
+    @Test
+    public void testBewerktWinsOverDefinitief() throws Exception {
+        List<SimpleFeature> feats = new ArrayList<>();
+        feats.add(feature(1, WorkflowStatus.definitief, new Date(2000L)));
+        feats.add(feature(1, WorkflowStatus.bewerkt, new Date(1000L)));
+        List<SimpleFeature> actueel = resolve(feats);
+        assertEquals(1, actueel.size());
+        assertEquals(WorkflowStatus.bewerkt.name(), actueel.get(0).getAttribute(WORKFLOW_FIELDNAME));
+    }
+
+    @Test
+    public void testYoungestWins() throws Exception {
+        List<SimpleFeature> feats = new ArrayList<>();
+        feats.add(feature(1, WorkflowStatus.definitief, new Date(1000L)));
+        feats.add(feature(1, WorkflowStatus.definitief, null));
+        feats.add(feature(1, WorkflowStatus.definitief, new Date(3000L)));
+        feats.add(feature(1, WorkflowStatus.definitief, new Date(2000L)));
+        List<SimpleFeature> actueel = resolve(feats);
+        assertEquals(1, actueel.size());
+        assertEquals(new Date(3000L), actueel.get(0).getAttribute(MUTATIEDATUM_FIELDNAME));
+    }
+
+    @Test
+    public void testTieLowestPrimaryKeyWins() throws Exception {
+        SimpleFeatureType type = featureType();
+        SimpleFeature a = SimpleFeatureBuilder.build(type, new Object[]{1, WorkflowStatus.definitief.name(), null}, "kavel.10");
+        SimpleFeature b = SimpleFeatureBuilder.build(type, new Object[]{1, WorkflowStatus.definitief.name(), null}, "kavel.9");
+        List<SimpleFeature> feats = new ArrayList<>();
+        feats.add(a);
+        feats.add(b);
+        assertEquals("kavel.9", resolve(feats).get(0).getID());
+        feats.clear();
+        feats.add(b);
+        feats.add(a);
+        assertEquals("kavel.9", resolve(feats).get(0).getID());
+
+        SimpleFeature c = SimpleFeatureBuilder.build(type, new Object[]{1, WorkflowStatus.definitief.name(), new Date(1000L)}, "kavel.11");
+        SimpleFeature d = SimpleFeatureBuilder.build(type, new Object[]{1, WorkflowStatus.definitief.name(), new Date(1000L)}, "kavel.3");
+        feats.clear();
+        feats.add(c);
+        feats.add(a);
+        feats.add(d);
+        assertEquals("kavel.3", resolve(feats).get(0).getID());
+    }
+
+    @Test
+    public void testArchiefAndAfgevoerdIgnored() throws Exception {
+        List<SimpleFeature> feats = new ArrayList<>();
+        feats.add(feature(1, WorkflowStatus.archief, new Date(3000L)));
+        feats.add(feature(1, WorkflowStatus.definitief, new Date(1000L)));
+        feats.add(feature(2, WorkflowStatus.afgevoerd, new Date(1000L)));
+        List<SimpleFeature> actueel = resolve(feats);
+        assertEquals(1, actueel.size());
+        assertEquals(1, actueel.get(0).getAttribute(ID_FIELDNAME));
+        assertEquals(WorkflowStatus.definitief.name(), actueel.get(0).getAttribute(WORKFLOW_FIELDNAME));
+    }
+
+    /**
+     * compare the single pass resolver with the original filter and sort
+     * implementation of
+     * {@link nl.b3p.viewer.util.IbisFeatureToJson#getWorkflowJSONFeatures}.
+     */
+    @Test
+    public void testSameResultAsSortedSubCollections() throws Exception {
+        SimpleFeatureCollection sfc = randomFeatures(1000, 250, new Random(42));
+
+        Map<Object, SimpleFeature> expected = new HashMap<>();
+        for (SimpleFeature f : legacyResolve(sfc)) {
+            expected.put(f.getAttribute(ID_FIELDNAME), f);
+        }
+
+        List<SimpleFeature> actueel;
+        try (SimpleFeatureIterator it = sfc.features()) {
+            actueel = WorkflowVersionResolver.resolve(it);
+        }
+        assertEquals(expected.size(), actueel.size());
+        for (SimpleFeature f : actueel) {
+            SimpleFeature e = expected.get(f.getAttribute(ID_FIELDNAME));
+            assertEquals(e.getAttribute(WORKFLOW_FIELDNAME), f.getAttribute(WORKFLOW_FIELDNAME));
+            assertEquals(e.getAttribute(MUTATIEDATUM_FIELDNAME), f.getAttribute(MUTATIEDATUM_FIELDNAME));
+        }
+    }
+
+    private static List<SimpleFeature> resolve(List<SimpleFeature> feats) {
+        try (SimpleFeatureIterator it = DataUtilities.collection(feats).features()) {
+            return WorkflowVersionResolver.resolve(it);
+        }
+    }
+
+    static SimpleFeatureType featureType() throws Exception {
+        return DataUtilities.createType("kavel",
+                ID_FIELDNAME + ":Integer," + WORKFLOW_FIELDNAME + ":String," + MUTATIEDATUM_FIELDNAME + ":Date");
+    }
+
+    static SimpleFeature feature(int id, WorkflowStatus status, Date datum) throws Exception {
+        return SimpleFeatureBuilder.build(featureType(), new Object[]{id, status.name(), datum}, null);
+    }
+
+    /**
+     * create a collection with random workflow versions; mutatie dates are
+     * unique so the result does not depend on the order of the features.
+     */
+    static SimpleFeatureCollection randomFeatures(int size, int ids, Random r) throws Exception {
+        SimpleFeatureType type = featureType();
+        List<SimpleFeature> feats = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            feats.add(SimpleFeatureBuilder.build(type, new Object[]{
+                r.nextInt(ids),
+                STATUSES[r.nextInt(STATUSES.length)].name(),
+                new Date(i * 1000L)
+            }, null));
+        }
+        return DataUtilities.collection(feats);
+    }
+
+    /**
+     * the original, per id filter and sort, implementation.
+     */
+    static List<SimpleFeature> legacyResolve(SimpleFeatureCollection inMem) {
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Function uniq = ff.function("Collection_Unique", ff.property(ID_FIELDNAME));
+        Set<Object> idlist = (Set<Object>) uniq.evaluate(inMem);
+        SortBy[] sortBy = new SortBy[]{
+            ff.sort(WORKFLOW_FIELDNAME, SortOrder.ASCENDING),
+            ff.sort(MUTATIEDATUM_FIELDNAME, SortOrder.DESCENDING)
+        };
+        List<SimpleFeature> actueel = new ArrayList<>();
+        for (Object id : idlist) {
+            Filter filter = ff.and(
+                    ff.equals(ff.property(ID_FIELDNAME), ff.literal(id)),
+                    ff.or(
+                            ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.definitief.name()), false),
+                            ff.equal(ff.property(WORKFLOW_FIELDNAME), ff.literal(WorkflowStatus.bewerkt.name()), false)
+                    ));
+            SimpleFeature actFeat = DataUtilities.first(new SortedSimpleFeatureCollection(inMem.subCollection(filter), sortBy));
+            if (actFeat != null) {
+                actueel.add(actFeat);
+            }
+        }
+        return actueel;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.stripes;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import nl.b3p.viewer.ibis.report.JoinedFeatureIterator;
+import nl.b3p.viewer.ibis.util.AggregateQuery;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * testcases for the aggregation of {@link IbisAttributeListActionBean}: the
+ * {@link AggregateQuery} in the database must give the same result as the
+ * in-memory aggregation.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class IbisAttributeListActionBeanTest {
+
+    /**
+     * terreinen: id, gemeente, opp; terrein 4 has no kavels and terrein 5 has
+     * no opp.
+     */
+    private static final Object[][] TERREINEN = {
+        {1, "Leiden", 10d},
+        {2, "Leiden", 20d},
+        {3, "Katwijk", 30d},
+        {4, "Katwijk", 40d},
+        {5, "Oegstgeest", null}
+    };
+    /**
+     * kavels: terreinid, uitgifte; kavel 9 has no terrein.
+     */
+    private static final Object[][] KAVELS = {
+        {1, 1d}, {1, 2d}, {1, null},
+        {2, 4d},
+        {3, 8d}, {3, 16d},
+        {5, 32d},
+        {9, 64d}
+    };
+    private static final List<String> SUMS = Arrays.asList("opp", "uitgifte");
+
+    private Connection conn;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = DriverManager.getConnection("jdbc:h2:mem:aggregatie");
+        try (Statement st = conn.createStatement()) {
+            st.execute("create table \"terrein\" (\"id\" integer, \"gemeente\" varchar(50), \"opp\" double)");
+            st.execute("create table \"kavel\" (\"terreinid\" integer, \"uitgifte\" double)");
+        }
+        try (PreparedStatement ps = conn.prepareStatement("insert into \"terrein\" values (?, ?, ?)")) {
+            for (Object[] t : TERREINEN) {
+                ps.setObject(1, t[0]);
+                ps.setObject(2, t[1]);
+                ps.setObject(3, t[2]);
+                ps.executeUpdate();
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement("insert into \"kavel\" values (?, ?)")) {
+            for (Object[] k : KAVELS) {
+                ps.setObject(1, k[0]);
+                ps.setObject(2, k[1]);
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        conn.close();
+    }
+
+    @Test
+    public void testAggregateSameAsInMemory() throws Exception {
+        AggregateQuery query = new AggregateQuery(null, "terrein", "id", "kavel", "terreinid")
+                .sumParent("opp")
+                .sumChild("uitgifte")
+                .groupBy("gemeente");
+        Map<String, Map<String, Number>> database = query.execute(conn);
+
+        Map<String, Map<String, Double>> memory = inMemory();
+        assertFalse(memory.isEmpty());
+        assertEquals(memory.keySet(), database.keySet());
+        for (String gebied : memory.keySet()) {
+            for (String name : SUMS) {
+                Number sum = database.get(gebied).get(name);
+                // the report shows a sum of only nulls as 0
+                assertEquals(gebied + " " + name, memory.get(gebied).get(name), sum == null ? 0d : sum.doubleValue(), 0.0001);
+            }
+        }
+        assertEquals(30d, memory.get("Leiden").get("opp"), 0.0001);
+        assertEquals(7d, memory.get("Leiden").get("uitgifte"), 0.0001);
+        assertEquals(30d, memory.get("Katwijk").get("opp"), 0.0001);
+    }
+
+    /**
+     * the report without a database: join the kavels to their terrein
+     * (payload once) and aggregate the rows.
+     */
+    private static Map<String, Map<String, Double>> inMemory() throws Exception {
+        SimpleFeatureType terreinType = DataUtilities.createType("terrein", "id:Integer,gemeente:String,opp:Double");
+        SimpleFeatureType kavelType = DataUtilities.createType("kavel", "terreinid:Integer,uitgifte:Double");
+        SimpleFeatureType type = DataUtilities.createType("AGGREGATE",
+                "id:Integer,gemeente:String,opp:Double,uitgifte:Double,terreinid:Integer,gebied:String");
+
+        MemoryDataStore store = new MemoryDataStore();
+        store.createSchema(terreinType);
+        store.createSchema(kavelType);
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(terreinType);
+        int i = 0;
+        for (Object[] t : TERREINEN) {
+            store.addFeature(builder.buildFeature("terrein." + i++, t));
+        }
+        builder = new SimpleFeatureBuilder(kavelType);
+        for (Object[] k : KAVELS) {
+            store.addFeature(builder.buildFeature("kavel." + i++, k));
+        }
+        SimpleFeatureSource terreinen = store.getFeatureSource("terrein");
+        SimpleFeatureSource kavels = store.getFeatureSource("kavel");
+
+        Map<Object, SimpleFeature> parents = JoinedFeatureIterator.readParents(terreinen, new Query("terrein"), "id");
+        SimpleFeatureIterator items = new JoinedFeatureIterator(kavels.getFeatures().features(), type, parents,
+                "terreinid", SUMS, true);
+        SimpleFeatureCollection sfc = IbisAttributeListActionBean.aggregateFields(items, type,
+                Collections.<String>emptySet(), SUMS, "gemeente");
+
+        Map<String, Map<String, Double>> result = new TreeMap<>();
+        try (SimpleFeatureIterator it = sfc.features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                Map<String, Double> sums = new TreeMap<>();
+                for (String name : SUMS) {
+                    sums.put(name, ((Number) f.getAttribute(name)).doubleValue());
+                }
+                result.put((String) f.getAttribute("gebied"), sums);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.stripes;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import nl.b3p.viewer.config.app.ApplicationLayer;
+import nl.b3p.viewer.config.services.Layer;
+import nl.b3p.viewer.ibis.util.IbisConstants;
+import nl.b3p.viewer.ibis.util.WorkflowStatus;
+import static nl.b3p.viewer.util.MemoryFeatureType.feature;
+import static nl.b3p.viewer.util.MemoryFeatureType.square;
+import nl.b3p.viewer.util.MemoryFeatureType;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * testcases for the batch edit of {@link IbisEditFeatureActionBean}. The
+ * kavels have no terrein so no terrein geometry is updated.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class IbisEditFeatureActionBeanTest implements IbisConstants {
+
+    private MemoryDataStore store;
+    private Layer layer;
+    private IbisEditFeatureActionBean bean;
+
+    @Before
+    public void setUp() throws Exception {
+        SimpleFeatureType kavelType = DataUtilities.createType(KAVEL_LAYER_NAME,
+                "geom:Polygon,ibis_id:Integer,terreinid:Integer,workflow_status:String,naam:String");
+        store = new MemoryDataStore();
+        store.createSchema(kavelType);
+        // kavel 1 is only definitief
+        store.addFeature(feature(kavelType, "k1", square(0), 1, null, WorkflowStatus.definitief));
+        // kavel 2 has a definitief and a bewerkt version
+        store.addFeature(feature(kavelType, "k2", square(20), 2, null, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k2b", square(20), 2, null, WorkflowStatus.bewerkt));
+        // kavel 3 is only bewerkt
+        store.addFeature(feature(kavelType, "k3", square(40), 3, null, WorkflowStatus.bewerkt));
+        // kavel 4 is not edited
+        store.addFeature(feature(kavelType, "k4", square(60), 4, null, WorkflowStatus.definitief));
+
+        layer = new Layer();
+        layer.setFeatureType(new MemoryFeatureType(1L, kavelType));
+        bean = new IbisEditFeatureActionBean();
+    }
+
+    @Test
+    public void testMixedBatch() throws Exception {
+        JSONArray edits = new JSONArray()
+                .put(this.edit("k1", WorkflowStatus.bewerkt, "een"))
+                .put(this.edit("k2b", WorkflowStatus.definitief, "twee"))
+                .put(this.edit("k3", WorkflowStatus.bewerkt, "drie"));
+        List<String> fids = this.applyBatch(edits);
+        assertEquals(3, fids.size());
+        assertEquals("k1", fids.get(0));
+
+        Map<String, SimpleFeature> kavels = kavels();
+        assertEquals(6, kavels.size());
+        // definitief -> bewerkt keeps the definitief version and adds a bewerkt version
+        assertEquals(WorkflowStatus.definitief.name(), status(kavels.get("k1")));
+        assertEquals(null, kavels.get("k1").getAttribute("naam"));
+        int bewerkt = 0;
+        for (SimpleFeature f : kavels.values()) {
+            if (Integer.valueOf(1).equals(f.getAttribute(ID_FIELDNAME)) && WorkflowStatus.bewerkt.name().equals(status(f))) {
+                assertEquals("een", f.getAttribute("naam"));
+                bewerkt++;
+            }
+        }
+        assertEquals(1, bewerkt);
+        // bewerkt -> definitief archives the definitief version
+        assertEquals(WorkflowStatus.archief.name(), status(kavels.get("k2")));
+        assertEquals(WorkflowStatus.definitief.name(), status(kavels.get("k2b")));
+        assertEquals("twee", kavels.get("k2b").getAttribute("naam"));
+        // bewerkt -> bewerkt modifies the feature
+        assertEquals(WorkflowStatus.bewerkt.name(), status(kavels.get("k3")));
+        assertEquals("drie", kavels.get("k3").getAttribute("naam"));
+        assertEquals(WorkflowStatus.definitief.name(), status(kavels.get("k4")));
+    }
+
+    @Test
+    public void testRollbackOnDuplicateIbisId() throws Exception {
+        // k2 and k2b are versions of the same kavel
+        JSONArray edits = new JSONArray()
+                .put(this.edit("k1", WorkflowStatus.bewerkt, "een"))
+                .put(this.edit("k2", WorkflowStatus.bewerkt, "twee"))
+                .put(this.edit("k2b", WorkflowStatus.definitief, "twee"));
+        this.assertRollback(edits);
+    }
+
+    @Test
+    public void testRollbackOnUnknownFid() throws Exception {
+        JSONArray edits = new JSONArray()
+                .put(this.edit("k1", WorkflowStatus.bewerkt, "een"))
+                .put(this.edit("k99", WorkflowStatus.bewerkt, "onbekend"));
+        this.assertRollback(edits);
+    }
+
+    /**
+     * the batch must fail and leave the kavels unchanged, like
+     * {@link IbisEditFeatureActionBean#editBatch()}.
+     */
+    private void assertRollback(JSONArray edits) throws Exception {
+        Map<String, SimpleFeature> before = kavels();
+        try {
+            this.applyBatch(edits);
+            fail("batch should fail");
+        } catch (IllegalArgumentException | NoSuchElementException e) {
+            // expected
+        }
+        Map<String, SimpleFeature> after = kavels();
+        assertEquals(before.size(), after.size());
+        for (Map.Entry<String, SimpleFeature> e : before.entrySet()) {
+            assertEquals(status(e.getValue()), status(after.get(e.getKey())));
+            assertEquals(e.getValue().getAttribute("naam"), after.get(e.getKey()).getAttribute("naam"));
+        }
+    }
+
+    private List<String> applyBatch(JSONArray edits) throws Exception {
+        Transaction transaction = new DefaultTransaction("test");
+        try {
+            SimpleFeatureStore fs = (SimpleFeatureStore) store.getFeatureSource(KAVEL_LAYER_NAME);
+            fs.setTransaction(transaction);
+            return bean.applyBatch(fs, layer, new ApplicationLayer(), edits, transaction, null);
+        } catch (Exception e) {
+            transaction.rollback();
+            throw e;
+        } finally {
+            transaction.close();
+        }
+    }
+
+    private JSONObject edit(String fid, WorkflowStatus status, String naam) throws Exception {
+        return new JSONObject()
+                .put(bean.getFID(), fid)
+                .put(WORKFLOW_FIELDNAME, status.name())
+                .put("naam", naam);
+    }
+
+    private Map<String, SimpleFeature> kavels() throws Exception {
+        Map<String, SimpleFeature> kavels = new HashMap<>();
+        try (SimpleFeatureIterator it = store.getFeatureSource(KAVEL_LAYER_NAME).getFeatures().features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                kavels.put(f.getID(), f);
+            }
+        }
+        return kavels;
+    }
+
+    private static String status(SimpleFeature f) {
+        return String.valueOf(f.getAttribute(WORKFLOW_FIELDNAME));
+    }
+}
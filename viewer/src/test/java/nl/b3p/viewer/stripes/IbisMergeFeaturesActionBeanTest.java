@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.stripes;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import nl.b3p.viewer.ibis.util.IbisConstants;
+import nl.b3p.viewer.ibis.util.WorkflowStatus;
+import static nl.b3p.viewer.util.MemoryFeatureType.feature;
+import static nl.b3p.viewer.util.MemoryFeatureType.square;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.json.JSONArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.identity.FeatureId;
+
+/**
+ * testcases for {@link IbisMergeFeaturesActionBean#mergeAll()}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class IbisMergeFeaturesActionBeanTest implements IbisConstants {
+
+    private MemoryDataStore store;
+    private IbisMergeFeaturesActionBean bean;
+
+    @Before
+    public void setUp() throws Exception {
+        SimpleFeatureType kavelType = DataUtilities.createType(KAVEL_LAYER_NAME,
+                "geom:Polygon,ibis_id:Integer,terreinid:Integer,workflow_status:String");
+        store = new MemoryDataStore();
+        store.createSchema(kavelType);
+        // three kavels in a row without a terrein, a kavel of another terrein and a loose kavel
+        store.addFeature(feature(kavelType, "k1", square(0), 1, null, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k2", square(10), 2, null, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k3", square(20), 3, null, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k4", square(30), 4, 7, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k5", square(50), 5, null, WorkflowStatus.definitief));
+
+        bean = new IbisMergeFeaturesActionBean();
+        bean.setExtraData("{\"" + WORKFLOW_FIELDNAME + "\":\"" + WorkflowStatus.definitief.name() + "\"}");
+    }
+
+    @Test
+    public void testMergeAll() throws Exception {
+        List<FeatureId> ids = this.merge("k1", "k2", "k3");
+        assertEquals(1, ids.size());
+
+        Map<String, SimpleFeature> kavels = kavels();
+        assertEquals(6, kavels.size());
+        assertEquals(WorkflowStatus.archief.name(), String.valueOf(kavels.get("k1").getAttribute(WORKFLOW_FIELDNAME)));
+        for (String fid : new String[]{"k2", "k3"}) {
+            assertEquals(WorkflowStatus.afgevoerd.name(), String.valueOf(kavels.get(fid).getAttribute(WORKFLOW_FIELDNAME)));
+            assertNull(kavels.get(fid).getAttribute(KAVEL_TERREIN_ID_FIELDNAME));
+        }
+        SimpleFeature merged = kavels.get(ids.get(0).getID());
+        assertEquals(WorkflowStatus.definitief.name(), String.valueOf(merged.getAttribute(WORKFLOW_FIELDNAME)));
+        assertEquals(1, merged.getAttribute(ID_FIELDNAME));
+        assertEquals(300d, ((Geometry) merged.getDefaultGeometry()).getArea(), 1e-9);
+    }
+
+    @Test
+    public void testDuplicateFids() throws Exception {
+        this.assertRejected(IllegalArgumentException.class, "k1", "k2", "k1");
+    }
+
+    @Test
+    public void testTooFewFids() throws Exception {
+        this.assertRejected(IllegalArgumentException.class, "k1");
+        this.assertRejected(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testMissingFid() throws Exception {
+        this.assertRejected(NoSuchElementException.class, "k1", "k2", "k99");
+    }
+
+    @Test
+    public void testDifferentTerreinen() throws Exception {
+        this.assertRejected(IllegalArgumentException.class, "k3", "k4");
+    }
+
+    @Test
+    public void testUnionDoesNotFitGeometryType() throws Exception {
+        // not touching, the union is a multipolygon
+        this.assertRejected(IllegalArgumentException.class, "k1", "k2", "k5");
+    }
+
+    /**
+     * merge must fail and nothing must be saved.
+     */
+    private void assertRejected(Class<? extends Exception> expected, String... fids) throws Exception {
+        try {
+            this.merge(fids);
+            fail("samenvoegen van " + Arrays.toString(fids) + " zou moeten mislukken");
+        } catch (Exception e) {
+            assertTrue("verwacht " + expected.getSimpleName() + ", was " + e, expected.isInstance(e));
+        }
+        Map<String, SimpleFeature> kavels = kavels();
+        assertEquals(5, kavels.size());
+        for (SimpleFeature f : kavels.values()) {
+            assertEquals(WorkflowStatus.definitief.name(), String.valueOf(f.getAttribute(WORKFLOW_FIELDNAME)));
+        }
+    }
+
+    /**
+     * merge as the bean does: in a transaction that is rolled back on error.
+     */
+    private List<FeatureId> merge(String... fids) throws Exception {
+        Transaction transaction = new DefaultTransaction("test");
+        try {
+            SimpleFeatureStore fs = (SimpleFeatureStore) store.getFeatureSource(KAVEL_LAYER_NAME);
+            fs.setTransaction(transaction);
+            JSONArray posted = new JSONArray();
+            for (String fid : fids) {
+                posted.put(fid);
+            }
+            return bean.mergeAll(fs, null, posted, transaction);
+        } catch (Exception e) {
+            transaction.rollback();
+            throw e;
+        } finally {
+            transaction.close();
+        }
+    }
+
+    private Map<String, SimpleFeature> kavels() throws Exception {
+        Map<String, SimpleFeature> kavels = new HashMap<>();
+        try (SimpleFeatureIterator it = store.getFeatureSource(KAVEL_LAYER_NAME).getFeatures().features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                kavels.put(f.getID(), f);
+            }
+        }
+        return kavels;
+    }
+}
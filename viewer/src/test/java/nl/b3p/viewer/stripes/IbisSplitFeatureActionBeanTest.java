@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.stripes;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import java.util.HashMap;
+import java.util.Map;
+import nl.b3p.viewer.ibis.util.IbisConstants;
+import nl.b3p.viewer.ibis.util.WorkflowStatus;
+import static nl.b3p.viewer.util.MemoryFeatureType.feature;
+import static nl.b3p.viewer.util.MemoryFeatureType.rectangle;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.json.JSONArray;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * testcases for {@link IbisSplitFeatureActionBean#splitAll()}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class IbisSplitFeatureActionBeanTest implements IbisConstants {
+
+    private MemoryDataStore store;
+    private IbisSplitFeatureActionBean bean;
+
+    @Before
+    public void setUp() throws Exception {
+        SimpleFeatureType kavelType = DataUtilities.createType(KAVEL_LAYER_NAME,
+                "geom:Polygon,ibis_id:Integer,terreinid:Integer,workflow_status:String");
+        store = new MemoryDataStore();
+        store.createSchema(kavelType);
+        // kavel 1 has a definitief and a bewerkt version
+        store.addFeature(feature(kavelType, "k1", rectangle(0, 10), 1, null, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k1b", rectangle(0, 8), 1, null, WorkflowStatus.bewerkt));
+        // kavel 2 is only definitief
+        store.addFeature(feature(kavelType, "k2", rectangle(20, 10), 2, null, WorkflowStatus.definitief));
+        // kavel 3 was moved in its bewerkt version
+        store.addFeature(feature(kavelType, "k3", rectangle(40, 10), 3, null, WorkflowStatus.definitief));
+        store.addFeature(feature(kavelType, "k3b", rectangle(60, 10), 3, null, WorkflowStatus.bewerkt));
+        // an old version of kavel 1
+        store.addFeature(feature(kavelType, "k1a", rectangle(0, 10), 1, null, WorkflowStatus.archief));
+
+        bean = new IbisSplitFeatureActionBean();
+        bean.setExtraData("{\"" + WORKFLOW_FIELDNAME + "\":\"" + WorkflowStatus.bewerkt.name() + "\"}");
+    }
+
+    @Test
+    public void testSplitDefinitiefIntoBewerkt() throws Exception {
+        // kavel 2 is only definitief, the bewerkt parts await approval
+        JSONArray newFids = new JSONArray();
+        assertEquals(1, this.split("LINESTRING(25 -5, 25 15)", newFids));
+        assertEquals(2, newFids.length());
+
+        Map<String, SimpleFeature> kavels = kavels();
+        assertEquals(8, kavels.size());
+        assertEquals(WorkflowStatus.definitief.name(), status(kavels.get("k2")));
+        for (int i = 0; i < newFids.length(); i++) {
+            assertEquals(WorkflowStatus.bewerkt.name(), status(kavels.get(newFids.getString(i))));
+        }
+    }
+
+    @Test
+    public void testSplitBewerktKeepsDefinitief() throws Exception {
+        JSONArray newFids = new JSONArray();
+        assertEquals(1, this.split("LINESTRING(5 -5, 5 15)", newFids));
+        assertEquals(2, newFids.length());
+
+        Map<String, SimpleFeature> kavels = kavels();
+        assertEquals(8, kavels.size());
+        // the bewerkt version is replaced by the parts, definitief stays live
+        assertEquals(WorkflowStatus.archief.name(), status(kavels.get("k1b")));
+        assertEquals(WorkflowStatus.definitief.name(), status(kavels.get("k1")));
+        assertEquals(WorkflowStatus.definitief.name(), status(kavels.get("k2")));
+        assertEquals(WorkflowStatus.definitief.name(), status(kavels.get("k3")));
+        assertEquals(WorkflowStatus.bewerkt.name(), status(kavels.get("k3b")));
+
+        // the parts of the current (bewerkt) version
+        double area = 0d;
+        for (int i = 0; i < newFids.length(); i++) {
+            SimpleFeature part = kavels.get(newFids.getString(i));
+            assertEquals(WorkflowStatus.bewerkt.name(), status(part));
+            area += ((Geometry) part.getDefaultGeometry()).getArea();
+        }
+        assertEquals(80d, area, 1e-9);
+    }
+
+    @Test
+    public void testSplitDefinitiefArchivesAllLiveVersions() throws Exception {
+        bean.setExtraData("{\"" + WORKFLOW_FIELDNAME + "\":\"" + WorkflowStatus.definitief.name() + "\"}");
+        // crosses the bewerkt version of kavel 3, not its definitief version
+        JSONArray newFids = new JSONArray();
+        assertEquals(1, this.split("LINESTRING(65 -5, 65 15)", newFids));
+        assertEquals(2, newFids.length());
+
+        Map<String, SimpleFeature> kavels = kavels();
+        assertEquals(WorkflowStatus.archief.name(), status(kavels.get("k3")));
+        assertEquals(WorkflowStatus.archief.name(), status(kavels.get("k3b")));
+        assertEquals(WorkflowStatus.bewerkt.name(), status(kavels.get("k1b")));
+        for (int i = 0; i < newFids.length(); i++) {
+            assertEquals(WorkflowStatus.definitief.name(), status(kavels.get(newFids.getString(i))));
+        }
+    }
+
+    @Test
+    public void testSplitNothing() throws Exception {
+        JSONArray newFids = new JSONArray();
+        assertEquals(0, this.split("LINESTRING(15 -5, 15 15)", newFids));
+        assertEquals(0, newFids.length());
+        assertEquals(6, kavels().size());
+    }
+
+    private int split(String wkt, JSONArray newFids) throws Exception {
+        Transaction transaction = new DefaultTransaction("test");
+        try {
+            SimpleFeatureStore fs = (SimpleFeatureStore) store.getFeatureSource(KAVEL_LAYER_NAME);
+            fs.setTransaction(transaction);
+            return bean.splitAll(fs, null, new WKTReader().read(wkt), transaction, newFids);
+        } finally {
+            transaction.close();
+        }
+    }
+
+    private Map<String, SimpleFeature> kavels() throws Exception {
+        Map<String, SimpleFeature> kavels = new HashMap<>();
+        try (SimpleFeatureIterator it = store.getFeatureSource(KAVEL_LAYER_NAME).getFeatures().features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                kavels.put(f.getID(), f);
+            }
+        }
+        return kavels;
+    }
+
+    private static String status(SimpleFeature f) {
+        return String.valueOf(f.getAttribute(WORKFLOW_FIELDNAME));
+    }
+}
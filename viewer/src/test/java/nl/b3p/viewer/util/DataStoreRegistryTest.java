@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.util;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.DataUtilities;
+import org.junit.After;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * testcases for {@link DataStoreRegistry}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class DataStoreRegistryTest {
+
+    @After
+    public void tearDown() {
+        DataStoreRegistry.shutdown();
+    }
+
+    private static MemoryFeatureType featureType() throws Exception {
+        return new MemoryFeatureType(3L, DataUtilities.createType("bedrijventerrein", "id:Integer,naam:String"));
+    }
+
+    @Test
+    public void testLeaseReusesStore() throws Exception {
+        MemoryFeatureType ft = featureType();
+        DataStore store;
+        try (DataStoreRegistry.Lease lease = DataStoreRegistry.lease(ft)) {
+            store = lease.getDataStore();
+            assertTrue(DataStoreRegistry.isPooled(store));
+        }
+        try (DataStoreRegistry.Lease lease = DataStoreRegistry.lease(ft)) {
+            assertSame(store, lease.getDataStore());
+        }
+    }
+
+    @Test
+    public void testShutdownDefersDisposeOfLeasedStore() throws Exception {
+        MemoryFeatureType ft = featureType();
+        DataStoreRegistry.Lease lease = DataStoreRegistry.lease(ft);
+        DataStore store = lease.getDataStore();
+
+        DataStoreRegistry.shutdown();
+        // the open lease keeps its store
+        assertTrue(DataStoreRegistry.isPooled(store));
+        assertSame(store, lease.getDataStore());
+        lease.getFeatureSource(ft).getFeatures().size();
+
+        // a new lease gets a new store
+        try (DataStoreRegistry.Lease other = DataStoreRegistry.lease(ft)) {
+            assertNotSame(store, other.getDataStore());
+        }
+
+        // closing the last lease disposes the store
+        lease.close();
+        assertFalse(DataStoreRegistry.isPooled(store));
+    }
+
+    @Test
+    public void testShutdownDisposesIdleStore() throws Exception {
+        MemoryFeatureType ft = featureType();
+        DataStore store;
+        try (DataStoreRegistry.Lease lease = DataStoreRegistry.lease(ft)) {
+            store = lease.getDataStore();
+        }
+        DataStoreRegistry.shutdown();
+        assertFalse(DataStoreRegistry.isPooled(store));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.util;
+
+import static nl.b3p.viewer.ibis.util.IbisConstants.ID_FIELDNAME;
+import static nl.b3p.viewer.ibis.util.IbisConstants.KAVEL_TERREIN_ID_FIELDNAME;
+import static nl.b3p.viewer.ibis.util.IbisConstants.MUTATIEDATUM_FIELDNAME;
+import static nl.b3p.viewer.ibis.util.IbisConstants.WORKFLOW_FIELDNAME;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import nl.b3p.viewer.config.services.FeatureTypeRelation;
+import nl.b3p.viewer.config.services.FeatureTypeRelationKey;
+import nl.b3p.viewer.ibis.util.WorkflowStatus;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+/**
+ * testcases for {@link IbisFeatureToJson}.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class IbisFeatureToJsonTest {
+
+    @After
+    public void tearDown() {
+        DataStoreRegistry.shutdown();
+    }
+
+    /**
+     * kavels with a definitief and an older archief version per ibis_id.
+     */
+    private static MemoryFeatureType kavels(int count) throws Exception {
+        org.opengis.feature.simple.SimpleFeatureType schema = DataUtilities.createType("bedrijvenkavels",
+                ID_FIELDNAME + ":Integer," + WORKFLOW_FIELDNAME + ":String," + MUTATIEDATUM_FIELDNAME + ":Date,"
+                + "naam:String," + KAVEL_TERREIN_ID_FIELDNAME + ":Integer");
+        MemoryFeatureType ft = new MemoryFeatureType(1L, schema);
+        for (int i = 0; i < count; i++) {
+            ft.getFeatures().add(SimpleFeatureBuilder.build(schema, new Object[]{
+                i, WorkflowStatus.definitief.name(), new Date(2000L), "kavel " + i, i % 7}, "bedrijvenkavels." + (2 * i)));
+            ft.getFeatures().add(SimpleFeatureBuilder.build(schema, new Object[]{
+                i, WorkflowStatus.archief.name(), new Date(1000L), "oud " + i, i % 7}, "bedrijvenkavels." + (2 * i + 1)));
+        }
+        ft.getAttribute("naam").setAlias("Kavelnaam");
+        return ft;
+    }
+
+    @Test
+    public void testStreamSameAsArray() throws Exception {
+        MemoryFeatureType ft = kavels(20);
+        for (boolean arrays : new boolean[]{true, false}) {
+            IbisFeatureToJson ftjson = new IbisFeatureToJson(arrays, false, false, new ArrayList<Long>());
+
+            JSONArray expected = ftjson.getDefinitiefJSONFeatures(null, ft, ft.newFeatureSource(), new Query(ft.getTypeName()));
+            StringWriter out = new StringWriter();
+            ftjson.writeDefinitiefJSONFeatures(null, ft, ft.newFeatureSource(), new Query(ft.getTypeName()), out);
+            assertEquals(20, expected.length());
+            assertEquals(expected.toString(), new JSONArray(out.toString()).toString());
+
+            expected = ftjson.getWorkflowJSONFeatures(null, ft, ft.newFeatureSource(), new Query(ft.getTypeName()));
+            out = new StringWriter();
+            ftjson.writeWorkflowJSONFeatures(null, ft, ft.newFeatureSource(), new Query(ft.getTypeName()), out);
+            assertEquals(20, expected.length());
+            assertEquals(expected.toString(), new JSONArray(out.toString()).toString());
+
+            JSONObject kavel = expected.getJSONObject(0);
+            if (arrays) {
+                assertEquals("kavel " + kavel.getInt("c0"), kavel.getString("c3"));
+            } else {
+                assertEquals("kavel " + kavel.getInt(ID_FIELDNAME), kavel.getString("Kavelnaam"));
+            }
+        }
+    }
+
+    /**
+     * join the terreinen on the terreinid of the kavels.
+     *
+     * @return the terreinen
+     */
+    private static MemoryFeatureType joinTerreinen(MemoryFeatureType kavels) throws Exception {
+        org.opengis.feature.simple.SimpleFeatureType schema = DataUtilities.createType("bedrijventerrein",
+                "tid:Integer,terreinnaam:String");
+        MemoryFeatureType terreinen = new MemoryFeatureType(2L, schema);
+        for (int i = 0; i < 7; i++) {
+            terreinen.getFeatures().add(SimpleFeatureBuilder.build(schema, new Object[]{i, "terrein " + i}, "bedrijventerrein." + i));
+        }
+        relate(FeatureTypeRelation.JOIN, kavels, KAVEL_TERREIN_ID_FIELDNAME, terreinen, "tid");
+        return terreinen;
+    }
+
+    /**
+     * add a relation on a single key.
+     */
+    private static void relate(String type, MemoryFeatureType ft, String left, MemoryFeatureType foreign, String right) {
+        FeatureTypeRelation rel = new FeatureTypeRelation();
+        rel.setType(type);
+        rel.setFeatureType(ft);
+        rel.setForeignFeatureType(foreign);
+        FeatureTypeRelationKey key = new FeatureTypeRelationKey();
+        key.setRelation(rel);
+        key.setLeftSide(ft.getAttribute(left));
+        key.setRightSide(foreign.getAttribute(right));
+        rel.getRelationKeys().add(key);
+        ft.getRelations().add(rel);
+    }
+
+    /**
+     * every feature must be joined, also the last partial batch.
+     */
+    private static void assertJoined(int count, JSONArray features) throws Exception {
+        assertEquals(count, features.length());
+        for (int i = 0; i < features.length(); i++) {
+            JSONObject kavel = features.getJSONObject(i);
+            assertFalse("kavel " + i + " niet gejoined", kavel.isNull("terreinnaam"));
+            assertEquals("terrein " + kavel.getInt(KAVEL_TERREIN_ID_FIELDNAME), kavel.getString("terreinnaam"));
+        }
+    }
+
+    @Test
+    public void testJoinLessThanBatch() throws Exception {
+        this.testJoin(10);
+    }
+
+    @Test
+    public void testJoinMoreThanBatch() throws Exception {
+        this.testJoin(600);
+    }
+
+    private void testJoin(int count) throws Exception {
+        MemoryFeatureType ft = kavels(count);
+        joinTerreinen(ft);
+        IbisFeatureToJson ftjson = new IbisFeatureToJson(false, false, false, new ArrayList<Long>());
+        Query q = new Query(ft.getTypeName());
+
+        assertJoined(count, ftjson.getDefinitiefJSONFeatures(null, ft, ft.newFeatureSource(), new Query(q)));
+        StringWriter out = new StringWriter();
+        ftjson.writeDefinitiefJSONFeatures(null, ft, ft.newFeatureSource(), new Query(q), out);
+        assertJoined(count, new JSONArray(out.toString()));
+
+        assertJoined(count, ftjson.getWorkflowJSONFeatures(null, ft, ft.newFeatureSource(), new Query(q)));
+        out = new StringWriter();
+        ftjson.writeWorkflowJSONFeatures(null, ft, ft.newFeatureSource(), new Query(q), out);
+        assertJoined(count, new JSONArray(out.toString()));
+    }
+
+    /**
+     * the related featuretypes of a kavel are not replaced by those of its
+     * joined terrein.
+     */
+    @Test
+    public void testRelatedOfJoinedFeature() throws Exception {
+        MemoryFeatureType ft = kavels(10);
+        MemoryFeatureType terreinen = joinTerreinen(ft);
+        MemoryFeatureType uitgiften = new MemoryFeatureType(3L, DataUtilities.createType("uitgiften", "kavelid:Integer"));
+        relate(FeatureTypeRelation.RELATE, ft, ID_FIELDNAME, uitgiften, "kavelid");
+        MemoryFeatureType gemeenten = new MemoryFeatureType(4L, DataUtilities.createType("gemeenten", "tid:Integer"));
+        relate(FeatureTypeRelation.RELATE, terreinen, "tid", gemeenten, "tid");
+        IbisFeatureToJson ftjson = new IbisFeatureToJson(false, false, false, new ArrayList<Long>());
+
+        StringWriter out = new StringWriter();
+        ftjson.writeDefinitiefJSONFeatures(null, ft, ft.newFeatureSource(), new Query(ft.getTypeName()), out);
+        for (JSONArray features : new JSONArray[]{
+            ftjson.getDefinitiefJSONFeatures(null, ft, ft.newFeatureSource(), new Query(ft.getTypeName())),
+            new JSONArray(out.toString())}) {
+            assertJoined(10, features);
+            for (int i = 0; i < features.length(); i++) {
+                JSONArray related = features.getJSONObject(i).getJSONArray("related_featuretypes");
+                assertEquals(1, related.length());
+                assertEquals(3L, related.getJSONObject(0).getLong("id"));
+            }
+        }
+    }
+}
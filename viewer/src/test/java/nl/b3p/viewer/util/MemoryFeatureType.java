@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 B3Partners B.V.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.b3p.viewer.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import nl.b3p.viewer.config.services.AttributeDescriptor;
+import nl.b3p.viewer.config.services.JDBCFeatureSource;
+import nl.b3p.viewer.config.services.SimpleFeatureType;
+import static nl.b3p.viewer.ibis.util.IbisConstants.ID_FIELDNAME;
+import static nl.b3p.viewer.ibis.util.IbisConstants.KAVEL_TERREIN_ID_FIELDNAME;
+import static nl.b3p.viewer.ibis.util.IbisConstants.WORKFLOW_FIELDNAME;
+import nl.b3p.viewer.ibis.util.WorkflowStatus;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * A flamingo feature type that reads its features from a
+ * {@link MemoryDataStore} instead of a database, for tests. Also has the
+ * factory methods for the kavels and terreinen of the workflow tests.
+ *
+ * @author Mark Prins <mark@b3partners.nl>
+ */
+public class MemoryFeatureType extends SimpleFeatureType {
+
+    private final org.opengis.feature.simple.SimpleFeatureType schema;
+    private final List<SimpleFeature> features = new ArrayList<>();
+
+    /**
+     * @param id id of the feature type and its feature source
+     * @param schema schema of the features, each attribute is added as a
+     * flamingo attribute
+     */
+    public MemoryFeatureType(long id, org.opengis.feature.simple.SimpleFeatureType schema) {
+        this.schema = schema;
+        this.setId(id);
+        this.setTypeName(schema.getTypeName());
+        JDBCFeatureSource fs = new JDBCFeatureSource();
+        fs.setId(id);
+        fs.setUrl("memory:" + id);
+        this.setFeatureSource(fs);
+        for (org.opengis.feature.type.AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+            AttributeDescriptor attr = new AttributeDescriptor();
+            attr.setName(ad.getLocalName());
+            attr.setType(Number.class.isAssignableFrom(ad.getType().getBinding())
+                    ? AttributeDescriptor.TYPE_INTEGER : AttributeDescriptor.TYPE_STRING);
+            this.getAttributes().add(attr);
+        }
+    }
+
+    /**
+     * @return the features of this feature type, add features to this list
+     */
+    public List<SimpleFeature> getFeatures() {
+        return features;
+    }
+
+    /**
+     * @param name attribute name
+     * @return the flamingo attribute
+     */
+    public AttributeDescriptor getAttribute(String name) {
+        for (AttributeDescriptor attr : this.getAttributes()) {
+            if (attr.getName().equals(name)) {
+                return attr;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A new store is created for every call, the conversion to json disposes
+     * stores that are not pooled.
+     *
+     * @return a feature source with the current features
+     * @throws IOException if any
+     */
+    public FeatureSource newFeatureSource() throws IOException {
+        MemoryDataStore store = new MemoryDataStore(schema);
+        store.addFeatures(features);
+        return store.getFeatureSource(schema.getTypeName());
+    }
+
+    @Override
+    public FeatureSource openGeoToolsFeatureSource() throws Exception {
+        return newFeatureSource();
+    }
+
+    @Override
+    public FeatureSource openGeoToolsFeatureSource(int timeout) throws Exception {
+        return newFeatureSource();
+    }
+
+    /**
+     * Create a kavel or terrein with a {@code geom} attribute.
+     *
+     * @param type kavel or terrein schema
+     * @param fid feature id
+     * @param geom geometry
+     * @param id ibis_id
+     * @param terreinID terreinid, ignored when the schema has no terreinid
+     * @param status workflow status
+     * @return the feature
+     */
+    public static SimpleFeature feature(org.opengis.feature.simple.SimpleFeatureType type, String fid, Geometry geom,
+            Integer id, Integer terreinID, WorkflowStatus status) {
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        builder.set("geom", geom);
+        builder.set(ID_FIELDNAME, id);
+        if (type.getDescriptor(KAVEL_TERREIN_ID_FIELDNAME) != null) {
+            builder.set(KAVEL_TERREIN_ID_FIELDNAME, terreinID);
+        }
+        builder.set(WORKFLOW_FIELDNAME, status.name());
+        return builder.buildFeature(fid);
+    }
+
+    /**
+     * @param x left side
+     * @param height height
+     * @return polygon of 10 wide from {@code x,0}
+     * @throws ParseException never
+     */
+    public static Geometry rectangle(int x, int height) throws ParseException {
+        return new WKTReader().read(String.format("POLYGON((%d 0, %d 0, %d %d, %d %d, %d 0))",
+                x, x + 10, x + 10, height, x, height, x));
+    }
+
+    /**
+     * @param x left side
+     * @return polygon of 10 by 10 from {@code x,0}
+     * @throws ParseException never
+     */
+    public static Geometry square(int x) throws ParseException {
+        return rectangle(x, 10);
+    }
+
+    /**
+     * @param x left side
+     * @param y bottom side
+     * @return multipolygon of 10 by 10 from {@code x,y}
+     * @throws ParseException never
+     */
+    public static Geometry multiSquare(int x, int y) throws ParseException {
+        return new WKTReader().read(String.format("MULTIPOLYGON(((%d %d, %d %d, %d %d, %d %d, %d %d)))",
+                x, y, x + 10, y, x + 10, y + 10, x, y + 10, x, y));
+    }
+}